@@ -1,78 +1,150 @@
 package dm.app;
 
 import dm.commands.*;
+import dm.control.ControlServer;
+import dm.core.DownloadCache;
 import dm.core.DownloadService;
 import dm.core.DownloadTask;
+import dm.core.ProgressJournal;
+import dm.core.Recovery;
+import dm.core.RetryPolicy;
 import dm.core.TaskIterable;
-import dm.core.FilteredTaskIterable;
+import dm.core.TaskQuery;
+import dm.core.TaskRepository;
+import dm.core.TaskTable;
+import dm.digest.StreamDigest;
+import dm.net.BufferPool;
+import dm.net.RangeHttpClient;
+import dm.net.TargetWriter;
+import dm.core.ProgressMeter;
 
 import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
 import java.util.Locale;
 import java.util.Scanner;
+import java.util.regex.Pattern;
 
 public class Main {
+    private static final Pattern WORDS = Pattern.compile("\\s+");
+    /** Порт API керування в режимі --daemon, якщо не задано --port. */
+    private static final int DEFAULT_PORT = 7878;
+
     public static void main(String[] args) throws Exception {
-        DownloadService svc = new DownloadService(Path.of("download.db"));
+        // --virtual: кожна задача на віртуальному потоці (багато дрібних файлів)
+        DownloadService.ExecutionMode execMode = Arrays.asList(args).contains("--virtual")
+                ? DownloadService.ExecutionMode.VIRTUAL
+                : DownloadService.ExecutionMode.PLATFORM;
+        // --http2: задачі до одного хоста ділять одне HTTP/2-з'єднання (де сервер його підтримує)
+        RangeHttpClient.Protocol protocol = Arrays.asList(args).contains("--http2")
+                ? RangeHttpClient.Protocol.HTTP_2
+                : RangeHttpClient.Protocol.HTTP_1_1;
+        Path db = Path.of("download.db");
+        DownloadService svc = new DownloadService(db, execMode, protocol);
+        Recovery.Result rec = svc.start();
+        System.out.printf("Startup check: %d unfinished tasks in %d ms (%d interrupted, %d fixed, %d restarted from zero), %d queued%n",
+                rec.checked, rec.millis, rec.interrupted, rec.fixed, rec.reset, rec.requeued);
         CommandManager cmdManager = new CommandManager(); // Command Pattern
 
+        // --daemon [--port N]: без консолі, керування лише через HTTP на loopback (див. ControlServer)
+        if (Arrays.asList(args).contains("--daemon")) {
+            int i = Arrays.asList(args).indexOf("--port");
+            int port = (i >= 0 && i + 1 < args.length) ? Integer.parseInt(args[i + 1]) : DEFAULT_PORT;
+            // токен поруч з базою, з правами 0600: клієнт читає його і шле як Authorization: Bearer
+            Path tokenFile = db.resolveSibling(db.getFileName() + ".token");
+            ControlServer api = new ControlServer(svc, cmdManager, port, tokenFile);
+            Thread main = Thread.currentThread();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                api.close();
+                try { main.join(10_000); } catch (InterruptedException ignored) {}
+            }));
+            System.out.println("Control API on http://127.0.0.1:" + api.port() + " (POST /commands, GET /events), "
+                    + "Authorization: Bearer <token from " + tokenFile.toAbsolutePath() + ">");
+            api.awaitStop();
+            cmdManager.close();
+            svc.close();
+            return;
+        }
+        TaskTable.Subscription watch = null;
+
         System.out.println("Download Manager with Command Pattern. Commands:");
-        System.out.println(" add <url> <file>      - додати завантаження");
+        System.out.println(" add <url> <file> [priority] - додати завантаження");
+        System.out.println(" import <manifest>     - додати задачі з файлу (url,target[,size,checksum,priority])");
         System.out.println(" pause <id>            - призупинити (через Command)");
         System.out.println(" resume <id>           - відновити (через Command)");
-        System.out.println(" list [filter]         - показати список");
-        System.out.println(" limit <bytes_per_sec> - встановити ліміт");
+        System.out.println(" pause|resume <ids|from-to|status|host=|url=|dir=|all>... - масово, одним записом в історії");
+        System.out.println(" list [status] [batch] [host=|url=|dir=|size=min-max|created=|updated=|name=] - показати список");
+        System.out.println(" limit <bytes_per_sec> - встановити загальний ліміт");
+        System.out.println(" limit host <host> <bytes_per_sec> | limit task <id> <bytes_per_sec>");
+        System.out.println(" segments <n>          - паралельні сегменти для нових задач");
+        System.out.println(" threads <n> [per_host] - скільки задач качати одночасно");
+        System.out.println(" durability <none|periodic|on_pause> [ms] - коли скидати файли на диск (fsync)");
+        System.out.println(" writer <channel|mapped> - як писати великі файли (mapped — від 256 МіБ відомої довжини)");
+        System.out.println(" buffers [MiB]         - пул буферів запису: стан або ліміт пам'яті (0 — вимкнути)");
+        System.out.println(" cache [MiB] | cache mode <copy|link> | cache clear - кеш завершених файлів для повторних URL (вимкнено, доки не задано MiB; 0 — вимкнути)");
+        System.out.println(" watch on|off          - друкувати зміни статусів задач, щойно вони стаються");
+        System.out.println(" stats                 - метрики: швидкість, хости, задачі, затримки бази");
+        System.out.println(" stats export <file> [ms] | stats export off - знімок метрик у форматі Prometheus");
+        System.out.println(" retry <max_attempts> [per_host_per_min] - автоматичні повтори після збоїв (1 — без повторів)");
+        System.out.println(" attempts <id>         - історія спроб задачі");
+        System.out.println(" priority <id> <n>     - змінити пріоритет задачі");
+        System.out.println(" checksum <id> <alg:hex|none> - очікувана контрольна сума (md5, sha1, sha256, crc32c)");
+        System.out.println(" refresh <id>|all      - чи змінились на сервері завершені файли (без завантаження)");
         System.out.println(" undo                  - скасувати останню команду");
         System.out.println(" redo                  - повторити команду");
         System.out.println(" history               - показати історію команд");
         System.out.println(" exit                  - вихід");
 
+        // запрошення лише для людини; зі скрипта (stdin з файлу чи pipe) вивід без нього
+        boolean interactive = System.console() != null;
         try (Scanner sc = new Scanner(System.in)) {
             while (true) {
-                System.out.print("> ");
+                if (interactive) System.out.print("> ");
                 if (!sc.hasNextLine()) break;
                 String line = sc.nextLine().trim();
                 if (line.isEmpty()) continue;
 
-                String[] parts = line.split("\\s+");
+                String[] parts = WORDS.split(line);
                 String cmd = parts[0].toLowerCase(Locale.ROOT);
 
                 try {
                     switch (cmd) {
                         case "add" -> {
                             if (parts.length < 3) {
-                                System.out.println("Usage: add <url> <file>");
+                                System.out.println("Usage: add <url> <file> [priority]");
                                 break;
                             }
-                            int id = svc.add(parts[1], Path.of(parts[2]));
+                            int priority = (parts.length >= 4) ? Integer.parseInt(parts[3]) : 0;
+                            int id = svc.add(parts[1], Path.of(parts[2]), priority);
                             System.out.println("Task created: #" + id);
                         }
 
-                        case "pause" -> {
+                        case "import" -> {
                             if (parts.length < 2) {
-                                System.out.println("Usage: pause <id>");
+                                System.out.println("Usage: import <manifest>");
                                 break;
                             }
-                            int id = Integer.parseInt(parts[1]);
-
-                            // Використовуємо Command Pattern
-                            Command pauseCmd = new DownloadCommand(
-                                    svc, id, DownloadCommand.Action.PAUSE
-                            );
-                            cmdManager.execute(pauseCmd);
+                            long t0 = System.nanoTime();
+                            DownloadService.ImportResult r = svc.importManifest(Path.of(parts[1]));
+                            System.out.printf("Imported %d tasks in %d ms, skipped %d%n",
+                                    r.imported, (System.nanoTime() - t0) / 1_000_000, r.skipped);
+                            if (r.firstError != null) System.out.println("First skipped: " + r.firstError);
                         }
 
-                        case "resume" -> {
+                        case "pause", "resume" -> {
                             if (parts.length < 2) {
-                                System.out.println("Usage: resume <id>");
+                                System.out.println("Usage: " + cmd + " <id> | " + cmd + " <ids|from-to|status|host=|url=|dir=|all>...");
                                 break;
                             }
-                            int id = Integer.parseInt(parts[1]);
+                            DownloadCommand.Action action = cmd.equals("pause")
+                                    ? DownloadCommand.Action.PAUSE : DownloadCommand.Action.RESUME;
 
-                            // Використовуємо Command Pattern
-                            Command resumeCmd = new DownloadCommand(
-                                    svc, id, DownloadCommand.Action.RESUME
-                            );
-                            cmdManager.execute(resumeCmd);
+                            // Використовуємо Command Pattern; одна задача — як раніше, решта — однією пакетною командою
+                            Command command = (parts.length == 2 && parts[1].chars().allMatch(Character::isDigit))
+                                    ? new DownloadCommand(svc, Integer.parseInt(parts[1]), action)
+                                    : new BulkCommand(svc, TaskSelector.parse(parts, 1), action);
+                            cmdManager.execute(command);
                         }
 
                         case "undo" -> {
@@ -88,24 +160,68 @@ public class Main {
                         }
 
                         case "list" -> {
-                            String mode = (parts.length >= 2) ? parts[1].toLowerCase(Locale.ROOT) : "all";
-                            int batch = (parts.length >= 3) ? Math.max(1, Integer.parseInt(parts[2])) : 50;
-
-                            var base = new TaskIterable(svc.getRepository(), batch);
-                            Iterable<DownloadTask> iterable;
-
-                            switch (mode) {
-                                case "completed" -> iterable = new FilteredTaskIterable(base, t -> t.status == DownloadTask.Status.COMPLETED);
-                                case "paused"    -> iterable = new FilteredTaskIterable(base, t -> t.status == DownloadTask.Status.PAUSED);
-                                case "running"   -> iterable = new FilteredTaskIterable(base, t -> t.status == DownloadTask.Status.RUNNING);
-                                case "error"     -> iterable = new FilteredTaskIterable(base, t -> t.status == DownloadTask.Status.ERROR);
-                                default          -> iterable = base;
+                            // list [статус] [batch] [host=h] [url=префікс] [dir=тека] [size=min-max]
+                            //      [created=хв] [updated=хв] [name=підрядок]
+                            int batch = 50;
+                            TaskQuery q = new TaskQuery();
+                            String bad = null;
+                            for (int i = 1; i < parts.length && bad == null; i++) {
+                                String p = parts[i];
+                                int eq = p.indexOf('=');
+                                try {
+                                    if (eq < 0) {
+                                        switch (p.toLowerCase(Locale.ROOT)) {
+                                            case "all"       -> { }
+                                            case "completed" -> q.status(DownloadTask.Status.COMPLETED);
+                                            case "paused"    -> q.status(DownloadTask.Status.PAUSED);
+                                            case "running"   -> q.status(DownloadTask.Status.RUNNING);
+                                            case "queued"    -> q.status(DownloadTask.Status.QUEUED);
+                                            case "error"     -> q.status(DownloadTask.Status.ERROR);
+                                            default          -> batch = Math.max(1, Integer.parseInt(p));
+                                        }
+                                        continue;
+                                    }
+                                    String key = p.substring(0, eq).toLowerCase(Locale.ROOT), val = p.substring(eq + 1);
+                                    long now = System.currentTimeMillis();
+                                    switch (key) {
+                                        case "host"    -> q.host(val);
+                                        case "url"     -> q.urlPrefix(val);
+                                        case "dir"     -> q.targetDir(Path.of(val));
+                                        case "size"    -> {
+                                            String[] r = val.split("-", -1);
+                                            q.size(r[0].isEmpty() ? -1 : Long.parseLong(r[0]),
+                                                   r.length < 2 || r[1].isEmpty() ? -1 : Long.parseLong(r[1]));
+                                        }
+                                        case "created" -> q.created(now - Long.parseLong(val) * 60_000, 0);
+                                        case "updated" -> q.updated(now - Long.parseLong(val) * 60_000, 0);
+                                        // ім'я файлу в SQL не індексується — це фільтр поверх вибірки
+                                        case "name"    -> q.where(t -> String.valueOf(t.target.getFileName()).contains(val));
+                                        default        -> bad = p;
+                                    }
+                                } catch (NumberFormatException e) {
+                                    bad = p;
+                                }
+                            }
+                            if (bad != null) {
+                                System.out.println("Bad list argument: " + bad);
+                                System.out.println("Usage: list [all|completed|paused|running|queued|error] [batch] [host=h] [url=prefix] "
+                                        + "[dir=dir] [size=min-max] [created=min] [updated=min] [name=text]");
+                                break;
                             }
+                            Iterable<DownloadTask> iterable = TaskIterable.of(svc.getTasks(), batch, q);
 
                             for (DownloadTask t : iterable) {
-                                String size = (t.totalBytes >= 0) ? (t.lastByte + "/" + t.totalBytes) : (t.lastByte + "/-1");
-                                System.out.printf("#%d [%s] %s (%s) -> %s%n",
-                                        t.id, t.status, t.url, size, t.target);
+                                ProgressMeter live = svc.progress(t.id);
+                                long done = (live != null) ? live.position() : t.lastByte;
+                                long total = (live != null && live.total() > 0) ? live.total() : t.totalBytes;
+                                String size = (total >= 0) ? (done + "/" + total) : (done + "/-1");
+                                String speed = (live != null)
+                                        ? String.format(" %.1f KiB/s, ETA %s", live.averageRate() / 1024, eta(live.etaSeconds()))
+                                        : "";
+                                String check = (t.verified == null) ? ""
+                                        : t.verified ? " [" + StreamDigest.algorithmOf(t.digest) + " ok]" : " [checksum mismatch]";
+                                System.out.printf("#%d [%s] %s (%s)%s%s -> %s%n",
+                                        t.id, t.status, t.url, size, speed, check, t.target);
                             }
                         }
 
@@ -114,23 +230,207 @@ public class Main {
                                 System.out.println("Usage: limit <bytes_per_sec|0>");
                                 break;
                             }
+                            if (parts[1].equalsIgnoreCase("host") || parts[1].equalsIgnoreCase("task")) {
+                                if (parts.length < 4) {
+                                    System.out.println("Usage: limit host <host> <bytes_per_sec> | limit task <id> <bytes_per_sec>");
+                                    break;
+                                }
+                                long lim = Long.parseLong(parts[3]);
+                                if (parts[1].equalsIgnoreCase("host")) svc.setHostLimit(parts[2].toLowerCase(Locale.ROOT), lim);
+                                else svc.setTaskLimit(Integer.parseInt(parts[2]), lim);
+                                System.out.println("Limit for " + parts[1] + " " + parts[2] + " set to " + lim + " B/s");
+                                break;
+                            }
                             long lim = Long.parseLong(parts[1]);
                             svc.setLimit(lim);
                             System.out.println("Limit set to " + lim + " B/s");
                         }
 
+                        case "segments" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: segments <n>");
+                                break;
+                            }
+                            svc.setSegments(Integer.parseInt(parts[1]));
+                            System.out.println("Segments set to " + svc.getSegments());
+                        }
+
+                        case "threads" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: threads <n> [per_host]");
+                                break;
+                            }
+                            int max = Integer.parseInt(parts[1]);
+                            int perHost = (parts.length >= 3) ? Integer.parseInt(parts[2]) : svc.getScheduler().getMaxPerHost();
+                            svc.setConcurrency(max, perHost);
+                            System.out.println("Concurrency set to " + svc.getScheduler().getMaxActive()
+                                    + " (per host " + svc.getScheduler().getMaxPerHost() + ")");
+                        }
+
+                        case "durability" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: durability <none|periodic|on_pause> [sync_ms]");
+                                break;
+                            }
+                            ProgressJournal.Durability d = ProgressJournal.Durability.valueOf(parts[1].toUpperCase(Locale.ROOT));
+                            long ms = (parts.length >= 3) ? Long.parseLong(parts[2]) : 2000;
+                            svc.setDurability(d, ms);
+                            System.out.println("Durability set to " + d + (d == ProgressJournal.Durability.PERIODIC ? " every " + ms + " ms" : ""));
+                        }
+
+                        case "writer" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: writer <channel|mapped>");
+                                break;
+                            }
+                            svc.setWriteMode(TargetWriter.Mode.valueOf(parts[1].toUpperCase(Locale.ROOT)));
+                            System.out.println("Writer set to " + svc.getWriteMode());
+                        }
+
+                        case "watch" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: watch on|off");
+                                break;
+                            }
+                            if (watch != null) watch.close();
+                            watch = null;
+                            if (parts[1].equalsIgnoreCase("on")) {
+                                watch = svc.getTasks().subscribe(e -> {
+                                    switch (e.kind) {
+                                        case ADDED -> System.out.printf("%nTask #%d added [%s]%n", e.taskId, e.status);
+                                        case STATUS -> System.out.printf("%nTask #%d: %s -> %s (%d bytes)%n",
+                                                e.taskId, e.previous, e.status, e.bytes);
+                                        default -> { }
+                                    }
+                                });
+                            }
+                            System.out.println("Watch " + (watch != null ? "on" : "off"));
+                        }
+
+                        case "stats" -> {
+                            if (parts.length >= 2 && parts[1].equalsIgnoreCase("export")) {
+                                if (parts.length < 3) {
+                                    System.out.println("Usage: stats export <file> [interval_ms] | stats export off");
+                                    break;
+                                }
+                                if (parts[2].equalsIgnoreCase("off")) {
+                                    svc.setMetricsExport(null, 0);
+                                    System.out.println("Metrics export off");
+                                } else {
+                                    long ms = (parts.length >= 4) ? Long.parseLong(parts[3]) : 10_000;
+                                    svc.setMetricsExport(Path.of(parts[2]), ms);
+                                    System.out.println("Metrics export to " + parts[2] + " every " + ms + " ms");
+                                }
+                                break;
+                            }
+                            svc.printStats();
+                        }
+
+                        case "buffers" -> {
+                            BufferPool pool = svc.getBufferPool();
+                            if (parts.length >= 2) pool.setCapacity(Long.parseLong(parts[1]) * 1024 * 1024);
+                            BufferPool.Stats st = pool.stats();
+                            System.out.printf("Buffers: cap %d KiB, allocated %d KiB, in use %d KiB, hits %d, misses %d, exhausted %d, hit rate %.1f%%%n",
+                                    st.capacity / 1024, st.allocated / 1024, st.inUse / 1024,
+                                    st.hits, st.misses, st.exhausted, st.hitRate() * 100);
+                        }
+
+                        case "cache" -> {
+                            DownloadCache cache = svc.getCache();
+                            if (parts.length >= 3 && parts[1].equalsIgnoreCase("mode")) {
+                                cache.setMode(DownloadCache.Mode.valueOf(parts[2].toUpperCase(Locale.ROOT)));
+                            } else if (parts.length >= 2 && parts[1].equalsIgnoreCase("clear")) {
+                                cache.clear();
+                            } else if (parts.length >= 2) {
+                                cache.setCapacity(Long.parseLong(parts[1]) * 1024 * 1024);
+                            }
+                            DownloadCache.Stats st = cache.stats();
+                            System.out.printf("Cache (%s): %d entries, %d/%d MiB, hits %d by url + %d by checksum, misses %d, "
+                                            + "attached %d, evicted %d, hit rate %.1f%%%n",
+                                    cache.getMode(), st.entries, st.bytes >> 20, st.capacity >> 20, st.urlHits, st.digestHits,
+                                    st.misses, st.attached, st.evictions, st.hitRate() * 100);
+                        }
+
+                        case "checksum" -> {
+                            if (parts.length < 3) {
+                                System.out.println("Usage: checksum <id> <algorithm:hex|none>");
+                                break;
+                            }
+                            int id = Integer.parseInt(parts[1]);
+                            svc.setChecksum(id, parts[2].equalsIgnoreCase("none") ? null : parts[2].toLowerCase(Locale.ROOT));
+                            System.out.println("Checksum set for task #" + id);
+                        }
+
+                        case "refresh" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: refresh <id>|all");
+                                break;
+                            }
+                            if (parts[1].equalsIgnoreCase("all")) {
+                                long t0 = System.nanoTime();
+                                DownloadService.RefreshResult r = svc.refreshCompleted();
+                                System.out.printf("Checked in %d ms: %d not modified, %d modified, %d without validators, %d failed%n",
+                                        (System.nanoTime() - t0) / 1_000_000, r.notModified, r.modified, r.unknown, r.failed);
+                                if (!r.modifiedIds.isEmpty()) System.out.println("Modified: " + r.modifiedIds);
+                                break;
+                            }
+                            int id = Integer.parseInt(parts[1]);
+                            System.out.println("Task #" + id + ": " + svc.refresh(id));
+                        }
+
+                        case "retry" -> {
+                            RetryPolicy rp = svc.getRetryPolicy();
+                            if (parts.length >= 2) rp.setMaxAttempts(Integer.parseInt(parts[1]));
+                            if (parts.length >= 3) rp.setBudgetPerMinute(Integer.parseInt(parts[2]));
+                            System.out.println("Retry: up to " + rp.getMaxAttempts() + " attempts, "
+                                    + rp.getBudgetPerMinute() + " retries/min per host");
+                        }
+
+                        case "attempts" -> {
+                            if (parts.length < 2) {
+                                System.out.println("Usage: attempts <id>");
+                                break;
+                            }
+                            int id = Integer.parseInt(parts[1]);
+                            SimpleDateFormat fmt = new SimpleDateFormat("HH:mm:ss");
+                            for (TaskRepository.Attempt a : svc.attempts(id)) {
+                                System.out.printf("#%d %s %.1fs bytes %d-%d %s%s%s%n", a.attempt, fmt.format(new Date(a.startedAt)),
+                                        (a.endedAt - a.startedAt) / 1000.0, a.fromByte, a.toByte, a.outcome,
+                                        a.retryInMs >= 0 ? " (retry in " + a.retryInMs + " ms)" : "",
+                                        a.error != null ? " " + a.error : "");
+                            }
+                        }
+
+                        case "priority" -> {
+                            if (parts.length < 3) {
+                                System.out.println("Usage: priority <id> <n>");
+                                break;
+                            }
+                            int id = Integer.parseInt(parts[1]);
+                            svc.setPriority(id, Integer.parseInt(parts[2]));
+                            System.out.println("Priority of #" + id + " set to " + parts[2]);
+                        }
+
                         case "exit" -> {
-                            svc.close();
                             return;
                         }
 
                         default -> System.out.println("Unknown command");
                     }
                 } catch (Exception e) {
-                    System.err.println("Error: " + e.getMessage());
-                    e.printStackTrace(System.out);
+                    System.err.println("Error: " + (e.getMessage() != null ? e.getMessage() : e.toString()));
                 }
             }
+        } finally {
+            // і exit, і кінець stdin (скрипт, pipe): спершу доробити команди, що в черзі
+            if (watch != null) watch.close();
+            cmdManager.close();
+            svc.close();
         }
     }
-}
\ No newline at end of file
+
+    private static String eta(long seconds) {
+        if (seconds < 0) return "?";
+        return String.format("%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60);
+    }
+}
@@ -0,0 +1,83 @@
+package dm.commands;
+
+import dm.core.DownloadService;
+import dm.core.DownloadTask;
+
+import java.util.Arrays;
+
+/**
+ * Пауза чи відновлення всіх задач селектора однією пакетною операцією і одним записом в історії.
+ * Задачі вибираються при першому виконанні; redo діє на ті самі. На кожну задачу в історії
+ * тримається лише int id і байт попереднього статусу.
+ */
+public class BulkCommand implements Command {
+    private static final DownloadTask.Status[] STATUSES = DownloadTask.Status.values();
+
+    private final DownloadService service;
+    private final TaskSelector selector;
+    private final DownloadCommand.Action action;
+    private int[] ids;
+    private byte[] previous;
+    private int count;
+
+    public BulkCommand(DownloadService service, TaskSelector selector, DownloadCommand.Action action) {
+        this.service = service;
+        this.selector = selector;
+        this.action = action;
+    }
+
+    @Override
+    public void execute() throws Exception {
+        long t0 = System.nanoTime();
+        int[] candidates = ids != null ? Arrays.copyOf(ids, count) : selector.resolve(service.getTasks());
+        // лише ті, кого дія зачепить (DownloadCommand.applies)
+        int n = 0;
+        byte[] prev = new byte[candidates.length];
+        for (int id : candidates) {
+            DownloadTask.Status st = service.getTasks().status(id);
+            if (st == null || !DownloadCommand.applies(action, st)) continue;
+            candidates[n] = id;
+            prev[n++] = (byte) st.ordinal();
+        }
+        ids = Arrays.copyOf(candidates, n);
+        previous = Arrays.copyOf(prev, n);
+        count = n;
+
+        if (action == DownloadCommand.Action.PAUSE) service.stopAll(ids, count, DownloadTask.Status.PAUSED);
+        else service.resumeAll(ids, count);
+        System.out.printf("%s %d tasks (%s) in %d ms%n", action == DownloadCommand.Action.PAUSE ? "Paused" : "Resumed",
+                count, selector, (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    @Override
+    public void undo() throws Exception {
+        if (action == DownloadCommand.Action.PAUSE) {
+            // і RUNNING, і QUEUED до паузи — знову в чергу; кого вже відновили, resumeAll пропустить
+            int n = service.resumeAll(ids, count);
+            System.out.printf("Undo: Resumed %d tasks%n", n);
+            return;
+        }
+        // відкочуємо лише те, що досі качається чи чекає: завершені й знову зупинені не чіпаємо
+        int[] failed = new int[count], paused = new int[count];
+        int nf = 0, np = 0;
+        for (int i = 0; i < count; i++) {
+            DownloadTask.Status now = service.getTasks().status(ids[i]);
+            if (now == null || !DownloadCommand.applies(DownloadCommand.Action.PAUSE, now)) continue;
+            if (STATUSES[previous[i]] == DownloadTask.Status.ERROR) failed[nf++] = ids[i];
+            else paused[np++] = ids[i];
+        }
+        service.stopAll(paused, np, DownloadTask.Status.PAUSED);
+        service.stopAll(failed, nf, DownloadTask.Status.ERROR);
+        System.out.printf("Undo: Paused %d tasks, %d back to ERROR%n", np, nf);
+    }
+
+    /** Скільки задач зачепило останнє виконання. */
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String getDescription() {
+        return action + " " + selector + (ids != null ? " (" + count + " tasks)" : "");
+    }
+}
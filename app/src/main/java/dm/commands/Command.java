@@ -7,5 +7,9 @@ public interface Command {
     void undo() throws Exception;
 
     String getDescription();
-}
 
+    /** Задача, якої стосується команда, або -1 (кілька задач чи жодної); по ній CommandManager зливає команди в черзі. */
+    default int getTaskId() {
+        return -1;
+    }
+}
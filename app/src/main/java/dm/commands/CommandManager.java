@@ -1,59 +1,271 @@
 package dm.commands;
 
-import java.util.Stack;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class CommandManager {
-    private final Stack<Command> history = new Stack<>();
-    private final Stack<Command> redoStack = new Stack<>();
+/**
+ * Виконує команди по черзі в окремому потоці: execute, undo і redo лише ставлять їх у чергу
+ * і одразу повертаються. Пауза чи відновлення задачі, які ще чекають, зливаються: нова команда
+ * для тієї ж задачі заміняє стару на її місці, тож виконується і потрапляє в історію лише остання.
+ * Зливаються тільки сусідні однозадачні команди — через масову команду, undo чи redo не перескакуємо.
+ *
+ * Історія обмежена historyLimit записами: найстаріші відкидаються. Хто хоче дочекатись результату
+ * (API керування), чекає на повернений future; для злитих команд він спільний.
+ */
+public class CommandManager implements AutoCloseable {
+    private static final int DEFAULT_HISTORY = 100;
 
-    public void execute(Command command) throws Exception {
+    private enum Kind { EXECUTE, UNDO, REDO }
+
+    private static final class Op {
+        final Kind kind;
+        Command command;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        Op(Kind kind, Command command) { this.kind = kind; this.command = command; }
+    }
+
+    private final int historyLimit;
+    private final ArrayDeque<Command> history = new ArrayDeque<>();
+    private final ArrayDeque<Command> redoStack = new ArrayDeque<>();
+    private final ArrayDeque<Op> pending = new ArrayDeque<>();
+    private final Map<Integer, Op> pendingByTask = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private boolean running;
+    private boolean closed;
+    private long coalesced;
+    private final Thread worker;
+
+    public CommandManager() {
+        this(DEFAULT_HISTORY);
+    }
+
+    public CommandManager(int historyLimit) {
+        this.historyLimit = Math.max(1, historyLimit);
+        this.worker = new Thread(this::loop, "commands");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public CompletableFuture<Void> execute(Command command) {
+        lock.lock();
+        try {
+            int id = command.getTaskId();
+            Op same = id >= 0 ? pendingByTask.get(id) : null;
+            if (same != null) {
+                same.command = command;
+                coalesced++;
+                return same.done;
+            }
+            Op op = new Op(Kind.EXECUTE, command);
+            if (id >= 0) pendingByTask.put(id, op);
+            else pendingByTask.clear();
+            return enqueue(op);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public CompletableFuture<Void> undo() {
+        return enqueueBarrier(Kind.UNDO);
+    }
+
+    public CompletableFuture<Void> redo() {
+        return enqueueBarrier(Kind.REDO);
+    }
+
+    private CompletableFuture<Void> enqueueBarrier(Kind kind) {
+        lock.lock();
+        try {
+            pendingByTask.clear();
+            return enqueue(new Op(kind, null));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> enqueue(Op op) {
+        if (closed) throw new IllegalStateException("Command manager is closed");
+        pending.addLast(op);
+        changed.signalAll();
+        return op.done;
+    }
+
+    private void loop() {
+        while (true) {
+            Op op;
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) changed.awaitUninterruptibly();
+                if (pending.isEmpty()) return;
+                op = pending.pollFirst();
+                if (op.command != null && pendingByTask.get(op.command.getTaskId()) == op) {
+                    pendingByTask.remove(op.command.getTaskId());
+                }
+                running = true;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                switch (op.kind) {
+                    case EXECUTE -> run(op.command);
+                    case UNDO -> runUndo();
+                    case REDO -> runRedo();
+                }
+                op.done.complete(null);
+            } catch (Exception e) {
+                System.err.println("Error: " + e.getMessage());
+                op.done.completeExceptionally(e);
+            } finally {
+                lock.lock();
+                try {
+                    running = false;
+                    changed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+    }
+
+    private void run(Command command) throws Exception {
         command.execute();
-        history.push(command);
-        redoStack.clear();
+        lock.lock();
+        try {
+            push(history, command);
+            redoStack.clear();
+        } finally {
+            lock.unlock();
+        }
     }
 
-    public void undo() throws Exception {
-        if (history.isEmpty()) {
+    private void runUndo() throws Exception {
+        Command cmd = pop(history);
+        if (cmd == null) {
             System.out.println("Nothing to undo");
             return;
         }
-
-        Command cmd = history.pop();
         cmd.undo();
-        redoStack.push(cmd);
+        lock.lock();
+        try {
+            push(redoStack, cmd);
+        } finally {
+            lock.unlock();
+        }
         System.out.println("Undone: " + cmd.getDescription());
     }
 
-    public void redo() throws Exception {
-        if (redoStack.isEmpty()) {
+    private void runRedo() throws Exception {
+        Command cmd = pop(redoStack);
+        if (cmd == null) {
             System.out.println("Nothing to redo");
             return;
         }
-
-        Command cmd = redoStack.pop();
         cmd.execute();
-        history.push(cmd);
+        lock.lock();
+        try {
+            push(history, cmd);
+        } finally {
+            lock.unlock();
+        }
         System.out.println("Redone: " + cmd.getDescription());
     }
 
-    public void showHistory() {
-        if (history.isEmpty()) {
-            System.out.println("History is empty");
-            return;
+    private void push(ArrayDeque<Command> stack, Command cmd) {
+        stack.addLast(cmd);
+        if (stack.size() > historyLimit) stack.pollFirst();
+    }
+
+    private Command pop(ArrayDeque<Command> stack) {
+        lock.lock();
+        try {
+            return stack.pollLast();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Чекає, поки всі поставлені команди виконаються. */
+    public void awaitIdle() throws InterruptedException {
+        lock.lock();
+        try {
+            while (!pending.isEmpty() || running) changed.await();
+        } finally {
+            lock.unlock();
         }
+    }
+
+    public void showHistory() {
+        lock.lock();
+        try {
+            if (history.isEmpty()) {
+                System.out.println("History is empty");
+                return;
+            }
 
-        System.out.println("Command history:");
-        int i = 1;
-        for (Command cmd : history) {
-            System.out.println(i++ + ". " + cmd.getDescription());
+            System.out.println("Command history:");
+            int i = 1;
+            for (Command cmd : history) {
+                System.out.println(i++ + ". " + cmd.getDescription());
+            }
+            if (!pending.isEmpty()) System.out.println("Pending: " + pending.size());
+        } finally {
+            lock.unlock();
         }
     }
 
     public boolean canUndo() {
-        return !history.isEmpty();
+        lock.lock();
+        try {
+            return !history.isEmpty();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public boolean canRedo() {
-        return !redoStack.isEmpty();
+        lock.lock();
+        try {
+            return !redoStack.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Скільки команд ще в черзі. */
+    public int pendingCount() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Скільки команд замінено новішими для тієї ж задачі, не виконавши. */
+    public long coalescedCount() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Виконує те, що вже в черзі, і зупиняє потік. */
+    @Override
+    public void close() throws InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        worker.join();
     }
-}
\ No newline at end of file
+}
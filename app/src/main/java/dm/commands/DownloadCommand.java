@@ -17,33 +17,51 @@ public class DownloadCommand implements Command {
         this.action = action;
     }
 
+    /** Пауза — для того, що качається чи чекає; відновлення — для зупинених, тих, що впали, і ще не запущених. */
+    static boolean applies(Action action, DownloadTask.Status st) {
+        return action == Action.PAUSE
+                ? st == DownloadTask.Status.RUNNING || st == DownloadTask.Status.QUEUED
+                : st == DownloadTask.Status.PAUSED || st == DownloadTask.Status.ERROR || st == DownloadTask.Status.NEW;
+    }
+
+    /** Команда, що нічого б не змінила, — помилка: в історію вона не потрапляє. */
     @Override
     public void execute() throws Exception {
-        DownloadTask task = service.getRepository().findById(taskId);
-        if (task != null) {
-            previousStatus = task.status;
+        DownloadTask.Status status = service.getTasks().status(taskId);
+        if (status == null) throw new IllegalArgumentException("No such task: " + taskId);
+        if (!applies(action, status)) {
+            throw new IllegalStateException("Task #" + taskId + " is " + status + ", nothing to " + action.name().toLowerCase());
         }
+        previousStatus = status;
 
         if (action == Action.PAUSE) {
             service.pause(taskId);
             System.out.println("Paused task #" + taskId);
         } else {
-            service.resume(taskId);
+            if (!service.resume(taskId)) throw new IllegalStateException("Task #" + taskId + " is already running");
             System.out.println("Resumed task #" + taskId);
         }
     }
 
     @Override
     public void undo() throws Exception {
-        if (action == Action.PAUSE && previousStatus == DownloadTask.Status.RUNNING) {
+        if (action == Action.PAUSE) {
+            // і RUNNING, і QUEUED до паузи — знову в чергу; якщо її вже відновили, resume нічого не зробить
             service.resume(taskId);
             System.out.println("Undo: Resumed task #" + taskId);
-        } else if (action == Action.RESUME && previousStatus == DownloadTask.Status.PAUSED) {
-            service.pause(taskId);
-            System.out.println("Undo: Paused task #" + taskId);
+        } else {
+            DownloadTask.Status now = service.getTasks().status(taskId);
+            if (now == null || !applies(Action.PAUSE, now)) return; // уже завершилась чи знову зупинена
+            service.stopAll(new int[]{ taskId }, 1, previousStatus);
+            System.out.println("Undo: task #" + taskId + " back to " + previousStatus);
         }
     }
 
+    @Override
+    public int getTaskId() {
+        return taskId;
+    }
+
     @Override
     public String getDescription() {
         return action + " task #" + taskId;
@@ -0,0 +1,86 @@
+package dm.commands;
+
+import dm.core.DownloadTask;
+import dm.core.TaskQuery;
+import dm.core.TaskTable;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Які задачі зачіпає масова команда: id (5), діапазони id (10-200), статус (paused, error...),
+ * host=, url=, dir= або all. Кілька id і діапазонів об'єднуються, фільтри діють на всі разом:
+ * "1-1000 running host=example.com". Без жодного id чи діапазону — усі задачі, що пройшли фільтри.
+ */
+public class TaskSelector {
+    private final List<int[]> ranges = new ArrayList<>();
+    private final TaskQuery query = new TaskQuery();
+    private final String text;
+
+    private TaskSelector(String text) {
+        this.text = text;
+    }
+
+    /** Розбирає parts[from..]; порожній селектор — помилка, щоб "pause" без аргументів не зупинив усе. */
+    public static TaskSelector parse(String[] parts, int from) {
+        TaskSelector s = new TaskSelector(String.join(" ", Arrays.copyOfRange(parts, from, parts.length)));
+        boolean any = false;
+        for (int i = from; i < parts.length; i++) {
+            String p = parts[i];
+            int eq = p.indexOf('=');
+            if (eq > 0) {
+                String key = p.substring(0, eq).toLowerCase(Locale.ROOT), val = p.substring(eq + 1);
+                switch (key) {
+                    case "host" -> s.query.host(val);
+                    case "url"  -> s.query.urlPrefix(val);
+                    case "dir"  -> s.query.targetDir(Path.of(val));
+                    default     -> throw new IllegalArgumentException("unknown filter: " + key);
+                }
+            } else if (p.equalsIgnoreCase("all")) {
+                // лише щоб явно сказати "усі"
+            } else if (Character.isDigit(p.charAt(0))) {
+                int dash = p.indexOf('-');
+                int lo = Integer.parseInt(dash < 0 ? p : p.substring(0, dash));
+                int hi = dash < 0 ? lo : Integer.parseInt(p.substring(dash + 1));
+                if (hi < lo) throw new IllegalArgumentException("bad range: " + p);
+                s.ranges.add(new int[]{ lo, hi });
+            } else {
+                s.query.status(DownloadTask.Status.valueOf(p.toUpperCase(Locale.ROOT)));
+            }
+            any = true;
+        }
+        if (!any) throw new IllegalArgumentException("empty selector: give ids, ranges (1-100), a status, host=... or all");
+        return s;
+    }
+
+    /** id вибраних задач за зростанням, без повторів; читає лише таблицю в пам'яті. */
+    public int[] resolve(TaskTable tasks) {
+        if (ranges.isEmpty()) return tasks.ids(1, Integer.MAX_VALUE, query);
+        // діапазони можуть перетинатися: зливаємо, щоб кожна задача потрапила один раз
+        List<int[]> sorted = new ArrayList<>(ranges);
+        sorted.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] out = new int[0];
+        int lo = sorted.get(0)[0], hi = sorted.get(0)[1];
+        for (int i = 1; i <= sorted.size(); i++) {
+            int[] r = i < sorted.size() ? sorted.get(i) : null;
+            if (r != null && r[0] <= hi + 1L) {
+                hi = Math.max(hi, r[1]);
+                continue;
+            }
+            int[] part = tasks.ids(lo, hi, query);
+            int n = out.length;
+            out = Arrays.copyOf(out, n + part.length);
+            System.arraycopy(part, 0, out, n, part.length);
+            if (r != null) { lo = r[0]; hi = r[1]; }
+        }
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
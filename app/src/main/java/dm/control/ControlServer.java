@@ -0,0 +1,518 @@
+package dm.control;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dm.commands.BulkCommand;
+import dm.commands.CommandManager;
+import dm.commands.DownloadCommand;
+import dm.commands.TaskSelector;
+import dm.core.DownloadCache;
+import dm.core.DownloadService;
+import dm.core.DownloadTask;
+import dm.core.TaskQuery;
+import dm.core.TaskRepository;
+import dm.core.TaskTable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * API керування для режиму демона: HTTP лише на loopback, поверх того самого DownloadService.
+ *
+ * POST /commands — JSON-об'єкт команди або масив команд; відповідь — результат або масив результатів
+ * у тому ж порядку ({"ok":true,...} чи {"ok":false,"error":"..."}), помилка однієї команди решту не зупиняє.
+ * Команда — {"op":"add","url":...,"target":...}, pause/resume ({"id":N}, {"ids":[...]} або
+ * {"select":"1-100 paused"}), undo, redo, get, list, count, priority, limit, threads, stats, shutdown.
+ * Кілька add поспіль вставляються однією транзакцією; pause/resume ідуть через CommandManager, як з консолі.
+ *
+ * GET /events[?ids=1,2&progress=0] — потік змін задач з TaskTable, по JSON-рядку на подію (NDJSON).
+ * Подія серіалізується один раз на всіх підписників; кожен має свою обмежену чергу, і повільний
+ * клієнт лише губить свої події (про це йому приходить DROPPED), а не гальмує решту.
+ *
+ * Loopback — не захист від браузера: будь-яка сторінка може надіслати "простий" POST на 127.0.0.1,
+ * а DNS rebinding — ще й читати відповіді. Тому кожен запит має нести Authorization: Bearer з токеном,
+ * який при старті пишеться у файл з правами 0600 (читає лише власник); Host — лише 127.0.0.1:порт
+ * чи localhost:порт; заголовок Origin (його ставить браузер) — відмова; тіло /commands — лише application/json.
+ */
+public final class ControlServer implements AutoCloseable {
+    /** Скільки подій може чекати на відправку одному підписнику. */
+    private static final int STREAM_QUEUE = 4096;
+    /** Як часто слати порожній рядок у тихий потік, щоб помітити, що клієнт пішов. */
+    private static final long HEARTBEAT_MS = 15_000;
+    private static final int LIST_LIMIT = 10_000;
+    private static final byte[] CLOSE = new byte[0];
+    private static final byte[] HEARTBEAT = { '\n' };
+
+    static {
+        // jdk.httpserver пише заголовки і тіло окремо, і без TCP_NODELAY кожна коротка відповідь
+        // чекає delayed ACK клієнта (~40 мс): це межа в ~25 запитів на секунду. Читається один раз,
+        // при першому HttpServer у JVM, тож задається тут, якщо не задано ззовні.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    /** Один підписник /events. ids = null — усі задачі; інакше відсортовані, без повторів. */
+    private static final class Stream {
+        final int[] ids;
+        final boolean progress;
+        final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(STREAM_QUEUE);
+        final AtomicLong dropped = new AtomicLong();
+
+        Stream(int[] ids, boolean progress) { this.ids = ids; this.progress = progress; }
+
+        boolean wants(TaskTable.Event e) {
+            if (!progress && e.kind == TaskTable.Event.Kind.PROGRESS) return false;
+            return ids == null || Arrays.binarySearch(ids, e.taskId) >= 0;
+        }
+    }
+
+    private final DownloadService svc;
+    private final CommandManager commands;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final List<Stream> streams = new CopyOnWriteArrayList<>();
+    private final TaskTable.Subscription subscription;
+    private final String token;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // один таймер на всіх: timed poll у кожному з тисяч потоків ставив і знімав би таймер на кожну подію
+    private final ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "control-heartbeat");
+        th.setDaemon(true);
+        return th;
+    });
+
+    /** port = 0 — будь-який вільний (див. port()). tokenFile — куди записати токен доступу (див. token()). */
+    public ControlServer(DownloadService svc, CommandManager commands, int port, Path tokenFile) throws IOException {
+        this.svc = svc;
+        this.commands = commands;
+        byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        this.token = HexFormat.of().formatHex(random);
+        writeToken(tokenFile, token);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        server.createContext("/commands", this::handleCommands);
+        server.createContext("/events", this::handleEvents);
+        server.setExecutor(executor);
+        this.subscription = svc.getTasks().subscribe(this::fanOut);
+        heartbeat.scheduleWithFixedDelay(() -> {
+            for (Stream s : streams) if (s.queue.isEmpty()) s.queue.offer(HEARTBEAT);
+        }, HEARTBEAT_MS, HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+        server.start();
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    /** Токен для Authorization: Bearer; той самий, що у файлі. */
+    public String token() {
+        return token;
+    }
+
+    /** Новий файл з правами 0600; на файловій системі без POSIX-прав — просто файл. */
+    private static void writeToken(Path file, String token) throws IOException {
+        Files.deleteIfExists(file); // права задаються лише при створенні
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+        Files.writeString(file, token + "\n", StandardCharsets.US_ASCII);
+    }
+
+    /** Блокує, доки API не зупинять (команда shutdown або close()). */
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    public int subscriberCount() {
+        return streams.size();
+    }
+
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) return;
+        subscription.close();
+        heartbeat.shutdownNow();
+        for (Stream s : streams) {
+            s.queue.clear();
+            s.queue.offer(CLOSE);
+        }
+        server.stop(0);
+        executor.shutdownNow();
+        stopped.countDown();
+    }
+
+    // ---- /commands ----
+
+    private void handleCommands(HttpExchange ex) throws IOException {
+        boolean shutdown = false;
+        try (ex) {
+            if (!allowed(ex)) return;
+            if (!ex.getRequestMethod().equals("POST")) {
+                reply(ex, 405, error("POST a command object or an array of commands"));
+                return;
+            }
+            // інакше браузер надішле крос-доменний "простий" запит (text/plain) без preflight
+            String type = ex.getRequestHeaders().getFirst("Content-Type");
+            if (type == null || !type.split(";", 2)[0].trim().equalsIgnoreCase("application/json")) {
+                reply(ex, 415, error("Content-Type must be application/json"));
+                return;
+            }
+            Object req;
+            try {
+                req = Json.parse(new String(ex.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            } catch (IllegalArgumentException e) {
+                reply(ex, 400, error(e.getMessage()));
+                return;
+            }
+            boolean single = !(req instanceof List<?>);
+            List<?> ops = single ? List.of(req) : (List<?>) req;
+            List<Object> results = run(ops);
+            reply(ex, 200, single ? results.get(0) : results);
+            shutdown = ops.stream().anyMatch(o -> o instanceof Map<?, ?> m && "shutdown".equals(m.get("op")));
+        }
+        if (shutdown) Thread.ofVirtual().start(this::close);
+    }
+
+    private List<Object> run(List<?> ops) {
+        List<Object> results = new ArrayList<>(ops.size());
+        List<TaskRepository.NewTask> adds = new ArrayList<>();
+        List<Integer> addSlots = new ArrayList<>();
+        boolean addPaused = false;
+        for (Object o : ops) {
+            try {
+                if (!(o instanceof Map<?, ?> raw)) throw new IllegalArgumentException("command must be an object");
+                @SuppressWarnings("unchecked") Map<String, Object> cmd = (Map<String, Object>) raw;
+                String op = str(cmd, "op", null);
+                if (op == null) throw new IllegalArgumentException("missing op");
+                if (op.equals("add")) {
+                    boolean paused = bool(cmd, "paused");
+                    if (!adds.isEmpty() && paused != addPaused) flushAdds(adds, addSlots, addPaused, results);
+                    addPaused = paused;
+                    String url = str(cmd, "url", null), target = str(cmd, "target", null);
+                    if (url == null || target == null) throw new IllegalArgumentException("add needs url and target");
+                    adds.add(new TaskRepository.NewTask(url, target, num(cmd, "size", -1), str(cmd, "checksum", null),
+                            (int) num(cmd, "priority", 0)));
+                    addSlots.add(results.size());
+                    results.add(null);
+                    continue;
+                }
+                // порядок зберігаємо: накопичені add — до наступної команди
+                flushAdds(adds, addSlots, addPaused, results);
+                results.add(execute(op, cmd));
+            } catch (Exception e) {
+                results.add(error(message(e)));
+            }
+        }
+        flushAdds(adds, addSlots, addPaused, results);
+        return results;
+    }
+
+    private void flushAdds(List<TaskRepository.NewTask> adds, List<Integer> slots, boolean paused, List<Object> results) {
+        if (adds.isEmpty()) return;
+        try {
+            List<DownloadTask> created = svc.addAll(adds, paused);
+            for (int i = 0; i < created.size(); i++) results.set(slots.get(i), ok("id", created.get(i).id));
+        } catch (Exception e) {
+            for (int slot : slots) results.set(slot, error(message(e)));
+        }
+        adds.clear();
+        slots.clear();
+    }
+
+    private Object execute(String op, Map<String, Object> cmd) throws Exception {
+        TaskTable tasks = svc.getTasks();
+        switch (op) {
+            case "pause", "resume" -> {
+                DownloadCommand.Action action = op.equals("pause") ? DownloadCommand.Action.PAUSE : DownloadCommand.Action.RESUME;
+                if (cmd.get("id") != null) {
+                    await(commands.execute(new DownloadCommand(svc, (int) num(cmd, "id", -1), action)));
+                    return ok(null, null);
+                }
+                TaskSelector sel;
+                if (cmd.get("ids") instanceof List<?> ids) {
+                    String[] parts = new String[ids.size()];
+                    for (int i = 0; i < parts.length; i++) parts[i] = String.valueOf(((Number) ids.get(i)).intValue());
+                    if (parts.length == 0) return ok("count", 0);
+                    sel = TaskSelector.parse(parts, 0);
+                } else {
+                    sel = TaskSelector.parse(str(cmd, "select", "").trim().split("\\s+"), 0);
+                }
+                BulkCommand bulk = new BulkCommand(svc, sel, action);
+                await(commands.execute(bulk));
+                return ok("count", bulk.getCount());
+            }
+            case "undo" -> {
+                await(commands.undo());
+                return ok(null, null);
+            }
+            case "redo" -> {
+                await(commands.redo());
+                return ok(null, null);
+            }
+            case "get" -> {
+                int id = (int) num(cmd, "id", -1);
+                DownloadTask t = tasks.get(id);
+                if (t == null) throw new IllegalArgumentException("No such task: " + id);
+                return ok("task", task(tasks, t));
+            }
+            case "list" -> {
+                TaskQuery q = new TaskQuery();
+                String st = str(cmd, "status", null);
+                if (st != null) q.status(DownloadTask.Status.valueOf(st.toUpperCase(Locale.ROOT)));
+                q.host(str(cmd, "host", null));
+                q.urlPrefix(str(cmd, "url", null));
+                int limit = (int) Math.min(LIST_LIMIT, Math.max(1, num(cmd, "limit", 100)));
+                List<DownloadTask> page = tasks.listAfter((int) num(cmd, "after", 0), q, limit);
+                List<Object> out = new ArrayList<>(page.size());
+                for (DownloadTask t : page) out.add(task(tasks, t));
+                Map<String, Object> r = ok("tasks", out);
+                r.put("next", page.size() < limit ? null : page.get(page.size() - 1).id);
+                return r;
+            }
+            case "count" -> {
+                Map<String, Object> r = ok("total", tasks.size());
+                for (DownloadTask.Status s : DownloadTask.Status.values()) r.put(s.name(), tasks.count(s));
+                return r;
+            }
+            case "priority" -> {
+                svc.setPriority((int) num(cmd, "id", -1), (int) num(cmd, "priority", 0));
+                return ok(null, null);
+            }
+            case "limit" -> {
+                long lim = num(cmd, "bytesPerSec", 0);
+                if (cmd.get("host") != null) svc.setHostLimit(str(cmd, "host", null).toLowerCase(Locale.ROOT), lim);
+                else if (cmd.get("task") != null) svc.setTaskLimit((int) num(cmd, "task", -1), lim);
+                else svc.setLimit(lim);
+                return ok(null, null);
+            }
+            case "threads" -> {
+                int max = (int) num(cmd, "max", svc.getScheduler().getMaxActive());
+                svc.setConcurrency(max, (int) num(cmd, "perHost", svc.getScheduler().getMaxPerHost()));
+                return ok(null, null);
+            }
+            case "stats" -> {
+                Map<String, Object> r = ok("bytes", svc.getMetrics().bytes.get());
+                r.put("bytesPerSecond", svc.getMetrics().bytesPerSecond());
+                r.put("active", svc.getScheduler().activeCount());
+                r.put("queued", svc.getScheduler().queuedCount());
+                r.put("subscribers", streams.size());
+                DownloadCache.Stats c = svc.getCache().stats();
+                r.put("cacheHits", c.urlHits + c.digestHits);
+                r.put("cacheMisses", c.misses);
+                r.put("cacheAttached", c.attached);
+                r.put("cacheBytes", c.bytes);
+                return r;
+            }
+            case "shutdown" -> {
+                return ok(null, null); // саме зупинення — після відповіді
+            }
+            default -> throw new IllegalArgumentException("unknown op: " + op);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> f) throws Exception {
+        try {
+            f.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception c ? c : e;
+        }
+    }
+
+    private static Map<String, Object> task(TaskTable tasks, DownloadTask t) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", t.id);
+        m.put("url", t.url);
+        m.put("target", t.target.toString());
+        m.put("status", t.status.name());
+        m.put("bytes", tasks.bytes(t.id));
+        m.put("total", t.totalBytes);
+        m.put("rate", tasks.rate(t.id));
+        m.put("priority", t.priority);
+        if (t.checksum != null) m.put("checksum", t.checksum);
+        if (t.verified != null) m.put("verified", t.verified);
+        return m;
+    }
+
+    // ---- /events ----
+
+    private void handleEvents(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!allowed(ex)) return;
+            // масив, а не BitSet: пам'ять за кількістю id, а не за найбільшим (?ids=2147483647)
+            int[] ids = null;
+            boolean progress = true;
+            String query = ex.getRequestURI().getRawQuery();
+            if (query != null) {
+                for (String kv : query.split("&")) {
+                    int eq = kv.indexOf('=');
+                    String key = eq < 0 ? kv : kv.substring(0, eq), val = eq < 0 ? "" : kv.substring(eq + 1);
+                    if (key.equals("ids") && !val.isEmpty()) {
+                        String[] parts = val.split(",");
+                        ids = new int[parts.length];
+                        for (int i = 0; i < parts.length; i++) {
+                            int n;
+                            try {
+                                n = Integer.parseInt(parts[i]);
+                            } catch (NumberFormatException e) {
+                                n = -1;
+                            }
+                            if (n < 0) {
+                                reply(ex, 400, error("ids must be comma-separated task ids"));
+                                return;
+                            }
+                            ids[i] = n;
+                        }
+                        ids = Arrays.stream(ids).sorted().distinct().toArray();
+                    } else if (key.equals("progress")) {
+                        progress = !val.equals("0") && !val.equalsIgnoreCase("false");
+                    }
+                }
+            }
+            Stream s = new Stream(ids, progress);
+            ex.getResponseHeaders().add("Content-Type", "application/x-ndjson");
+            ex.sendResponseHeaders(200, 0); // chunked
+            OutputStream out = ex.getResponseBody();
+            streams.add(s);
+            try {
+                // перший рядок — підписку вже зареєстровано, далі жодна подія не загубиться
+                out.write("{\"kind\":\"SUBSCRIBED\"}\n".getBytes(StandardCharsets.UTF_8));
+                out.flush();
+                List<byte[]> batch = new ArrayList<>();
+                while (true) {
+                    byte[] first = s.queue.take();
+                    if (first == CLOSE) return;
+                    out.write(first);
+                    s.queue.drainTo(batch);
+                    for (byte[] line : batch) {
+                        if (line == CLOSE) return;
+                        out.write(line);
+                    }
+                    batch.clear();
+                    long lost = s.dropped.getAndSet(0);
+                    if (lost > 0) out.write(("{\"kind\":\"DROPPED\",\"count\":" + lost + "}\n").getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // клієнт пішов або сервер зупиняється
+            } finally {
+                streams.remove(s);
+            }
+        }
+    }
+
+    /** Слухач TaskTable (потік task-events): лише кладе готовий рядок у черги, нікого не чекає. */
+    private void fanOut(TaskTable.Event e) {
+        byte[] line = null;
+        for (Stream s : streams) {
+            if (!s.wants(e)) continue;
+            if (line == null) line = encode(e);
+            if (!s.queue.offer(line)) s.dropped.incrementAndGet();
+        }
+    }
+
+    private static byte[] encode(TaskTable.Event e) {
+        StringBuilder b = new StringBuilder(128);
+        b.append("{\"kind\":\"").append(e.kind).append("\",\"id\":").append(e.taskId)
+         .append(",\"status\":\"").append(e.status).append('"');
+        if (e.kind == TaskTable.Event.Kind.STATUS) b.append(",\"previous\":\"").append(e.previous).append('"');
+        b.append(",\"bytes\":").append(e.bytes).append(",\"total\":").append(e.total);
+        if (e.kind == TaskTable.Event.Kind.PROGRESS) b.append(",\"rate\":").append((long) e.rate);
+        return b.append("}\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // ---- допоміжне ----
+
+    /** Host, Origin і токен; якщо щось не так — уже відповіла і повертає false. */
+    private boolean allowed(HttpExchange ex) throws IOException {
+        String host = ex.getRequestHeaders().getFirst("Host");
+        String port = ":" + port();
+        if (host == null || !(host.equals("127.0.0.1" + port) || host.equalsIgnoreCase("localhost" + port))) {
+            reply(ex, 403, error("Host must be 127.0.0.1" + port + " or localhost" + port));
+            return false;
+        }
+        if (ex.getRequestHeaders().containsKey("Origin")) {
+            reply(ex, 403, error("Browser requests are not allowed"));
+            return false;
+        }
+        String auth = ex.getRequestHeaders().getFirst("Authorization");
+        byte[] expected = ("Bearer " + token).getBytes(StandardCharsets.US_ASCII);
+        if (auth == null || !MessageDigest.isEqual(expected, auth.getBytes(StandardCharsets.US_ASCII))) {
+            ex.getResponseHeaders().add("WWW-Authenticate", "Bearer");
+            reply(ex, 401, error("Missing or wrong Authorization: Bearer token"));
+            return false;
+        }
+        return true;
+    }
+
+    private static void reply(HttpExchange ex, int code, Object body) throws IOException {
+        byte[] bytes = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().add("Content-Type", "application/json");
+        ex.sendResponseHeaders(code, bytes.length);
+        ex.getResponseBody().write(bytes);
+    }
+
+    private static Map<String, Object> ok(String key, Object value) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("ok", true);
+        if (key != null) m.put(key, value);
+        return m;
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("ok", false);
+        m.put("error", message);
+        return m;
+    }
+
+    private static String message(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.toString();
+    }
+
+    private static String str(Map<String, Object> m, String key, String def) {
+        Object v = m.get(key);
+        return v == null ? def : v.toString();
+    }
+
+    private static long num(Map<String, Object> m, String key, long def) {
+        Object v = m.get(key);
+        if (v == null) return def;
+        if (v instanceof Number n) return n.longValue();
+        return Long.parseLong(v.toString());
+    }
+
+    private static boolean bool(Map<String, Object> m, String key) {
+        return Boolean.TRUE.equals(m.get(key));
+    }
+}
@@ -0,0 +1,223 @@
+package dm.control;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Найпростіший JSON для API керування, без залежностей: об'єкт — LinkedHashMap, масив — ArrayList,
+ * числа — Long (цілі) або Double, далі String, Boolean і null. Запис — з тих самих типів
+ * плюс будь-який Number, решта як рядок.
+ */
+public final class Json {
+    private final String s;
+    private int pos;
+
+    private Json(String s) {
+        this.s = s;
+    }
+
+    public static Object parse(String text) {
+        Json p = new Json(text);
+        p.skipWs();
+        Object v = p.value();
+        p.skipWs();
+        if (p.pos != p.s.length()) throw p.error("trailing data");
+        return v;
+    }
+
+    private Object value() {
+        if (pos >= s.length()) throw error("unexpected end");
+        char c = s.charAt(pos);
+        switch (c) {
+            case '{': return object();
+            case '[': return array();
+            case '"': return string();
+            case 't': return literal("true", Boolean.TRUE);
+            case 'f': return literal("false", Boolean.FALSE);
+            case 'n': return literal("null", null);
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return number();
+                throw error("unexpected '" + c + "'");
+        }
+    }
+
+    private Map<String, Object> object() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        pos++;
+        skipWs();
+        if (peek('}')) { pos++; return m; }
+        while (true) {
+            skipWs();
+            if (!peek('"')) throw error("expected key");
+            String key = string();
+            skipWs();
+            expect(':');
+            skipWs();
+            m.put(key, value());
+            skipWs();
+            if (peek(',')) { pos++; continue; }
+            expect('}');
+            return m;
+        }
+    }
+
+    private List<Object> array() {
+        List<Object> a = new ArrayList<>();
+        pos++;
+        skipWs();
+        if (peek(']')) { pos++; return a; }
+        while (true) {
+            skipWs();
+            a.add(value());
+            skipWs();
+            if (peek(',')) { pos++; continue; }
+            expect(']');
+            return a;
+        }
+    }
+
+    private String string() {
+        pos++; // "
+        StringBuilder b = null;
+        int start = pos;
+        while (pos < s.length()) {
+            char c = s.charAt(pos);
+            if (c == '"') {
+                String out = b == null ? s.substring(start, pos) : b.append(s, start, pos).toString();
+                pos++;
+                return out;
+            }
+            if (c != '\\') { pos++; continue; }
+            if (b == null) b = new StringBuilder();
+            b.append(s, start, pos);
+            if (pos + 1 >= s.length()) break;
+            char e = s.charAt(pos + 1);
+            pos += 2;
+            switch (e) {
+                case 'n' -> b.append('\n');
+                case 't' -> b.append('\t');
+                case 'r' -> b.append('\r');
+                case 'b' -> b.append('\b');
+                case 'f' -> b.append('\f');
+                case 'u' -> {
+                    if (pos + 4 > s.length()) throw error("bad escape");
+                    b.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                    pos += 4;
+                }
+                default -> b.append(e); // \" \\ \/
+            }
+            start = pos;
+        }
+        throw error("unterminated string");
+    }
+
+    private Object number() {
+        int start = pos;
+        boolean fraction = false;
+        while (pos < s.length()) {
+            char c = s.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') fraction = true;
+            else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9'))) break;
+            pos++;
+        }
+        String n = s.substring(start, pos);
+        try {
+            return fraction ? (Object) Double.parseDouble(n) : (Object) Long.parseLong(n);
+        } catch (NumberFormatException e) {
+            throw error("bad number " + n);
+        }
+    }
+
+    private Object literal(String word, Object v) {
+        if (!s.startsWith(word, pos)) throw error("unexpected token");
+        pos += word.length();
+        return v;
+    }
+
+    private boolean peek(char c) {
+        return pos < s.length() && s.charAt(pos) == c;
+    }
+
+    private void expect(char c) {
+        if (!peek(c)) throw error("expected '" + c + "'");
+        pos++;
+    }
+
+    private void skipWs() {
+        while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) pos++;
+    }
+
+    private IllegalArgumentException error(String msg) {
+        return new IllegalArgumentException("JSON: " + msg + " at " + pos);
+    }
+
+    // ---- запис ----
+
+    public static String write(Object v) {
+        StringBuilder b = new StringBuilder();
+        write(b, v);
+        return b.toString();
+    }
+
+    public static void write(StringBuilder b, Object v) {
+        if (v == null) {
+            b.append("null");
+        } else if (v instanceof String str) {
+            quote(b, str);
+        } else if (v instanceof Double d) {
+            b.append(d.isNaN() || d.isInfinite() ? "null" : d.toString());
+        } else if (v instanceof Number || v instanceof Boolean) {
+            b.append(v);
+        } else if (v instanceof Map<?, ?> m) {
+            b.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> e : m.entrySet()) {
+                if (!first) b.append(',');
+                first = false;
+                quote(b, String.valueOf(e.getKey()));
+                b.append(':');
+                write(b, e.getValue());
+            }
+            b.append('}');
+        } else if (v instanceof Iterable<?> it) {
+            b.append('[');
+            boolean first = true;
+            for (Object o : it) {
+                if (!first) b.append(',');
+                first = false;
+                write(b, o);
+            }
+            b.append(']');
+        } else if (v instanceof int[] ints) {
+            b.append('[');
+            for (int i = 0; i < ints.length; i++) {
+                if (i > 0) b.append(',');
+                b.append(ints[i]);
+            }
+            b.append(']');
+        } else {
+            quote(b, v.toString());
+        }
+    }
+
+    public static void quote(StringBuilder b, String str) {
+        b.append('"');
+        for (int i = 0; i < str.length(); i++) {
+            char c = str.charAt(i);
+            switch (c) {
+                case '"' -> b.append("\\\"");
+                case '\\' -> b.append("\\\\");
+                case '\n' -> b.append("\\n");
+                case '\r' -> b.append("\\r");
+                case '\t' -> b.append("\\t");
+                default -> {
+                    if (c < 0x20) b.append(String.format("\\u%04x", (int) c));
+                    else b.append(c);
+                }
+            }
+        }
+        b.append('"');
+    }
+}
@@ -1,9 +1,139 @@
 package dm.core;
 
-import java.util.concurrent.atomic.AtomicLong;
+import dm.metrics.DownloadMetrics;
+import dm.net.RangeHttpClient;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Спільний для всіх завантажень шейпер трафіку: глобальний ліміт, під ним —
+ * ліміти на хост і на окрему задачу. Кожна порція даних резервується в усіх
+ * трьох відрах, і потік спить стільки, скільки вимагає найсуворіше з них.
+ * Через нього проходить кожен прийнятий байт, тож тут же рахуються байти і час тротлінгу
+ * для метрик (якщо їх передали).
+ */
 public class BandwidthPolicy {
-    private final AtomicLong limitBps = new AtomicLong(0); // 0 = unlimited
-    public void setLimit(long bps) { limitBps.set(Math.max(0, bps)); }
-    public long getLimit() { return limitBps.get(); }
+    /** Бажаний інтервал між паузами: порція читання підбирається так, щоб не перевищувати його. */
+    private static final long PACE_NS = 50_000_000L;
+    private static final int MIN_QUANTUM = 1024;
+    /** Найдовший сон без перевірки InterruptFlag: пауза не чекає, поки відро розрахується за весь борг. */
+    private static final long SLICE_NS = 10_000_000L;
+
+    private final TokenBucket global = new TokenBucket(0);
+    private final Map<String, TokenBucket> hosts = new ConcurrentHashMap<>();
+    /** Ліміти, задані користувачем; живуть і між спробами задачі, доки їх не скинуть нулем. */
+    private final Map<Integer, TokenBucket> tasks = new ConcurrentHashMap<>();
+    private final AtomicInteger transfers = new AtomicInteger();
+    private final DownloadMetrics metrics;
+
+    public BandwidthPolicy() {
+        this(null);
+    }
+
+    public BandwidthPolicy(DownloadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setLimit(long bps) { global.setRate(bps); }
+    public long getLimit() { return global.getRate(); }
+
+    public void setHostLimit(String host, long bps) {
+        if (bps <= 0) hosts.remove(host);
+        else hosts.computeIfAbsent(host, h -> new TokenBucket(0)).setRate(bps);
+    }
+
+    public long getHostLimit(String host) {
+        TokenBucket b = hosts.get(host);
+        return b == null ? 0 : b.getRate();
+    }
+
+    public void setTaskLimit(int taskId, long bps) {
+        if (bps <= 0) tasks.remove(taskId);
+        else tasks.computeIfAbsent(taskId, id -> new TokenBucket(0)).setRate(bps);
+    }
+
+    public long getTaskLimit(int taskId) {
+        TokenBucket b = tasks.get(taskId);
+        return b == null ? 0 : b.getRate();
+    }
+
+    /** Тротлінг для одного потоку даних (задачі або її сегмента). Після завершення треба закрити. */
+    public Transfer open(int taskId, String host) {
+        return open(taskId, host, null);
+    }
+
+    /** Те саме, але сон у acquire() переривається, щойно встановлено stopFlag. */
+    public Transfer open(int taskId, String host, RangeHttpClient.InterruptFlag stopFlag) {
+        transfers.incrementAndGet();
+        return new Transfer(taskId, host, stopFlag);
+    }
+
+    public final class Transfer implements RangeHttpClient.Throttle, AutoCloseable {
+        private final int taskId;
+        private final String host;
+        private final DownloadMetrics.Host hostMetrics;
+        private final DownloadMetrics.Task taskMetrics;
+        private final RangeHttpClient.InterruptFlag stopFlag;
+        private boolean closed;
+
+        private Transfer(int taskId, String host, RangeHttpClient.InterruptFlag stopFlag) {
+            this.taskId = taskId;
+            this.host = host;
+            this.stopFlag = stopFlag;
+            this.hostMetrics = metrics != null ? metrics.host(host) : null;
+            this.taskMetrics = metrics != null ? metrics.task(taskId) : null;
+            if (hostMetrics != null) hostMetrics.active.incrementAndGet();
+        }
+
+        @Override
+        public int quantum(int max) {
+            // глобальне відро ділять усі активні потоки, хост і задача — лише свої
+            long share = share(global, Math.max(1, transfers.get()));
+            share = Math.min(share, share(hosts.get(host), 1));
+            share = Math.min(share, share(tasks.get(taskId), 1));
+            if (share == Long.MAX_VALUE) return max;
+            return (int) Math.min(max, Math.max(MIN_QUANTUM, share)); // порція буває меншою за MIN_QUANTUM
+        }
+
+        private long share(TokenBucket b, int parts) {
+            if (b == null || !b.isLimited()) return Long.MAX_VALUE;
+            return b.getRate() * PACE_NS / 1_000_000_000L / parts;
+        }
+
+        @Override
+        public void acquire(int n) throws InterruptedException {
+            if (metrics != null) {
+                metrics.bytes.add(n);
+                hostMetrics.bytes.add(n);
+                if (taskMetrics != null) taskMetrics.bytes.add(n);
+            }
+            long now = System.nanoTime();
+            long wait = global.reserve(n, now);
+            TokenBucket h = hosts.get(host);
+            if (h != null) wait = Math.max(wait, h.reserve(n, now));
+            TokenBucket t = tasks.get(taskId);
+            if (t != null) wait = Math.max(wait, t.reserve(n, now));
+            if (wait > 0) {
+                if (taskMetrics != null) taskMetrics.throttledNs.add(wait);
+                long until = now + wait;
+                // короткими відрізками: пауза задачі видна не пізніше ніж через SLICE_NS
+                for (long left = wait; left > 0; left = until - System.nanoTime()) {
+                    if (stopFlag != null && stopFlag.isSet()) return;
+                    long slice = Math.min(left, SLICE_NS);
+                    Thread.sleep(slice / 1_000_000, (int) (slice % 1_000_000));
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                transfers.decrementAndGet();
+                if (hostMetrics != null) hostMetrics.active.decrementAndGet();
+            }
+        }
+    }
 }
@@ -0,0 +1,207 @@
+package dm.core;
+
+import dm.metrics.Histogram;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * З'єднання до файлу SQLite у режимі WAL: одне для запису (під lock) і кілька лише для читання.
+ * У WAL читачі бачать останній закомічений стан і не чекають на запис прогресу, а письменник — на них.
+ * Кожне з'єднання тримає власний кеш підготовлених запитів.
+ */
+final class Database implements AutoCloseable {
+
+    /** З'єднання разом з його кешем PreparedStatement. Запити з кешу не закриваються — лише їхні ResultSet. */
+    static final class Handle {
+        final Connection con;
+        private final Map<String, PreparedStatement> cache = new HashMap<>();
+
+        private Handle(Connection con) { this.con = con; }
+
+        PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = cache.get(sql);
+            if (ps == null) {
+                ps = con.prepareStatement(sql);
+                cache.put(sql, ps);
+            } else {
+                ps.clearBatch(); // після невдалого executeBatch там могли лишитись рядки
+            }
+            return ps;
+        }
+
+        private void close() throws SQLException {
+            for (PreparedStatement ps : cache.values()) ps.close();
+            cache.clear();
+            con.close();
+        }
+    }
+
+    interface Work<T> { T run(Handle h) throws SQLException; }
+    interface Action { void run(Handle h) throws SQLException; }
+
+    private static final int BUSY_TIMEOUT_MS = 5000;
+    /** Скільки close() чекає на читачів, які ще зайняті запитом, перш ніж закрити їх примусово. */
+    private static final long CLOSE_WAIT_MS = 2000;
+    private static final long POLL_MS = 50;
+
+    private final String url;
+    private final Handle writer;
+    // записи на одному з'єднанні по одному; ReentrantLock, щоб не блокувати carrier віртуальних потоків
+    private final ReentrantLock lock = new ReentrantLock();
+    private final BlockingQueue<Handle> readers;
+    private final int readerCount;
+    /** Усі відкриті читачі, зокрема ті, що зараз видані в read(): close() закриває кожен. */
+    private final List<Handle> opened = new ArrayList<>();
+    private volatile boolean closed;
+    /** Тривалість кожного запису разом з очікуванням lock, нс. */
+    final Histogram writeLatency = new Histogram();
+
+    Database(Path sqlitePath, int readers) throws Exception {
+        Class.forName("org.sqlite.JDBC");
+        this.url = "jdbc:sqlite:" + sqlitePath.toAbsolutePath();
+        this.writer = new Handle(DriverManager.getConnection(url));
+        try (Statement st = writer.con.createStatement()) {
+            st.execute("PRAGMA journal_mode=WAL");
+            // у WAL цього досить, щоб не втратити цілісність; fsync лише на checkpoint
+            st.execute("PRAGMA synchronous=NORMAL");
+            st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+        }
+        this.readerCount = Math.max(1, readers);
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+    }
+
+    /** Читачі відкриваються після створення схеми, щоб не кешувати запити до таблиць, яких ще немає. */
+    void openReaders() throws SQLException {
+        lock.lock();
+        try {
+            for (int i = opened.size(); i < readerCount; i++) {
+                Connection c = DriverManager.getConnection(url);
+                try (Statement st = c.createStatement()) {
+                    st.execute("PRAGMA query_only=1");
+                    st.execute("PRAGMA busy_timeout=" + BUSY_TIMEOUT_MS);
+                }
+                Handle h = new Handle(c);
+                opened.add(h);
+                readers.add(h);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Запит на одному з вільних читачів; якщо всі зайняті — чекає. */
+    <T> T read(Work<T> work) throws SQLException {
+        Handle h = null;
+        try {
+            // не take(): після close() вільний читач уже не з'явиться
+            while (h == null) {
+                if (closed) throw new SQLException("Database is closed");
+                h = readers.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a read connection", e);
+        }
+        try {
+            return work.run(h);
+        } finally {
+            readers.add(h);
+        }
+    }
+
+    <T> T writeAndGet(Work<T> work) throws SQLException {
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            return work.run(writer);
+        } finally {
+            lock.unlock();
+            writeLatency.record(System.nanoTime() - t0);
+        }
+    }
+
+    void write(Action action) throws SQLException {
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            action.run(writer);
+        } finally {
+            lock.unlock();
+            writeLatency.record(System.nanoTime() - t0);
+        }
+    }
+
+    /** Кілька записів однією транзакцією; при помилці — rollback. */
+    void transaction(Action action) throws SQLException {
+        transaction(action, null);
+    }
+
+    /** Те саме; committed виконується після commit, ще під lock, — тож у порядку записів. */
+    void transaction(Action action, Runnable committed) throws SQLException {
+        long t0 = System.nanoTime();
+        lock.lock();
+        try {
+            Connection con = writer.con;
+            boolean auto = con.getAutoCommit();
+            con.setAutoCommit(false);
+            try {
+                action.run(writer);
+                con.commit();
+                if (committed != null) committed.run();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                con.setAutoCommit(auto);
+            }
+        } finally {
+            lock.unlock();
+            writeLatency.record(System.nanoTime() - t0);
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        closed = true;
+        lock.lock();
+        try {
+            // зайняті читачі доробляють запит; хто не встиг за CLOSE_WAIT_MS, закривається посеред нього
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CLOSE_WAIT_MS);
+            while (readers.size() < opened.size() && System.nanoTime() - deadline < 0) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            SQLException failure = null;
+            for (Handle h : opened) {
+                try {
+                    h.close();
+                } catch (SQLException e) {
+                    if (failure == null) failure = e;
+                }
+            }
+            opened.clear();
+            readers.clear();
+            writer.close();
+            if (failure != null) throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package dm.core;
+
+import dm.net.RangeHttpClient;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Локальний кеш завершених завантажень: повторна задача на той самий URL (тієї ж версії) або з тією самою
+ * контрольною сумою отримує файл без мережі. Ключі — URL з etag/lastModified і вміст ("алгоритм:hex").
+ * Запис по сумі віддається одразу: вміст той, що просили. Запис по URL — без запитів, якщо версію звіряли
+ * з сервером не давніше FRESH_MS тому, інакше після умовного запиту (304 — той самий файл).
+ *
+ * Файли лежать у каталозі поруч із базою; на кожне влучання звіряються розмір і mtime, тож файл,
+ * змінений ззовні, просто випадає з кешу. Понад capacity байтів витісняються найдавніше використані.
+ *
+ * Кеш вмикається явно (setCapacity): копія кожного завершеного файлу подвоює запис на диск і робиться
+ * в потоці завантаження до COMPLETED. Поки capacity 0, кеш не шукає і не зберігає; записи з минулих
+ * запусків лишаються на диску до setCapacity чи clear.
+ */
+public class DownloadCache {
+    /**
+     * COPY — копія через Files.copy: на JDK 21 це copy_file_range, тож на btrfs/XFS ядро робить reflink
+     * без копіювання даних, на інших ФС — копіювання в ядрі без буферів JVM.
+     * LINK — жорстке посилання (миттєво і без місця); якщо ФС не вміє — копія. Файл спільний із кешем:
+     * зміна його на місці зачепить і кеш (такий запис при наступному влучанні відкинеться по mtime).
+     */
+    public enum Mode { COPY, LINK }
+
+    /** Знімок лічильників для stats і метрик. */
+    public static final class Stats {
+        public long urlHits;
+        public long digestHits;
+        public long misses;
+        public long attached;
+        public long evictions;
+        public long servedBytes;
+        public int entries;
+        public long bytes;
+        public long capacity;
+
+        public double hitRate() {
+            long all = urlHits + digestHits + misses;
+            return all == 0 ? 0 : (double) (urlHits + digestHits) / all;
+        }
+    }
+
+    /** Скільки після звірки з сервером запис по URL віддається без нового запиту. */
+    private static final long FRESH_MS = 5 * 60_000;
+
+    private final TaskRepository repo;
+    private final RangeHttpClient http;
+    private final Path dir;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, TaskRepository.CacheEntry> byUrl = new HashMap<>();
+    private final Map<String, TaskRepository.CacheEntry> byDigest = new HashMap<>();
+    /** Усі записи від найдавніше використаного (accessOrder). */
+    private final LinkedHashMap<Integer, TaskRepository.CacheEntry> lru = new LinkedHashMap<>(16, 0.75f, true);
+    private final AtomicLong names = new AtomicLong(System.currentTimeMillis());
+    private volatile Mode mode = Mode.COPY;
+    private long capacity;
+    private long bytes;
+    private long urlHits, digestHits, misses, attached, evictions, servedBytes;
+
+    DownloadCache(TaskRepository repo, RangeHttpClient http, Path dir) throws IOException, SQLException {
+        this.repo = repo;
+        this.http = http;
+        this.dir = dir;
+        Files.createDirectories(dir);
+        Set<String> known = new HashSet<>();
+        for (TaskRepository.CacheEntry e : repo.listCache()) {
+            e.digest = digestKey(e.digest); // записані до нормалізації назви алгоритму
+            index(e);
+            known.add(Path.of(e.file).getFileName().toString());
+        }
+        // файл скопійовано, а запис у базу не встиг (збій) — такий ніхто не знайде
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+            for (Path p : ds) {
+                if (!known.contains(p.getFileName().toString())) Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private void index(TaskRepository.CacheEntry e) {
+        byUrl.put(e.url, e);
+        if (e.digest != null) byDigest.put(e.digest, e);
+        lru.put(e.id, e);
+        bytes += e.size;
+    }
+
+    /** "SHA-256:ABC", "sha-256:abc" і "sha256:abc" — одна сума: алгоритм названо так, як його розуміє StreamDigest.create. */
+    static String digestKey(String checksum) {
+        if (checksum == null) return null;
+        String c = checksum.toLowerCase(Locale.ROOT);
+        int colon = c.indexOf(':');
+        return colon < 0 ? c : c.substring(0, colon).replace("-", "") + c.substring(colon);
+    }
+
+    /**
+     * Файл для задачі: спершу по її контрольній сумі, далі по URL. Запис по URL, не звірений нещодавно,
+     * звіряється умовним запитом; змінений на сервері — видаляється. null — промах, качати з мережі.
+     */
+    public TaskRepository.CacheEntry lookup(DownloadTask t) {
+        TaskRepository.CacheEntry e;
+        String key = digestKey(t.checksum);
+        lock.lock();
+        try {
+            if (capacity == 0) return null; // вимкнено
+            e = key != null ? byDigest.get(key) : null;
+            if (e != null && intact(e)) return hit(e, true, false);
+            e = byUrl.get(t.url);
+            if (e == null || !intact(e)) {
+                misses++;
+                return null;
+            }
+            if (System.currentTimeMillis() - e.checkedAt < FRESH_MS) return hit(e, false, false);
+        } finally {
+            lock.unlock();
+        }
+        RangeHttpClient.Freshness f;
+        try {
+            f = http.revalidate(e.url, new RangeHttpClient.Validators(e.etag, e.lastModified));
+        } catch (Exception ex) {
+            f = RangeHttpClient.Freshness.UNKNOWN;
+        }
+        lock.lock();
+        try {
+            if (f == RangeHttpClient.Freshness.NOT_MODIFIED && lru.containsKey(e.id)) return hit(e, false, true);
+            if (f == RangeHttpClient.Freshness.MODIFIED) remove(e);
+            misses++;
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Під lock. */
+    private TaskRepository.CacheEntry hit(TaskRepository.CacheEntry e, boolean byDigest, boolean checked) {
+        if (byDigest) digestHits++;
+        else urlHits++;
+        servedBytes += e.size;
+        lru.get(e.id); // підняти в LRU
+        e.lastUsed = System.currentTimeMillis();
+        if (checked) e.checkedAt = e.lastUsed;
+        e.hits++;
+        try {
+            repo.touchCache(e);
+        } catch (SQLException ex) {
+            System.out.printf("java error: %s%n", ex.toString());
+        }
+        return e;
+    }
+
+    /** Під lock. Файл на місці і не змінювався з часу запису; інакше запис видаляється. */
+    private boolean intact(TaskRepository.CacheEntry e) {
+        try {
+            Path p = Path.of(e.file);
+            if (Files.size(p) == e.size && Files.getLastModifiedTime(p).toMillis() == e.mtime) return true;
+        } catch (IOException ignored) {
+            // файла немає
+        }
+        remove(e);
+        return false;
+    }
+
+    /** Вміст запису перевірили сумою задачі: тепер його знайде й інша задача з тією ж сумою під іншим URL. */
+    void learnDigest(TaskRepository.CacheEntry e, String checksum) {
+        String key = digestKey(checksum);
+        lock.lock();
+        try {
+            if (e.digest != null || !lru.containsKey(e.id)) return;
+            e.digest = key;
+            byDigest.putIfAbsent(key, e);
+            repo.touchCache(e);
+        } catch (SQLException ex) {
+            System.out.printf("java error: %s%n", ex.toString());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Задача приєдналась до чужого завантаження того ж URL замість власного. */
+    void countAttached() {
+        lock.lock();
+        try {
+            attached++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Кладе source у dest (dest замінюється) способом mode. */
+    public void place(Path source, Path dest) throws IOException {
+        place(source, dest, mode);
+    }
+
+    /**
+     * Кладе файл запису з lookup() у dest. Між lookup і копіюванням запис могли витіснити чи видалити:
+     * тоді false — це промах, задача качає з мережі.
+     */
+    boolean place(TaskRepository.CacheEntry e, Path dest) throws IOException {
+        Path source = Path.of(e.file);
+        try {
+            place(source, dest, mode);
+            return true;
+        } catch (IOException ex) {
+            if (Files.exists(source)) throw ex;
+            Files.deleteIfExists(dest);
+        }
+        lock.lock();
+        try {
+            remove(e);
+            misses++;
+        } finally {
+            lock.unlock();
+        }
+        return false;
+    }
+
+    private static void place(Path source, Path dest, Mode mode) throws IOException {
+        if (mode == Mode.LINK) {
+            Files.deleteIfExists(dest);
+            try {
+                Files.createLink(dest, source);
+                return;
+            } catch (UnsupportedOperationException | IOException e) {
+                // інша ФС чи без підтримки посилань — копіюємо
+            }
+        }
+        Files.copy(source, dest, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Запам'ятовує готовий файл завершеної задачі. digest — фактична сума вмісту ("алгоритм:hex") або null.
+     * Попередня версія того ж URL замінюється. Вміст, що вже є в кеші під іншим URL, не копіюється ще раз —
+     * на нього ставиться жорстке посилання.
+     */
+    void store(DownloadTask t, Path target, String digest) {
+        String key = digestKey(digest);
+        long size;
+        try {
+            size = Files.size(target);
+        } catch (IOException e) {
+            return;
+        }
+        Path same = null;
+        lock.lock();
+        try {
+            if (capacity == 0 || size > capacity) return;
+            TaskRepository.CacheEntry old = byUrl.get(t.url);
+            // та сама версія вже є (задачу віддали з кешу або докачали повторно)
+            if (old != null && old.size == size && Objects.equals(old.etag, t.etag)
+                    && Objects.equals(old.lastModified, t.lastModified) && intact(old)) return;
+            TaskRepository.CacheEntry twin = key != null ? byDigest.get(key) : null;
+            if (twin != null && intact(twin)) same = Path.of(twin.file);
+        } finally {
+            lock.unlock();
+        }
+
+        Path file = dir.resolve(Long.toHexString(names.incrementAndGet()));
+        try {
+            if (same != null) place(same, file, Mode.LINK);
+            else place(target, file, mode);
+            TaskRepository.CacheEntry e = new TaskRepository.CacheEntry();
+            e.url = t.url;
+            e.etag = t.etag;
+            e.lastModified = t.lastModified;
+            e.digest = key;
+            e.file = file.toString();
+            e.size = size;
+            e.mtime = Files.getLastModifiedTime(file).toMillis();
+            e.lastUsed = e.checkedAt = System.currentTimeMillis();
+            repo.insertCache(e);
+            lock.lock();
+            try {
+                TaskRepository.CacheEntry old = byUrl.get(t.url);
+                if (old != null) remove(old);
+                index(e);
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        } catch (IOException | SQLException e) {
+            System.out.printf("java error: %s%n", e.toString());
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /** Під lock. Витісняє найдавніше використані, поки не влізе в capacity. */
+    private void evict() {
+        List<TaskRepository.CacheEntry> out = new ArrayList<>();
+        Iterator<TaskRepository.CacheEntry> it = lru.values().iterator();
+        while (bytes > capacity && it.hasNext()) {
+            TaskRepository.CacheEntry e = it.next();
+            it.remove();
+            unindex(e);
+            out.add(e);
+            evictions++;
+        }
+        drop(out);
+    }
+
+    /** Під lock. */
+    private void remove(TaskRepository.CacheEntry e) {
+        if (lru.remove(e.id) == null) return;
+        unindex(e);
+        drop(List.of(e));
+    }
+
+    private void unindex(TaskRepository.CacheEntry e) {
+        byUrl.remove(e.url, e);
+        if (e.digest != null) byDigest.remove(e.digest, e);
+        bytes -= e.size;
+    }
+
+    private void drop(List<TaskRepository.CacheEntry> entries) {
+        if (entries.isEmpty()) return;
+        List<Integer> ids = new ArrayList<>(entries.size());
+        for (TaskRepository.CacheEntry e : entries) {
+            ids.add(e.id);
+            try {
+                Files.deleteIfExists(Path.of(e.file));
+            } catch (IOException ex) {
+                System.out.printf("java error: %s%n", ex.toString());
+            }
+        }
+        try {
+            repo.deleteCache(ids);
+        } catch (SQLException ex) {
+            System.out.printf("java error: %s%n", ex.toString());
+        }
+    }
+
+    /** Ліміт розміру кешу в байтах; 0 — вимкнути і звільнити все. */
+    public void setCapacity(long bytes) {
+        lock.lock();
+        try {
+            capacity = Math.max(0, bytes);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void setMode(Mode mode) { this.mode = mode; }
+
+    public Mode getMode() { return mode; }
+
+    /** Видаляє всі записи і файли; лічильники лишаються. */
+    public void clear() {
+        lock.lock();
+        try {
+            List<TaskRepository.CacheEntry> all = new ArrayList<>(lru.values());
+            lru.clear();
+            byUrl.clear();
+            byDigest.clear();
+            bytes = 0;
+            drop(all);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            Stats s = new Stats();
+            s.urlHits = urlHits;
+            s.digestHits = digestHits;
+            s.misses = misses;
+            s.attached = attached;
+            s.evictions = evictions;
+            s.servedBytes = servedBytes;
+            s.entries = lru.size();
+            s.bytes = bytes;
+            s.capacity = capacity;
+            return s;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package dm.core;
+
+import java.net.URI;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Черга завантажень з обмеженням загальної кількості активних задач і кількості
+ * з'єднань на один хост. Серед хостів, що мають вільний слот, першою стартує задача
+ * з найвищим пріоритетом; при рівних пріоритетах хости обслуговуються по колу,
+ * тож кілька повільних серверів не займають усіх воркерів.
+ *
+ * Замість synchronized — ReentrantLock: віртуальний потік, що чекає на монітор,
+ * блокує свій carrier-потік, а на ReentrantLock — ні.
+ */
+public class DownloadScheduler {
+    private static final Comparator<Entry> ORDER =
+            Comparator.<Entry>comparingInt(e -> -e.priority).thenComparingLong(e -> e.seq);
+
+    private final ExecutorService executor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Map<String, HostQueue> hosts = new HashMap<>();
+    private final ArrayDeque<HostQueue> ring = new ArrayDeque<>(); // хости з задачами в черзі
+    private final Map<Integer, Entry> queued = new HashMap<>();
+    private int maxActive;
+    private int maxPerHost;
+    private int active;
+    private long seq;
+
+    private static final class Entry {
+        final int taskId;
+        final int priority;
+        final long seq;
+        final HostQueue host;
+        final Runnable job;
+        Entry(int taskId, int priority, long seq, HostQueue host, Runnable job) {
+            this.taskId = taskId; this.priority = priority; this.seq = seq; this.host = host; this.job = job;
+        }
+    }
+
+    private static final class HostQueue {
+        final String host;
+        final PriorityQueue<Entry> queue = new PriorityQueue<>(ORDER);
+        int active;
+        HostQueue(String host) { this.host = host; }
+    }
+
+    public DownloadScheduler(ExecutorService executor, int maxActive, int maxPerHost) {
+        this.executor = executor;
+        this.maxActive = Math.max(1, maxActive);
+        this.maxPerHost = Math.max(1, maxPerHost);
+    }
+
+    public static String hostOf(String url) {
+        try {
+            String h = URI.create(url).getHost();
+            return h == null ? "" : h.toLowerCase(Locale.ROOT);
+        } catch (IllegalArgumentException e) {
+            return "";
+        }
+    }
+
+    /** Ставить задачу в чергу; повторна постановка тієї ж задачі замінює попередню. */
+    public void submit(int taskId, String host, int priority, Runnable job) {
+        lock.lock();
+        try {
+            cancel(taskId);
+            HostQueue hq = hosts.computeIfAbsent(host, HostQueue::new);
+            Entry e = new Entry(taskId, priority, seq++, hq, job);
+            if (hq.queue.isEmpty()) ring.addLast(hq);
+            hq.queue.add(e);
+            queued.put(taskId, e);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Прибирає задачу з черги. Вже запущені задачі не зачіпає. */
+    public boolean cancel(int taskId) {
+        lock.lock();
+        try {
+            Entry e = queued.remove(taskId);
+            if (e == null) return false;
+            e.host.queue.remove(e);
+            if (e.host.queue.isEmpty()) {
+                ring.remove(e.host);
+                if (e.host.active == 0) hosts.remove(e.host.host);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isQueued(int taskId) {
+        lock.lock();
+        try { return queued.containsKey(taskId); } finally { lock.unlock(); }
+    }
+
+    public int queuedCount() {
+        lock.lock();
+        try { return queued.size(); } finally { lock.unlock(); }
+    }
+
+    public int activeCount() {
+        lock.lock();
+        try { return active; } finally { lock.unlock(); }
+    }
+
+    public void setLimits(int maxActive, int maxPerHost) {
+        lock.lock();
+        try {
+            this.maxActive = Math.max(1, maxActive);
+            this.maxPerHost = Math.max(1, maxPerHost);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxActive() {
+        lock.lock();
+        try { return maxActive; } finally { lock.unlock(); }
+    }
+
+    public int getMaxPerHost() {
+        lock.lock();
+        try { return maxPerHost; } finally { lock.unlock(); }
+    }
+
+    private void dispatch() {
+        while (active < maxActive) {
+            HostQueue best = null;
+            for (HostQueue hq : ring) {
+                if (hq.active >= maxPerHost) continue;
+                if (best == null || hq.queue.peek().priority > best.queue.peek().priority) best = hq;
+            }
+            if (best == null) return;
+
+            Entry e = best.queue.poll();
+            queued.remove(e.taskId);
+            ring.remove(best);
+            if (!best.queue.isEmpty()) ring.addLast(best); // наступного разу цей хост — в кінці кола
+            best.active++;
+            active++;
+            try {
+                executor.execute(() -> {
+                    try { e.job.run(); }
+                    finally { finished(e.host); }
+                });
+            } catch (RuntimeException ex) { // executor уже зупинено
+                best.active--;
+                active--;
+                throw ex;
+            }
+        }
+    }
+
+    private void finished(HostQueue hq) {
+        lock.lock();
+        try {
+            hq.active--;
+            active--;
+            if (hq.active == 0 && hq.queue.isEmpty()) hosts.remove(hq.host);
+            dispatch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Для діагностики: хости з кількістю активних і задач у черзі. */
+    public Map<String, int[]> snapshot() {
+        lock.lock();
+        try {
+            Map<String, int[]> out = new HashMap<>();
+            for (HostQueue hq : hosts.values()) {
+                out.put(hq.host, new int[]{ hq.active, hq.queue.size() });
+            }
+            return out;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
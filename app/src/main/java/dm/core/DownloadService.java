@@ -1,89 +1,956 @@
 package dm.core;
 
+import dm.digest.StreamDigest;
+import dm.metrics.DownloadMetrics;
+import dm.metrics.Histogram;
+import dm.net.BufferPool;
 import dm.net.RangeHttpClient;
+import dm.net.TargetWriter;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.*;
-import java.util.function.LongSupplier;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class DownloadService implements AutoCloseable {
+    /** Менші за це сегменти не мають сенсу: накладні витрати на запит переважать. */
+    private static final long MIN_SEGMENT_BYTES = 1024 * 1024;
+
+    /**
+     * PLATFORM — звичайні потоки, кілька великих завантажень одночасно.
+     * VIRTUAL — кожна задача і кожен сегмент на своєму віртуальному потоці:
+     * блокуюче читання з мережі не тримає OS-потік, тож тисячі дрібних файлів качаються паралельно.
+     */
+    public enum ExecutionMode { PLATFORM, VIRTUAL }
+
+    /** Підсумок імпорту маніфесту. firstError — перша відкинута лінія з причиною, або null. */
+    public static final class ImportResult {
+        public final int imported;
+        public final int skipped;
+        public final String firstError;
+        public ImportResult(int imported, int skipped, String firstError) {
+            this.imported = imported; this.skipped = skipped; this.firstError = firstError;
+        }
+    }
+
+    /**
+     * Задача, що качає URL, і задачі на той самий URL, які отримають копію її файлу замість власного запиту.
+     * Для кожної, що чекає, — її flag: зупинена (пауза) поки чекала — копії не отримує.
+     */
+    private static final class InFlight {
+        final int leader;
+        final RangeHttpClient.InterruptFlag leaderFlag; // спроба, що качає: лише вона знімає себе (release)
+        final Map<Integer, DownloadTask> followers = new LinkedHashMap<>();
+        final Map<Integer, RangeHttpClient.InterruptFlag> flags = new HashMap<>();
+        InFlight(int leader, RangeHttpClient.InterruptFlag leaderFlag) { this.leader = leader; this.leaderFlag = leaderFlag; }
+    }
+
+    /** Скільки рядків маніфесту вставляти однією транзакцією. */
+    private static final int IMPORT_CHUNK = 2000;
+
+    /** Скільки задач масової паузи чи відновлення писати однією транзакцією (щоб не тримати lock письменника довго). */
+    private static final int BULK_CHUNK = 4096;
+
+    /** Підсумок refresh по завершених задачах. modifiedIds — задачі, чий файл на сервері вже інший. */
+    public static final class RefreshResult {
+        public final int notModified;
+        public final int modified;
+        public final int unknown;
+        public final int failed;
+        public final List<Integer> modifiedIds;
+        public RefreshResult(int notModified, int modified, int unknown, int failed, List<Integer> modifiedIds) {
+            this.notModified = notModified; this.modified = modified; this.unknown = unknown;
+            this.failed = failed; this.modifiedIds = modifiedIds;
+        }
+    }
+
+    /** Як часто за PERIODIC файл задачі скидається на диск, а разом з ним — її прогрес у базу. */
+    private static final long DEFAULT_SYNC_MS = 2000;
+
+    /** Скільки умовних запитів refresh тримати одночасно. */
+    private static final int REFRESH_PARALLEL = 16;
+
     private final TaskRepository repo;
-    private final RangeHttpClient http = new RangeHttpClient();
-    private final ExecutorService pool = Executors.newFixedThreadPool(3);
+    private final TaskTable tasks;
+    private volatile Recovery.Result recovery;
+    private final ReentrantLock startLock = new ReentrantLock();
+    private final RangeHttpClient http;
+    private final ExecutionMode mode;
+    private final ExecutorService pool;
+    private final DownloadScheduler scheduler;
+    private final ExecutorService segmentPool;
+    private final ProgressJournal journal;
+    private final SegmentedDownload segmented;
+    private volatile int segments = 1;
     private final Map<Integer, RangeHttpClient.InterruptFlag> flags = new ConcurrentHashMap<>();
-    private final BandwidthPolicy policy = new BandwidthPolicy();
+    /**
+     * Спроба, яка ще може писати в .part задачі: від enqueue до кінця run (чи до зняття з черги).
+     * Її flag — ключ спроби: прибирає за собою (журнал, роль у inFlight) лише та, чий він. Під attemptLock.
+     */
+    private final Map<Integer, RangeHttpClient.InterruptFlag> live = new HashMap<>();
+    /** Задачі, яким прийшов resume, поки призупинена спроба ще дописувала: підуть у чергу, щойно вона скінчиться. */
+    private final Set<Integer> resumeAfter = new HashSet<>();
+    private final ReentrantLock attemptLock = new ReentrantLock();
+    private final Map<Integer, ProgressMeter> meters = new ConcurrentHashMap<>();
+    private volatile long sampleIntervalMs = 250;
+    private volatile long sampleStepBytes = 1024 * 1024;
+    private final DownloadMetrics metrics;
+    private final BandwidthPolicy policy;
+    private final RetryPolicy retryPolicy = new RetryPolicy();
+    private final Map<Integer, ScheduledFuture<?>> retries = new ConcurrentHashMap<>();
+    private final DownloadCache cache;
+    /** URL, який зараз хтось качає з нуля, → ця задача і ті, що чекають на її файл. Під inFlightLock. */
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+    private final ReentrantLock inFlightLock = new ReentrantLock();
+    private final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "download-retry");
+        th.setDaemon(true);
+        return th;
+    });
 
     public DownloadService(Path sqliteDb) throws Exception {
+        this(sqliteDb, ExecutionMode.PLATFORM);
+    }
+
+    public DownloadService(Path sqliteDb, ExecutionMode mode) throws Exception {
+        this(sqliteDb, mode, RangeHttpClient.Protocol.HTTP_1_1);
+    }
+
+    public DownloadService(Path sqliteDb, ExecutionMode mode, RangeHttpClient.Protocol protocol) throws Exception {
+        this.mode = mode;
+        this.http = new RangeHttpClient(protocol);
+        if (mode == ExecutionMode.VIRTUAL) {
+            this.pool = Executors.newVirtualThreadPerTaskExecutor();
+            this.segmentPool = Executors.newVirtualThreadPerTaskExecutor();
+            this.scheduler = new DownloadScheduler(pool, 1024, 64);
+        } else {
+            this.pool = Executors.newCachedThreadPool();
+            this.segmentPool = Executors.newCachedThreadPool();
+            this.scheduler = new DownloadScheduler(pool, 3, 2);
+        }
         this.repo = new TaskRepository(sqliteDb);
+        this.tasks = repo.openTable();
+        this.metrics = new DownloadMetrics(repo.writeLatency());
+        this.policy = new BandwidthPolicy(metrics);
+        http.setMetrics(metrics);
+        this.cache = new DownloadCache(repo, http, sqliteDb.resolveSibling(sqliteDb.getFileName() + ".cache"));
+        registerGauges();
+        this.journal = new ProgressJournal(repo, 500, 8L * 1024 * 1024);
+        journal.setWriters(http::force);
+        journal.setDurability(ProgressJournal.Durability.PERIODIC, DEFAULT_SYNC_MS);
+        this.segmented = new SegmentedDownload(http, journal, segmentPool);
+    }
+
+    /**
+     * Звірка незавершених задач з диском (див. Recovery) і постановка їх у чергу. Викликається один раз
+     * після конструктора, до додавання нових задач: інакше звірка прийняла б запущену задачу за перервану.
+     * Повторний виклик лише повертає той самий підсумок.
+     */
+    public Recovery.Result start() throws Exception {
+        startLock.lock();
+        try {
+            if (recovery != null) return recovery;
+            if (!flags.isEmpty()) throw new IllegalStateException("start() must precede adding or resuming tasks");
+            recovery = new Recovery(repo, tasks).run(this::enqueue);
+            return recovery;
+        } finally {
+            startLock.unlock();
+        }
     }
 
 
+    /** Значення, які вже рахують планувальник і пул буферів, — у метрики без копіювання. */
+    private void registerGauges() {
+        metrics.gauge("dm_queue_depth", "Tasks waiting in the scheduler queue", scheduler::queuedCount);
+        metrics.gauge("dm_active_tasks", "Tasks currently downloading", scheduler::activeCount);
+        BufferPool bp = http.getBufferPool();
+        metrics.gauge("dm_buffer_pool_capacity_bytes", "Direct memory cap of the write buffer pool", bp::getCapacity);
+        metrics.gauge("dm_buffer_pool_allocated_bytes", "Direct memory held by the pool (leased and idle)", () -> bp.stats().allocated);
+        metrics.gauge("dm_buffer_pool_in_use_bytes", "Direct memory leased to transfers", () -> bp.stats().inUse);
+        metrics.counter("dm_buffer_pool_hits_total", "Leases served from an idle buffer", () -> bp.stats().hits);
+        metrics.counter("dm_buffer_pool_misses_total", "Leases that allocated a new buffer", () -> bp.stats().misses);
+        metrics.counter("dm_buffer_pool_exhausted_total", "Leases refused because the pool was full", () -> bp.stats().exhausted);
+        metrics.counter("dm_cache_hits_total", "Tasks served from the local cache by URL or checksum",
+                () -> { DownloadCache.Stats c = cache.stats(); return c.urlHits + c.digestHits; });
+        metrics.counter("dm_cache_misses_total", "Fresh tasks that found nothing usable in the cache", () -> cache.stats().misses);
+        metrics.counter("dm_cache_attached_total", "Tasks that waited for an in-flight download of the same URL", () -> cache.stats().attached);
+        metrics.counter("dm_cache_evictions_total", "Cache entries evicted to stay within capacity", () -> cache.stats().evictions);
+        metrics.counter("dm_cache_served_bytes_total", "Bytes delivered from the cache instead of the network", () -> cache.stats().servedBytes);
+        metrics.gauge("dm_cache_bytes", "Bytes held in the cache", () -> cache.stats().bytes);
+    }
+
     public TaskRepository getRepository() {
         return repo;
     }
 
+    /** Що зробила звірка з диском у start() і скільки вона тривала; null, поки start() не викликали. */
+    public Recovery.Result getRecovery() {
+        return recovery;
+    }
+
+    /** Усі задачі в пам'яті з живим прогресом і потоком змін; читання без бази. */
+    public TaskTable getTasks() {
+        return tasks;
+    }
+
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    public RangeHttpClient.Protocol getProtocol() {
+        return http.getProtocol();
+    }
+
 
     public int add(String url, Path target) throws Exception {
-        int id = repo.create(url, target.toString());
-        resume(id);
-        return id;
+        return add(url, target, 0);
     }
 
-    public void resume(int id) throws Exception {
-        DownloadTask t = repo.findById(id);
-        if (t == null) throw new IllegalArgumentException("No such task: " + id);
+    public int add(String url, Path target, int priority) throws Exception {
+        // одразу QUEUED: без окремих findById і updateStatus, як у resume
+        DownloadTask t = repo.createBatch(
+                List.of(new TaskRepository.NewTask(url, target.toString(), -1, null, priority)),
+                DownloadTask.Status.QUEUED).get(0);
+        enqueue(t);
+        return t.id;
+    }
+
+    /**
+     * Потоково читає маніфест (див. Manifest) і додає задачі пакетами по IMPORT_CHUNK в одній транзакції.
+     * Вставлені задачі йдуть у планувальник такими, як зібрані в пам'яті, без перечитування з бази.
+     * Зіпсовані рядки пропускаються.
+     */
+    public ImportResult importManifest(Path manifest) throws Exception {
+        int imported = 0, skipped = 0, lineNo = 0;
+        String firstError = null;
+        List<TaskRepository.NewTask> chunk = new ArrayList<>(IMPORT_CHUNK);
+        try (BufferedReader in = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNo++;
+                try {
+                    TaskRepository.NewTask row = Manifest.parse(line);
+                    if (row == null) continue;
+                    chunk.add(row);
+                } catch (IllegalArgumentException e) { // і NumberFormatException
+                    skipped++;
+                    if (firstError == null) firstError = "line " + lineNo + ": " + e.getMessage();
+                    continue;
+                }
+                if (chunk.size() == IMPORT_CHUNK) {
+                    imported += importChunk(chunk);
+                    chunk.clear();
+                }
+            }
+        }
+        imported += importChunk(chunk);
+        return new ImportResult(imported, skipped, firstError);
+    }
+
+    private int importChunk(List<TaskRepository.NewTask> chunk) throws SQLException {
+        if (chunk.isEmpty()) return 0;
+        return addAll(chunk, false).size();
+    }
+
+    /** Задачі одним пакетом в одній транзакції; paused — лише записати (PAUSED), не ставлячи в чергу. */
+    public List<DownloadTask> addAll(List<TaskRepository.NewTask> rows, boolean paused) throws SQLException {
+        List<DownloadTask> out = repo.createBatch(rows, paused ? DownloadTask.Status.PAUSED : DownloadTask.Status.QUEUED);
+        if (!paused) for (DownloadTask t : out) enqueue(t);
+        return out;
+    }
+
+    /**
+     * Ставить задачу в чергу. Нічого не робить (false) для RUNNING і COMPLETED і для QUEUED, що вже
+     * в роботі. Якщо призупинена спроба ще не закінчилась, задача піде в чергу одразу після неї.
+     */
+    public boolean resume(int id) throws Exception {
+        attemptLock.lock();
+        try {
+            DownloadTask t = tasks.get(id);
+            if (t == null) throw new IllegalArgumentException("No such task: " + id);
+            return resumeLocked(t);
+        } finally {
+            attemptLock.unlock();
+        }
+    }
+
+    /** Під attemptLock. */
+    private boolean resumeLocked(DownloadTask t) throws SQLException {
+        if (!resumable(t.status)) return false;
+        if (live.containsKey(t.id)) {
+            if (t.status == DownloadTask.Status.QUEUED) return false; // уже в черзі чи качається
+            resumeAfter.add(t.id);
+            return true;
+        }
+        repo.updateStatus(t.id, DownloadTask.Status.QUEUED, t.lastByte);
+        enqueue(t);
+        return true;
+    }
 
+    /** Статуси, з яких resume має сенс; QUEUED — якщо спроби немає (чекає повтору чи загубилась). */
+    static boolean resumable(DownloadTask.Status status) {
+        return status == DownloadTask.Status.PAUSED || status == DownloadTask.Status.ERROR
+                || status == DownloadTask.Status.QUEUED || status == DownloadTask.Status.NEW;
+    }
+
+    /** Ставить задачу (вже QUEUED у базі) в планувальник. */
+    private void enqueue(DownloadTask t) {
+        enqueue(t, 1);
+    }
+
+    /** attempt — номер спроби поспіль без просування; від нього залежить затримка наступного повтору. */
+    private void enqueue(DownloadTask t, int attempt) {
+        cancelRetry(t.id);
         RangeHttpClient.InterruptFlag flag = new RangeHttpClient.InterruptFlag();
-        flags.put(id, flag);
+        attemptLock.lock();
+        try {
+            flags.put(t.id, flag);
+            live.put(t.id, flag);
+        } finally {
+            attemptLock.unlock();
+        }
+        scheduler.submit(t.id, DownloadScheduler.hostOf(t.url), t.priority, () -> run(t, flag, attempt));
+    }
 
-        repo.updateStatus(id, DownloadTask.Status.RUNNING, t.lastByte);
+    /**
+     * Спроба з flag закінчилась або її зняли з черги. Якщо поки вона дописувала прийшов resume
+     * (або restart — сервер змінив файл), задача йде в чергу наступною спробою.
+     */
+    private void ended(int id, RangeHttpClient.InterruptFlag flag, boolean restart) {
+        attemptLock.lock();
+        try {
+            if (!live.remove(id, flag)) return;
+            boolean resumed = resumeAfter.remove(id);
+            DownloadTask t = tasks.get(id);
+            if (t == null) return;
+            if (restart && t.status == DownloadTask.Status.QUEUED) enqueue(t);
+            else if (resumed) resumeLocked(t);
+        } catch (SQLException e) {
+            System.out.printf("java error: %s%n", e.toString());
+        } finally {
+            attemptLock.unlock();
+        }
+    }
+
+    private void cancelRetry(int id) {
+        ScheduledFuture<?> f = retries.remove(id);
+        if (f != null) f.cancel(false);
+    }
 
-        pool.submit(() -> {
+    /**
+     * Повтор після delayMs. Задача весь цей час QUEUED; якщо її тим часом призупинили
+     * чи запустили вручну, повтор нічого не робить. Задача береться з бази заново —
+     * з прогресом, який уже на диску. failed — спроба, що впала: якщо вона ще прибирає за собою,
+     * нова її змінює (запис у .part уже закінчено, а прибирання йде лише за її ключем).
+     */
+    private void scheduleRetry(int id, int attempt, long delayMs, RangeHttpClient.InterruptFlag failed) {
+        retries.put(id, retryTimer.schedule(() -> {
+            retries.remove(id);
+            attemptLock.lock();
             try {
-                LongSupplier lim = policy::getLimit;
-                RangeHttpClient.Result r = http.download(
-                        t.url, t.target, t.lastByte,
-                        (bytes, total) -> {
-                            try { repo.updateProgress(id, bytes, total); }
-                            catch (SQLException e) { /* лог за потреби */ }
-                        },
-                        flag, lim);
-
-                repo.updateStatus(id, DownloadTask.Status.COMPLETED, r.contentLength > 0 ? r.contentLength : t.lastByte);
+                DownloadTask fresh = tasks.get(id);
+                RangeHttpClient.InterruptFlag current = live.get(id);
+                if (fresh != null && fresh.status == DownloadTask.Status.QUEUED && (current == null || current == failed)) {
+                    enqueue(fresh, attempt);
+                }
             } catch (Exception e) {
-                try { repo.updateStatus(id, DownloadTask.Status.ERROR, t.lastByte); }
-                catch (SQLException ignored) {}
                 System.out.printf("java error: %s%n", e.toString());
+            } finally {
+                attemptLock.unlock();
             }
-        });
+        }, delayMs, TimeUnit.MILLISECONDS));
+    }
+
+    private void run(DownloadTask t, RangeHttpClient.InterruptFlag flag, int attempt) {
+        boolean restart = false;
+        try {
+            if (!flag.isSet()) restart = attempt(t, flag, attempt); // інакше призупинили, поки стояла в черзі
+        } finally {
+            ended(t.id, flag, restart);
+        }
+    }
+
+    /** Одна спроба; true — сервер змінив файл, і задачу треба поставити заново. */
+    private boolean attempt(DownloadTask t, RangeHttpClient.InterruptFlag flag, int attempt) {
+        int id = t.id;
+        TaskRepository.Attempt record = new TaskRepository.Attempt(id, attempt, System.currentTimeMillis(), t.lastByte);
+        StreamDigest digest = null;
+        ProgressMeter meter = null;
+        String host = DownloadScheduler.hostOf(t.url);
+        DownloadMetrics.Task taskMetrics = null;
+        RangeHttpClient.Validators validators = new RangeHttpClient.Validators(t.etag, t.lastModified);
+        Path part = partFile(t.target);
+        boolean leading = false;
+        boolean completed = false;
+        InFlight waiting = null;
+        Object journaled = null;
+        try {
+            adoptPartial(t, part);
+            if (!Files.exists(part) && (t.lastByte > 0 || !repo.listSegments(id).isEmpty())) {
+                // завантаженого на диску немає (задача вже завершена або .part видалили) — з нуля
+                repo.resetProgress(id, DownloadTask.Status.RUNNING);
+                t.lastByte = 0;
+                t.totalBytes = -1;
+                validators.etag = t.etag = null;
+                validators.lastModified = t.lastModified = null;
+            }
+            if (!Files.exists(part)) {
+                // з нуля: спершу кеш, потім чуже завантаження того ж URL, і лише тоді мережа
+                TaskRepository.CacheEntry e = cache.lookup(t);
+                // запис витіснили, поки клали у .part, — промах, качаємо
+                if (e != null && cache.place(e, part)) {
+                    boolean ok = complete(t, e.size, e.etag, e.lastModified, e.digest, record);
+                    if (ok && t.checksum != null) cache.learnDigest(e, t.checksum);
+                    return false;
+                }
+                leading = lead(t, flag);
+                if (!leading) return false;
+            }
+            journaled = journal.attach(id, part);
+            if (t.checksum != null) {
+                digest = repo.loadDigest(id);
+                if (digest == null) digest = StreamDigest.create(StreamDigest.algorithmOf(t.checksum));
+            }
+            StreamDigest d = digest;
+            // meter викликає слухача в потоці завантаження одразу після запису, тож позиції суми й прогресу збігаються
+            meter = new ProgressMeter(id, t.lastByte, t.totalBytes, sampleIntervalMs, sampleStepBytes,
+                    m -> {
+                        journal.record(id, m.position(), m.total(),
+                                d != null && d.position() == m.position() ? d.state() : null);
+                        tasks.tick(id, m.position(), m.total(), m.rate());
+                    });
+            meters.put(id, meter);
+            taskMetrics = metrics.startTask(id, host, meter::rate);
+
+            repo.updateStatus(id, DownloadTask.Status.RUNNING, t.lastByte);
+            List<Segment> segs = repo.listSegments(id);
+            if (segs.isEmpty() && t.lastByte == 0) segs = planSegments(t, part, validators);
+
+            long finalBytes;
+            boolean streamed = segs.isEmpty();
+            // докачано до кінця ще до збою, не встигли лише перейменувати: лишилось перевірити
+            boolean whole = streamed && t.totalBytes > 0 && t.lastByte >= t.totalBytes
+                    && Files.exists(part) && Files.size(part) >= t.totalBytes;
+            if (whole) {
+                finalBytes = t.totalBytes;
+            } else if (!streamed) {
+                finalBytes = segmented.run(t, part, segs, flag, policy, meter, validators);
+            } else {
+                try (BandwidthPolicy.Transfer throttle = policy.open(id, host, flag)) {
+                    RangeHttpClient.Result r = http.download(
+                            t.url, part, t.lastByte, meter::update, flag, throttle, digest, validators);
+                    finalBytes = r.contentLength > 0 ? r.contentLength : meter.position();
+                    // тіло коротше за Content-Length: файл обрізано по записаному, повтор докачає решту
+                    if (r.contentLength > 0 && meter.position() < r.contentLength && !flag.isSet()) {
+                        throw new IOException("Body ended at " + meter.position() + " of " + r.contentLength + " bytes: " + t.url);
+                    }
+                }
+            }
+
+            saveValidators(t, validators);
+            meter.flush();
+            journal.sync(id);
+            if (flag.isSet()) { // призупинено: статус уже виставив pause()
+                finishAttempt(record, TaskRepository.Attempt.Outcome.PAUSED, meter.position(), null);
+                return false;
+            }
+            if (digest != null && !verify(t, part, digest, streamed && !whole)) {
+                repo.updateStatus(id, DownloadTask.Status.ERROR, finalBytes);
+                finishAttempt(record, TaskRepository.Attempt.Outcome.FAILED, finalBytes, "checksum mismatch");
+                System.out.printf("Task #%d: checksum mismatch%n", id);
+                return false;
+            }
+            publish(part, t.target);
+            // до COMPLETED: хто побачив задачу завершеною, знайде її файл і в кеші
+            cache.store(t, t.target, digest != null ? digest.result() : null);
+            // нові задачі на цей URL уже беруть файл з кешу (або качають самі), а не чекають на цю
+            if (leading) waiting = release(t, flag);
+            leading = false;
+            repo.updateStatus(id, DownloadTask.Status.COMPLETED, finalBytes);
+            finishAttempt(record, TaskRepository.Attempt.Outcome.COMPLETED, finalBytes, null);
+            completed = true;
+        } catch (RangeHttpClient.RemoteChangedException e) {
+            // сегменти з різних версій файлу не склеюються: забуваємо завантажене і ставимо задачу заново
+            try {
+                if (meter != null) meter.flush();
+                journal.sync(id);
+                // flag тут не показник: SegmentedDownload зупиняє ним решту сегментів; пауза видна по статусу
+                DownloadTask now = tasks.get(id);
+                boolean paused = now == null || now.status == DownloadTask.Status.PAUSED;
+                repo.resetProgress(id, paused ? DownloadTask.Status.PAUSED : DownloadTask.Status.QUEUED);
+                finishAttempt(record, TaskRepository.Attempt.Outcome.RESTARTED, 0, e.getMessage());
+                System.out.printf("Task #%d: %s, restarting%n", id, e.getMessage());
+                return !paused; // нова спроба — після прибирання цієї, у finally run
+            } catch (SQLException ex) {
+                System.out.printf("java error: %s%n", ex.toString());
+            }
+        } catch (Exception e) {
+            metrics.host(host).errors.inc();
+            try {
+                saveValidators(t, validators);
+                if (meter != null) meter.flush();
+                journal.sync(id); // після цього в базі рівно той прогрес, що вже на диску
+                DownloadTask now = tasks.get(id);
+                long saved = now != null ? now.lastByte : t.lastByte;
+                // пауза під час збою (сегменти зупиняються тим самим flag) — не повторюємо
+                boolean paused = now == null || now.status == DownloadTask.Status.PAUSED;
+                int failed = RetryPolicy.countedAttempt(attempt, record.fromByte, saved);
+                long delay = paused ? -1 : retryPolicy.nextDelayMs(e, failed, host);
+                if (delay >= 0) {
+                    repo.updateStatus(id, DownloadTask.Status.QUEUED, saved);
+                    record.retryInMs = delay;
+                    finishAttempt(record, TaskRepository.Attempt.Outcome.RETRY, saved, e.toString());
+                    metrics.host(host).retries.inc();
+                    scheduleRetry(id, failed + 1, delay, flag);
+                    System.out.printf("Task #%d: %s, retry in %d ms%n", id, e.toString(), delay);
+                    return false;
+                }
+                if (!paused) repo.updateStatus(id, DownloadTask.Status.ERROR, saved);
+                finishAttempt(record, paused ? TaskRepository.Attempt.Outcome.PAUSED : TaskRepository.Attempt.Outcome.FAILED,
+                        saved, e.toString());
+            } catch (SQLException ignored) {}
+            System.out.printf("java error: %s%n", e.toString());
+        } finally {
+            if (journaled != null) journal.detach(id, journaled);
+            if (meter != null) meters.remove(id, meter);
+            if (taskMetrics != null) metrics.finishTask(taskMetrics);
+            if (leading) waiting = release(t, flag);
+            if (waiting != null) handOff(t, waiting, completed);
+        }
+        return false;
+    }
+
+    /**
+     * Стає тією, що качає URL (true), або, якщо його вже качає інша задача, чекає на її файл:
+     * лишається RUNNING, але слот планувальника звільняє (false).
+     */
+    private boolean lead(DownloadTask t, RangeHttpClient.InterruptFlag flag) throws SQLException {
+        inFlightLock.lock();
+        try {
+            InFlight f = inFlight.get(t.url);
+            if (f == null) {
+                inFlight.put(t.url, new InFlight(t.id, flag));
+                return true;
+            }
+            // під lock: інакше handOff міг би завершити задачу раніше, ніж цей запис її «оживить»
+            repo.updateStatus(t.id, DownloadTask.Status.RUNNING, 0);
+            f.followers.put(t.id, t);
+            f.flags.put(t.id, flag);
+        } finally {
+            inFlightLock.unlock();
+        }
+        cache.countAttached();
+        return false;
+    }
+
+    /**
+     * Знімає спробу flag з ролі тієї, що качає URL; повертає тих, хто на неї чекав (після цього нових
+     * не додасться). Роль наступної спроби тієї ж задачі не чіпає.
+     */
+    private InFlight release(DownloadTask leader, RangeHttpClient.InterruptFlag flag) {
+        inFlightLock.lock();
+        try {
+            InFlight f = inFlight.get(leader.url);
+            if (f == null || f.leaderFlag != flag) return null;
+            inFlight.remove(leader.url);
+            return f;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Задача, що качала URL, закінчила: успіх — кожна, що чекала і не була призупинена, отримує копію
+     * файлу; інакше вони знову в черзі і одна з них качатиме сама.
+     */
+    private void handOff(DownloadTask leader, InFlight f, boolean completed) {
+        DownloadTask done = completed ? tasks.get(leader.id) : null;
+        for (DownloadTask t : f.followers.values()) {
+            if (f.flags.get(t.id).isSet()) continue;
+            TaskRepository.Attempt record = new TaskRepository.Attempt(t.id, 1, System.currentTimeMillis(), 0);
+            try {
+                if (done != null) {
+                    cache.place(done.target, partFile(t.target));
+                    complete(t, -1, done.etag, done.lastModified,
+                            Boolean.TRUE.equals(done.verified) ? done.digest : null, record);
+                } else {
+                    repo.updateStatus(t.id, DownloadTask.Status.QUEUED, 0);
+                    enqueue(t);
+                }
+            } catch (Exception e) {
+                System.out.printf("java error: %s%n", e.toString());
+                try {
+                    repo.updateStatus(t.id, DownloadTask.Status.QUEUED, 0);
+                    enqueue(t);
+                } catch (SQLException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Завершує задачу готовим локальним файлом (з кешу або іншої задачі), уже покладеним у її .part, без мережі.
+     * digest — перевірена сума вмісту, якщо відома: тоді збіг із сумою задачі не перечитує файл. false — сума не збіглась.
+     */
+    private boolean complete(DownloadTask t, long size, String etag, String lastModified,
+                             String digest, TaskRepository.Attempt record) throws Exception {
+        Path part = partFile(t.target);
+        if (size < 0) size = Files.size(part);
+        if (t.checksum != null) {
+            boolean ok;
+            if (digest != null && DownloadCache.digestKey(digest).equals(DownloadCache.digestKey(t.checksum))) {
+                repo.saveVerification(t.id, digest, true);
+                ok = true;
+            } else {
+                ok = verify(t, part, StreamDigest.create(StreamDigest.algorithmOf(t.checksum)), false);
+            }
+            if (!ok) {
+                Files.deleteIfExists(part);
+                repo.updateStatus(t.id, DownloadTask.Status.ERROR, 0);
+                finishAttempt(record, TaskRepository.Attempt.Outcome.FAILED, 0, "checksum mismatch");
+                System.out.printf("Task #%d: checksum mismatch%n", t.id);
+                return false;
+            }
+        }
+        publish(part, t.target);
+        saveValidators(t, new RangeHttpClient.Validators(etag, lastModified));
+        repo.updateProgress(t.id, size, size);
+        repo.updateStatus(t.id, DownloadTask.Status.COMPLETED, size);
+        finishAttempt(record, TaskRepository.Attempt.Outcome.COMPLETED, size, null);
+        return true;
+    }
+
+    /** Дописує підсумок спроби в журнал спроб; збій запису діагностики задачу не валить. */
+    private void finishAttempt(TaskRepository.Attempt a, TaskRepository.Attempt.Outcome outcome, long toByte, String error) {
+        a.endedAt = System.currentTimeMillis();
+        a.outcome = outcome;
+        a.toByte = toByte;
+        a.error = error;
+        try {
+            repo.recordAttempt(a);
+        } catch (SQLException e) {
+            System.out.printf("java error: %s%n", e.toString());
+        }
+    }
+
+    /** Файл, у який іде завантаження; під справжнім ім'ям він з'являється лише готовим. */
+    static Path partFile(Path target) {
+        return target.resolveSibling(target.getFileName() + ".part");
+    }
+
+    /** Недокачана задача зі старої версії писала просто в target: продовжуємо з нього як з .part. */
+    private static void adoptPartial(DownloadTask t, Path part) throws IOException {
+        if (t.status == DownloadTask.Status.COMPLETED || Files.exists(part) || !Files.exists(t.target)) return;
+        if (t.lastByte > 0 || t.totalBytes > 0) Files.move(t.target, part);
+    }
+
+    /**
+     * Перейменовує готовий .part у target одним rename, тож під цим ім'ям не буває половини файлу.
+     * Якщо прогрес тримається узгодженим з диском (не NONE), скидає на диск і файл, і запис каталогу.
+     */
+    private void publish(Path part, Path target) throws IOException {
+        boolean durable = journal.getDurability() != ProgressJournal.Durability.NONE;
+        if (durable) {
+            try (FileChannel fc = FileChannel.open(part, StandardOpenOption.WRITE)) {
+                fc.force(true);
+            }
+        }
+        try {
+            Files.move(part, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(part, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (durable) {
+            try (FileChannel dir = FileChannel.open(target.toAbsolutePath().getParent(), StandardOpenOption.READ)) {
+                dir.force(true);
+            } catch (IOException ignored) {
+                // каталог як канал відкривається не скрізь (Windows) — там rename і так журналюється ФС
+            }
+        }
+    }
+
+    /** Зберігає версію файлу, якщо відповідь сервера її змінила. */
+    private void saveValidators(DownloadTask t, RangeHttpClient.Validators v) throws SQLException {
+        if (v.equals(new RangeHttpClient.Validators(t.etag, t.lastModified))) return;
+        repo.updateValidators(t.id, v.etag, v.lastModified);
+        t.etag = v.etag;
+        t.lastModified = v.lastModified;
+    }
+
+    /**
+     * Звіряє суму з очікуваною і зберігає результат. Для одного потоку сума вже порахована
+     * по ходу запису; сегменти пишуться не по порядку, тож для них файл перечитується один раз.
+     */
+    private boolean verify(DownloadTask t, Path file, StreamDigest digest, boolean streamed) throws Exception {
+        if (!streamed) {
+            digest.reset();
+            try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+                digest.update(fc, 0, fc.size());
+            }
+        }
+        String actual = digest.result();
+        String expected = t.checksum.substring(t.checksum.indexOf(':') + 1);
+        boolean ok = actual.substring(actual.indexOf(':') + 1).equalsIgnoreCase(expected);
+        repo.saveVerification(t.id, actual, ok);
+        return ok;
+    }
+
+    /** Очікувана контрольна сума задачі ("sha256:hex" тощо) або null, щоб не перевіряти. */
+    public void setChecksum(int id, String checksum) throws Exception {
+        if (checksum != null) StreamDigest.create(StreamDigest.algorithmOf(checksum)); // перевірка алгоритму
+        repo.updateChecksum(id, checksum);
+    }
+
+    /**
+     * Ділить нову задачу на сегменти, якщо сервер знає розмір і вміє Range. Інакше — порожній список.
+     * Версія файлу з probe зберігається одразу: з нею йдуть If-Range усіх сегментів.
+     */
+    private List<Segment> planSegments(DownloadTask t, Path part, RangeHttpClient.Validators validators) throws Exception {
+        int n = segments;
+        if (n <= 1) return List.of();
+
+        RangeHttpClient.Result probe = http.probe(t.url, validators);
+        if (!probe.supportsRange || probe.contentLength < 2 * MIN_SEGMENT_BYTES) return List.of();
+        saveValidators(t, validators);
+
+        List<Segment> segs = Segment.split(probe.contentLength, n, MIN_SEGMENT_BYTES);
+        RangeHttpClient.preallocate(part, probe.contentLength);
+        repo.saveSegments(t.id, segs);
+        repo.updateProgress(t.id, 0, probe.contentLength);
+        return segs;
+    }
+
+    /** Чи змінився на сервері файл завершеної задачі — умовним запитом, без завантаження тіла. */
+    public RangeHttpClient.Freshness refresh(int id) throws Exception {
+        DownloadTask t = tasks.get(id);
+        if (t == null) throw new IllegalArgumentException("No such task: " + id);
+        return http.revalidate(t.url, new RangeHttpClient.Validators(t.etag, t.lastModified));
+    }
+
+    /**
+     * refresh для всіх завершених задач, до REFRESH_PARALLEL запитів одночасно.
+     * Змінені задачі лише повертаються в modifiedIds; resume докачає їх з нуля (If-Range не збіжиться).
+     */
+    public RefreshResult refreshCompleted() throws Exception {
+        Semaphore slots = new Semaphore(REFRESH_PARALLEL);
+        Map<Integer, Future<RangeHttpClient.Freshness>> pending = new LinkedHashMap<>();
+        for (DownloadTask t : new TaskIterable(tasks, 500, DownloadTask.Status.COMPLETED)) {
+            RangeHttpClient.Validators v = new RangeHttpClient.Validators(t.etag, t.lastModified);
+            slots.acquire();
+            pending.put(t.id, segmentPool.submit(() -> {
+                try {
+                    return http.revalidate(t.url, v);
+                } finally {
+                    slots.release();
+                }
+            }));
+        }
+        int notModified = 0, modified = 0, unknown = 0, failed = 0;
+        List<Integer> modifiedIds = new ArrayList<>();
+        for (Map.Entry<Integer, Future<RangeHttpClient.Freshness>> e : pending.entrySet()) {
+            try {
+                switch (e.getValue().get()) {
+                    case NOT_MODIFIED -> notModified++;
+                    case MODIFIED -> { modified++; modifiedIds.add(e.getKey()); }
+                    case UNKNOWN -> unknown++;
+                }
+            } catch (ExecutionException ex) {
+                failed++;
+            }
+        }
+        return new RefreshResult(notModified, modified, unknown, failed, modifiedIds);
     }
 
     public void pause(int id) throws Exception {
-        RangeHttpClient.InterruptFlag f = flags.get(id);
-        if (f != null) f.stop();
-        DownloadTask t = repo.findById(id);
+        stop(id);
+        journal.flush();
+        DownloadTask t = tasks.get(id);
         if (t != null) {
-            // lastByte зафіксується в onProgress при наступному циклі або як є
+            // останній буфер потік допише сам і скине журнал, статус він уже не чіпає
             repo.updateStatus(id, DownloadTask.Status.PAUSED, t.lastByte);
         }
     }
 
+    /**
+     * pause для багатьох задач одразу: зупиняє їх, один раз скидає журнал і пише статус
+     * пакетами по BULK_CHUNK в одній транзакції. status — PAUSED або ERROR (відкат resume задачі, що впала).
+     */
+    public void stopAll(int[] ids, int count, DownloadTask.Status status) throws Exception {
+        for (int i = 0; i < count; i++) stop(ids[i]);
+        journal.flush();
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int to = Math.min(count, from + BULK_CHUNK);
+            repo.updateStatusBatch(Arrays.copyOfRange(ids, from, to), to - from, status);
+        }
+    }
+
+    /** Зупиняє поточну спробу задачі і скасовує відкладений resume чи повтор; статус не пише. */
+    private void stop(int id) {
+        cancelRetry(id);
+        attemptLock.lock();
+        try {
+            resumeAfter.remove(id);
+        } finally {
+            attemptLock.unlock();
+        }
+        RangeHttpClient.InterruptFlag f = flags.get(id);
+        if (f != null) f.stop();
+        // знята з черги спроба так і не запуститься — її run не прибере за собою
+        if (scheduler.cancel(id) && f != null) ended(id, f, false);
+    }
+
+    /**
+     * resume для багатьох задач одразу: статус QUEUED пакетами, далі кожна в планувальник. З тими самими
+     * умовами, що resume: задачі, які тим часом уже відновили чи завершили, не чіпає. Повертає, скільки поставлено.
+     */
+    public int resumeAll(int[] ids, int count) throws Exception {
+        int resumed = 0;
+        int[] ready = new int[Math.min(count, BULK_CHUNK)];
+        for (int from = 0; from < count; from += BULK_CHUNK) {
+            int to = Math.min(count, from + BULK_CHUNK), n = 0;
+            attemptLock.lock();
+            try {
+                for (int i = from; i < to; i++) {
+                    DownloadTask.Status st = tasks.status(ids[i]);
+                    if (st == null || !resumable(st)) continue;
+                    if (live.containsKey(ids[i])) {
+                        if (st != DownloadTask.Status.QUEUED) {
+                            resumeAfter.add(ids[i]);
+                            resumed++;
+                        }
+                        continue;
+                    }
+                    ready[n++] = ids[i];
+                }
+                repo.updateStatusBatch(ready, n, DownloadTask.Status.QUEUED);
+                for (int i = 0; i < n; i++) {
+                    DownloadTask t = tasks.get(ready[i]);
+                    if (t != null) enqueue(t);
+                }
+            } finally {
+                attemptLock.unlock();
+            }
+            resumed += n;
+        }
+        return resumed;
+    }
+
     public void printList() throws Exception {
-        List<DownloadTask> all = repo.listAll();
-        for (DownloadTask t : all) {
+        for (DownloadTask t : new TaskIterable(tasks, 1000)) {
             String size = (t.totalBytes >= 0) ? (t.totalBytes + "/" + t.totalBytes) : "0/-1";
             System.out.printf("#%d [%s] %s (%s) -> %s%n",
                     t.id, t.status, t.url, size, t.target);
         }
     }
 
+    /** Зведення метрик для команди stats: загальне, по хостах і по задачах, що качаються. */
+    public void printStats() {
+        BufferPool.Stats bp = http.getBufferPool().stats();
+        Histogram db = metrics.dbWrites;
+        System.out.printf("Total: %d bytes, %.1f KiB/s; active %d, queued %d%n",
+                metrics.bytes.get(), metrics.bytesPerSecond() / 1024,
+                scheduler.activeCount(), scheduler.queuedCount());
+        System.out.printf("SQLite writes: %d, p50 %.2f ms, p99 %.2f ms, max %.2f ms%n",
+                db.count(), db.percentile(0.5) / 1e6, db.percentile(0.99) / 1e6, db.max() / 1e6);
+        System.out.printf("Buffers: %d/%d KiB in use, hit rate %.1f%%%n",
+                bp.inUse / 1024, bp.capacity / 1024, bp.hitRate() * 100);
+        DownloadCache.Stats c = cache.stats();
+        System.out.printf("Cache: %d entries, %d/%d MiB, hit rate %.1f%% (%d by url, %d by checksum, %d misses), "
+                        + "%d attached, %d evicted, %d MiB served%n",
+                c.entries, c.bytes >> 20, c.capacity >> 20, c.hitRate() * 100, c.urlHits, c.digestHits, c.misses,
+                c.attached, c.evictions, c.servedBytes >> 20);
+        for (DownloadMetrics.Host h : metrics.hosts()) {
+            System.out.printf("  host %s: %d conn, %d bytes, %.1f KiB/s, %d errors, first byte p50 %.1f ms p99 %.1f ms%n",
+                    h.name.isEmpty() ? "-" : h.name, h.active.get(), h.bytes.get(), h.bytesPerSecond() / 1024,
+                    h.errors.get(), h.firstByte.percentile(0.5) / 1e6, h.firstByte.percentile(0.99) / 1e6);
+        }
+        for (DownloadMetrics.Task t : metrics.tasks()) {
+            System.out.printf("  task #%d: %d bytes, %.1f KiB/s, throttled %.1f s%n",
+                    t.id, t.bytes.get(), t.bytesPerSecond() / 1024, t.throttledNs.get() / 1e9);
+        }
+    }
+
+    public DownloadMetrics getMetrics() { return metrics; }
+
+    /** Кеш завершених завантажень: ліміт, режим, очищення і лічильники. */
+    public DownloadCache getCache() { return cache; }
+
+    /** Знімок метрик у форматі Prometheus у file раз на intervalMs; null — вимкнути. */
+    public void setMetricsExport(Path file, long intervalMs) { metrics.exportTo(file, intervalMs); }
+
+    /** Живий прогрес задачі, що зараз качається (позиція, швидкість, ETA), або null. */
+    public ProgressMeter progress(int id) { return meters.get(id); }
+
+    /** Як часто прогрес потрапляє в журнал: не частіше ніж раз на intervalMs або stepBytes. */
+    public void setProgressSampling(long intervalMs, long stepBytes) {
+        sampleIntervalMs = Math.max(1, intervalMs);
+        sampleStepBytes = Math.max(1, stepBytes);
+    }
+
+    /** Коли файли скидаються на диск відносно запису прогресу, див. ProgressJournal.Durability. */
+    public void setDurability(ProgressJournal.Durability durability, long syncIntervalMs) {
+        journal.setDurability(durability, syncIntervalMs);
+    }
+
+    public ProgressJournal.Durability getDurability() { return journal.getDurability(); }
+
+    /** Як писати великі файли відомої довжини: через канал чи відображенням у пам'ять (див. TargetWriter). */
+    public void setWriteMode(TargetWriter.Mode mode) { http.setWriteMode(mode); }
+
+    public TargetWriter.Mode getWriteMode() { return http.getWriteMode(); }
+
+    /** Пул буферів запису, спільний для всіх передач: ліміт пам'яті і статистика. */
+    public BufferPool getBufferPool() { return http.getBufferPool(); }
+
     public void setLimit(long bytesPerSec) { policy.setLimit(bytesPerSec); }
 
+    public void setHostLimit(String host, long bytesPerSec) { policy.setHostLimit(host, bytesPerSec); }
+
+    public void setTaskLimit(int id, long bytesPerSec) { policy.setTaskLimit(id, bytesPerSec); }
+
+    /** Кількість паралельних сегментів для нових задач (1 = один потік, як раніше). */
+    public void setSegments(int n) { segments = Math.max(1, n); }
+
+    public int getSegments() { return segments; }
+
+    /** Скільки задач качається одночасно всього і скільки на один хост. */
+    public void setConcurrency(int maxActive, int maxPerHost) { scheduler.setLimits(maxActive, maxPerHost); }
+
+    public DownloadScheduler getScheduler() { return scheduler; }
+
+    /** Новий пріоритет діє з наступної постановки в чергу; задачу, що чекає, переставляємо одразу. */
+    public void setPriority(int id, int priority) throws Exception {
+        repo.updatePriority(id, priority);
+        if (scheduler.isQueued(id)) resume(id);
+    }
+
+    /** Коли і скільки разів автоматично повторювати задачі, що впали. */
+    public RetryPolicy getRetryPolicy() { return retryPolicy; }
+
+    /** Історія спроб задачі, від найстарішої. */
+    public List<TaskRepository.Attempt> attempts(int id) throws SQLException { return repo.listAttempts(id); }
+
     @Override public void close() throws Exception {
+        retryTimer.shutdownNow();
+        metrics.close();
         pool.shutdownNow();
+        segmentPool.shutdownNow();
+        journal.close();
         repo.close();
     }
 }
@@ -3,7 +3,7 @@ package dm.core;
 import java.nio.file.Path;
 
 public class DownloadTask {
-    public enum Status { NEW, RUNNING, PAUSED, COMPLETED, ERROR }
+    public enum Status { NEW, QUEUED, RUNNING, PAUSED, COMPLETED, ERROR }
 
     public int id;
     public String url;
@@ -11,13 +11,26 @@ public class DownloadTask {
     public Status status;
     public long lastByte;
     public long totalBytes;
+    public int priority; // більше = раніше
+    public long createdAt; // мс epoch; 0 — невідомо (задача зі старої бази)
+    public long updatedAt;
+    public String checksum; // очікувана контрольна сума з маніфесту, "алгоритм:hex"; null — немає
+    public String digest;   // порахована після завершення, "алгоритм:hex"
+    public Boolean verified; // null — не перевірялась
+    public String etag;         // версія файлу на сервері, з якої завантажена частина; null — невідома
+    public String lastModified; // Last-Modified як його надіслав сервер
 
     public DownloadTask(int id, String url, Path target, Status status, long lastByte, long totalBytes) {
+        this(id, url, target, status, lastByte, totalBytes, 0);
+    }
+
+    public DownloadTask(int id, String url, Path target, Status status, long lastByte, long totalBytes, int priority) {
         this.id = id;
         this.url = url;
         this.target = target;
         this.status = status;
         this.lastByte = lastByte;
         this.totalBytes = totalBytes;
+        this.priority = priority;
     }
 }
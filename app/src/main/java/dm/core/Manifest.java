@@ -0,0 +1,46 @@
+package dm.core;
+
+import java.util.Locale;
+
+/**
+ * Рядок маніфесту: url, target[, size[, checksum[, priority]]] — через кому або табуляцію.
+ * Порожні поля пропускаються; порожні рядки і рядки з # — коментарі.
+ * checksum — "sha256:hex", "sha1:hex", "md5:hex" або просто hex (алгоритм визначається за довжиною).
+ */
+public final class Manifest {
+    private Manifest() {}
+
+    /** null для порожнього рядка чи коментаря; IllegalArgumentException — для зіпсованого. */
+    public static TaskRepository.NewTask parse(String line) {
+        String s = line.strip();
+        if (s.isEmpty() || s.startsWith("#")) return null;
+        String[] f = s.split(s.indexOf('\t') >= 0 ? "\t" : ",", -1);
+        if (f.length < 2 || f[0].isBlank() || f[1].isBlank()) {
+            throw new IllegalArgumentException("expected url and target");
+        }
+        String url = f[0].strip();
+        if (!url.startsWith("http://") && !url.startsWith("https://")) {
+            throw new IllegalArgumentException("not an http(s) url: " + url);
+        }
+        long size = field(f, 2).isEmpty() ? -1 : Long.parseLong(field(f, 2));
+        String checksum = field(f, 3).isEmpty() ? null : checksum(field(f, 3));
+        int priority = field(f, 4).isEmpty() ? 0 : Integer.parseInt(field(f, 4));
+        return new TaskRepository.NewTask(url, f[1].strip(), size, checksum, priority);
+    }
+
+    private static String field(String[] f, int i) {
+        return i < f.length ? f[i].strip() : "";
+    }
+
+    private static String checksum(String v) {
+        String c = v.toLowerCase(Locale.ROOT);
+        int colon = c.indexOf(':');
+        if (colon >= 0) return c;
+        return switch (c.length()) {
+            case 32 -> "md5:" + c;
+            case 40 -> "sha1:" + c;
+            case 64 -> "sha256:" + c;
+            default -> throw new IllegalArgumentException("cannot guess checksum algorithm: " + v);
+        };
+    }
+}
@@ -0,0 +1,236 @@
+package dm.core;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind журнал прогресу. Потоки завантаження лише оновлюють останнє значення
+ * для задачі (або сегмента) у пам'яті, а в SQLite усе накопичене пишеться однією
+ * транзакцією — раз на flushIntervalMs або коли набралося flushBytes нових байтів.
+ *
+ * Записуються тільки байти, які вже віддані у FileChannel, тож збережений прогрес
+ * може відставати від файлу, але ніколи не випереджає його. Чи переживе це збій живлення,
+ * залежить від Durability: файл задачі, що качається (attach), скидається на диск
+ * до того, як прогрес по ньому потрапить у базу.
+ */
+public class ProgressJournal implements AutoCloseable {
+    /** Коли файл задачі скидається на диск (FileChannel.force) відносно запису її прогресу в базу. */
+    public enum Durability {
+        /** Ніколи: після збою живлення прогрес у базі може випереджати те, що є на диску. */
+        NONE,
+        /** Перед записом прогресу, не частіше ніж раз на syncInterval для задачі; між цим прогрес чекає в пам'яті. */
+        PERIODIC,
+        /** Лише на паузі, завершенні чи помилці (sync); поки задача качається, прогрес у базу не пишеться. */
+        ON_PAUSE
+    }
+
+    /** Файл задачі, що зараз качається, і коли його востаннє скидали на диск. */
+    private static final class Attached {
+        final Path file;
+        long syncedNs;
+        Attached(Path file) { this.file = file; this.syncedNs = System.nanoTime(); }
+    }
+
+    private final TaskRepository repo;
+    private final long flushBytes;
+    private final Map<Integer, TaskRepository.ProgressUpdate> tasks = new ConcurrentHashMap<>();
+    private final Map<Long, TaskRepository.ProgressUpdate> segments = new ConcurrentHashMap<>();
+    private final AtomicLong unflushedBytes = new AtomicLong();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final ScheduledExecutorService flusher;
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final Map<Integer, Attached> files = new ConcurrentHashMap<>();
+    /** Останнє записане значення задачі (key(id, -1)) чи сегмента: від нього рахується приріст і після drain. */
+    private final Map<Long, Long> seen = new ConcurrentHashMap<>();
+    private volatile Durability durability = Durability.NONE;
+    private volatile Writers writers = file -> {};
+    private volatile long syncIntervalNs = 0;
+
+    public ProgressJournal(TaskRepository repo, long flushIntervalMs, long flushBytes) {
+        this.repo = repo;
+        this.flushBytes = Math.max(1, flushBytes);
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread th = new Thread(r, "progress-journal");
+            th.setDaemon(true);
+            return th;
+        });
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void setDurability(Durability durability, long syncIntervalMs) {
+        this.durability = durability;
+        this.syncIntervalNs = Math.max(0, syncIntervalMs) * 1_000_000L;
+    }
+
+    public Durability getDurability() { return durability; }
+
+    /** Записане у файл в обхід дескриптора (вікна MAPPED): перед fsync файлу його скидають writers. */
+    public interface Writers { void force(Path file) throws IOException; }
+
+    public void setWriters(Writers writers) { this.writers = writers; }
+
+    /**
+     * Файл, у який зараз пише задача; її прогрес відтепер іде в базу лише після force цього файлу.
+     * Повертає ключ для detach: наступна спроба задачі прикріплює свій, і стара його вже не зніме.
+     */
+    public Object attach(int taskId, Path file) {
+        Attached a = new Attached(file);
+        files.put(taskId, a);
+        return a;
+    }
+
+    public void detach(int taskId, Object attached) { files.remove(taskId, attached); }
+
+    public void record(int taskId, long bytes, long total) {
+        record(taskId, bytes, total, null);
+    }
+
+    /** digestState — стан контрольної суми на bytes байтах; запишеться в тій самій транзакції, що й прогрес. */
+    public void record(int taskId, long bytes, long total, byte[] digestState) {
+        tasks.put(taskId, new TaskRepository.ProgressUpdate(taskId, -1, bytes, total, digestState));
+        count(key(taskId, -1), bytes);
+    }
+
+    public void recordSegment(int taskId, int index, long doneBytes) {
+        long key = key(taskId, index);
+        segments.put(key, new TaskRepository.ProgressUpdate(taskId, index, doneBytes, -1));
+        count(key, doneBytes);
+    }
+
+    /** Перше значення рахується повністю: журнал не знає, скільки з нього вже в базі. */
+    private void count(long key, long bytes) {
+        Long prev = seen.put(key, bytes);
+        long delta = prev == null ? bytes : bytes - prev;
+        if (delta > 0) onBytes(delta);
+    }
+
+    private void onBytes(long delta) {
+        if (unflushedBytes.addAndGet(delta) >= flushBytes && flushQueued.compareAndSet(false, true)) {
+            flusher.execute(() -> {
+                flushQueued.set(false);
+                flushQuietly();
+            });
+        }
+    }
+
+    private void flushQuietly() {
+        try { flush(); }
+        catch (SQLException e) { System.out.printf("java error: %s%n", e.toString()); }
+    }
+
+    private static long key(int taskId, int index) {
+        return ((long) taskId << 32) | (index & 0xffffffffL);
+    }
+
+    /**
+     * Записує накопичене. Прогрес задач, що качаються, за PERIODIC/ON_PAUSE потрапляє в базу
+     * лише тоді, коли настав час скинути їхній файл на диск; решта лишається до наступного разу.
+     */
+    public void flush() throws SQLException {
+        flushLock.lock();
+        try {
+            List<TaskRepository.ProgressUpdate> batch = new ArrayList<>();
+            drain(tasks, batch);
+            drain(segments, batch);
+            unflushedBytes.set(0);
+            write(batch, false);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Скидає файл задачі на диск (якщо не NONE) і записує весь її прогрес. Пауза, завершення, помилка. */
+    public void sync(int taskId) throws SQLException {
+        flushLock.lock();
+        try {
+            List<TaskRepository.ProgressUpdate> batch = new ArrayList<>();
+            TaskRepository.ProgressUpdate u = tasks.remove(taskId);
+            if (u != null) batch.add(u);
+            for (Long k : segments.keySet()) {
+                if ((int) (k >>> 32) != taskId) continue;
+                u = segments.remove(k);
+                if (u != null) batch.add(u);
+            }
+            seen.keySet().removeIf(k -> (int) (k >>> 32) == taskId);
+            write(batch, true);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /** Під flushLock. force — скинути файли всіх задач пакета, не дивлячись на інтервал. */
+    private void write(List<TaskRepository.ProgressUpdate> batch, boolean force) throws SQLException {
+        if (batch.isEmpty()) return;
+        Durability mode = durability;
+        if (mode == Durability.NONE) {
+            repo.updateProgressBatch(batch);
+            return;
+        }
+        long now = System.nanoTime();
+        Set<Integer> synced = new HashSet<>(), held = new HashSet<>();
+        List<TaskRepository.ProgressUpdate> ready = new ArrayList<>(batch.size());
+        for (TaskRepository.ProgressUpdate u : batch) {
+            Attached f = files.get(u.taskId);
+            boolean ok;
+            if (f == null || synced.contains(u.taskId)) ok = true;
+            else if (held.contains(u.taskId)) ok = false;
+            else if (force || (mode == Durability.PERIODIC && now - f.syncedNs >= syncIntervalNs)) ok = force(f);
+            else ok = false;
+            if (ok) {
+                synced.add(u.taskId);
+                ready.add(u);
+            } else {
+                held.add(u.taskId);
+                requeue(u);
+            }
+        }
+        if (!ready.isEmpty()) repo.updateProgressBatch(ready);
+    }
+
+    private boolean force(Attached f) {
+        try (FileChannel fc = FileChannel.open(f.file, StandardOpenOption.WRITE)) {
+            writers.force(f.file); // спершу вікна відображення, поки прогрес пакета ще не в базі
+            fc.force(false); // fsync по inode: скидає й те, що писалось через інші дескриптори
+            f.syncedNs = System.nanoTime();
+            return true;
+        } catch (IOException e) {
+            System.out.printf("java error: %s%n", e.toString());
+            return false;
+        }
+    }
+
+    /** Назад у журнал; якщо за цей час прийшло новіше значення — лишається воно. */
+    private void requeue(TaskRepository.ProgressUpdate u) {
+        if (u.segment < 0) tasks.putIfAbsent(u.taskId, u);
+        else segments.putIfAbsent(key(u.taskId, u.segment), u);
+    }
+
+    private static <K> void drain(Map<K, TaskRepository.ProgressUpdate> from, List<TaskRepository.ProgressUpdate> to) {
+        for (K key : from.keySet()) {
+            TaskRepository.ProgressUpdate u = from.remove(key);
+            if (u != null) to.add(u);
+        }
+    }
+
+    @Override public void close() throws Exception {
+        flusher.shutdown();
+        flusher.awaitTermination(5, TimeUnit.SECONDS);
+        for (Integer id : files.keySet()) sync(id);
+        flush();
+    }
+}
@@ -0,0 +1,108 @@
+package dm.core;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Прогрес однієї задачі в пам'яті. Потік завантаження лише оновлює лічильник байтів;
+ * слухач (журнал прогресу) викликається вибірково — не частіше ніж раз на intervalNs
+ * або stepBytes. Позицію, швидкість і ETA можна читати з будь-якого потоку,
+ * не зачіпаючи потік завантаження.
+ */
+public class ProgressMeter {
+    /** Вага нового вікна в ковзному середньому швидкості. */
+    private static final double EWMA_ALPHA = 0.3;
+
+    public interface Listener { void onSample(ProgressMeter meter); }
+
+    private final int taskId;
+    private final long intervalNs;
+    private final long stepBytes;
+    private final Listener listener;
+    private volatile long position;
+    private final AtomicBoolean sampling = new AtomicBoolean();
+    private volatile long total;
+
+    // стан вибірки; пишеться лише потоком, що тримає sampling
+    private volatile long sampleNs;
+    private volatile long sampleBytes;
+    private volatile double rate;
+    private volatile double avgRate;
+
+    public ProgressMeter(int taskId, long startBytes, long total,
+                         long intervalMs, long stepBytes, Listener listener) {
+        this.taskId = taskId;
+        this.intervalNs = Math.max(1, intervalMs) * 1_000_000L;
+        this.stepBytes = Math.max(1, stepBytes);
+        this.listener = listener;
+        this.position = startBytes;
+        this.total = total;
+        this.sampleNs = System.nanoTime();
+        this.sampleBytes = startBytes;
+    }
+
+    /**
+     * Викликається після кожного запису. Повертає true, якщо саме цей виклик
+     * зробив вибірку і сповістив слухача.
+     */
+    public boolean update(long bytes, long total) {
+        position = bytes;
+        if (total != this.total) this.total = total;
+        long now = System.nanoTime();
+        if (now - sampleNs < intervalNs && bytes - sampleBytes < stepBytes) return false;
+        return sample(now);
+    }
+
+    /** Примусова вибірка, напр. перед паузою чи завершенням. */
+    public void flush() {
+        while (!sample(System.nanoTime())) Thread.onSpinWait(); // інша вибірка коротка — чекаємо її
+    }
+
+    private boolean sample(long now) {
+        if (!sampling.compareAndSet(false, true)) return false;
+        try {
+            long pos = position;
+            long dt = now - sampleNs;
+            if (dt > 0) {
+                double r = Math.max(0, pos - sampleBytes) * 1_000_000_000.0 / dt;
+                rate = r;
+                avgRate = (avgRate == 0) ? r : EWMA_ALPHA * r + (1 - EWMA_ALPHA) * avgRate;
+            }
+            sampleNs = now;
+            sampleBytes = pos;
+            if (listener != null) listener.onSample(this);
+            return true;
+        } finally {
+            sampling.set(false);
+        }
+    }
+
+    public int taskId() { return taskId; }
+
+    /** Крок вибірки за часом, нс; за ним же журналюють свій прогрес сегменти задачі. */
+    long intervalNs() { return intervalNs; }
+
+    /** Крок вибірки за байтами. */
+    long stepBytes() { return stepBytes; }
+
+    public long position() { return position; }
+
+    public long total() { return total; }
+
+    /** Швидкість за останнє вікно вибірки, байт/с. Якщо вибірок давно не було — рахується по відкритому вікну. */
+    public double rate() {
+        long dt = System.nanoTime() - sampleNs;
+        if (dt > 2 * intervalNs) return (position - sampleBytes) * 1_000_000_000.0 / dt;
+        return rate;
+    }
+
+    /** Ковзне середнє швидкості, байт/с. */
+    public double averageRate() { return avgRate; }
+
+    /** Орієнтовний час до завершення в секундах; -1, якщо розмір чи швидкість невідомі. */
+    public long etaSeconds() {
+        long t = total;
+        double r = avgRate;
+        if (t <= 0 || r <= 0) return -1;
+        return (long) Math.ceil(Math.max(0, t - position) / r);
+    }
+}
@@ -0,0 +1,180 @@
+package dm.core;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * Звірка незавершених задач з диском після запуску (DownloadService.start()). Після збою задачі
+ * лишаються RUNNING, а .part могли видалити чи обрізати.
+ *
+ * Межа того, що є на диску, — сам збережений прогрес: його пише лише ProgressJournal, і за
+ * PERIODIC/ON_PAUSE — тільки після force файлу, тож lastByte, done сегментів і стан контрольної
+ * суми не випереджають синхронізованих байтів. Розмір файлу тут нічого не доводить: .part
+ * виділяється на повну довжину одразу (preallocate) і обрізається лише після завершення.
+ * Тому stat перевіряє тільки, чи файл є і чи не коротший за записане. За Durability.NONE
+ * прогрес пишеться без fsync і після збою живлення може випереджати диск — це умова режиму.
+ *
+ * Задачі QUEUED, PAUSED і RUNNING беруться з TaskTable порціями по CHUNK; на кожну порцію —
+ * один запит по діапазону id за сегментами і станами контрольних сум, а файли перевіряються
+ * паралельно (по одному stat на задачу). Виправлення пишуться одною транзакцією на порцію,
+ * RUNNING стає QUEUED. У requeue задачі йдуть лише після всіх проходів: інакше вже запущена
+ * задача стала б RUNNING і прохід по RUNNING прийняв би її за перервану.
+ */
+public final class Recovery {
+    private static final int CHUNK = 8192;
+
+    /**
+     * Підсумок звірки. interrupted — задачі, що лишились RUNNING; fixed — прогрес зменшено до того,
+     * що є на диску; reset — файлу немає, з нуля; requeued — поставлені в чергу.
+     */
+    public static final class Result {
+        public final int checked;
+        public final int interrupted;
+        public final int fixed;
+        public final int reset;
+        public final int requeued;
+        public final long millis;
+        Result(int checked, int interrupted, int fixed, int reset, int requeued, long millis) {
+            this.checked = checked; this.interrupted = interrupted; this.fixed = fixed;
+            this.reset = reset; this.requeued = requeued; this.millis = millis;
+        }
+    }
+
+    private final TaskRepository repo;
+    private final TaskTable tasks;
+    private final int parallelism;
+
+    /** parallelism — скільки потоків одночасно перевіряють файли (stat блокує, тож можна більше за ядра). */
+    public Recovery(TaskRepository repo, TaskTable tasks, int parallelism) {
+        this.repo = repo;
+        this.tasks = tasks;
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    public Recovery(TaskRepository repo, TaskTable tasks) {
+        this(repo, tasks, Math.max(4, 2 * Runtime.getRuntime().availableProcessors()));
+    }
+
+    /** requeue отримує задачі, які треба поставити в чергу, — уже виправленими. */
+    public Result run(Consumer<DownloadTask> requeue) throws Exception {
+        long t0 = System.nanoTime();
+        AtomicIntegerArray n = new AtomicIntegerArray(5); // checked, interrupted, fixed, reset, requeued
+        List<Integer> queued = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread th = new Thread(r, "recovery");
+            th.setDaemon(true);
+            return th;
+        });
+        try {
+            // RUNNING останнім: виправлені стають QUEUED і не мають потрапити в прохід по QUEUED удруге
+            for (DownloadTask.Status st : new DownloadTask.Status[]{
+                    DownloadTask.Status.QUEUED, DownloadTask.Status.PAUSED, DownloadTask.Status.RUNNING }) {
+                TaskQuery q = new TaskQuery().status(st);
+                int after = 0;
+                List<DownloadTask> page;
+                while (!(page = tasks.listAfter(after, q, CHUNK)).isEmpty()) {
+                    after = page.get(page.size() - 1).id;
+                    chunk(page, workers, n, queued);
+                }
+            }
+        } finally {
+            workers.shutdownNow();
+        }
+        for (int id : queued) {
+            DownloadTask fresh = tasks.get(id);
+            if (fresh != null && fresh.status == DownloadTask.Status.QUEUED) {
+                requeue.accept(fresh);
+                n.incrementAndGet(4);
+            }
+        }
+        return new Result(n.get(0), n.get(1), n.get(2), n.get(3), n.get(4), (System.nanoTime() - t0) / 1_000_000);
+    }
+
+    private void chunk(List<DownloadTask> page, ExecutorService workers, AtomicIntegerArray n, List<Integer> queued)
+            throws Exception {
+        int from = page.get(0).id, to = page.get(page.size() - 1).id;
+        Map<Integer, List<Segment>> segments = repo.listSegments(from, to);
+        Map<Integer, Long> digests = repo.digestPositions(from, to);
+
+        int slice = (page.size() + parallelism - 1) / parallelism;
+        List<Future<List<TaskRepository.Repair>>> parts = new ArrayList<>();
+        for (int i = 0; i < page.size(); i += slice) {
+            List<DownloadTask> part = page.subList(i, Math.min(page.size(), i + slice));
+            parts.add(workers.submit(() -> {
+                List<TaskRepository.Repair> out = new ArrayList<>();
+                for (DownloadTask t : part) {
+                    TaskRepository.Repair r = check(t, segments.get(t.id), digests.get(t.id));
+                    if (r == null) continue;
+                    out.add(r);
+                    if (r.reset) n.incrementAndGet(3);
+                    else if (r.lastByte != t.lastByte || r.segments != null || r.dropDigest) n.incrementAndGet(2);
+                }
+                return out;
+            }));
+        }
+        List<TaskRepository.Repair> repairs = new ArrayList<>();
+        for (Future<List<TaskRepository.Repair>> f : parts) repairs.addAll(f.get());
+        repo.repairBatch(repairs);
+
+        n.addAndGet(0, page.size());
+        for (DownloadTask t : page) {
+            if (t.status == DownloadTask.Status.RUNNING) n.incrementAndGet(1);
+            if (t.status != DownloadTask.Status.PAUSED) queued.add(t.id);
+        }
+    }
+
+    /**
+     * Що виправити в задачі, або null, якщо запис і диск узгоджені. Прогрес береться з журналу
+     * (для сегментованих — сума done, кожен не більший за свій сегмент), а файл лише обмежує його,
+     * якщо його видалили чи обрізали. Стан суми, що пішов далі за прогрес, скидається.
+     */
+    static TaskRepository.Repair check(DownloadTask t, List<Segment> segments, Long digestPos) throws IOException {
+        DownloadTask.Status status = t.status == DownloadTask.Status.RUNNING ? DownloadTask.Status.QUEUED : t.status;
+        Path part = DownloadService.partFile(t.target);
+        long size = size(part);
+        // стара версія писала просто в target; run() підхопить його як .part
+        if (size < 0 && (t.lastByte > 0 || t.totalBytes > 0)) size = size(t.target);
+
+        if (size < 0) {
+            boolean nothing = t.lastByte == 0 && segments == null && digestPos == null;
+            if (nothing && status == t.status) return null;
+            return new TaskRepository.Repair(t.id, status, 0, !nothing, segments, digestPos != null);
+        }
+        long lastByte = t.lastByte;
+        List<Segment> changed = null;
+        if (segments != null) {
+            long sum = 0;
+            for (Segment s : segments) {
+                // записане в журнал, але не далі кінця сегмента й не далі кінця (обрізаного) файлу
+                long onDisk = Math.max(0, Math.min(s.length(), size - s.start));
+                if (s.done > onDisk) {
+                    s.done = onDisk;
+                    if (changed == null) changed = new ArrayList<>();
+                    changed.add(s);
+                }
+                sum += s.done;
+            }
+            lastByte = sum;
+        } else {
+            lastByte = Math.min(lastByte, size);
+        }
+        boolean dropDigest = digestPos != null && digestPos > lastByte;
+        if (lastByte == t.lastByte && changed == null && !dropDigest && status == t.status) return null;
+        return new TaskRepository.Repair(t.id, status, lastByte, false, changed, dropDigest);
+    }
+
+    /** Розмір файлу одним stat; -1, якщо файлу немає (без винятку: більшості .part після збою якраз немає). */
+    private static long size(Path p) throws IOException {
+        BasicFileAttributes a = p.getFileSystem().provider().readAttributesIfExists(p, BasicFileAttributes.class);
+        return a == null ? -1 : a.size();
+    }
+}
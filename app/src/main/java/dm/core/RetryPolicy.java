@@ -0,0 +1,115 @@
+package dm.core;
+
+import dm.net.RangeHttpClient;
+
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Коли і через скільки повторювати задачу, що впала. Повторюються лише тимчасові збої:
+ * мережеві IOException, 5xx, 408 і 429; інші 4xx, локальні помилки файлової системи та
+ * решта винятків — остаточні. Затримка — експоненційна з повним jitter (випадкова від 0
+ * до BASE_MS * 2^(attempt-1), не більше MAX_DELAY_MS), а якщо сервер надіслав Retry-After —
+ * не менша за нього. Щоб хост, який лежить, не засипали повторами сотні задач одразу,
+ * на кожен хост є бюджет: не більше budgetPerMinute повторів за хвилину (з запасом на сплеск).
+ * Коли бюджет витрачено, повтор не скасовується, а відкладається до моменту, коли відро
+ * поповниться: задачі стають у чергу за часом, а не падають в ERROR.
+ */
+public class RetryPolicy {
+    private static final long BASE_MS = 1000;
+    private static final long MAX_DELAY_MS = 5 * 60_000L;
+    /** Довше, ніж стільки, навіть за Retry-After не чекаємо: задача піде в ERROR і чекатиме людину. */
+    private static final long MAX_RETRY_AFTER_MS = 60 * 60_000L;
+
+    private volatile int maxAttempts = 8;
+    private volatile int budgetPerMinute = 20;
+    private final Map<String, Budget> budgets = new ConcurrentHashMap<>();
+
+    /** Відро повторів одного хоста: поповнюється рівномірно, ємність — хвилина бюджету; може піти в борг. */
+    private static final class Budget {
+        private final ReentrantLock lock = new ReentrantLock();
+        private double tokens;
+        private long lastNs;
+        private boolean started;
+
+        /** Бере один повтор і повертає, через скільки мс його черга (0 — одразу). */
+        long take(int perMinute) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (!started) {
+                    tokens = perMinute;
+                    started = true;
+                } else {
+                    tokens = Math.min(perMinute, tokens + (now - lastNs) / 60e9 * perMinute);
+                }
+                lastNs = now;
+                tokens -= 1;
+                return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 60_000 / perMinute);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Повертає взятий, але не використаний повтор. */
+        void giveBack() {
+            lock.lock();
+            try {
+                tokens += 1;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Скільки спроб поспіль без просування (включно з першою); 1 — без повторів. */
+    public void setMaxAttempts(int n) { maxAttempts = Math.max(1, n); }
+
+    public int getMaxAttempts() { return maxAttempts; }
+
+    /** 0 — повторів немає зовсім. */
+    public void setBudgetPerMinute(int n) { budgetPerMinute = Math.max(0, n); }
+
+    public int getBudgetPerMinute() { return budgetPerMinute; }
+
+    public static boolean isRetryable(Throwable e) {
+        if (e instanceof RangeHttpClient.HttpStatusException h) {
+            return h.status >= 500 || h.status == 408 || h.status == 429;
+        }
+        if (e instanceof FileSystemException) return false; // шлях, права, зайнятий файл — не мережа
+        return e instanceof IOException;
+    }
+
+    /**
+     * Номер спроби, що впала, для ліміту maxAttempts: спроба, що просунула прогрес, рахується
+     * як перша — повільне, але живе з'єднання докачає.
+     */
+    public static int countedAttempt(int attempt, long fromByte, long savedByte) {
+        return savedByte > fromByte ? 1 : attempt;
+    }
+
+    /**
+     * Затримка перед спробою attempt+1 або -1, якщо повторювати не варто: помилка остаточна,
+     * спроби вичерпано, бюджет нульовий або чекати довелося б довше за MAX_RETRY_AFTER_MS
+     * (через Retry-After чи чергу за бюджетом хоста).
+     */
+    public long nextDelayMs(Throwable e, int attempt, String host) {
+        int perMinute = budgetPerMinute;
+        if (!isRetryable(e) || attempt >= maxAttempts || perMinute == 0) return -1;
+        long retryAfter = e instanceof RangeHttpClient.HttpStatusException h ? h.retryAfterMs : -1;
+        if (retryAfter > MAX_RETRY_AFTER_MS) return -1;
+        Budget budget = budgets.computeIfAbsent(host, k -> new Budget());
+        long queued = budget.take(perMinute);
+        if (queued > MAX_RETRY_AFTER_MS) {
+            budget.giveBack();
+            return -1;
+        }
+        long cap = Math.min(MAX_DELAY_MS, BASE_MS << Math.min(20, attempt - 1));
+        long delay = ThreadLocalRandom.current().nextLong(cap + 1);
+        return Math.max(delay, Math.max(retryAfter, queued));
+    }
+}
@@ -0,0 +1,40 @@
+package dm.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Один байтовий діапазон сегментованого завантаження: [start, end] включно. */
+public class Segment {
+    public final int index;
+    public final long start;
+    public final long end;
+    public volatile long done; // скільки байтів від start уже записано
+
+    public Segment(int index, long start, long end, long done) {
+        this.index = index;
+        this.start = start;
+        this.end = end;
+        this.done = done;
+    }
+
+    public long length() { return end - start + 1; }
+
+    public long position() { return start + done; }
+
+    public boolean isComplete() { return done >= length(); }
+
+    /** Ділить файл довжини total на не більше ніж n сегментів, кожен не менший за minSize. */
+    public static List<Segment> split(long total, int n, long minSize) {
+        List<Segment> out = new ArrayList<>();
+        if (total <= 0) return out;
+        int count = (int) Math.max(1, Math.min(n, total / Math.max(1, minSize)));
+        long chunk = total / count;
+        long start = 0;
+        for (int i = 0; i < count; i++) {
+            long end = (i == count - 1) ? total - 1 : start + chunk - 1;
+            out.add(new Segment(i, start, end, 0));
+            start = end + 1;
+        }
+        return out;
+    }
+}
@@ -0,0 +1,108 @@
+package dm.core;
+
+import dm.net.RangeHttpClient;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Паралельне завантаження одного файлу кількома Range-сегментами.
+ * Кожен сегмент пише у свою частину попередньо створеного файлу,
+ * а його прогрес зберігається окремо, тож після паузи докачуються лише незавершені сегменти.
+ */
+class SegmentedDownload {
+    private final RangeHttpClient http;
+    private final ProgressJournal journal;
+    private final ExecutorService executor;
+
+    SegmentedDownload(RangeHttpClient http, ProgressJournal journal, ExecutorService executor) {
+        this.http = http;
+        this.journal = journal;
+        this.executor = executor;
+    }
+
+    /**
+     * Повертає сумарну кількість завантажених байтів (дорівнює розміру файлу, якщо все докачано).
+     * file — вже створений файл повної довжини (.part задачі).
+     * Усі сегменти йдуть з If-Range по validators; якщо файл на сервері змінився — RemoteChangedException.
+     */
+    long run(DownloadTask t, Path file, List<Segment> segments, RangeHttpClient.InterruptFlag flag,
+             BandwidthPolicy policy, ProgressMeter meter, RangeHttpClient.Validators validators) throws Exception {
+        String host = DownloadScheduler.hostOf(t.url);
+        long total = segments.get(segments.size() - 1).end + 1;
+        AtomicLong done = new AtomicLong();
+        for (Segment s : segments) done.addAndGet(s.done);
+
+        // кожен сегмент журналює себе сам, з кроком задачі, поділеним між сегментами: разом вони пишуть
+        // приблизно стільки ж, скільки один потік, і жоден не чекає на вибірку, яку спричинив інший
+        int active = 0;
+        for (Segment s : segments) if (!s.isComplete()) active++;
+        long step = Math.max(1, meter.stepBytes() / Math.max(1, active));
+
+        List<Future<?>> running = new ArrayList<>();
+        for (Segment s : segments) {
+            if (s.isComplete()) continue;
+            long base = s.done;
+            Mark mark = new Mark(base);
+            running.add(executor.submit(() -> {
+                try (BandwidthPolicy.Transfer throttle = policy.open(t.id, host, flag)) {
+                    http.downloadRange(t.url, file, s.position(), s.end,
+                            (bytes, len) -> onSegmentProgress(t.id, s, base + bytes, done, total, meter, mark, step),
+                            flag, throttle, validators);
+                }
+                return null;
+            }));
+        }
+
+        Exception failure = null;
+        for (Future<?> f : running) {
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = (e.getCause() instanceof Exception ex) ? ex : e;
+                    flag.stop(); // решта сегментів теж зупиняється, задача піде в ERROR
+                }
+            }
+        }
+        // хвости після останнього кроку кожного сегмента
+        for (Segment s : segments) journal.recordSegment(t.id, s.index, s.done);
+        if (failure != null) throw failure;
+        if (!flag.isSet()) {
+            // без паузи кожен сегмент мав докачатись; інакше в .part лишились нулі на місці даних
+            for (Segment s : segments) {
+                if (!s.isComplete()) {
+                    throw new IOException("Segment " + s.index + " incomplete: " + s.done + " of " + s.length() + " bytes");
+                }
+            }
+        }
+        return done.get();
+    }
+
+    /** Що сегмент востаннє записав у журнал; змінює лише потік цього сегмента. */
+    private static final class Mark {
+        long bytes;
+        long ns = System.nanoTime();
+        Mark(long bytes) { this.bytes = bytes; }
+    }
+
+    private void onSegmentProgress(int taskId, Segment s, long segDone, AtomicLong done, long total,
+                                   ProgressMeter meter, Mark mark, long step) {
+        long delta = segDone - s.done;
+        s.done = segDone;
+        long all = done.addAndGet(delta);
+        long now = System.nanoTime();
+        if (segDone - mark.bytes >= step || now - mark.ns >= meter.intervalNs()) {
+            journal.recordSegment(taskId, s.index, segDone);
+            mark.bytes = segDone;
+            mark.ns = now;
+        }
+        meter.update(all, total); // вибірка задачі: швидкість, події, lastByte
+    }
+}
@@ -1,16 +1,33 @@
 package dm.core;
 
 public class TaskIterable implements Iterable<DownloadTask> {
-    private final TaskRepository repo;
+    private final TaskSource source;
     private final int batchSize;
+    private final TaskQuery query;
 
-    public TaskIterable(TaskRepository repo, int batchSize) {
-        this.repo = repo;
+    public TaskIterable(TaskSource source, int batchSize) {
+        this(source, batchSize, new TaskQuery());
+    }
+
+    /** Лише задачі з даним статусом — фільтр виконує джерело, а не FilteredTaskIterable. */
+    public TaskIterable(TaskSource source, int batchSize, DownloadTask.Status status) {
+        this(source, batchSize, new TaskQuery().status(status));
+    }
+
+    public TaskIterable(TaskSource source, int batchSize, TaskQuery query) {
+        this.source = source;
         this.batchSize = Math.max(1, batchSize);
+        this.query = query;
+    }
+
+    /** Обхід за запитом: поля — у джерелі (база чи TaskTable), query.where (якщо є) — поверх через FilteredTaskIterable. */
+    public static Iterable<DownloadTask> of(TaskSource source, int batchSize, TaskQuery query) {
+        TaskIterable base = new TaskIterable(source, batchSize, query);
+        return query.where == null ? base : new FilteredTaskIterable(base, query.where);
     }
 
     @Override
     public java.util.Iterator<DownloadTask> iterator() {
-        return new TaskIterator(repo, batchSize);
+        return new TaskIterator(source, batchSize, query);
     }
 }
@@ -1,20 +1,36 @@
 package dm.core;
 
 import java.sql.SQLException;
-import java.util.ArrayList;
+import java.util.ArrayDeque;
 import java.util.Iterator;
 import java.util.List;
 
+/**
+ * Обходить задачі порціями по batchSize, продовжуючи з останнього прочитаного id.
+ * Задачі, додані під час обходу, потрапляють у кінець, а вже видані не повторюються.
+ */
 public class TaskIterator implements Iterator<DownloadTask> {
-    private final TaskRepository repo;
+    private final TaskSource source;
     private final int batchSize;
-    private int cursor = 0;
-    private final List<DownloadTask> buffer = new ArrayList<>();
+    private final TaskQuery query;
+    private int lastId = 0;
+    private final ArrayDeque<DownloadTask> buffer = new ArrayDeque<>();
     private boolean noMoreData = false;
 
-    public TaskIterator(TaskRepository repo, int batchSize) {
-        this.repo = repo;
+    public TaskIterator(TaskSource source, int batchSize) {
+        this(source, batchSize, new TaskQuery());
+    }
+
+    /** status == null — усі задачі. */
+    public TaskIterator(TaskSource source, int batchSize, DownloadTask.Status status) {
+        this(source, batchSize, new TaskQuery().status(status));
+    }
+
+    /** Лише поля запиту; query.where застосовує FilteredTaskIterable. */
+    public TaskIterator(TaskSource source, int batchSize, TaskQuery query) {
+        this.source = source;
         this.batchSize = batchSize;
+        this.query = query;
     }
 
     @Override
@@ -28,18 +44,16 @@ public class TaskIterator implements Iterator<DownloadTask> {
     @Override
     public DownloadTask next() {
         if (!hasNext()) throw new java.util.NoSuchElementException();
-        return buffer.remove(0);
+        return buffer.poll();
     }
 
     private void loadBatch() {
         try {
-            List<DownloadTask> chunk = repo.listRange(cursor, batchSize);
-            if (chunk.isEmpty()) {
-                noMoreData = true;
-                return;
-            }
+            List<DownloadTask> chunk = source.listAfter(lastId, query, batchSize);
+            if (chunk.size() < batchSize) noMoreData = true;
+            if (chunk.isEmpty()) return;
             buffer.addAll(chunk);
-            cursor += chunk.size();
+            lastId = chunk.get(chunk.size() - 1).id;
         } catch (SQLException e) {
             noMoreData = true;
             throw new RuntimeException("DB error while iterating tasks", e);
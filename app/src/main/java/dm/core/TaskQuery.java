@@ -0,0 +1,62 @@
+package dm.core;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Умови відбору задач. Усе, що тут можна задати полями, перетворюється на WHERE
+ * і рахується в SQLite по індексах; довільний Predicate (where) лишається на Java-бік
+ * і застосовується через FilteredTaskIterable до вже відібраних рядків.
+ */
+public class TaskQuery {
+    public DownloadTask.Status status;
+    public String host;
+    public String urlPrefix;
+    public Path targetDir;
+    public long minSize = -1;
+    public long maxSize = -1;
+    /** Межі часу в мілісекундах epoch; 0 — без межі. */
+    public long createdFrom, createdTo;
+    public long updatedFrom, updatedTo;
+    public Predicate<DownloadTask> where;
+
+    public TaskQuery status(DownloadTask.Status s) { this.status = s; return this; }
+    public TaskQuery host(String h) { this.host = h == null ? null : h.toLowerCase(Locale.ROOT); return this; }
+    public TaskQuery urlPrefix(String p) { this.urlPrefix = p; return this; }
+    public TaskQuery targetDir(Path dir) { this.targetDir = dir; return this; }
+    public TaskQuery size(long min, long max) { this.minSize = min; this.maxSize = max; return this; }
+    public TaskQuery created(long from, long to) { this.createdFrom = from; this.createdTo = to; return this; }
+    public TaskQuery updated(long from, long to) { this.updatedFrom = from; this.updatedTo = to; return this; }
+    public TaskQuery where(Predicate<DownloadTask> p) { this.where = p; return this; }
+
+    /** Частина WHERE без ключового слова і id-курсора; пусто, якщо умов немає. */
+    String sql(List<Object> args) {
+        List<String> c = new ArrayList<>();
+        if (status != null) { c.add("status = ?"); args.add(status.name()); }
+        if (host != null) { c.add("host = ?"); args.add(host); }
+        if (urlPrefix != null && !urlPrefix.isEmpty()) prefix(c, args, "url", urlPrefix);
+        if (targetDir != null) {
+            String dir = targetDir.toString();
+            prefix(c, args, "target", dir.endsWith(File.separator) ? dir : dir + File.separator);
+        }
+        if (minSize >= 0) { c.add("totalBytes >= ?"); args.add(minSize); }
+        if (maxSize >= 0) { c.add("totalBytes >= 0 AND totalBytes <= ?"); args.add(maxSize); }
+        if (createdFrom > 0) { c.add("createdAt >= ?"); args.add(createdFrom); }
+        if (createdTo > 0) { c.add("createdAt < ?"); args.add(createdTo); }
+        if (updatedFrom > 0) { c.add("updatedAt >= ?"); args.add(updatedFrom); }
+        if (updatedTo > 0) { c.add("updatedAt < ?"); args.add(updatedTo); }
+        return String.join(" AND ", c);
+    }
+
+    /** Префікс як діапазон [p, p з наступним останнім символом) — такий вираз SQLite бере з індексу, LIKE — ні. */
+    private static void prefix(List<String> c, List<Object> args, String column, String p) {
+        char last = p.charAt(p.length() - 1);
+        c.add(column + " >= ? AND " + column + " < ?");
+        args.add(p);
+        args.add(p.substring(0, p.length() - 1) + (char) (last + 1));
+    }
+}
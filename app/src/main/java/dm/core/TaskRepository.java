@@ -1,21 +1,129 @@
 package dm.core;
 
+import dm.digest.StreamDigest;
+import dm.metrics.Histogram;
+
 import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+public class TaskRepository implements TaskSource, AutoCloseable {
+    private static final int READERS = 4;
+
+    private final Database db;
+    private volatile TaskTable table;
+
+    /**
+     * Прогрес задачі (segment = -1) або окремого сегмента для пакетного запису.
+     * digestState — стан контрольної суми рівно на bytes байтах, або null.
+     */
+    public static final class ProgressUpdate {
+        public final int taskId;
+        public final int segment;
+        public final long bytes;
+        public final long total;
+        public final byte[] digestState;
+        public ProgressUpdate(int taskId, int segment, long bytes, long total) {
+            this(taskId, segment, bytes, total, null);
+        }
+        public ProgressUpdate(int taskId, int segment, long bytes, long total, byte[] digestState) {
+            this.taskId = taskId; this.segment = segment; this.bytes = bytes; this.total = total;
+            this.digestState = digestState;
+        }
+    }
+
+    /**
+     * Одна спроба завантаження задачі для діагностики. fromByte/toByte — збережений прогрес
+     * на початку і в кінці спроби; attempt — номер спроби поспіль без просування (з нього
+     * рахується ліміт повторів); retryInMs — через скільки запланований повтор, -1 — не буде.
+     */
+    public static final class Attempt {
+        public enum Outcome { COMPLETED, PAUSED, RETRY, FAILED, RESTARTED }
+
+        public int taskId;
+        public int attempt;
+        public long startedAt;
+        public long endedAt;
+        public long fromByte;
+        public long toByte;
+        public Outcome outcome;
+        public String error;
+        public long retryInMs = -1;
+
+        public Attempt(int taskId, int attempt, long startedAt, long fromByte) {
+            this.taskId = taskId; this.attempt = attempt; this.startedAt = startedAt; this.fromByte = fromByte;
+        }
+    }
+
+    /** Скільки останніх спроб на задачу зберігати: старіші видаляються разом із записом нової. */
+    private static final int ATTEMPTS_KEPT = 50;
+
+    /**
+     * Виправлення задачі після збою (див. Recovery). reset — забути все завантажене, як resetProgress
+     * (segments != null — у задачі є сегменти, їх видалити); інакше status і lastByte, а segments
+     * (якщо не null) — нові doneBytes сегментів. dropDigest — видалити стан контрольної суми.
+     */
+    public static final class Repair {
+        public final int taskId;
+        public final DownloadTask.Status status;
+        public final long lastByte;
+        public final boolean reset;
+        public final List<Segment> segments;
+        public final boolean dropDigest;
+        public Repair(int taskId, DownloadTask.Status status, long lastByte, boolean reset,
+                      List<Segment> segments, boolean dropDigest) {
+            this.taskId = taskId; this.status = status; this.lastByte = lastByte; this.reset = reset;
+            this.segments = segments; this.dropDigest = dropDigest;
+        }
+    }
 
-public class TaskRepository implements AutoCloseable {
-    private final Connection con;
+    /**
+     * Запис кешу завантажень: file — копія (або жорстке посилання) вмісту url у версії etag/lastModified.
+     * digest — "алгоритм:hex", якщо сума відома; size і mtime — щоб помітити, що файл змінили ззовні.
+     * checkedAt — коли версію востаннє звіряли з сервером.
+     */
+    public static final class CacheEntry {
+        public int id;
+        public String url;
+        public String etag;
+        public String lastModified;
+        public String digest;
+        public String file;
+        public long size;
+        public long mtime;
+        public long lastUsed;
+        public long checkedAt;
+        public int hits;
+    }
+
+    /** Рядок маніфесту для пакетного імпорту. size = -1 і checksum = null — невідомі. */
+    public static final class NewTask {
+        public final String url;
+        public final String target;
+        public final long size;
+        public final String checksum;
+        public final int priority;
+        public NewTask(String url, String target, long size, String checksum, int priority) {
+            this.url = url; this.target = target; this.size = size; this.checksum = checksum; this.priority = priority;
+        }
+    }
 
     public TaskRepository(Path sqlitePath) throws Exception {
-        Class.forName("org.sqlite.JDBC");
-        String url = "jdbc:sqlite:" + sqlitePath.toAbsolutePath();
-        this.con = DriverManager.getConnection(url);
-        initSchema();
+        this(sqlitePath, READERS);
+    }
+
+    /** readers — скільки з'єднань лише для читання (list, пошук) тримати відкритими. */
+    public TaskRepository(Path sqlitePath, int readers) throws Exception {
+        this.db = new Database(sqlitePath, readers);
+        db.write(h -> initSchema(h.con));
+        db.openReaders();
     }
 
-    private void initSchema() throws SQLException {
+    private void initSchema(Connection con) throws SQLException {
         try (Statement st = con.createStatement()) {
             st.execute("""
                 CREATE TABLE IF NOT EXISTS tasks(
@@ -24,91 +132,794 @@ public class TaskRepository implements AutoCloseable {
                   target TEXT NOT NULL,
                   status TEXT NOT NULL,
                   lastByte INTEGER NOT NULL DEFAULT 0,
-                  totalBytes INTEGER NOT NULL DEFAULT -1
+                  totalBytes INTEGER NOT NULL DEFAULT -1,
+                  priority INTEGER NOT NULL DEFAULT 0,
+                  host TEXT,
+                  createdAt INTEGER NOT NULL DEFAULT 0,
+                  updatedAt INTEGER NOT NULL DEFAULT 0,
+                  checksum TEXT,
+                  digest TEXT,
+                  verified INTEGER,
+                  etag TEXT,
+                  lastModified TEXT
                 );
                 """);
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS segments(
+                  taskId INTEGER NOT NULL,
+                  idx INTEGER NOT NULL,
+                  startByte INTEGER NOT NULL,
+                  endByte INTEGER NOT NULL,
+                  doneBytes INTEGER NOT NULL DEFAULT 0,
+                  PRIMARY KEY(taskId, idx)
+                );
+                """);
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS attempts(
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  taskId INTEGER NOT NULL,
+                  attempt INTEGER NOT NULL,
+                  startedAt INTEGER NOT NULL,
+                  endedAt INTEGER NOT NULL,
+                  fromByte INTEGER NOT NULL,
+                  toByte INTEGER NOT NULL,
+                  outcome TEXT NOT NULL,
+                  error TEXT,
+                  retryInMs INTEGER NOT NULL DEFAULT -1
+                );
+                """);
+            st.execute("CREATE INDEX IF NOT EXISTS idx_attempts_task ON attempts(taskId, id)");
+            // проміжний стан контрольної суми; окремо від tasks, щоб list не тягнув BLOB
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS digests(
+                  taskId INTEGER PRIMARY KEY,
+                  state BLOB NOT NULL
+                );
+                """);
+            // вміст завершених завантажень для повторних URL (див. DownloadCache)
+            st.execute("""
+                CREATE TABLE IF NOT EXISTS cache(
+                  id INTEGER PRIMARY KEY AUTOINCREMENT,
+                  url TEXT NOT NULL,
+                  etag TEXT,
+                  lastModified TEXT,
+                  digest TEXT,
+                  file TEXT NOT NULL,
+                  size INTEGER NOT NULL,
+                  mtime INTEGER NOT NULL,
+                  lastUsed INTEGER NOT NULL,
+                  checkedAt INTEGER NOT NULL,
+                  hits INTEGER NOT NULL DEFAULT 0
+                );
+                """);
+            st.execute("CREATE INDEX IF NOT EXISTS idx_cache_url ON cache(url)");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_cache_digest ON cache(digest)");
+        }
+        ensureColumn(con, "tasks", "priority", "INTEGER NOT NULL DEFAULT 0");
+        ensureColumn(con, "tasks", "host", "TEXT");
+        ensureColumn(con, "tasks", "createdAt", "INTEGER NOT NULL DEFAULT 0");
+        ensureColumn(con, "tasks", "updatedAt", "INTEGER NOT NULL DEFAULT 0");
+        ensureColumn(con, "tasks", "checksum", "TEXT");
+        ensureColumn(con, "tasks", "digest", "TEXT");
+        ensureColumn(con, "tasks", "verified", "INTEGER");
+        ensureColumn(con, "tasks", "etag", "TEXT");
+        ensureColumn(con, "tasks", "lastModified", "TEXT");
+        try (Statement st = con.createStatement()) {
+            // list <status> іде по цьому індексу і далі по id, без сканування всієї таблиці
+            st.execute("CREATE INDEX IF NOT EXISTS idx_tasks_status ON tasks(status, id)");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_tasks_host ON tasks(host, id)");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_tasks_updated ON tasks(updatedAt)");
+            // dir= і created= — діапазони (див. TaskQuery.prefix): вузький SQLite бере з індексу,
+            // широкий і далі проходить по id, як без них
+            st.execute("CREATE INDEX IF NOT EXISTS idx_tasks_target ON tasks(target)");
+            st.execute("CREATE INDEX IF NOT EXISTS idx_tasks_created ON tasks(createdAt)");
+        }
+        fillHosts(con);
+    }
+
+    /** Задачі зі старої бази ще без host: рахуємо його з url один раз. */
+    private static void fillHosts(Connection con) throws SQLException {
+        List<Object[]> todo = new ArrayList<>();
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, url FROM tasks WHERE host IS NULL")) {
+            while (rs.next()) todo.add(new Object[]{ rs.getInt(1), rs.getString(2) });
+        }
+        if (todo.isEmpty()) return;
+        boolean auto = con.getAutoCommit();
+        con.setAutoCommit(false);
+        try (PreparedStatement ps = con.prepareStatement("UPDATE tasks SET host=? WHERE id=?")) {
+            for (Object[] r : todo) {
+                ps.setString(1, DownloadScheduler.hostOf((String) r[1]));
+                ps.setInt(2, (Integer) r[0]);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            con.commit();
+        } catch (SQLException e) {
+            con.rollback();
+            throw e;
+        } finally {
+            con.setAutoCommit(auto);
+        }
+    }
+
+    /** Додає колонку в таблицю зі старої бази, де її ще немає. */
+    private static void ensureColumn(Connection con, String table, String column, String ddl) throws SQLException {
+        try (Statement st = con.createStatement();
+             ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return;
+            }
+        }
+        try (Statement st = con.createStatement()) {
+            st.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + ddl);
         }
     }
 
     public int create(String url, String target) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement(
-                "INSERT INTO tasks(url,target,status,lastByte,totalBytes) VALUES(?,?,'NEW',0,-1)",
-                Statement.RETURN_GENERATED_KEYS)) {
+        return create(url, target, 0);
+    }
+
+    public int create(String url, String target, int priority) throws SQLException {
+        return db.writeAndGet(h -> {
+            PreparedStatement ps = h.prepare(
+                    "INSERT INTO tasks(url,target,status,lastByte,totalBytes,priority,host,createdAt,updatedAt) "
+                    + "VALUES(?,?,'NEW',0,-1,?,?,?,?) RETURNING id");
+            long now = System.currentTimeMillis();
             ps.setString(1, url);
             ps.setString(2, target);
-            ps.executeUpdate();
-            try (ResultSet rs = ps.getGeneratedKeys()) {
-                if (rs.next()) return rs.getInt(1);
+            ps.setInt(3, priority);
+            ps.setString(4, DownloadScheduler.hostOf(url));
+            ps.setLong(5, now);
+            ps.setLong(6, now);
+            int id;
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) throw new SQLException("No ID generated");
+                id = rs.getInt(1);
+            }
+            TaskTable tt = table;
+            if (tt != null) {
+                DownloadTask t = new DownloadTask(id, url, Path.of(target), DownloadTask.Status.NEW, 0, -1, priority);
+                t.createdAt = now;
+                t.updatedAt = now;
+                tt.put(t, true);
+            }
+            return id;
+        });
+    }
+
+    /**
+     * Вставляє задачі одним пакетом в одній транзакції і одразу зі статусом status.
+     * id не перечитуються: під lock письменника і з AUTOINCREMENT вони йдуть підряд
+     * після поточного значення sqlite_sequence, тож задачі повертаються зібраними в пам'яті.
+     */
+    public List<DownloadTask> createBatch(List<NewTask> rows, DownloadTask.Status status) throws SQLException {
+        List<DownloadTask> out = new ArrayList<>(rows.size());
+        if (rows.isEmpty()) return out;
+        db.transaction(h -> {
+            long first = lastTaskId(h) + 1;
+            PreparedStatement ps = h.prepare(
+                    "INSERT INTO tasks(url,target,status,lastByte,totalBytes,priority,host,createdAt,updatedAt,checksum) "
+                    + "VALUES(?,?,?,0,?,?,?,?,?,?)");
+            long now = System.currentTimeMillis();
+            for (NewTask r : rows) {
+                ps.setString(1, r.url);
+                ps.setString(2, r.target);
+                ps.setString(3, status.name());
+                ps.setLong(4, r.size);
+                ps.setInt(5, r.priority);
+                ps.setString(6, DownloadScheduler.hostOf(r.url));
+                ps.setLong(7, now);
+                ps.setLong(8, now);
+                ps.setString(9, r.checksum);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            long last = lastTaskId(h);
+            if (last - first + 1 != rows.size()) {
+                throw new SQLException("Unexpected ids after batch insert: " + first + ".." + last + " for " + rows.size() + " rows");
             }
+            for (int i = 0; i < rows.size(); i++) {
+                NewTask r = rows.get(i);
+                DownloadTask t = new DownloadTask((int) (first + i), r.url, Path.of(r.target), status, 0, r.size, r.priority);
+                t.checksum = r.checksum;
+                t.createdAt = now;
+                t.updatedAt = now;
+                out.add(t);
+            }
+        }, () -> {
+            TaskTable tt = table;
+            if (tt != null) for (DownloadTask t : out) tt.put(t, true);
+        });
+        return out;
+    }
+
+    private static long lastTaskId(Database.Handle h) throws SQLException {
+        try (ResultSet rs = h.prepare("SELECT seq FROM sqlite_sequence WHERE name='tasks'").executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0;
         }
-        throw new SQLException("No ID generated");
     }
 
     public void updateProgress(int id, long bytes, long total) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement(
-                "UPDATE tasks SET lastByte=?, totalBytes=?, status='RUNNING' WHERE id=?")) {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare(
+                    "UPDATE tasks SET lastByte=?, totalBytes=?, status='RUNNING', updatedAt=? WHERE id=?");
+            long now = System.currentTimeMillis();
             ps.setLong(1, bytes);
             ps.setLong(2, total);
-            ps.setInt(3, id);
+            ps.setLong(3, now);
+            ps.setInt(4, id);
             ps.executeUpdate();
-        }
+            apply(id, r -> { r.lastByte = bytes; r.totalBytes = total; r.status = DownloadTask.Status.RUNNING; r.updatedAt = now; });
+        });
+    }
+
+    /** Записує накопичений прогрес однією транзакцією. Статус задач не змінює. */
+    public void updateProgressBatch(List<ProgressUpdate> updates) throws SQLException {
+        long[] at = new long[1];
+        db.transaction(h -> {
+            PreparedStatement task = h.prepare("UPDATE tasks SET lastByte=?, totalBytes=?, updatedAt=? WHERE id=?");
+            PreparedStatement seg = h.prepare("UPDATE segments SET doneBytes=? WHERE taskId=? AND idx=?");
+            PreparedStatement dig = h.prepare("INSERT OR REPLACE INTO digests(taskId, state) VALUES(?,?)");
+            long now = System.currentTimeMillis();
+            at[0] = now;
+            for (ProgressUpdate u : updates) {
+                if (u.segment < 0) {
+                    task.setLong(1, u.bytes);
+                    task.setLong(2, u.total);
+                    task.setLong(3, now);
+                    task.setInt(4, u.taskId);
+                    task.addBatch();
+                    if (u.digestState != null) {
+                        dig.setInt(1, u.taskId);
+                        dig.setBytes(2, u.digestState);
+                        dig.addBatch();
+                    }
+                } else {
+                    seg.setLong(1, u.bytes);
+                    seg.setInt(2, u.taskId);
+                    seg.setInt(3, u.segment);
+                    seg.addBatch();
+                }
+            }
+            task.executeBatch();
+            seg.executeBatch();
+            dig.executeBatch();
+        }, () -> {
+            for (ProgressUpdate u : updates) {
+                if (u.segment < 0) apply(u.taskId, r -> { r.lastByte = u.bytes; r.totalBytes = u.total; r.updatedAt = at[0]; });
+            }
+        });
     }
 
     public void updateStatus(int id, DownloadTask.Status st, long lastByte) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement(
-                "UPDATE tasks SET status=?, lastByte=? WHERE id=?")) {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET status=?, lastByte=?, updatedAt=? WHERE id=?");
+            long now = System.currentTimeMillis();
             ps.setString(1, st.name());
             ps.setLong(2, lastByte);
+            ps.setLong(3, now);
+            ps.setInt(4, id);
+            ps.executeUpdate();
+            apply(id, r -> { r.status = st; r.lastByte = lastByte; r.updatedAt = now; });
+        });
+    }
+
+    /**
+     * Статус st для перших count задач з ids однією транзакцією (prepared statement у пакеті).
+     * Прогрес не чіпає: у базі й так той самий, що в таблиці в пам'яті.
+     */
+    public void updateStatusBatch(int[] ids, int count, DownloadTask.Status st) throws SQLException {
+        if (count <= 0) return;
+        long now = System.currentTimeMillis();
+        db.transaction(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET status=?, updatedAt=? WHERE id=?");
+            for (int i = 0; i < count; i++) {
+                ps.setString(1, st.name());
+                ps.setLong(2, now);
+                ps.setInt(3, ids[i]);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }, () -> {
+            for (int i = 0; i < count; i++) apply(ids[i], r -> { r.status = st; r.updatedAt = now; });
+        });
+    }
+
+    public void updatePriority(int id, int priority) throws SQLException {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET priority=?, updatedAt=? WHERE id=?");
+            long now = System.currentTimeMillis();
+            ps.setInt(1, priority);
+            ps.setLong(2, now);
             ps.setInt(3, id);
             ps.executeUpdate();
-        }
+            apply(id, r -> { r.priority = priority; r.updatedAt = now; });
+        });
+    }
+
+    /** Очікувана контрольна сума "алгоритм:hex" (null — не перевіряти). Старий результат перевірки скидається. */
+    public void updateChecksum(int id, String checksum) throws SQLException {
+        long now = System.currentTimeMillis();
+        db.transaction(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET checksum=?, digest=NULL, verified=NULL, updatedAt=? WHERE id=?");
+            ps.setString(1, checksum);
+            ps.setLong(2, now);
+            ps.setInt(3, id);
+            ps.executeUpdate();
+            PreparedStatement del = h.prepare("DELETE FROM digests WHERE taskId=?");
+            del.setInt(1, id);
+            del.executeUpdate();
+        }, () -> apply(id, r -> { r.checksum = checksum; r.digest = null; r.verified = -1; r.updatedAt = now; }));
+    }
+
+    /** Версія файлу на сервері (ETag, Last-Modified), з якої складається вже завантажена частина. */
+    public void updateValidators(int id, String etag, String lastModified) throws SQLException {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET etag=?, lastModified=?, updatedAt=? WHERE id=?");
+            long now = System.currentTimeMillis();
+            ps.setString(1, etag);
+            ps.setString(2, lastModified);
+            ps.setLong(3, now);
+            ps.setInt(4, id);
+            ps.executeUpdate();
+            apply(id, r -> { r.etag = etag; r.lastModified = lastModified; r.updatedAt = now; });
+        });
+    }
+
+    /**
+     * Забуває все завантажене: прогрес, сегменти, стан суми і версію файлу.
+     * Для випадку, коли файл на сервері змінився посеред сегментного завантаження.
+     */
+    public void resetProgress(int id, DownloadTask.Status st) throws SQLException {
+        long now = System.currentTimeMillis();
+        db.transaction(h -> {
+            PreparedStatement ps = h.prepare(
+                    "UPDATE tasks SET status=?, lastByte=0, totalBytes=-1, etag=NULL, lastModified=NULL, "
+                    + "digest=NULL, verified=NULL, updatedAt=? WHERE id=?");
+            ps.setString(1, st.name());
+            ps.setLong(2, now);
+            ps.setInt(3, id);
+            ps.executeUpdate();
+            for (String sql : new String[]{ "DELETE FROM segments WHERE taskId=?", "DELETE FROM digests WHERE taskId=?" }) {
+                PreparedStatement del = h.prepare(sql);
+                del.setInt(1, id);
+                del.executeUpdate();
+            }
+        }, () -> apply(id, r -> {
+            r.status = st; r.lastByte = 0; r.totalBytes = -1; r.etag = null; r.lastModified = null;
+            r.digest = null; r.verified = -1; r.updatedAt = now;
+        }));
+    }
+
+    /** Збережений стан контрольної суми задачі або null. */
+    public StreamDigest loadDigest(int id) throws SQLException {
+        byte[] state = db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT state FROM digests WHERE taskId=?");
+            ps.setInt(1, id);
+            try (ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getBytes(1) : null;
+            }
+        });
+        return state == null ? null : StreamDigest.restore(state);
+    }
+
+    /** Результат перевірки цілісності; проміжний стан суми після цього більше не потрібен. */
+    public void saveVerification(int id, String digest, boolean ok) throws SQLException {
+        long now = System.currentTimeMillis();
+        db.transaction(h -> {
+            PreparedStatement ps = h.prepare("UPDATE tasks SET digest=?, verified=?, updatedAt=? WHERE id=?");
+            ps.setString(1, digest);
+            ps.setInt(2, ok ? 1 : 0);
+            ps.setLong(3, now);
+            ps.setInt(4, id);
+            ps.executeUpdate();
+            PreparedStatement del = h.prepare("DELETE FROM digests WHERE taskId=?");
+            del.setInt(1, id);
+            del.executeUpdate();
+        }, () -> apply(id, r -> { r.digest = digest; r.verified = (byte) (ok ? 1 : 0); r.updatedAt = now; }));
     }
 
     public DownloadTask findById(int id) throws SQLException {
-        try (PreparedStatement ps = con.prepareStatement("SELECT * FROM tasks WHERE id=?")) {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT * FROM tasks WHERE id=?");
             ps.setInt(1, id);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) {
-                    return map(rs);
-                }
+                return rs.next() ? map(rs) : null;
             }
-        }
-        return null;
+        });
     }
 
     public List<DownloadTask> listAll() throws SQLException {
-        List<DownloadTask> out = new ArrayList<>();
-        try (Statement st = con.createStatement();
-             ResultSet rs = st.executeQuery("SELECT * FROM tasks ORDER BY id")) {
-            while (rs.next()) out.add(map(rs));
-        }
-        return out;
+        return db.read(h -> {
+            List<DownloadTask> out = new ArrayList<>();
+            try (ResultSet rs = h.prepare("SELECT * FROM tasks ORDER BY id").executeQuery()) {
+                while (rs.next()) out.add(map(rs));
+            }
+            return out;
+        });
     }
 
     private static DownloadTask map(ResultSet rs) throws SQLException {
-        return new DownloadTask(
+        DownloadTask t = new DownloadTask(
                 rs.getInt("id"),
                 rs.getString("url"),
                 Path.of(rs.getString("target")),
                 DownloadTask.Status.valueOf(rs.getString("status")),
                 rs.getLong("lastByte"),
-                rs.getLong("totalBytes")
+                rs.getLong("totalBytes"),
+                rs.getInt("priority")
         );
+        t.createdAt = rs.getLong("createdAt");
+        t.updatedAt = rs.getLong("updatedAt");
+        t.checksum = rs.getString("checksum");
+        t.digest = rs.getString("digest");
+        int verified = rs.getInt("verified");
+        t.verified = rs.wasNull() ? null : verified != 0;
+        t.etag = rs.getString("etag");
+        t.lastModified = rs.getString("lastModified");
+        return t;
     }
 
+    /** Сторінка за зсувом. Для обходу всієї таблиці краще listAfter: OFFSET щоразу пропускає рядки наново. */
     public List<DownloadTask> listRange(int offset, int limit) throws SQLException {
-        List<DownloadTask> out = new ArrayList<>();
-        try (PreparedStatement ps = con.prepareStatement(
-                "SELECT * FROM tasks ORDER BY id LIMIT ? OFFSET ?")) {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT * FROM tasks ORDER BY id LIMIT ? OFFSET ?");
             ps.setInt(1, Math.max(0, limit));
             ps.setInt(2, Math.max(0, offset));
-            try (ResultSet rs = ps.executeQuery()) {
-                while (rs.next()) out.add(map(rs));
-            }
+            return list(ps, limit);
+        });
+    }
+
+    /** Наступні limit задач з id більшим за afterId (keyset-пагінація по первинному ключу). */
+    public List<DownloadTask> listAfter(int afterId, int limit) throws SQLException {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT * FROM tasks WHERE id > ? ORDER BY id LIMIT ?");
+            ps.setInt(1, afterId);
+            ps.setInt(2, Math.max(0, limit));
+            return list(ps, limit);
+        });
+    }
+
+    /** Те саме, але лише задачі з даним статусом; йде по idx_tasks_status. */
+    public List<DownloadTask> listAfter(int afterId, DownloadTask.Status status, int limit) throws SQLException {
+        if (status == null) return listAfter(afterId, limit);
+        return listAfter(afterId, new TaskQuery().status(status), limit);
+    }
+
+    /** Наступна сторінка задач, що відповідають SQL-частині запиту (TaskQuery.where тут не враховується). */
+    @Override
+    public List<DownloadTask> listAfter(int afterId, TaskQuery q, int limit) throws SQLException {
+        List<Object> args = new ArrayList<>();
+        args.add(afterId);
+        String cond = q.sql(args);
+        args.add(Math.max(0, limit));
+        String sql = "SELECT * FROM tasks WHERE id > ?" + (cond.isEmpty() ? "" : " AND " + cond) + " ORDER BY id LIMIT ?";
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare(sql);
+            for (int k = 0; k < args.size(); k++) ps.setObject(k + 1, args.get(k));
+            return list(ps, limit);
+        });
+    }
+
+    private static List<DownloadTask> list(PreparedStatement ps, int limit) throws SQLException {
+        List<DownloadTask> out = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) out.add(map(rs));
         }
         return out;
     }
 
+    public void saveSegments(int taskId, List<Segment> segments) throws SQLException {
+        db.transaction(h -> {
+            PreparedStatement del = h.prepare("DELETE FROM segments WHERE taskId=?");
+            PreparedStatement ins = h.prepare(
+                    "INSERT INTO segments(taskId,idx,startByte,endByte,doneBytes) VALUES(?,?,?,?,?)");
+            del.setInt(1, taskId);
+            del.executeUpdate();
+            for (Segment s : segments) {
+                ins.setInt(1, taskId);
+                ins.setInt(2, s.index);
+                ins.setLong(3, s.start);
+                ins.setLong(4, s.end);
+                ins.setLong(5, s.done);
+                ins.addBatch();
+            }
+            ins.executeBatch();
+        });
+    }
+
+    public List<Segment> listSegments(int taskId) throws SQLException {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT * FROM segments WHERE taskId=? ORDER BY idx");
+            ps.setInt(1, taskId);
+            List<Segment> out = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new Segment(
+                            rs.getInt("idx"),
+                            rs.getLong("startByte"),
+                            rs.getLong("endByte"),
+                            rs.getLong("doneBytes")));
+                }
+            }
+            return out;
+        });
+    }
+
+    /** Сегменти задач з id у [fromId, toId] одним проходом по первинному ключу, згруповані за задачею. */
+    public Map<Integer, List<Segment>> listSegments(int fromId, int toId) throws SQLException {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare(
+                    "SELECT taskId, idx, startByte, endByte, doneBytes FROM segments WHERE taskId BETWEEN ? AND ? ORDER BY taskId, idx");
+            ps.setInt(1, fromId);
+            ps.setInt(2, toId);
+            Map<Integer, List<Segment>> out = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.computeIfAbsent(rs.getInt(1), k -> new ArrayList<>())
+                            .add(new Segment(rs.getInt(2), rs.getLong(3), rs.getLong(4), rs.getLong(5)));
+                }
+            }
+            return out;
+        });
+    }
+
+    /** На скількох байтах збережено стан контрольної суми задач з id у [fromId, toId]. */
+    public Map<Integer, Long> digestPositions(int fromId, int toId) throws SQLException {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT taskId, state FROM digests WHERE taskId BETWEEN ? AND ?");
+            ps.setInt(1, fromId);
+            ps.setInt(2, toId);
+            Map<Integer, Long> out = new HashMap<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.put(rs.getInt(1), StreamDigest.restore(rs.getBytes(2)).position());
+            }
+            return out;
+        });
+    }
+
+    /** Виправлення після збою однією транзакцією; у таблицю в пам'яті — після commit. */
+    public void repairBatch(List<Repair> repairs) throws SQLException {
+        if (repairs.isEmpty()) return;
+        long now = System.currentTimeMillis();
+        db.transaction(h -> {
+            PreparedStatement task = h.prepare("UPDATE tasks SET status=?, lastByte=?, updatedAt=? WHERE id=?");
+            PreparedStatement reset = h.prepare(
+                    "UPDATE tasks SET status=?, lastByte=0, totalBytes=-1, etag=NULL, lastModified=NULL, "
+                    + "digest=NULL, verified=NULL, updatedAt=? WHERE id=?");
+            PreparedStatement seg = h.prepare("UPDATE segments SET doneBytes=? WHERE taskId=? AND idx=?");
+            PreparedStatement delSeg = h.prepare("DELETE FROM segments WHERE taskId=?");
+            PreparedStatement delDig = h.prepare("DELETE FROM digests WHERE taskId=?");
+            for (Repair r : repairs) {
+                if (r.reset) {
+                    reset.setString(1, r.status.name());
+                    reset.setLong(2, now);
+                    reset.setInt(3, r.taskId);
+                    reset.addBatch();
+                    if (r.segments != null) {
+                        delSeg.setInt(1, r.taskId);
+                        delSeg.addBatch();
+                    }
+                } else {
+                    task.setString(1, r.status.name());
+                    task.setLong(2, r.lastByte);
+                    task.setLong(3, now);
+                    task.setInt(4, r.taskId);
+                    task.addBatch();
+                    if (r.segments != null) {
+                        for (Segment s : r.segments) {
+                            seg.setLong(1, s.done);
+                            seg.setInt(2, r.taskId);
+                            seg.setInt(3, s.index);
+                            seg.addBatch();
+                        }
+                    }
+                }
+                if (r.dropDigest) {
+                    delDig.setInt(1, r.taskId);
+                    delDig.addBatch();
+                }
+            }
+            task.executeBatch();
+            reset.executeBatch();
+            seg.executeBatch();
+            delSeg.executeBatch();
+            delDig.executeBatch();
+        }, () -> {
+            for (Repair r : repairs) {
+                if (r.reset) {
+                    apply(r.taskId, t -> {
+                        t.status = r.status; t.lastByte = 0; t.totalBytes = -1; t.etag = null; t.lastModified = null;
+                        t.digest = null; t.verified = -1; t.updatedAt = now;
+                    });
+                } else {
+                    apply(r.taskId, t -> { t.status = r.status; t.lastByte = r.lastByte; t.updatedAt = now; });
+                }
+            }
+        });
+    }
+
+    public void updateSegment(int taskId, int index, long doneBytes) throws SQLException {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare("UPDATE segments SET doneBytes=? WHERE taskId=? AND idx=?");
+            ps.setLong(1, doneBytes);
+            ps.setInt(2, taskId);
+            ps.setInt(3, index);
+            ps.executeUpdate();
+        });
+    }
+
+
+    /** Записує спробу і лишає задачі лише ATTEMPTS_KEPT останніх. */
+    public void recordAttempt(Attempt a) throws SQLException {
+        db.transaction(h -> {
+            PreparedStatement ins = h.prepare("INSERT INTO attempts(taskId,attempt,startedAt,endedAt,fromByte,toByte,outcome,error,retryInMs) "
+                    + "VALUES(?,?,?,?,?,?,?,?,?)");
+            ins.setInt(1, a.taskId);
+            ins.setInt(2, a.attempt);
+            ins.setLong(3, a.startedAt);
+            ins.setLong(4, a.endedAt);
+            ins.setLong(5, a.fromByte);
+            ins.setLong(6, a.toByte);
+            ins.setString(7, a.outcome.name());
+            ins.setString(8, a.error);
+            ins.setLong(9, a.retryInMs);
+            ins.executeUpdate();
+            PreparedStatement trim = h.prepare("DELETE FROM attempts WHERE taskId=? AND id <= "
+                    + "(SELECT id FROM attempts WHERE taskId=? ORDER BY id DESC LIMIT 1 OFFSET ?)");
+            trim.setInt(1, a.taskId);
+            trim.setInt(2, a.taskId);
+            trim.setInt(3, ATTEMPTS_KEPT);
+            trim.executeUpdate();
+        });
+    }
+
+    /** Спроби задачі від найстарішої до найновішої. */
+    public List<Attempt> listAttempts(int taskId) throws SQLException {
+        return db.read(h -> {
+            PreparedStatement ps = h.prepare("SELECT * FROM attempts WHERE taskId=? ORDER BY id");
+            ps.setInt(1, taskId);
+            List<Attempt> out = new ArrayList<>();
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    Attempt a = new Attempt(rs.getInt("taskId"), rs.getInt("attempt"),
+                            rs.getLong("startedAt"), rs.getLong("fromByte"));
+                    a.endedAt = rs.getLong("endedAt");
+                    a.toByte = rs.getLong("toByte");
+                    a.outcome = Attempt.Outcome.valueOf(rs.getString("outcome"));
+                    a.error = rs.getString("error");
+                    a.retryInMs = rs.getLong("retryInMs");
+                    out.add(a);
+                }
+            }
+            return out;
+        });
+    }
+
+    public List<CacheEntry> listCache() throws SQLException {
+        return db.read(h -> {
+            List<CacheEntry> out = new ArrayList<>();
+            try (ResultSet rs = h.prepare("SELECT * FROM cache ORDER BY lastUsed").executeQuery()) {
+                while (rs.next()) {
+                    CacheEntry e = new CacheEntry();
+                    e.id = rs.getInt("id");
+                    e.url = rs.getString("url");
+                    e.etag = rs.getString("etag");
+                    e.lastModified = rs.getString("lastModified");
+                    e.digest = rs.getString("digest");
+                    e.file = rs.getString("file");
+                    e.size = rs.getLong("size");
+                    e.mtime = rs.getLong("mtime");
+                    e.lastUsed = rs.getLong("lastUsed");
+                    e.checkedAt = rs.getLong("checkedAt");
+                    e.hits = rs.getInt("hits");
+                    out.add(e);
+                }
+            }
+            return out;
+        });
+    }
+
+    /** Вставляє запис і виставляє йому id. */
+    public void insertCache(CacheEntry e) throws SQLException {
+        e.id = db.writeAndGet(h -> {
+            PreparedStatement ps = h.prepare("INSERT INTO cache(url,etag,lastModified,digest,file,size,mtime,lastUsed,checkedAt,hits) "
+                    + "VALUES(?,?,?,?,?,?,?,?,?,?) RETURNING id");
+            ps.setString(1, e.url);
+            ps.setString(2, e.etag);
+            ps.setString(3, e.lastModified);
+            ps.setString(4, e.digest);
+            ps.setString(5, e.file);
+            ps.setLong(6, e.size);
+            ps.setLong(7, e.mtime);
+            ps.setLong(8, e.lastUsed);
+            ps.setLong(9, e.checkedAt);
+            ps.setInt(10, e.hits);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (!rs.next()) throw new SQLException("No ID generated");
+                return rs.getInt(1);
+            }
+        });
+    }
+
+    /** Після влучання: коли використано, коли звірено з сервером, скільки разів і сума, якщо стала відома. */
+    public void touchCache(CacheEntry e) throws SQLException {
+        db.write(h -> {
+            PreparedStatement ps = h.prepare("UPDATE cache SET lastUsed=?, checkedAt=?, hits=?, digest=? WHERE id=?");
+            ps.setLong(1, e.lastUsed);
+            ps.setLong(2, e.checkedAt);
+            ps.setInt(3, e.hits);
+            ps.setString(4, e.digest);
+            ps.setInt(5, e.id);
+            ps.executeUpdate();
+        });
+    }
+
+    public void deleteCache(List<Integer> ids) throws SQLException {
+        if (ids.isEmpty()) return;
+        db.transaction(h -> {
+            PreparedStatement ps = h.prepare("DELETE FROM cache WHERE id=?");
+            for (int id : ids) {
+                ps.setInt(1, id);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        });
+    }
 
-    @Override public void close() throws Exception { con.close(); }
+    /**
+     * Таблиця задач у пам'яті (див. TaskTable): читається з бази один раз під lock письменника,
+     * а далі кожен запис цього репозиторію застосовується й до неї. Повторний виклик повертає ту саму.
+     */
+    public TaskTable openTable() throws SQLException {
+        TaskTable tt = table;
+        if (tt != null) return tt;
+        db.write(h -> {
+            if (table != null) return;
+            TaskTable fresh = new TaskTable();
+            // по номерах колонок і одразу в рядки таблиці: на мільйоні задач це секунди, а не десятки
+            try (ResultSet rs = h.prepare("SELECT id, url, target, host, status, lastByte, totalBytes, priority, "
+                    + "createdAt, updatedAt, checksum, digest, verified, etag, lastModified FROM tasks ORDER BY id").executeQuery()) {
+                while (rs.next()) {
+                    TaskTable.Row r = new TaskTable.Row();
+                    r.id = rs.getInt(1);
+                    r.url = rs.getString(2);
+                    r.target = rs.getString(3);
+                    r.host = rs.getString(4);
+                    if (r.host == null) r.host = DownloadScheduler.hostOf(r.url);
+                    r.status = DownloadTask.Status.valueOf(rs.getString(5));
+                    r.lastByte = r.bytes = rs.getLong(6);
+                    r.totalBytes = rs.getLong(7);
+                    r.priority = rs.getInt(8);
+                    r.createdAt = rs.getLong(9);
+                    r.updatedAt = rs.getLong(10);
+                    r.checksum = rs.getString(11);
+                    r.digest = rs.getString(12);
+                    int verified = rs.getInt(13);
+                    r.verified = rs.wasNull() ? -1 : (byte) (verified != 0 ? 1 : 0);
+                    r.etag = rs.getString(14);
+                    r.lastModified = rs.getString(15);
+                    fresh.load(r);
+                }
+            }
+            table = fresh;
+        });
+        return table;
+    }
+
+    /** Під lock письменника, після запису: ті самі зміни в таблиці в пам'яті, якщо вона відкрита. */
+    private void apply(int id, Consumer<TaskTable.Row> change) {
+        TaskTable tt = table;
+        if (tt != null) tt.update(id, change);
+    }
+
+    /** Тривалості записів у базу (з очікуванням lock письменника), нс. */
+    public Histogram writeLatency() { return db.writeLatency; }
+
+    @Override public void close() throws Exception {
+        TaskTable tt = table;
+        if (tt != null) tt.close();
+        db.close();
+    }
 }
@@ -0,0 +1,10 @@
+package dm.core;
+
+import java.sql.SQLException;
+import java.util.List;
+
+/** Звідки TaskIterator бере сторінки задач: база (TaskRepository) або таблиця в пам'яті (TaskTable). */
+public interface TaskSource {
+    /** Наступні limit задач з id більшим за afterId, що відповідають полям query (query.where не враховується). */
+    List<DownloadTask> listAfter(int afterId, TaskQuery query, int limit) throws SQLException;
+}
@@ -0,0 +1,391 @@
+package dm.core;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Усі задачі в пам'яті: те саме, що в таблиці tasks, плюс живий прогрес тих, що качаються.
+ * Читання (get, status, listAfter) не йде в базу і не бере lock — рядки незмінні, кожна зміна
+ * кладе новий. Зберігаються вони в масиві сторінок за id: id видає AUTOINCREMENT, тож вони
+ * щільні, а обхід по зростанню id — просто прохід по масиву.
+ *
+ * Таблицю заповнює і оновлює TaskRepository (openTable) під lock письменника бази, одразу
+ * після запису, тож порядок змін той самий, що в SQLite. lastByte тут — збережений прогрес,
+ * як у базі; живий (ще не записаний журналом) — окремо, у bytes і rate.
+ *
+ * Зміни публікуються підписникам (subscribe) з окремого потоку. Переходи статусу не зливаються,
+ * тики прогресу — лише останній по задачі, якщо підписник не встигає. Черга доставки обмежена
+ * (QUEUE_LIMIT): коли вона повна, губиться будь-яка подія, і статусна теж, — запис у таблицю
+ * не чекає на повільного підписника. Втрати видно в droppedEvents(); хто мусить знати точний
+ * стан, після них перечитує задачі через get або listAfter.
+ */
+public final class TaskTable implements TaskSource, AutoCloseable {
+    private static final int PAGE_BITS = 10;
+    private static final int PAGE = 1 << PAGE_BITS;
+    /** Скільки подій може чекати на доставку; понад це нові губляться (і рахуються в dropped). */
+    private static final int QUEUE_LIMIT = 65_536;
+
+    /** Зміна задачі для підписників. */
+    public static final class Event {
+        /** ADDED — нова задача, STATUS — перехід статусу, PROGRESS — тик живого прогресу, CHANGED — решта полів. */
+        public enum Kind { ADDED, STATUS, PROGRESS, CHANGED }
+
+        public final Kind kind;
+        public final int taskId;
+        public final DownloadTask.Status status;
+        public final DownloadTask.Status previous; // для STATUS; інакше той самий, що status
+        public final long bytes;
+        public final long total;
+        public final double rate; // байт/с, для PROGRESS
+
+        Event(Kind kind, int taskId, DownloadTask.Status status, DownloadTask.Status previous, long bytes, long total, double rate) {
+            this.kind = kind; this.taskId = taskId; this.status = status; this.previous = previous;
+            this.bytes = bytes; this.total = total; this.rate = rate;
+        }
+    }
+
+    public interface Listener { void onEvent(Event e); }
+
+    public interface Subscription extends AutoCloseable {
+        @Override void close();
+    }
+
+    /** Рядок задачі. Після публікації в таблиці не змінюється: зміна — це копія. */
+    static final class Row {
+        int id;
+        String url;
+        String target;
+        String host;
+        DownloadTask.Status status;
+        long lastByte;
+        long totalBytes;
+        int priority;
+        long createdAt;
+        long updatedAt;
+        String checksum;
+        String digest;
+        byte verified = -1; // -1 — не перевірялась
+        String etag;
+        String lastModified;
+        long bytes;  // живий прогрес; поза RUNNING дорівнює lastByte
+        double rate;
+
+        Row copy() {
+            Row r = new Row();
+            r.id = id; r.url = url; r.target = target; r.host = host; r.status = status;
+            r.lastByte = lastByte; r.totalBytes = totalBytes; r.priority = priority;
+            r.createdAt = createdAt; r.updatedAt = updatedAt;
+            r.checksum = checksum; r.digest = digest; r.verified = verified;
+            r.etag = etag; r.lastModified = lastModified; r.bytes = bytes; r.rate = rate;
+            return r;
+        }
+
+        static Row of(DownloadTask t) {
+            Row r = new Row();
+            r.id = t.id; r.url = t.url; r.target = t.target.toString(); r.host = DownloadScheduler.hostOf(t.url);
+            r.status = t.status; r.lastByte = t.lastByte; r.totalBytes = t.totalBytes; r.priority = t.priority;
+            r.createdAt = t.createdAt; r.updatedAt = t.updatedAt;
+            r.checksum = t.checksum; r.digest = t.digest;
+            r.verified = t.verified == null ? -1 : (byte) (t.verified ? 1 : 0);
+            r.etag = t.etag; r.lastModified = t.lastModified; r.bytes = t.lastByte;
+            return r;
+        }
+
+        DownloadTask toTask() {
+            DownloadTask t = new DownloadTask(id, url, Path.of(target), status, lastByte, totalBytes, priority);
+            t.createdAt = createdAt;
+            t.updatedAt = updatedAt;
+            t.checksum = checksum;
+            t.digest = digest;
+            t.verified = verified < 0 ? null : verified == 1;
+            t.etag = etag;
+            t.lastModified = lastModified;
+            return t;
+        }
+    }
+
+    // зміни рядків і ріст масиву сторінок — по одній; читачі бачать сторінки через volatile
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile AtomicReferenceArray<Row>[] pages = newPages(0);
+    private volatile int maxId;
+    private volatile int size;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final BlockingQueue<Event> queue = new LinkedBlockingQueue<>(QUEUE_LIMIT);
+    private final Map<Integer, Event> progress = new ConcurrentHashMap<>(); // останній непосланий тик по задачі
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread dispatcher;
+
+    TaskTable() {}
+
+    // ---- читання ----
+
+    /** Задача (нова копія, її можна змінювати) або null. */
+    public DownloadTask get(int id) {
+        Row r = row(id);
+        return r == null ? null : r.toTask();
+    }
+
+    /** Статус задачі або null, якщо такої немає. */
+    public DownloadTask.Status status(int id) {
+        Row r = row(id);
+        return r == null ? null : r.status;
+    }
+
+    /** Живий прогрес: скільки вже записано у файл (для RUNNING — раніше, ніж це потрапить у базу). */
+    public long bytes(int id) {
+        Row r = row(id);
+        return r == null ? -1 : r.bytes;
+    }
+
+    /** Поточна швидкість задачі, байт/с; 0 — не качається. */
+    public double rate(int id) {
+        Row r = row(id);
+        return r == null ? 0 : r.rate;
+    }
+
+    public int size() { return size; }
+
+    public int count(DownloadTask.Status status) {
+        int n = 0;
+        for (AtomicReferenceArray<Row> page : pages) {
+            for (int i = 0; i < PAGE; i++) {
+                Row r = page.get(i);
+                if (r != null && r.status == status) n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public List<DownloadTask> listAfter(int afterId, TaskQuery q, int limit) {
+        List<DownloadTask> out = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        String dir = null;
+        if (q.targetDir != null) {
+            dir = q.targetDir.toString();
+            if (!dir.endsWith(File.separator)) dir += File.separator;
+        }
+        int last = maxId;
+        for (int id = Math.max(1, afterId + 1); id <= last && out.size() < limit; id++) {
+            Row r = row(id);
+            if (r != null && matches(q, dir, r)) out.add(r.toTask());
+        }
+        return out;
+    }
+
+    /**
+     * Лише id задач з fromId..toId (включно), що відповідають q, — без копій задач; для масових команд.
+     * Як і listAfter, q.where не враховує.
+     */
+    public int[] ids(int fromId, int toId, TaskQuery q) {
+        String dir = null;
+        if (q.targetDir != null) {
+            dir = q.targetDir.toString();
+            if (!dir.endsWith(File.separator)) dir += File.separator;
+        }
+        int[] out = new int[16];
+        int n = 0;
+        int last = Math.min(maxId, toId);
+        for (int id = Math.max(1, fromId); id <= last; id++) {
+            Row r = row(id);
+            if (r == null || !matches(q, dir, r)) continue;
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = id;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /** Ті самі умови, що TaskQuery.sql, але по рядку в пам'яті. */
+    private static boolean matches(TaskQuery q, String dir, Row r) {
+        if (q.status != null && r.status != q.status) return false;
+        if (q.host != null && !q.host.equals(r.host)) return false;
+        if (q.urlPrefix != null && !r.url.startsWith(q.urlPrefix)) return false;
+        if (dir != null && !r.target.startsWith(dir)) return false;
+        if (q.minSize >= 0 && r.totalBytes < q.minSize) return false;
+        if (q.maxSize >= 0 && (r.totalBytes < 0 || r.totalBytes > q.maxSize)) return false;
+        if (q.createdFrom > 0 && r.createdAt < q.createdFrom) return false;
+        if (q.createdTo > 0 && r.createdAt >= q.createdTo) return false;
+        if (q.updatedFrom > 0 && r.updatedAt < q.updatedFrom) return false;
+        if (q.updatedTo > 0 && r.updatedAt >= q.updatedTo) return false;
+        return true;
+    }
+
+    private Row row(int id) {
+        if (id <= 0) return null;
+        AtomicReferenceArray<Row>[] p = pages;
+        int page = id >>> PAGE_BITS;
+        return page < p.length ? p[page].get(id & (PAGE - 1)) : null;
+    }
+
+    // ---- зміни (викликає TaskRepository під lock письменника бази) ----
+
+    /** Рядок з бази під час openTable: без подій, нікого ще не підписано. */
+    void load(Row r) {
+        lock.lock();
+        try {
+            if (row(r.id) == null) size++;
+            store(r);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(DownloadTask t, boolean publish) {
+        Row r = Row.of(t);
+        lock.lock();
+        try {
+            if (row(r.id) == null) size++;
+            store(r);
+        } finally {
+            lock.unlock();
+        }
+        if (publish) publish(new Event(Event.Kind.ADDED, r.id, r.status, r.status, r.bytes, r.totalBytes, 0));
+    }
+
+    /** Змінює копію рядка і кладе її замість старого. Переходи статусу скидають живий прогрес. */
+    void update(int id, Consumer<Row> change) {
+        Row before, after;
+        lock.lock();
+        try {
+            before = row(id);
+            if (before == null) return;
+            after = before.copy();
+            change.accept(after);
+            if (after.status != DownloadTask.Status.RUNNING || before.status != DownloadTask.Status.RUNNING) {
+                after.bytes = after.lastByte;
+                after.rate = 0;
+            } else if (after.lastByte < before.lastByte) { // прогрес скинули (resetProgress)
+                after.bytes = after.lastByte;
+            } else {
+                after.bytes = Math.max(after.bytes, after.lastByte);
+            }
+            store(after);
+        } finally {
+            lock.unlock();
+        }
+        if (after.status != before.status) {
+            publish(new Event(Event.Kind.STATUS, id, after.status, before.status, after.bytes, after.totalBytes, 0));
+        } else if (after.lastByte == before.lastByte && after.totalBytes == before.totalBytes) {
+            publish(new Event(Event.Kind.CHANGED, id, after.status, before.status, after.bytes, after.totalBytes, after.rate));
+        }
+    }
+
+    /** Тик живого прогресу від задачі, що качається: у базу він потрапить пізніше, через журнал. */
+    void tick(int id, long bytes, long total, double rate) {
+        Row after;
+        lock.lock();
+        try {
+            Row before = row(id);
+            if (before == null || before.status != DownloadTask.Status.RUNNING) return;
+            after = before.copy();
+            after.bytes = bytes;
+            if (total > 0) after.totalBytes = total;
+            after.rate = rate;
+            store(after);
+        } finally {
+            lock.unlock();
+        }
+        if (listeners.isEmpty()) return;
+        Event e = new Event(Event.Kind.PROGRESS, id, after.status, after.status, bytes, after.totalBytes, rate);
+        // у черзі на задачу щонайбільше один тик: новіший замінює той, що ще не доставлено
+        if (progress.put(id, e) == null && !queue.offer(e)) {
+            progress.remove(id);
+            dropped.incrementAndGet();
+        }
+    }
+
+    /** Під lock. */
+    private void store(Row r) {
+        int page = r.id >>> PAGE_BITS;
+        AtomicReferenceArray<Row>[] p = pages;
+        if (page >= p.length) {
+            AtomicReferenceArray<Row>[] grown = newPages(Math.max(page + 1, p.length * 2));
+            System.arraycopy(p, 0, grown, 0, p.length);
+            pages = grown;
+            p = grown;
+        }
+        p[page].set(r.id & (PAGE - 1), r);
+        if (r.id > maxId) maxId = r.id;
+    }
+
+    private static AtomicReferenceArray<Row>[] newPages(int n) {
+        // масив generic-типу створюється лише raw; тип елементів задає цей рядок
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        AtomicReferenceArray<Row>[] p = new AtomicReferenceArray[n];
+        for (int i = 0; i < n; i++) p[i] = new AtomicReferenceArray<>(PAGE);
+        return p;
+    }
+
+    // ---- події ----
+
+    /**
+     * Listener викликається в потоці "task-events" по одній події; довго в ньому не сидіти —
+     * інакше тики прогресу зливатимуться, а переповнена черга почне губити події.
+     */
+    public Subscription subscribe(Listener l) {
+        listeners.add(l);
+        lock.lock();
+        try {
+            if (dispatcher == null) {
+                dispatcher = new Thread(this::dispatch, "task-events");
+                dispatcher.setDaemon(true);
+                dispatcher.start();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return () -> listeners.remove(l);
+    }
+
+    /** Скільки подій (зокрема переходів статусу) не влізло в чергу доставки. */
+    public long droppedEvents() { return dropped.get(); }
+
+    private void publish(Event e) {
+        if (listeners.isEmpty()) return;
+        if (!queue.offer(e)) dropped.incrementAndGet();
+    }
+
+    private void dispatch() {
+        try {
+            while (true) {
+                Event e = queue.take();
+                if (e.kind == Event.Kind.PROGRESS) {
+                    e = progress.remove(e.taskId);
+                    if (e == null) continue;
+                }
+                for (Listener l : listeners) {
+                    try {
+                        l.onEvent(e);
+                    } catch (RuntimeException ex) {
+                        System.out.printf("java error: %s%n", ex.toString());
+                    }
+                }
+            }
+        } catch (InterruptedException ignored) {
+            // close()
+        }
+    }
+
+    @Override public void close() {
+        Thread d;
+        lock.lock();
+        try {
+            d = dispatcher;
+        } finally {
+            lock.unlock();
+        }
+        if (d != null) d.interrupt();
+    }
+}
@@ -0,0 +1,44 @@
+package dm.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free token bucket у формі GCRA: замість лічильника токенів зберігається
+ * "теоретичний час прибуття" — момент, коли відра знову вистачить на весь уже
+ * зарезервований трафік. Резервування — один CAS, без блокувань і фонових потоків.
+ */
+public class TokenBucket {
+    /** Скільки часу трафіку можна "позичити" наперед після простою. */
+    static final long BURST_NS = 50_000_000L;
+
+    private volatile long rateBps; // 0 = без ліміту
+    private final AtomicLong tat = new AtomicLong(Long.MIN_VALUE / 2);
+
+    public TokenBucket(long rateBps) {
+        setRate(rateBps);
+    }
+
+    public void setRate(long bps) { rateBps = Math.max(0, bps); }
+
+    public long getRate() { return rateBps; }
+
+    public boolean isLimited() { return rateBps > 0; }
+
+    /**
+     * Резервує n байтів і повертає, скільки наносекунд треба почекати,
+     * перш ніж їх "відправити" (0 — одразу).
+     */
+    public long reserve(long n, long nowNs) {
+        long rate = rateBps;
+        if (rate <= 0 || n <= 0) return 0;
+        long cost = (long) (n * 1_000_000_000.0 / rate);
+        while (true) {
+            long cur = tat.get();
+            long next = Math.max(cur, nowNs - BURST_NS) + cost;
+            // після простою відро починає з nowNs - BURST_NS: це і є весь запас наперед
+            if (tat.compareAndSet(cur, next)) {
+                return Math.max(0, next - nowNs);
+            }
+        }
+    }
+}
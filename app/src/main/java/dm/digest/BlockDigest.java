@@ -0,0 +1,106 @@
+package dm.digest;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/** Спільна частина MD5/SHA-1/SHA-256: блоки по 64 байти, стан — слова h, лічильник і неповний блок. */
+abstract class BlockDigest extends StreamDigest {
+    private final byte id;
+    private final ByteOrder order;
+    protected final int[] h;
+    private final byte[] block = new byte[64];
+    private long count;
+
+    BlockDigest(byte id, ByteOrder order, int words) {
+        this.id = id;
+        this.order = order;
+        this.h = new int[words];
+        reset();
+    }
+
+    /** Початкові значення h. */
+    protected abstract void init();
+
+    /** Обробляє один повний блок (64 байти з offset). */
+    protected abstract void compress(byte[] b, int offset);
+
+    @Override public long position() { return count; }
+
+    @Override
+    public void reset() {
+        init();
+        count = 0;
+    }
+
+    @Override
+    public void update(ByteBuffer data) {
+        int fill = (int) (count & 63);
+        if (data.hasArray()) {
+            // без проміжного копіювання: повні блоки беремо прямо з масиву буфера
+            byte[] a = data.array();
+            int off = data.arrayOffset() + data.position();
+            int end = data.arrayOffset() + data.limit();
+            count += end - off;
+            if (fill > 0) {
+                int n = Math.min(64 - fill, end - off);
+                System.arraycopy(a, off, block, fill, n);
+                off += n;
+                fill += n;
+                if (fill < 64) {
+                    data.position(data.limit());
+                    return;
+                }
+                compress(block, 0);
+            }
+            for (; end - off >= 64; off += 64) compress(a, off);
+            System.arraycopy(a, off, block, 0, end - off);
+            data.position(data.limit());
+            return;
+        }
+        while (data.hasRemaining()) {
+            int n = Math.min(64 - fill, data.remaining());
+            data.get(block, fill, n);
+            fill += n;
+            count += n;
+            if (fill == 64) {
+                compress(block, 0);
+                fill = 0;
+            }
+        }
+    }
+
+    @Override
+    public byte[] state() {
+        int fill = (int) (count & 63);
+        ByteBuffer out = ByteBuffer.allocate(1 + 8 + 4 * h.length + fill);
+        out.put(id).putLong(count);
+        for (int w : h) out.putInt(w);
+        out.put(block, 0, fill);
+        return out.array();
+    }
+
+    @Override
+    void load(ByteBuffer in) {
+        count = in.getLong();
+        for (int i = 0; i < h.length; i++) h[i] = in.getInt();
+        in.get(block, 0, (int) (count & 63));
+    }
+
+    @Override
+    byte[] finish() {
+        long bits = count << 3;
+        int fill = (int) (count & 63);
+        block[fill++] = (byte) 0x80;
+        if (fill > 56) {
+            java.util.Arrays.fill(block, fill, 64, (byte) 0);
+            compress(block, 0);
+            fill = 0;
+        }
+        java.util.Arrays.fill(block, fill, 56, (byte) 0);
+        ByteBuffer.wrap(block, 56, 8).order(order).putLong(bits);
+        compress(block, 0);
+        ByteBuffer out = ByteBuffer.allocate(4 * h.length).order(order);
+        for (int w : h) out.putInt(w);
+        return out.array();
+    }
+}
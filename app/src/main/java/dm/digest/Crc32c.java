@@ -0,0 +1,95 @@
+package dm.digest;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC32C. Саме обчислення — java.util.zip.CRC32C (апаратне), а збережений стан —
+ * це просто значення CRC і довжина: після відновлення нові байти рахуються окремо
+ * і склеюються з попереднім значенням через crc32c_combine.
+ */
+final class Crc32c extends StreamDigest {
+    private static final int POLY = 0x82f63b78; // відображений поліном Кастаньолі
+
+    private final java.util.zip.CRC32C live = new java.util.zip.CRC32C();
+    private int base;       // CRC перших baseLen байтів
+    private long baseLen;
+    private long liveLen;   // скільки байтів пройшло через live після base
+
+    @Override public String algorithm() { return "crc32c"; }
+
+    @Override public long position() { return baseLen + liveLen; }
+
+    @Override
+    public void update(ByteBuffer data) {
+        liveLen += data.remaining();
+        live.update(data);
+    }
+
+    @Override
+    public void reset() {
+        live.reset();
+        base = 0;
+        baseLen = 0;
+        liveLen = 0;
+    }
+
+    private int value() {
+        return baseLen == 0 ? (int) live.getValue() : combine(base, (int) live.getValue(), liveLen);
+    }
+
+    @Override
+    public byte[] state() {
+        return ByteBuffer.allocate(1 + 8 + 4).put(CRC32C).putLong(position()).putInt(value()).array();
+    }
+
+    @Override
+    void load(ByteBuffer in) {
+        live.reset();
+        liveLen = 0;
+        baseLen = in.getLong();
+        base = in.getInt();
+    }
+
+    @Override
+    byte[] finish() {
+        return ByteBuffer.allocate(4).putInt(value()).array();
+    }
+
+    /** CRC конкатенації A||B з crc(A), crc(B) і довжини B (як crc32_combine у zlib). */
+    static int combine(int crc1, int crc2, long len2) {
+        if (len2 <= 0) return crc1;
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        odd[0] = POLY; // оператор зсуву на один нульовий біт
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        square(even, odd); // два нульові біти
+        square(odd, even); // чотири
+        // далі по байтах: 1, 2, 4... нульових байтів
+        do {
+            square(even, odd);
+            if ((len2 & 1) != 0) crc1 = times(even, crc1);
+            len2 >>>= 1;
+            if (len2 == 0) break;
+            square(odd, even);
+            if ((len2 & 1) != 0) crc1 = times(odd, crc1);
+            len2 >>>= 1;
+        } while (len2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    private static int times(int[] mat, int vec) {
+        int sum = 0;
+        for (int i = 0; vec != 0; i++, vec >>>= 1) {
+            if ((vec & 1) != 0) sum ^= mat[i];
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] mat) {
+        for (int n = 0; n < 32; n++) square[n] = times(mat, mat[n]);
+    }
+}
@@ -0,0 +1,51 @@
+package dm.digest;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/** MD5 (RFC 1321). Лише для звірки з тим, що публікують сервери, — не для безпеки. */
+final class Md5 extends BlockDigest {
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int[] S = {
+            7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22, 7, 12, 17, 22,
+            5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20, 5, 9, 14, 20,
+            4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23, 4, 11, 16, 23,
+            6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21, 6, 10, 15, 21
+    };
+    private static final int[] K = new int[64];
+    static {
+        for (int i = 0; i < 64; i++) K[i] = (int) (long) Math.floor(Math.abs(Math.sin(i + 1)) * 4294967296.0);
+    }
+
+    private final int[] m = new int[16];
+
+    Md5() { super(MD5, ByteOrder.LITTLE_ENDIAN, 4); }
+
+    @Override public String algorithm() { return "md5"; }
+
+    @Override
+    protected void init() {
+        h[0] = 0x67452301; h[1] = 0xefcdab89; h[2] = 0x98badcfe; h[3] = 0x10325476;
+    }
+
+    @Override
+    protected void compress(byte[] b, int offset) {
+        int[] m = this.m;
+        for (int i = 0; i < 16; i++) m[i] = (int) INT.get(b, offset + 4 * i);
+        int a = h[0], bb = h[1], c = h[2], d = h[3];
+        for (int i = 0; i < 64; i++) {
+            int f, g;
+            if (i < 16)      { f = (bb & c) | (~bb & d); g = i; }
+            else if (i < 32) { f = (d & bb) | (~d & c);  g = (5 * i + 1) & 15; }
+            else if (i < 48) { f = bb ^ c ^ d;           g = (3 * i + 5) & 15; }
+            else             { f = c ^ (bb | ~d);        g = (7 * i) & 15; }
+            int t = d;
+            d = c;
+            c = bb;
+            bb = bb + Integer.rotateLeft(a + f + K[i] + m[g], S[i]);
+            a = t;
+        }
+        h[0] += a; h[1] += bb; h[2] += c; h[3] += d;
+    }
+}
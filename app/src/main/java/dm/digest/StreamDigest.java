@@ -0,0 +1,88 @@
+package dm.digest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HexFormat;
+import java.util.Locale;
+
+/**
+ * Контрольна сума, що рахується порціями по ходу запису у файл і вміє зберегти
+ * свій проміжний стан. Після паузи стан відновлюється з бази, і вже записаний
+ * префікс файлу не доводиться читати з диска вдруге.
+ *
+ * MessageDigest з JDK стан назовні не віддає, тому MD5/SHA-1/SHA-256 тут свої.
+ */
+public abstract class StreamDigest {
+    static final byte MD5 = 1, SHA1 = 2, SHA256 = 3, CRC32C = 4;
+
+    /** Алгоритм за назвою: md5, sha1 (sha-1), sha256 (sha-256), crc32c. */
+    public static StreamDigest create(String algorithm) {
+        return switch (algorithm.toLowerCase(Locale.ROOT).replace("-", "")) {
+            case "md5" -> new Md5();
+            case "sha1" -> new Sha1();
+            case "sha256" -> new Sha256();
+            case "crc32c" -> new Crc32c();
+            default -> throw new IllegalArgumentException("Unsupported digest: " + algorithm);
+        };
+    }
+
+    /** Відновлює обчислення зі стану, отриманого від state(). */
+    public static StreamDigest restore(byte[] state) {
+        ByteBuffer in = ByteBuffer.wrap(state);
+        StreamDigest d = switch (in.get()) {
+            case MD5 -> new Md5();
+            case SHA1 -> new Sha1();
+            case SHA256 -> new Sha256();
+            case CRC32C -> new Crc32c();
+            default -> throw new IllegalArgumentException("Unknown digest state");
+        };
+        d.load(in);
+        return d;
+    }
+
+    /** Алгоритм з рядка "алгоритм:hex". */
+    public static String algorithmOf(String checksum) {
+        int colon = checksum.indexOf(':');
+        if (colon <= 0) throw new IllegalArgumentException("Checksum must look like algorithm:hex");
+        return checksum.substring(0, colon);
+    }
+
+    /** Назва алгоритму так, як вона стоїть перед ':' у контрольній сумі. */
+    public abstract String algorithm();
+
+    /** Скільки байтів уже враховано. */
+    public abstract long position();
+
+    /** Додає всі залишені в буфері байти; позиція буфера просувається до limit. */
+    public abstract void update(ByteBuffer data);
+
+    /** Починає з нуля. */
+    public abstract void reset();
+
+    /** Проміжний стан для збереження разом із прогресом. */
+    public abstract byte[] state();
+
+    /** Підсумок у вигляді "алгоритм:hex". Саме обчислення може продовжуватись далі. */
+    public final String result() {
+        return algorithm() + ":" + HexFormat.of().formatHex(restore(state()).finish());
+    }
+
+    /** Завершує обчислення (паддінг) і повертає сирі байти суми. Після цього об'єкт непридатний. */
+    abstract byte[] finish();
+
+    abstract void load(ByteBuffer state);
+
+    /** Досчитує шматок уже записаного файлу [from, to). */
+    public void update(FileChannel fc, long from, long to) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+        long pos = from;
+        while (pos < to) {
+            buf.clear().limit((int) Math.min(buf.capacity(), to - pos));
+            int n = fc.read(buf, pos);
+            if (n < 0) throw new IOException("File is shorter than expected: " + pos + " < " + to);
+            pos += n;
+            update(buf.flip());
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package dm.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Лічильник, що лише зростає. LongAdder розкладає додавання по комірках потоків,
+ * тож сотні передач, які рахують байти одночасно, не б'ються за одну кеш-лінію.
+ */
+public final class Counter {
+    private final LongAdder value = new LongAdder();
+
+    public void inc() { value.increment(); }
+
+    public void add(long n) { value.add(n); }
+
+    public long get() { return value.sum(); }
+}
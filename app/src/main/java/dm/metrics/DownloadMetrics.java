@@ -0,0 +1,248 @@
+package dm.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Метрики рушія завантажень: глобальні, по хосту і по задачі, що зараз качається.
+ * Гарячі шляхи (байти, час тротлінгу, запис у базу) лише додають у Counter/Histogram;
+ * усе інше — функції, які читаються під час знімка. Знімок віддається в текстовому
+ * форматі Prometheus: тривалості зберігаються в наносекундах, а експортуються в секундах.
+ */
+public final class DownloadMetrics {
+
+    /** Метрики одного хоста. active — відкриті передачі (потоки й сегменти), тобто з'єднання. */
+    public static final class Host {
+        public final String name;
+        public final Counter bytes = new Counter();
+        public final Counter errors = new Counter();
+        public final Counter retries = new Counter();
+        public final AtomicInteger active = new AtomicInteger();
+        public final Histogram firstByte = new Histogram(); // від запиту до першої порції тіла, нс
+        final RateWindow rate = new RateWindow(bytes);
+
+        Host(String name) { this.name = name; }
+
+        /** Байт/с з моменту попереднього читання (не коротше секунди). */
+        public double bytesPerSecond() { return rate.perSecond(); }
+    }
+
+    /** Метрики задачі, поки вона качається; після завершення задача з метрик прибирається. */
+    public static final class Task {
+        public final int id;
+        public final String host;
+        public final Counter bytes = new Counter();
+        public final Counter throttledNs = new Counter();
+        volatile DoubleSupplier rate = () -> 0;
+
+        Task(int id, String host) { this.id = id; this.host = host; }
+
+        /** Поточна швидкість задачі, байт/с (береться з її ProgressMeter). */
+        public double bytesPerSecond() { return rate.getAsDouble(); }
+    }
+
+    private static final class Sampled {
+        final String type;
+        final String help;
+        final LongSupplier value;
+        Sampled(String type, String help, LongSupplier value) { this.type = type; this.help = help; this.value = value; }
+    }
+
+    public final Counter bytes = new Counter();
+    public final Histogram dbWrites; // тривалість запису в SQLite разом з очікуванням lock, нс
+    private final RateWindow rate = new RateWindow(bytes);
+    private final Map<String, Host> hosts = new ConcurrentHashMap<>();
+    private final Map<Integer, Task> tasks = new ConcurrentHashMap<>();
+    private final Map<String, Sampled> sampled = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService exporter = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread th = new Thread(r, "metrics-export");
+        th.setDaemon(true);
+        return th;
+    });
+    private ScheduledFuture<?> export;
+    private volatile Path exportFile;
+
+    public DownloadMetrics(Histogram dbWrites) {
+        this.dbWrites = dbWrites;
+    }
+
+    public Host host(String name) { return hosts.computeIfAbsent(name, Host::new); }
+
+    public List<Host> hosts() { return new ArrayList<>(new TreeMap<>(hosts).values()); }
+
+    public Task startTask(int id, String host, DoubleSupplier rate) {
+        Task t = new Task(id, host);
+        t.rate = rate;
+        tasks.put(id, t);
+        return t;
+    }
+
+    /** Метрики задачі або null, якщо вона зараз не качається. */
+    public Task task(int id) { return tasks.get(id); }
+
+    public void finishTask(Task t) { tasks.remove(t.id, t); }
+
+    public List<Task> tasks() { return new ArrayList<>(new TreeMap<>(tasks).values()); }
+
+    /** Значення, яке зберігає хтось інший (черга планувальника, пул буферів): читається під час знімка. */
+    public void gauge(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled("gauge", help, value));
+    }
+
+    /** Те саме для величини, що лише зростає. */
+    public void counter(String name, String help, LongSupplier value) {
+        sampled.put(name, new Sampled("counter", help, value));
+    }
+
+    public long sampledValue(String name) {
+        Sampled s = sampled.get(name);
+        return s == null ? 0 : s.value.getAsLong();
+    }
+
+    public double bytesPerSecond() { return rate.perSecond(); }
+
+    public void writePrometheus(Appendable out) throws IOException {
+        family(out, "dm_bytes_total", "counter", "Bytes received by all transfers");
+        sample(out, "dm_bytes_total", "", bytes.get());
+        family(out, "dm_bytes_per_second", "gauge", "Receive rate since the previous snapshot");
+        sample(out, "dm_bytes_per_second", "", rate.perSecond());
+        summary(out, "dm_sqlite_write_seconds", "SQLite write latency including the writer lock wait", "", dbWrites);
+
+        for (Map.Entry<String, Sampled> e : new TreeMap<>(sampled).entrySet()) {
+            family(out, e.getKey(), e.getValue().type, e.getValue().help);
+            sample(out, e.getKey(), "", e.getValue().value.getAsLong());
+        }
+
+        List<Host> hs = hosts();
+        family(out, "dm_host_active_connections", "gauge", "Open transfers per host");
+        for (Host h : hs) sample(out, "dm_host_active_connections", label("host", h.name), h.active.get());
+        family(out, "dm_host_bytes_total", "counter", "Bytes received per host");
+        for (Host h : hs) sample(out, "dm_host_bytes_total", label("host", h.name), h.bytes.get());
+        family(out, "dm_host_bytes_per_second", "gauge", "Receive rate per host since the previous snapshot");
+        for (Host h : hs) sample(out, "dm_host_bytes_per_second", label("host", h.name), h.bytesPerSecond());
+        family(out, "dm_host_errors_total", "counter", "Failed download attempts per host");
+        for (Host h : hs) sample(out, "dm_host_errors_total", label("host", h.name), h.errors.get());
+        family(out, "dm_host_retries_total", "counter", "Automatic retries scheduled per host");
+        for (Host h : hs) sample(out, "dm_host_retries_total", label("host", h.name), h.retries.get());
+        family(out, "dm_host_first_byte_seconds", "summary", "Time from request to the first body byte");
+        for (Host h : hs) quantiles(out, "dm_host_first_byte_seconds", label("host", h.name), h.firstByte);
+
+        List<Task> ts = tasks();
+        family(out, "dm_task_bytes_total", "counter", "Bytes received by a running task in this run");
+        for (Task t : ts) sample(out, "dm_task_bytes_total", taskLabels(t), t.bytes.get());
+        family(out, "dm_task_bytes_per_second", "gauge", "Current rate of a running task");
+        for (Task t : ts) sample(out, "dm_task_bytes_per_second", taskLabels(t), t.bytesPerSecond());
+        family(out, "dm_task_throttled_seconds_total", "counter", "Time a running task spent waiting on bandwidth limits");
+        for (Task t : ts) sample(out, "dm_task_throttled_seconds_total", taskLabels(t), t.throttledNs.get() / 1e9);
+    }
+
+    /**
+     * Раз на intervalMs переписує file знімком у форматі Prometheus (через тимчасовий файл і rename,
+     * тож збирач не прочитає половину). file = null вимикає.
+     */
+    public synchronized void exportTo(Path file, long intervalMs) {
+        if (export != null) export.cancel(false);
+        export = null;
+        exportFile = file;
+        if (file == null) return;
+        long ms = Math.max(100, intervalMs);
+        export = exporter.scheduleWithFixedDelay(this::exportQuietly, 0, ms, TimeUnit.MILLISECONDS);
+    }
+
+    public Path getExportFile() { return exportFile; }
+
+    /** Пише знімок у file одразу. */
+    public void export(Path file) throws IOException {
+        Path abs = file.toAbsolutePath();
+        Path tmp = abs.resolveSibling(abs.getFileName() + ".tmp");
+        try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            writePrometheus(w);
+        }
+        try {
+            Files.move(tmp, abs, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, abs, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void exportQuietly() {
+        Path f = exportFile;
+        if (f == null) return;
+        try {
+            export(f);
+        } catch (IOException e) {
+            System.out.printf("java error: %s%n", e.toString());
+        }
+    }
+
+    /** Останній знімок перед виходом, якщо експорт увімкнено. */
+    public void close() {
+        exporter.shutdownNow();
+        exportQuietly();
+    }
+
+    private static String taskLabels(Task t) {
+        return "{task=\"" + t.id + "\",host=\"" + escape(t.host) + "\"}";
+    }
+
+    private static String label(String key, String value) {
+        return "{" + key + "=\"" + escape(value) + "\"}";
+    }
+
+    private static String escape(String v) {
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private static void family(Appendable out, String name, String type, String help) throws IOException {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, long value) throws IOException {
+        out.append(name).append(labels).append(' ').append(Long.toString(value)).append('\n');
+    }
+
+    private static void sample(Appendable out, String name, String labels, double value) throws IOException {
+        out.append(name).append(labels).append(' ').append(format(value)).append('\n');
+    }
+
+    private static void summary(Appendable out, String name, String help, String labels, Histogram h) throws IOException {
+        family(out, name, "summary", help);
+        quantiles(out, name, labels, h);
+    }
+
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private static void quantiles(Appendable out, String name, String labels, Histogram h) throws IOException {
+        String inner = labels.isEmpty() ? "" : labels.substring(1, labels.length() - 1) + ",";
+        for (double q : QUANTILES) {
+            sample(out, name, "{" + inner + "quantile=\"" + q + "\"}", h.percentile(q) / 1e9);
+        }
+        sample(out, name + "_sum", labels, h.sum() / 1e9);
+        sample(out, name + "_count", labels, h.count());
+    }
+
+    private static String format(double v) {
+        if (Double.isNaN(v)) return "NaN";
+        return String.format(Locale.ROOT, "%.6g", v);
+    }
+}
@@ -0,0 +1,67 @@
+package dm.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Розподіл значень (тут — тривалостей у наносекундах) у лог-лінійних кошиках, як у HdrHistogram:
+ * кожна степінь двійки ділиться на SUB рівних кошиків, тож відносна похибка перцентиля —
+ * до 1/SUB незалежно від масштабу, а пам'ять стала (BUCKETS лічильників) на весь діапазон long.
+ * record — два атомарні додавання без блокувань.
+ */
+public final class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS; // 16 кошиків на октаву: похибка до ~6%
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        long v = Math.max(0, value);
+        counts.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        max.accumulate(v);
+    }
+
+    public long count() { return count.sum(); }
+
+    public long sum() { return sum.sum(); }
+
+    public long max() { return max.get(); }
+
+    /**
+     * Значення, не більше якого q (0..1) усіх записаних, з точністю до кошика (верхня межа,
+     * але не більше max). 0, якщо записів ще не було.
+     */
+    public long percentile(double q) {
+        long total = count.sum();
+        if (total == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v); // старший біт, >= SUB_BITS
+        int sub = (int) (v >>> (e - SUB_BITS)) & (SUB - 1);
+        return (e - SUB_BITS + 1) * SUB + sub;
+    }
+
+    /** Найбільше значення, що потрапляє в кошик i. */
+    static long upperBound(int i) {
+        if (i < SUB) return i;
+        int shift = i / SUB - 1;
+        long lower = (long) (SUB + i % SUB) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
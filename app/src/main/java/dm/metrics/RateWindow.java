@@ -0,0 +1,29 @@
+package dm.metrics;
+
+/**
+ * Швидкість приросту лічильника між читаннями: вікно закривається, коли від попереднього
+ * минуло не менше WINDOW_NS, а до того повертається значення за останнє закрите вікно.
+ * Фонового потоку немає — рахує той, хто читає (stats, експорт).
+ */
+final class RateWindow {
+    private static final long WINDOW_NS = 1_000_000_000L;
+
+    private final Counter source;
+    private long windowNs = System.nanoTime();
+    private long windowValue;
+    private double rate;
+
+    RateWindow(Counter source) { this.source = source; }
+
+    synchronized double perSecond() {
+        long now = System.nanoTime();
+        long dt = now - windowNs;
+        if (dt >= WINDOW_NS) {
+            long v = source.get();
+            rate = (v - windowValue) * 1e9 / dt;
+            windowNs = now;
+            windowValue = v;
+        }
+        return rate;
+    }
+}
@@ -0,0 +1,154 @@
+package dm.net;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Спільний пул direct-буферів для запису тіла у файл. Розміри — степені двійки від MIN_SIZE
+ * до MAX_SIZE; буфер повертається у чергу свого класу і береться звідти наступною передачею.
+ * capacity обмежує всю пам'ять пулу (видані + вільні): коли її не вистачає, спершу
+ * відпускаються вільні буфери інших класів, а якщо й це не допомагає — acquire повертає null,
+ * і передача пише буферами HttpClient напряму, як без пулу. capacity = 0 вимикає пул.
+ */
+public final class BufferPool {
+    public static final int MIN_SIZE = 16 * 1024;
+    public static final int MAX_SIZE = 1024 * 1024;
+    private static final int CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    /** Знімок стану пулу для команди buffers і метрик. */
+    public static final class Stats {
+        public final long capacity;
+        public final long allocated; // видані + вільні
+        public final long inUse;
+        public final long hits;
+        public final long misses;
+        public final long exhausted;
+
+        Stats(long capacity, long allocated, long inUse, long hits, long misses, long exhausted) {
+            this.capacity = capacity; this.allocated = allocated; this.inUse = inUse;
+            this.hits = hits; this.misses = misses; this.exhausted = exhausted;
+        }
+
+        /** Частка запитів, обслужених вільним буфером з пулу; NaN — запитів ще не було. */
+        public double hitRate() {
+            long total = hits + misses + exhausted;
+            return total == 0 ? Double.NaN : (double) hits / total;
+        }
+    }
+
+    /** Вільні буфери за класом розміру, від MIN_SIZE; список замість масиву — масив generic-типу лише raw. */
+    private final List<ConcurrentLinkedQueue<ByteBuffer>> free = new ArrayList<>(CLASSES);
+    private volatile long capacity;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong inUse = new AtomicLong();
+    private final AtomicLong idle = new AtomicLong(); // вільні буфери в чергах
+    private final AtomicInteger leased = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+
+    public BufferPool(long capacity) {
+        for (int i = 0; i < CLASSES; i++) free.add(new ConcurrentLinkedQueue<>());
+        setCapacity(capacity);
+    }
+
+    /** Зменшення не забирає вже видані буфери: зайве звільниться, коли їх повернуть. */
+    public void setCapacity(long bytes) {
+        capacity = Math.max(0, bytes);
+        trim(0);
+    }
+
+    public long getCapacity() { return capacity; }
+
+    /** Найменший клас, у який вміщується size байтів (обрізано до MIN_SIZE..MAX_SIZE). */
+    public static int sizeClass(long size) {
+        if (size <= MIN_SIZE) return MIN_SIZE;
+        if (size >= MAX_SIZE) return MAX_SIZE;
+        return Integer.highestOneBit((int) size - 1) << 1;
+    }
+
+    /**
+     * Найбільший клас, який ще вміщується в рівну частку capacity на кожен виданий буфер:
+     * більше не варто просити, інакше швидкі передачі забирають пам'ять у решти.
+     */
+    public int share() {
+        long fair = capacity / Math.max(1, leased.get());
+        if (fair <= MIN_SIZE) return MIN_SIZE;
+        if (fair >= MAX_SIZE) return MAX_SIZE;
+        return Integer.highestOneBit((int) fair);
+    }
+
+    /** Чистий буфер розміру sizeClass(size) або null, якщо пул вичерпано. */
+    public ByteBuffer acquire(int size) {
+        int cls = sizeClass(size);
+        ByteBuffer b = free.get(index(cls)).poll();
+        if (b != null) {
+            idle.addAndGet(-cls);
+            hits.increment();
+            inUse.addAndGet(cls);
+            leased.incrementAndGet();
+            return b;
+        }
+        if (!reserve(cls)) {
+            exhausted.increment();
+            return null;
+        }
+        misses.increment();
+        inUse.addAndGet(cls);
+        leased.incrementAndGet();
+        return ByteBuffer.allocateDirect(cls);
+    }
+
+    /** Повертає буфер, отриманий з acquire; після цього ним користуватись не можна. */
+    public void release(ByteBuffer b) {
+        int cls = b.capacity();
+        inUse.addAndGet(-cls);
+        leased.decrementAndGet();
+        if (allocated.get() > capacity) {
+            allocated.addAndGet(-cls); // пул зменшили — буфер забере GC
+            return;
+        }
+        b.clear();
+        idle.addAndGet(cls);
+        free.get(index(cls)).offer(b);
+    }
+
+    public Stats stats() {
+        return new Stats(capacity, allocated.get(), inUse.get(), hits.sum(), misses.sum(), exhausted.sum());
+    }
+
+    private boolean reserve(int cls) {
+        while (true) {
+            long cur = allocated.get();
+            if (cur + cls > capacity) {
+                // навіть усі вільні не звільнять досить місця — не відпускаємо їх даремно
+                if (cur - idle.get() + cls > capacity || !trim(cls)) return false;
+                continue;
+            }
+            if (allocated.compareAndSet(cur, cur + cls)) return true;
+        }
+    }
+
+    /** Відпускає вільні буфери, доки під need не звільниться місце; false — більше нічого відпустити. */
+    private boolean trim(long need) {
+        boolean dropped = false;
+        for (int i = CLASSES - 1; i >= 0 && allocated.get() + need > capacity; i--) {
+            ByteBuffer b;
+            while (allocated.get() + need > capacity && (b = free.get(i).poll()) != null) {
+                idle.addAndGet(-b.capacity());
+                allocated.addAndGet(-b.capacity());
+                dropped = true;
+            }
+        }
+        return dropped;
+    }
+
+    private static int index(int cls) {
+        return Integer.numberOfTrailingZeros(cls / MIN_SIZE);
+    }
+}
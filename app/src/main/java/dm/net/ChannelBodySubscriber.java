@@ -0,0 +1,110 @@
+package dm.net;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Приймає тіло відповіді тими буферами, які заповнив сам HttpClient, і віддає їх
+ * потоку завантаження без проміжного InputStream і власного буфера.
+ * Наступну порцію підписка просить лише після того, як попередню записано у файл,
+ * тож у пам'яті ніколи не лежить більше ніж PREFETCH порцій.
+ */
+public final class ChannelBodySubscriber implements HttpResponse.BodySubscriber<ChannelBodySubscriber> {
+    private static final int PREFETCH = 4;
+    private static final long POLL_MS = 100;
+    /** Скільки за замовчуванням чекати наступної порції, перш ніж вважати з'єднання завислим. */
+    static final long IDLE_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(30);
+    private static final List<ByteBuffer> END = Collections.unmodifiableList(new ArrayList<>());
+
+    private final BlockingQueue<List<ByteBuffer>> chunks = new LinkedBlockingQueue<>();
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean finished;
+    private final long idleTimeoutNs;
+
+    public ChannelBodySubscriber() {
+        this(IDLE_TIMEOUT_NS);
+    }
+
+    /** idleTimeoutNs — без жодної порції стільки часу next() кидає HttpTimeoutException. */
+    public ChannelBodySubscriber(long idleTimeoutNs) {
+        this.idleTimeoutNs = idleTimeoutNs;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription s) {
+        subscription = s;
+        s.request(PREFETCH);
+    }
+
+    @Override public void onNext(List<ByteBuffer> item) { chunks.add(item); }
+
+    @Override
+    public void onError(Throwable t) {
+        error = t;
+        finished = true;
+        chunks.add(END);
+    }
+
+    @Override
+    public void onComplete() {
+        finished = true;
+        chunks.add(END);
+    }
+
+    @Override
+    public CompletionStage<ChannelBodySubscriber> getBody() {
+        return CompletableFuture.completedFuture(this);
+    }
+
+    /**
+     * Наступна порція даних. null — тіло закінчилось або спрацював stopFlag
+     * (в останньому випадку підписку скасовано).
+     */
+    public List<ByteBuffer> next(RangeHttpClient.InterruptFlag stopFlag) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + idleTimeoutNs;
+        while (true) {
+            if (stopFlag.isSet()) {
+                cancel();
+                return null;
+            }
+            List<ByteBuffer> c = chunks.poll(POLL_MS, TimeUnit.MILLISECONDS);
+            if (c == null) {
+                if (System.nanoTime() - deadline > 0) {
+                    cancel();
+                    throw new HttpTimeoutException("No body data for " + TimeUnit.NANOSECONDS.toMillis(idleTimeoutNs) + " ms");
+                }
+                continue;
+            }
+            if (c == END) {
+                chunks.add(END);
+                if (error != null) throw new IOException("Body receive failed", error);
+                return null;
+            }
+            return c;
+        }
+    }
+
+    /** Порцію оброблено — можна просити наступну. */
+    public void request() { subscription.request(1); }
+
+    /**
+     * Скасовує ще не дочитане тіло. Після onComplete нічого не робить: з'єднання
+     * вже повернулось у пул і може обслуговувати інший запит.
+     */
+    public void cancel() {
+        Flow.Subscription s = subscription;
+        if (s != null && !finished) s.cancel();
+    }
+}
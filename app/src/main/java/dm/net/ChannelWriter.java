@@ -0,0 +1,37 @@
+package dm.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/** Записи з позиції каналу; кілька буферів — одним gather-записом. */
+final class ChannelWriter implements TargetWriter {
+    private final FileChannel fc;
+    private long position;
+
+    ChannelWriter(FileChannel fc, long from) throws IOException {
+        this.fc = fc;
+        this.position = from;
+        fc.position(from);
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) position += fc.write(src);
+    }
+
+    @Override
+    public void write(ByteBuffer[] srcs) throws IOException {
+        long n = 0;
+        for (ByteBuffer b : srcs) n += b.remaining();
+        while (n > 0) {
+            long w = fc.write(srcs);
+            n -= w;
+            position += w;
+        }
+    }
+
+    @Override public long position() { return position; }
+
+    @Override public void close() {}
+}
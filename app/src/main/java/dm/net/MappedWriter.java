@@ -0,0 +1,70 @@
+package dm.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Пише у відображення файлу вікнами по WINDOW байтів: порція з мережі копіюється в пам'ять
+ * сторінок файлу без системного виклику на кожну. Коли запис виходить за вікно, старе
+ * скидається на диск (force) і відпускається; саме відображення JDK знімає, коли буфер
+ * збирає GC, — явного unmap у Java 21 без preview API немає.
+ *
+ * Поточне вікно ProgressJournal скидає через force() (RangeHttpClient.force) перед fsync файлу
+ * і до того, як записати прогрес, — не покладаючись на те, що fsync на Linux бачить і сторінки відображення.
+ */
+final class MappedWriter implements TargetWriter {
+    static final long WINDOW = 64L * 1024 * 1024;
+
+    private final FileChannel fc;
+    private final long end;
+    private long position;
+    // volatile: force() з потоку журналу бере поточне вікно, поки потік завантаження пише
+    private volatile MappedByteBuffer window;
+
+    MappedWriter(FileChannel fc, long from, long to) {
+        this.fc = fc;
+        this.position = from;
+        this.end = to;
+    }
+
+    @Override
+    public void write(ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (window == null || !window.hasRemaining()) next();
+            int n = Math.min(src.remaining(), window.remaining());
+            int limit = src.limit();
+            src.limit(src.position() + n);
+            window.put(src);
+            src.limit(limit);
+            position += n;
+        }
+    }
+
+    private void next() throws IOException {
+        retire();
+        if (position >= end) throw new IOException("Write past the mapped range: " + position + " >= " + end);
+        window = fc.map(FileChannel.MapMode.READ_WRITE, position, Math.min(WINDOW, end - position));
+    }
+
+    private void retire() {
+        if (window == null) return;
+        window.force();
+        window = null;
+    }
+
+    @Override public long position() { return position; }
+
+    /**
+     * Вікно, яке щойно замінили, retire() вже скинув; у поточному лежить усе записане після нього.
+     * force() сторінок відображення не заважає одночасному put() у нього.
+     */
+    @Override
+    public void force() {
+        MappedByteBuffer w = window;
+        if (w != null) w.force();
+    }
+
+    @Override public void close() { retire(); }
+}
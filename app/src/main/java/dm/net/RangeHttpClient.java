@@ -1,106 +1,676 @@
 package dm.net;
 
+import dm.digest.StreamDigest;
+import dm.metrics.DownloadMetrics;
+
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.ProxySelector;
 import java.net.URI;
 import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
 import java.net.http.HttpResponse;
 import java.net.http.HttpRequest;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.FileChannel;
 import java.nio.file.*;
-import java.util.function.LongSupplier;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class RangeHttpClient {
+    /** Скільки чекати на з'єднання і на заголовки відповіді. */
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * HTTP_1_1 — окреме keep-alive з'єднання на кожну паралельну передачу (пул HttpClient).
+     * HTTP_2 — домовляємось про h2 (ALPN для https, Upgrade: h2c для http); тоді всі задачі
+     * й сегменти до одного хоста йдуть потоками одного з'єднання. Якщо сервер h2 не вміє,
+     * HttpClient сам лишається на HTTP/1.1 з тим самим пулом.
+     */
+    public enum Protocol { HTTP_1_1, HTTP_2 }
+
+    private final Protocol protocol;
+    // один клієнт на всі задачі: у нього спільний пул, тож на хост — одне h2-з'єднання
+    private final HttpClient client;
+
+    public RangeHttpClient() {
+        this(Protocol.HTTP_1_1);
+    }
+
+    public RangeHttpClient(Protocol protocol) {
+        this.protocol = protocol;
+        if (protocol == Protocol.HTTP_2) tuneHttp2();
+        this.client = HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .version(protocol == Protocol.HTTP_2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1)
+                .proxy(ProxySelector.getDefault())
+                .connectTimeout(TIMEOUT)
+                .build();
+    }
+
+    public Protocol getProtocol() { return protocol; }
+
+    /** Відкриті MAPPED-записувачі за абсолютним шляхом файлу: force(file) скидає їхні вікна. */
+    private final Map<Path, Set<TargetWriter>> mapped = new ConcurrentHashMap<>();
+
+    /** Скидає вікна відображення всіх завантажень у file, що зараз пишуться (для CHANNEL — нічого). */
+    public void force(Path file) throws IOException {
+        Set<TargetWriter> open = mapped.get(file.toAbsolutePath());
+        if (open == null) return;
+        for (TargetWriter w : open) w.force();
+    }
+
+    /** TargetWriter.open, а MAPPED ще й видно з force(file), доки його не закрито (і вікно не скинуто). */
+    private TargetWriter writer(Path file, FileChannel fc, long from, long to, TargetWriter.Mode mode) throws IOException {
+        TargetWriter w = TargetWriter.open(fc, from, to, mode);
+        if (mode != TargetWriter.Mode.MAPPED) return w;
+        Path key = file.toAbsolutePath();
+        mapped.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(w);
+        return new TargetWriter() {
+            @Override public void write(ByteBuffer src) throws IOException { w.write(src); }
+            @Override public void write(ByteBuffer[] srcs) throws IOException { w.write(srcs); }
+            @Override public long position() { return w.position(); }
+            @Override public void force() throws IOException { w.force(); }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    w.close();
+                } finally {
+                    mapped.computeIfPresent(key, (k, set) -> {
+                        set.remove(w);
+                        return set.isEmpty() ? null : set;
+                    });
+                }
+            }
+        };
+    }
+
+    /** З якого розміру файлу MAPPED має сенс: на дрібних відображення коштує більше, ніж економить. */
+    public static final long MAPPED_MIN_BYTES = 256L * 1024 * 1024;
+
+    private volatile TargetWriter.Mode writeMode = TargetWriter.Mode.CHANNEL;
+
+    /** MAPPED діє лише для файлів відомої довжини від MAPPED_MIN_BYTES; решта пишеться через канал. */
+    public void setWriteMode(TargetWriter.Mode mode) { this.writeMode = mode; }
 
-    private final HttpClient client = HttpClient.newBuilder()
-            .followRedirects(HttpClient.Redirect.NORMAL)
-            .version(HttpClient.Version.HTTP_1_1)
-            .proxy(ProxySelector.getDefault())
-            .build();
+    public TargetWriter.Mode getWriteMode() { return writeMode; }
+
+    private TargetWriter.Mode modeFor(long fileLength) {
+        return fileLength >= MAPPED_MIN_BYTES ? writeMode : TargetWriter.Mode.CHANNEL;
+    }
+
+    /** Початковий розмір буфера запису, поки швидкість ще не виміряна. */
+    private static final int START_STAGE = 64 * 1024;
+    /** На скільки часу прийому розрахований буфер запису. */
+    private static final long FLUSH_TARGET_NS = 50_000_000L;
+    /** Довше зібране не лежить: на повільному каналі прогрес не стоїть на місці. */
+    private static final long MAX_STAGE_NS = 1_000_000_000L;
+    /** Скільки direct-пам'яті пулу за замовчуванням: 500 передач по 64 КіБ з запасом. */
+    public static final long DEFAULT_POOL_BYTES = 64L * 1024 * 1024;
+
+    private final BufferPool pool = new BufferPool(DEFAULT_POOL_BYTES);
+
+    /** Спільний для всіх передач цього клієнта; setCapacity(0) вимикає буферизацію запису. */
+    public BufferPool getBufferPool() { return pool; }
+
+    private volatile DownloadMetrics metrics;
+
+    /** Куди записувати час до першого байта по хостах; null — не записувати. */
+    public void setMetrics(DownloadMetrics metrics) { this.metrics = metrics; }
+
+    /** Час від початку запиту до першої порції тіла. */
+    private void firstByte(String url, long startNs) {
+        DownloadMetrics m = metrics;
+        if (m == null) return;
+        String host = URI.create(url).getHost();
+        m.host(host == null ? "" : host.toLowerCase(Locale.ROOT)).firstByte.record(System.nanoTime() - startNs);
+    }
+
+    /**
+     * Вікна HTTP/2 розраховані на кілька великих потоків на одному з'єднанні: вікно з'єднання
+     * (128 МіБ) вміщує повні вікна 16 потоків по 8 МіБ, тож швидкий потік не чекає на
+     * WINDOW_UPDATE через повільний. Push не потрібен. HttpClient читає ці властивості один раз, при першому
+     * створенні, тому задаємо їх до build() і лише якщо їх не задали через -D.
+     */
+    private static void tuneHttp2() {
+        setIfAbsent("jdk.httpclient.windowsize", Integer.toString(8 * 1024 * 1024));
+        setIfAbsent("jdk.httpclient.connectionWindowSize", Integer.toString(128 * 1024 * 1024));
+        setIfAbsent("jdk.httpclient.bufsize", Integer.toString(64 * 1024));
+        setIfAbsent("jdk.httpclient.enablepush", "0");
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) System.setProperty(key, value);
+    }
+
+    private volatile long idleTimeoutNs = ChannelBodySubscriber.IDLE_TIMEOUT_NS;
+
+    /** Скільки тіло відповіді може мовчати, перш ніж передача вважається завислою і повторюється. */
+    public void setIdleTimeout(Duration timeout) { this.idleTimeoutNs = timeout.toNanos(); }
 
     public static final class Result {
         public final long contentLength;
         public final boolean supportsRange;
+        public final boolean restarted; // просили продовження, а отримали файл з нуля
         public Result(long contentLength, boolean supportsRange) {
-            this.contentLength = contentLength; this.supportsRange = supportsRange;
+            this(contentLength, supportsRange, false);
+        }
+        public Result(long contentLength, boolean supportsRange, boolean restarted) {
+            this.contentLength = contentLength; this.supportsRange = supportsRange; this.restarted = restarted;
+        }
+    }
+
+    /**
+     * Версія файлу на сервері: ETag і Last-Modified з останньої відповіді.
+     * Передається в download/downloadRange/probe і оновлюється з заголовків відповіді,
+     * тож після виклику в ньому те, що варто зберегти разом із прогресом.
+     */
+    public static final class Validators {
+        public String etag;
+        public String lastModified;
+
+        public Validators() {}
+
+        public Validators(String etag, String lastModified) {
+            this.etag = etag; this.lastModified = lastModified;
+        }
+
+        public boolean isEmpty() { return etag == null && lastModified == null; }
+
+        /** If-Range приймає лише сильний ETag; інакше — дату. */
+        String ifRange() {
+            if (etag != null && !etag.startsWith("W/")) return etag;
+            return lastModified;
+        }
+
+        /** Відповідь явно від іншої версії файлу (порівнюється те, що є з обох боків). */
+        boolean changedBy(HttpHeaders h) {
+            String e = h.firstValue("ETag").orElse(null);
+            if (etag != null && e != null) return !etag.equals(e);
+            String lm = h.firstValue("Last-Modified").orElse(null);
+            return lastModified != null && lm != null && !lastModified.equals(lm);
+        }
+
+        /** Відповідь точно від тієї самої версії: збігся ETag, а без нього — Last-Modified. */
+        boolean sameAs(HttpHeaders h) {
+            String e = h.firstValue("ETag").orElse(null);
+            if (etag != null && e != null) return etag.equals(e);
+            String lm = h.firstValue("Last-Modified").orElse(null);
+            return lastModified != null && lastModified.equals(lm);
+        }
+
+        void update(HttpHeaders h) {
+            etag = h.firstValue("ETag").orElse(null);
+            lastModified = h.firstValue("Last-Modified").orElse(null);
+        }
+
+        @Override public boolean equals(Object o) {
+            return o instanceof Validators v && Objects.equals(etag, v.etag) && Objects.equals(lastModified, v.lastModified);
+        }
+
+        @Override public int hashCode() { return Objects.hash(etag, lastModified); }
+    }
+
+    /** Файл на сервері змінився, поки частина вже лежить на диску: продовжувати не можна. */
+    public static final class RemoteChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public RemoteChangedException(String url) { super("Remote file changed: " + url); }
+    }
+
+    /**
+     * Сервер відповів статусом, з яким далі йти не можна. retryAfterMs — з заголовка Retry-After
+     * (секунди або дата), -1 — заголовка немає.
+     */
+    public static final class HttpStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+        public final long retryAfterMs;
+
+        public HttpStatusException(String message, int status, HttpHeaders headers) {
+            super(message);
+            this.status = status;
+            this.retryAfterMs = headers.firstValue("Retry-After").map(HttpStatusException::parseRetryAfter).orElse(-1L);
+        }
+
+        private static long parseRetryAfter(String v) {
+            v = v.trim();
+            try {
+                return Math.max(0, Long.parseLong(v)) * 1000;
+            } catch (NumberFormatException e) {
+                try {
+                    long at = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                    return Math.max(0, at - System.currentTimeMillis());
+                } catch (DateTimeParseException ex) {
+                    return -1;
+                }
+            }
         }
     }
 
+    /** Результат refresh для вже завантаженого файлу. */
+    public enum Freshness { NOT_MODIFIED, MODIFIED, UNKNOWN }
+
     /** Завантаження у файл з можливістю відновлення (Range) і простим тротлінгом. */
     public Result download(String url, Path target, long startAt,
                            ProgressListener progress, InterruptFlag stopFlag,
-                           LongSupplier limitBps) throws Exception {
+                           Throttle throttle) throws Exception {
+        return download(url, target, startAt, progress, stopFlag, throttle, null);
+    }
+
+    /**
+     * Те саме, але ще й рахує контрольну суму записаних байтів (digest може бути null).
+     * Якщо стан digest не відповідає місцю продовження, префікс файлу досчитується з диска.
+     * Коли викликається progress, digest.position() дорівнює переданій кількості байтів.
+     */
+    public Result download(String url, Path target, long startAt,
+                           ProgressListener progress, InterruptFlag stopFlag,
+                           Throttle throttle, StreamDigest digest) throws Exception {
+        return download(url, target, startAt, progress, stopFlag, throttle, digest, new Validators());
+    }
+
+    /**
+     * Продовження з перевіркою версії: Range іде разом з If-Range із validators. Якщо сервер
+     * відповів 200 (Range не вміє або файл змінився) — файл пишеться з нуля, а не дописується.
+     * validators після виклику описують версію, з якої зараз складається файл.
+     */
+    public Result download(String url, Path target, long startAt,
+                           ProgressListener progress, InterruptFlag stopFlag,
+                           Throttle throttle, StreamDigest digest, Validators validators) throws Exception {
+
+        Files.createDirectories(target.toAbsolutePath().getParent());
+
+        // READ: префікс досчитується для контрольної суми, і MAPPED відображає файл на читання-запис
+        try (FileChannel fc = FileChannel.open(target,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Збережений прогрес може відставати від файлу (або файл могли обрізати):
+            // продовжуємо рівно з меншого з двох, а хвіст після нього відкидаємо.
+            long requested = Math.min(startAt, fc.size());
 
+            long startNs = System.nanoTime();
+            HttpResponse<ChannelBodySubscriber> resp = send(url, requested, validators);
+            int code = resp.statusCode();
+            if (code == 206 && validators.changedBy(resp.headers())) {
+                // If-Range не спрацював (слабкий ETag без дати) — шматок іншої версії не склеюємо
+                resp.body().cancel();
+                resp = send(url, 0, validators);
+                code = resp.statusCode();
+            }
+            if (code != 200 && code != 206) {
+                resp.body().cancel();
+                throw new HttpStatusException("HTTP " + code + " while downloading: " + url, code, resp.headers());
+            }
+            if (code == 206 && rangeStart(resp.headers()) != requested) {
+                resp.body().cancel();
+                throw new IOException("Unexpected Content-Range for " + url + ": "
+                        + resp.headers().firstValue("Content-Range").orElse("none"));
+            }
+            long from = (code == 206) ? requested : 0;
+            // 206 без валідаторів — та сама версія, що й раніше: збережені не стираємо
+            if (code == 200 || resp.headers().firstValue("ETag").isPresent()
+                    || resp.headers().firstValue("Last-Modified").isPresent()) {
+                validators.update(resp.headers());
+            }
+
+            long clenHeader = resp.headers().firstValueAsLong("Content-Length").orElse(-1L);
+            boolean supportsRange = code == 206
+                    || resp.headers().firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+            long knownTotal = (clenHeader > 0 && from > 0) ? (clenHeader + from) : clenHeader;
+
+            fc.truncate(from);
+            // розмір відомий — файл одразу повної довжини, а не росте порціями
+            if (knownTotal > from) preallocate(fc, knownTotal);
+            if (digest != null && digest.position() != from) {
+                digest.reset();
+                digest.update(fc, 0, from);
+            }
+            if (from < startAt) progress.onProgress(from, knownTotal); // прогрес відкотився разом із файлом
+
+            ChannelBodySubscriber body = resp.body();
+            try {
+                long written = from;
+                TargetWriter.Mode mode = knownTotal > 0 ? modeFor(knownTotal) : TargetWriter.Mode.CHANNEL;
+                try (TargetWriter out = writer(target, fc, from, Math.max(knownTotal, from), mode);
+                     Sink sink = new Sink(out, mode, digest)) {
+                    List<ByteBuffer> chunk;
+                    boolean first = true;
+                    while ((chunk = body.next(stopFlag)) != null) {
+                        if (first) firstByte(url, startNs);
+                        first = false;
+                        sink.put(chunk, Long.MAX_VALUE, throttle);
+                        body.request();
+                        // прогрес — лише по байтах, які вже у файлі, а не в буфері
+                        if (out.position() != written) progress.onProgress(written = out.position(), knownTotal);
+                    }
+                    sink.flush();
+                    if (out.position() != written) progress.onProgress(written = out.position(), knownTotal);
+                }
+                // тіло скінчилось раніше, ніж обіцяв Content-Length: хвіст із нулів не лишаємо
+                if (!stopFlag.isSet() && fc.size() > written) fc.truncate(written);
+            } finally {
+                body.cancel();
+            }
+
+            return new Result(knownTotal, supportsRange, from < startAt);
+        }
+    }
+
+    private HttpResponse<ChannelBodySubscriber> send(String url, long from, Validators validators) throws Exception {
         HttpRequest.Builder rb = HttpRequest.newBuilder(URI.create(url))
                 .header("User-Agent", "DownloadManager/1.0 (+java)")
+                .timeout(TIMEOUT)
                 .GET();
-        if (startAt > 0) rb.header("Range", "bytes=" + startAt + "-");
+        if (from > 0) {
+            rb.header("Range", "bytes=" + from + "-");
+            String ifRange = validators.ifRange();
+            if (ifRange != null) rb.header("If-Range", ifRange);
+        }
+        return client.send(rb.build(), info -> new ChannelBodySubscriber(idleTimeoutNs));
+    }
+
+    /** Перший байт з Content-Range: bytes 100-199/1000; -1, якщо заголовка немає або він дивний. */
+    private static long rangeStart(HttpHeaders h) {
+        String v = h.firstValue("Content-Range").orElse("");
+        if (!v.startsWith("bytes ")) return -1;
+        int dash = v.indexOf('-');
+        try {
+            return dash > 6 ? Long.parseLong(v.substring(6, dash).trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Розмір файлу і підтримка Range без завантаження тіла: HEAD, а якщо сервер його не любить — GET bytes=0-0. */
+    public Result probe(String url) throws Exception {
+        return probe(url, new Validators());
+    }
+
+    /** Те саме, і ще записує у validators версію файлу, яку побачив сервер. */
+    public Result probe(String url, Validators validators) throws Exception {
+        HttpRequest head = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", "DownloadManager/1.0 (+java)")
+                .timeout(TIMEOUT)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .build();
+        HttpResponse<Void> resp = client.send(head, HttpResponse.BodyHandlers.discarding());
+        if (resp.statusCode() == 200) {
+            validators.update(resp.headers());
+            long len = resp.headers().firstValueAsLong("Content-Length").orElse(-1L);
+            boolean ranges = resp.headers().firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+            return new Result(len, ranges);
+        }
 
-        HttpRequest req = rb.build();
-        HttpResponse<java.io.InputStream> resp = client.send(req, HttpResponse.BodyHandlers.ofInputStream());
+        HttpRequest get = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", "DownloadManager/1.0 (+java)")
+                .timeout(TIMEOUT)
+                .header("Range", "bytes=0-0")
+                .GET()
+                .build();
+        resp = client.send(get, HttpResponse.BodyHandlers.discarding());
         int code = resp.statusCode();
-        if (code != 200 && code != 206) {
-            throw new IOException("HTTP " + code + " while downloading: " + url);
+        if (code == 200 || code == 206) validators.update(resp.headers());
+        if (code == 206) {
+            // Content-Range: bytes 0-0/12345
+            long len = resp.headers().firstValue("Content-Range")
+                    .map(v -> v.substring(v.lastIndexOf('/') + 1).trim())
+                    .filter(v -> !v.equals("*"))
+                    .map(Long::parseLong)
+                    .orElse(-1L);
+            return new Result(len, true);
+        }
+        if (code == 200) {
+            return new Result(resp.headers().firstValueAsLong("Content-Length").orElse(-1L), false);
         }
+        throw new HttpStatusException("HTTP " + code + " while probing: " + url, code, resp.headers());
+    }
 
-        long clenHeader = resp.headers().firstValueAsLong("Content-Length").orElse(-1L);
-        boolean supportsRange = code == 206
-                || resp.headers().firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+    /**
+     * Чи змінився вже завантажений файл: умовний GET з If-None-Match / If-Modified-Since.
+     * На 304 тіла немає взагалі; на 200 тіло не читається — з'єднання для нього скасовується.
+     * Без validators перевірити дешево нічого — UNKNOWN без запиту.
+     */
+    public Freshness revalidate(String url, Validators validators) throws Exception {
+        if (validators.isEmpty()) return Freshness.UNKNOWN;
+        HttpRequest.Builder rb = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", "DownloadManager/1.0 (+java)")
+                .timeout(TIMEOUT)
+                .GET();
+        if (validators.etag != null) rb.header("If-None-Match", validators.etag);
+        if (validators.lastModified != null) rb.header("If-Modified-Since", validators.lastModified);
+        HttpResponse<ChannelBodySubscriber> resp = client.send(rb.build(), info -> new ChannelBodySubscriber(idleTimeoutNs));
+        resp.body().cancel();
+        int code = resp.statusCode();
+        if (code == 304) return Freshness.NOT_MODIFIED;
+        // сервер, що не вміє умовних запитів, віддасть 200 і на незмінений файл — звіряємо самі
+        if (code == 200) return validators.sameAs(resp.headers()) ? Freshness.NOT_MODIFIED : Freshness.MODIFIED;
+        throw new HttpStatusException("HTTP " + code + " while revalidating: " + url, code, resp.headers());
+    }
 
-        Files.createDirectories(target.toAbsolutePath().getParent());
+    /**
+     * Завантажує діапазон [from, to] (включно) у вже створений файл позиційними записами,
+     * тому кілька діапазонів одного файлу можна качати паралельно.
+     * Прогрес повідомляється як кількість байтів, записаних від from.
+     */
+    public void downloadRange(String url, Path target, long from, long to,
+                              ProgressListener progress, InterruptFlag stopFlag,
+                              Throttle throttle) throws Exception {
+        downloadRange(url, target, from, to, progress, stopFlag, throttle, new Validators());
+    }
 
-        OpenOption[] opts = (startAt > 0)
-                ? new OpenOption[]{ StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND }
-                : new OpenOption[]{ StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING };
+    /**
+     * Те саме з If-Range: якщо файл на сервері вже не той, з якого качались інші сегменти,
+     * кидає RemoteChangedException замість того, щоб дописати шматок іншої версії.
+     */
+    public void downloadRange(String url, Path target, long from, long to,
+                              ProgressListener progress, InterruptFlag stopFlag,
+                              Throttle throttle, Validators validators) throws Exception {
+        if (from > to) return;
 
-        try (FileChannel fc = FileChannel.open(target, opts);
-             var in = resp.body();
-             ReadableByteChannel ch = Channels.newChannel(in)) {
+        HttpRequest.Builder rb = HttpRequest.newBuilder(URI.create(url))
+                .header("User-Agent", "DownloadManager/1.0 (+java)")
+                .timeout(TIMEOUT)
+                .header("Range", "bytes=" + from + "-" + to)
+                .GET();
+        String ifRange = validators.ifRange();
+        if (ifRange != null) rb.header("If-Range", ifRange);
+        long startNs = System.nanoTime();
+        HttpResponse<ChannelBodySubscriber> resp = client.send(rb.build(), info -> new ChannelBodySubscriber(idleTimeoutNs));
+        int code = resp.statusCode();
+        if ((code == 200 && ifRange != null) || (code == 206 && validators.changedBy(resp.headers()))) {
+            resp.body().cancel();
+            throw new RemoteChangedException(url);
+        }
+        if (code != 206) {
+            resp.body().cancel();
+            throw new HttpStatusException("HTTP " + code + " for range " + from + "-" + to + ": " + url, code, resp.headers());
+        }
+        if (rangeStart(resp.headers()) != from) {
+            // інший початок — байти лягли б не на своє місце
+            resp.body().cancel();
+            throw new IOException("Unexpected Content-Range for " + url + " (asked " + from + "-" + to + "): "
+                    + resp.headers().firstValue("Content-Range").orElse("none"));
+        }
 
-            long knownTotal = (clenHeader > 0 && startAt > 0) ? (clenHeader + startAt) : clenHeader;
-            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+        long length = to - from + 1;
+        ChannelBodySubscriber body = resp.body();
+        try (FileChannel fc = FileChannel.open(target,
+                     StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             TargetWriter out = writer(target, fc, from, to + 1, modeFor(fc.size()));
+             Sink sink = new Sink(out, modeFor(fc.size()), null)) {
+            long accepted = from, written = from;
+            List<ByteBuffer> chunk;
+            boolean first = true;
+            while (accepted <= to && (chunk = body.next(stopFlag)) != null) {
+                if (first) firstByte(url, startNs);
+                first = false;
+                // сервер не повинен слати більше, ніж просили, але чужий діапазон не затираємо
+                accepted += sink.put(chunk, to + 1 - accepted, throttle);
+                body.request();
+                if (out.position() != written) progress.onProgress((written = out.position()) - from, length);
+            }
+            sink.flush();
+            if (out.position() != written) progress.onProgress(out.position() - from, length);
+            // сервер чи CDN обрізав діапазон: решта сегмента — нулі з preallocate, а не дані
+            if (accepted <= to && !stopFlag.isSet()) {
+                throw new IOException("Range " + from + "-" + to + " ended at " + accepted + ": " + url);
+            }
+        } finally {
+            body.cancel();
+        }
+    }
 
-            long windowStart = System.nanoTime();
-            long bytesInWindow = 0;
+    /**
+     * Порції від HttpClient → записувач. Для CHANNEL байти спершу збираються в direct-буфер
+     * з пулу і йдуть у файл одним записом, коли буфер заповниться (або полежить MAX_STAGE_NS):
+     * менше системних викликів і без тимчасових direct-копій JDK для heap-буферів.
+     * Розмір буфера підлаштовується під виміряну швидкість — приблизно FLUSH_TARGET_NS прийому,
+     * але не більше рівної частки пулу, щоб буфер дістався кожній передачі.
+     * MAPPED, або коли пул вичерпано чи вимкнено, — порції пишуться одразу, як раніше.
+     * Контрольна сума рахується з байтів у момент їх запису.
+     */
+    private final class Sink implements AutoCloseable {
+        private final TargetWriter out;
+        private final StreamDigest digest;
+        private ByteBuffer stage;
+        private long flushNs = System.nanoTime();
+        private double rate; // байт/с, ковзне середнє по записах
 
-            while (ch.read(buf) != -1) {
-                if (stopFlag.isSet()) break;
-                buf.flip();
-                while (buf.hasRemaining()) {
-                    int w = fc.write(buf);
-                    bytesInWindow += w;
-                }
-                buf.clear();
-
-                long written = fc.size();
-                progress.onProgress(written, knownTotal);
-
-                long limit = (limitBps != null) ? limitBps.getAsLong() : 0L;
-                if (limit > 0) {
-                    long elapsedNs = System.nanoTime() - windowStart;
-                    double seconds = elapsedNs / 1_000_000_000.0;
-                    if (seconds > 0 && (bytesInWindow / seconds) > limit) {
-                        long expectedNs = (long)((bytesInWindow * 1_000_000_000.0) / limit);
-                        long sleepNs = expectedNs - elapsedNs;
-                        if (sleepNs > 0) {
-                            Thread.sleep(Math.min(250, sleepNs / 1_000_000));
-                        }
-                    }
-                    if (seconds >= 1.0) {
-                        windowStart = System.nanoTime();
-                        bytesInWindow = 0;
-                    }
+        Sink(TargetWriter out, TargetWriter.Mode mode, StreamDigest digest) {
+            this.out = out;
+            this.digest = digest;
+            this.stage = mode == TargetWriter.Mode.CHANNEL ? pool.acquire(START_STAGE) : null;
+        }
+
+        /** Приймає порцію, не більше max байтів; повертає, скільки прийнято. */
+        long put(List<ByteBuffer> chunk, long max, Throttle throttle) throws IOException, InterruptedException {
+            long n = 0;
+            for (ByteBuffer b : chunk) {
+                if (n + b.remaining() > max) b.limit(b.position() + (int) (max - n));
+                n += b.remaining();
+            }
+            if (n == 0) return 0;
+
+            if (stage == null && throttle.quantum(Integer.MAX_VALUE) >= n) {
+                // одним gather-записом усіх буферів; сума — з копій позицій після запису
+                ByteBuffer[] view = digest != null ? views(chunk) : null;
+                out.write(chunk.toArray(new ByteBuffer[0]));
+                if (view != null) for (ByteBuffer b : view) digest.update(b);
+                throttle.acquire((int) n);
+                return n;
+            }
+            // з лімітом швидкості — шматками по quantum, щоб паузи тротлінгу лишались короткими
+            for (ByteBuffer b : chunk) {
+                while (b.hasRemaining()) {
+                    int q = throttle.quantum(b.remaining());
+                    int end = b.limit();
+                    b.limit(b.position() + q);
+                    accept(b);
+                    b.limit(end);
+                    throttle.acquire(q);
                 }
             }
+            if (stage != null && stage.position() > 0 && System.nanoTime() - flushNs > MAX_STAGE_NS) flush();
+            return n;
         }
 
-        long totalLen = (clenHeader > 0 && startAt > 0) ? (clenHeader + startAt) : clenHeader;
-        return new Result(totalLen, supportsRange);
+        private void accept(ByteBuffer b) throws IOException {
+            if (stage == null) {
+                ByteBuffer view = digest != null ? b.duplicate() : null;
+                out.write(b);
+                if (view != null) digest.update(view);
+                return;
+            }
+            while (b.hasRemaining()) {
+                if (!stage.hasRemaining()) flush();
+                int k = Math.min(b.remaining(), stage.remaining());
+                int end = b.limit();
+                b.limit(b.position() + k);
+                stage.put(b);
+                b.limit(end);
+            }
+        }
+
+        /** Записує все зібране; після цього out.position() враховує кожен прийнятий байт. */
+        void flush() throws IOException {
+            if (stage == null || stage.position() == 0) return;
+            stage.flip();
+            int n = stage.remaining();
+            ByteBuffer view = digest != null ? stage.duplicate() : null;
+            out.write(stage);
+            if (view != null) digest.update(view);
+            stage.clear();
+            resize(n);
+        }
+
+        private void resize(int flushed) {
+            long now = System.nanoTime();
+            double r = flushed * 1e9 / Math.max(1, now - flushNs);
+            flushNs = now;
+            rate = rate == 0 ? r : rate * 0.7 + r * 0.3;
+            int want = Math.min(BufferPool.sizeClass((long) (rate * FLUSH_TARGET_NS / 1e9)), pool.share());
+            if (want == stage.capacity()) return;
+            ByteBuffer next = pool.acquire(want);
+            if (next == null) return; // більшого не дали — лишаємось на поточному
+            pool.release(stage);
+            stage = next;
+        }
+
+        /** Не записує залишок (на помилці він не потрібен) — лише повертає буфер у пул. */
+        @Override
+        public void close() {
+            if (stage != null) pool.release(stage);
+            stage = null;
+        }
+    }
+
+    /** Копії позицій буферів порції: після запису їх ще можна прочитати для контрольної суми. */
+    private static ByteBuffer[] views(List<ByteBuffer> chunk) {
+        ByteBuffer[] out = new ByteBuffer[chunk.size()];
+        for (int i = 0; i < out.length; i++) out[i] = chunk.get(i).duplicate();
+        return out;
+    }
+
+    /**
+     * Створює файл потрібної довжини, щоб сегменти могли писати кожен у своє місце.
+     * fallocate з Java недоступний, тож файл розріджений: розмір відомий ФС одразу, блоки — під час запису.
+     */
+    public static void preallocate(Path target, long length) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (RandomAccessFile raf = new RandomAccessFile(target.toFile(), "rw")) {
+            if (raf.length() != length) raf.setLength(length);
+        }
+    }
+
+    /** Те саме для вже відкритого каналу: один нульовий байт в останній позиції. */
+    private static void preallocate(FileChannel fc, long length) throws IOException {
+        if (fc.size() < length) fc.write(ByteBuffer.allocate(1), length - 1);
+    }
+
+    /** Обмеження швидкості: спільне для всіх завантажень, див. dm.core.BandwidthPolicy. */
+    public interface Throttle {
+        Throttle NONE = new Throttle() {
+            @Override public int quantum(int max) { return max; }
+            @Override public void acquire(int bytes) {}
+        };
+
+        /** Скільки байтів читати за раз (від 1 до max), щоб паузи між порціями були короткими. */
+        int quantum(int max);
+
+        /** Блокує, доки bytes щойно отриманих байтів не вкладуться в ліміти. */
+        void acquire(int bytes) throws InterruptedException;
     }
 
+    /** Викликається після кожного запису в потоці завантаження — має бути дешевим (див. dm.core.ProgressMeter). */
     public interface ProgressListener { void onProgress(long bytesTotal, long contentLength); }
 
     public static final class InterruptFlag {
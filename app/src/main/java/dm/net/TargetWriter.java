@@ -0,0 +1,43 @@
+package dm.net;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Куди пишуться байти одного завантаження (або сегмента): послідовно, починаючи з from.
+ * CHANNEL — звичайні записи в FileChannel, по системному виклику на порцію.
+ * MAPPED — файл відображається в пам'ять вікнами, і порції копіюються прямо у відображення.
+ */
+public interface TargetWriter extends AutoCloseable {
+
+    enum Mode { CHANNEL, MAPPED }
+
+    /**
+     * Записувач для [from, to) вже відкритого каналу. Для MAPPED канал має бути відкритий
+     * на читання і запис, а файл — вже мати довжину не меншу за to.
+     */
+    static TargetWriter open(FileChannel fc, long from, long to, Mode mode) throws IOException {
+        return mode == Mode.MAPPED ? new MappedWriter(fc, from, to) : new ChannelWriter(fc, from);
+    }
+
+    /** Пише всі залишені байти буфера; позиція буфера просувається до limit. */
+    void write(ByteBuffer src) throws IOException;
+
+    /** Те саме для кількох буферів поспіль. */
+    default void write(ByteBuffer[] srcs) throws IOException {
+        for (ByteBuffer b : srcs) write(b);
+    }
+
+    /** Абсолютна позиція у файлі, з якої піде наступний запис. */
+    long position();
+
+    /**
+     * Скидає на диск записане в обхід файлового дескриптора (вікно відображення).
+     * Можна кликати з іншого потоку, ніж той, що пише. Для CHANNEL нічого: досить fsync файлу.
+     */
+    default void force() throws IOException {}
+
+    /** Канал не закривається: ним володіє той, хто його відкрив. */
+    @Override void close() throws IOException;
+}
@@ -0,0 +1,175 @@
+package dm;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Локальна заміна сервера з HTTP/2: той самий вміст за будь-яким шляхом, з Range.
+ * HTTPS із самопідписаним сертифікатом; протокол обирається через ALPN (h2 або http/1.1),
+ * тож обидва режими RangeHttpClient ходять на той самий порт. h2c через Upgrade не годиться:
+ * Jetty 12 і HttpClient з JDK 21 на ньому не домовляються (GOAWAY compression_error).
+ * Потрібен і тестам, і бенчмаркам (ProtocolBenchmark).
+ */
+public final class LocalH2Server implements AutoCloseable {
+    private static final String PASSWORD = "test-only";
+
+    public final byte[] body;
+    /** З'єднання (за id Jetty), через які прийшли запити. */
+    public final Set<String> connections = ConcurrentHashMap.newKeySet();
+    /** Версії протоколу, якими прийшли запити. */
+    public final Set<HttpVersion> versions = ConcurrentHashMap.newKeySet();
+    /** Найбільше запитів, що оброблялись одночасно. */
+    public final AtomicInteger maxActive = new AtomicInteger();
+    /** Затримка перед відповіддю: щоб одночасні запити справді перекривались. */
+    public volatile long delayMs;
+
+    private final Server server;
+    private final ServerConnector connector;
+    private final Path keyStore;
+    private final AtomicInteger active = new AtomicInteger();
+
+    public LocalH2Server(int bodySize) throws Exception {
+        this.body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+        this.keyStore = generateKeyStore();
+        QueuedThreadPool threads = new QueuedThreadPool(256);
+        threads.setName("h2-test");
+        this.server = new Server(threads);
+
+        HttpConfiguration cfg = new HttpConfiguration();
+        SecureRequestCustomizer secure = new SecureRequestCustomizer();
+        secure.setSniHostCheck(false);
+        cfg.addCustomizer(secure);
+        SslContextFactory.Server ssl = new SslContextFactory.Server();
+        ssl.setKeyStorePath(keyStore.toString());
+        ssl.setKeyStoreType("PKCS12");
+        ssl.setKeyStorePassword(PASSWORD);
+        HTTP2ServerConnectionFactory h2 = new HTTP2ServerConnectionFactory(cfg);
+        h2.setMaxConcurrentStreams(256);
+        ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory("h2", "http/1.1");
+        alpn.setDefaultProtocol("http/1.1");
+        this.connector = new ServerConnector(server,
+                new SslConnectionFactory(ssl, alpn.getProtocol()), alpn, h2, new HttpConnectionFactory(cfg));
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        connector.setAcceptQueueSize(1024);
+        server.addConnector(connector);
+        server.setHandler(new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, Callback callback) {
+                serve(request, response, callback);
+                return true;
+            }
+        });
+        server.start();
+    }
+
+    public String url(String name) {
+        return "https://127.0.0.1:" + connector.getLocalPort() + "/" + name;
+    }
+
+    /** Контекст, що довіряє сертифікату цього сервера; RangeHttpClient бере SSLContext.getDefault(). */
+    public SSLContext clientContext() throws Exception {
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStore)) {
+            ks.load(in, PASSWORD.toCharArray());
+        }
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(ks);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tmf.getTrustManagers(), null);
+        return ctx;
+    }
+
+    /** Самопідписаний ключ для 127.0.0.1 — через keytool з того самого JDK. */
+    private static Path generateKeyStore() throws Exception {
+        Path dir = Files.createTempDirectory("dm-test-tls");
+        Path ks = dir.resolve("server.p12");
+        Process p = new ProcessBuilder(
+                Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "test", "-keyalg", "EC", "-groupname", "secp256r1",
+                "-dname", "CN=localhost", "-ext", "SAN=ip:127.0.0.1", "-validity", "2",
+                "-storetype", "PKCS12", "-keystore", ks.toString(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        if (p.waitFor() != 0) throw new IllegalStateException("keytool failed: " + p.exitValue());
+        return ks;
+    }
+
+    /** Скидає лічильники connections, versions і maxActive. */
+    public void reset() {
+        connections.clear();
+        versions.clear();
+        maxActive.set(0);
+    }
+
+    private void serve(Request request, Response response, Callback callback) {
+        connections.add(request.getConnectionMetaData().getId());
+        versions.add(request.getConnectionMetaData().getHttpVersion());
+        maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+        try {
+            if (delayMs > 0) Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            active.decrementAndGet();
+        }
+        int from = 0, to = body.length - 1;
+        response.getHeaders().put(HttpHeader.ACCEPT_RANGES, "bytes");
+        String range = request.getHeaders().get(HttpHeader.RANGE);
+        if (range != null && range.startsWith("bytes=")) {
+            String[] p = range.substring(6).split("-", -1);
+            from = Integer.parseInt(p[0]);
+            if (!p[1].isEmpty()) to = Math.min(to, Integer.parseInt(p[1]));
+            response.setStatus(206);
+            response.getHeaders().put(HttpHeader.CONTENT_RANGE, "bytes " + from + "-" + to + "/" + body.length);
+        } else {
+            response.setStatus(200);
+        }
+        int len = to - from + 1;
+        response.getHeaders().put(HttpHeader.CONTENT_LENGTH, len);
+        if (request.getMethod().equals("HEAD")) {
+            response.write(true, null, callback);
+            return;
+        }
+        response.write(true, ByteBuffer.wrap(body, from, len).asReadOnlyBuffer(), callback);
+    }
+
+    @Override
+    public void close() throws Exception {
+        server.stop();
+        try (Stream<Path> files = Files.walk(keyStore.getParent())) {
+            for (Path p : files.sorted(Comparator.reverseOrder()).toList()) Files.deleteIfExists(p);
+        }
+    }
+}
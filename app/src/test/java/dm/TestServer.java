@@ -0,0 +1,105 @@
+package dm;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Локальний HTTP-сервер для тестів: той самий вміст за будь-яким шляхом, з Range, ETag і If-None-Match.
+ * maxRange і shiftRange імітують сервери, що віддають не той діапазон, який просили.
+ */
+public final class TestServer implements AutoCloseable {
+    public static final String ETAG = "\"v1\"";
+
+    public final byte[] data;
+    /** Скільки байтів найбільше віддається на запит з Range (CDN з лімітом діапазону). */
+    public volatile long maxRange = Long.MAX_VALUE;
+    /** Зсув початку відданого діапазону відносно запитаного. */
+    public volatile long shiftRange;
+    /** Після скількох байтів тіла сервер замовкає, не закриваючи з'єднання; -1 — віддає все. */
+    public volatile int stallAfter = -1;
+    /** GET з тілом (без 304 і HEAD). */
+    public final AtomicInteger bodies = new AtomicInteger();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    public TestServer(int size) throws IOException {
+        this(random(size, 1));
+    }
+
+    public TestServer(byte[] data) throws IOException {
+        this.data = data;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public static byte[] random(int size, long seed) {
+        byte[] b = new byte[size];
+        new Random(seed).nextBytes(b);
+        return b;
+    }
+
+    public String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + path;
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+            ex.getResponseHeaders().add("ETag", ETAG);
+            if (ETAG.equals(ex.getRequestHeaders().getFirst("If-None-Match"))) {
+                ex.sendResponseHeaders(304, -1);
+                return;
+            }
+            String range = ex.getRequestHeaders().getFirst("Range");
+            String ifRange = ex.getRequestHeaders().getFirst("If-Range");
+            if (ifRange != null && !ifRange.equals(ETAG)) range = null;
+            long from = 0, to = data.length - 1;
+            int code = 200;
+            if (range != null && range.startsWith("bytes=")) {
+                String[] p = range.substring(6).split("-", -1);
+                from = Math.min(data.length - 1, Long.parseLong(p[0]) + shiftRange);
+                if (!p[1].isEmpty()) to = Math.min(to, Long.parseLong(p[1]));
+                if (to - from + 1 > maxRange) to = from + maxRange - 1;
+                code = 206;
+                ex.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+            }
+            long len = to - from + 1;
+            if (ex.getRequestMethod().equals("HEAD")) {
+                ex.getResponseHeaders().add("Content-Length", String.valueOf(len));
+                ex.sendResponseHeaders(code, -1);
+                return;
+            }
+            bodies.incrementAndGet();
+            ex.sendResponseHeaders(code, len);
+            try (OutputStream os = ex.getResponseBody()) {
+                int stall = stallAfter;
+                if (stall >= 0 && stall < len) {
+                    os.write(data, (int) from, stall);
+                    os.flush();
+                    Thread.sleep(60_000); // перериває close()
+                }
+                os.write(data, (int) from, (int) len);
+            } catch (IOException | InterruptedException ignored) {
+                // клієнт закрив з'єднання або сервер зупиняється
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,126 @@
+package dm.commands;
+
+import dm.TestServer;
+import dm.core.DownloadService;
+import dm.core.DownloadTask;
+import dm.core.TaskRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Масові й поодинокі команди на живому сервісі; сервер віддає лише кілька байтів і замовкає, тож задачі висять RUNNING. */
+class BulkCommandTest {
+    private static final DownloadTask.Status PAUSED = DownloadTask.Status.PAUSED;
+    private static final DownloadTask.Status ERROR = DownloadTask.Status.ERROR;
+    private static final DownloadTask.Status COMPLETED = DownloadTask.Status.COMPLETED;
+
+    @TempDir Path dir;
+    private TestServer server;
+    private DownloadService svc;
+
+    /** 1 — ERROR, 2 і 3 — PAUSED, 4 — COMPLETED; записані в базу до старту сервісу. */
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestServer(64 * 1024);
+        server.stallAfter = 10;
+        Path db = dir.resolve("tasks.db");
+        try (TaskRepository repo = new TaskRepository(db)) {
+            List<TaskRepository.NewTask> rows = new ArrayList<>();
+            for (int i = 1; i <= 4; i++) rows.add(new TaskRepository.NewTask(server.url("f" + i), dir.resolve("f" + i).toString(), -1, null, 0));
+            repo.createBatch(rows, PAUSED);
+            repo.updateStatus(1, ERROR, 0);
+            repo.updateStatus(4, COMPLETED, 0);
+        }
+        svc = new DownloadService(db);
+        svc.start();
+        svc.setConcurrency(8, 8);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        svc.close();
+        server.close();
+    }
+
+    private DownloadTask.Status status(int id) {
+        return svc.getTasks().status(id);
+    }
+
+    private void awaitRunning(int... ids) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        for (int id : ids) {
+            while (status(id) != DownloadTask.Status.RUNNING) {
+                assertTrue(System.currentTimeMillis() < deadline, "task #" + id + " is " + status(id));
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    private BulkCommand bulk(String selector, DownloadCommand.Action action) {
+        return new BulkCommand(svc, TaskSelector.parse(selector.split(" "), 0), action);
+    }
+
+    @Test
+    void undoOfResumeReturnsFailedTasksToError() throws Exception {
+        BulkCommand resume = bulk("1-4", DownloadCommand.Action.RESUME);
+        resume.execute();
+        assertEquals(3, resume.getCount()); // завершена не відновлюється
+        awaitRunning(1, 2, 3);
+
+        resume.undo();
+        assertEquals(ERROR, status(1));
+        assertEquals(PAUSED, status(2));
+        assertEquals(PAUSED, status(3));
+        assertEquals(COMPLETED, status(4));
+
+        resume.execute(); // redo — ті самі задачі
+        assertEquals(3, resume.getCount());
+        awaitRunning(1, 2, 3);
+    }
+
+    @Test
+    void undoOfResumeLeavesTasksThatWerePausedSince() throws Exception {
+        BulkCommand resume = bulk("error", DownloadCommand.Action.RESUME);
+        resume.execute();
+        awaitRunning(1);
+        svc.pause(1);
+        resume.undo();
+        assertEquals(PAUSED, status(1));
+    }
+
+    /** Відкат масової паузи не запускає другу спробу для задачі, яку вже відновили вручну. */
+    @Test
+    void undoOfPauseSkipsTasksResumedSince() throws Exception {
+        svc.resumeAll(new int[]{2, 3}, 2);
+        awaitRunning(2, 3);
+        BulkCommand pause = bulk("2-3", DownloadCommand.Action.PAUSE);
+        pause.execute();
+        assertEquals(2, pause.getCount());
+        assertTrue(svc.resume(2));
+        pause.undo();
+        awaitRunning(2, 3);
+        assertFalse(svc.resume(2));
+        assertEquals(0, svc.resumeAll(new int[]{2, 3, 4}, 3));
+    }
+
+    @Test
+    void singleCommandRejectsWhatItCannotChange() throws Exception {
+        assertThrows(IllegalStateException.class, () -> new DownloadCommand(svc, 4, DownloadCommand.Action.RESUME).execute());
+        assertThrows(IllegalStateException.class, () -> new DownloadCommand(svc, 2, DownloadCommand.Action.PAUSE).execute());
+        assertThrows(IllegalArgumentException.class, () -> new DownloadCommand(svc, 99, DownloadCommand.Action.PAUSE).execute());
+
+        DownloadCommand resume = new DownloadCommand(svc, 1, DownloadCommand.Action.RESUME);
+        resume.execute();
+        awaitRunning(1);
+        assertThrows(IllegalStateException.class, () -> new DownloadCommand(svc, 1, DownloadCommand.Action.RESUME).execute());
+        resume.undo();
+        assertEquals(ERROR, status(1));
+    }
+}
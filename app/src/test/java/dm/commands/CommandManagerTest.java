@@ -0,0 +1,102 @@
+package dm.commands;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CommandManagerTest {
+    private final List<String> log = new CopyOnWriteArrayList<>();
+    private CommandManager manager = new CommandManager();
+
+    @AfterEach
+    void tearDown() throws Exception {
+        manager.close();
+    }
+
+    /** Команда, що лише пише в log; taskId -1 — як масова. */
+    private final class Logged implements Command {
+        final String name;
+        final int taskId;
+        Logged(String name, int taskId) { this.name = name; this.taskId = taskId; }
+        @Override public void execute() { log.add(name); }
+        @Override public void undo() { log.add("undo " + name); }
+        @Override public String getDescription() { return name; }
+        @Override public int getTaskId() { return taskId; }
+    }
+
+    /** Тримає потік команд, доки тест не поставить у чергу все потрібне. */
+    private CountDownLatch block() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1), go = new CountDownLatch(1);
+        manager.execute(new Command() {
+            @Override public void execute() throws Exception {
+                entered.countDown();
+                go.await();
+            }
+            @Override public void undo() {}
+            @Override public String getDescription() { return "block"; }
+        });
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        return go;
+    }
+
+    @Test
+    void queuedCommandsForOneTaskMerge() throws Exception {
+        CountDownLatch go = block();
+        CompletableFuture<Void> pause = manager.execute(new Logged("pause 5", 5));
+        manager.execute(new Logged("pause 6", 6));
+        CompletableFuture<Void> resume = manager.execute(new Logged("resume 5", 5));
+        assertSame(pause, resume);
+        assertEquals(1, manager.coalescedCount());
+        go.countDown();
+        manager.awaitIdle();
+        assertEquals(List.of("resume 5", "pause 6"), log); // на місці першої
+        assertTrue(pause.isDone());
+    }
+
+    @Test
+    void bulkUndoAndRedoAreBarriers() throws Exception {
+        CountDownLatch go = block();
+        manager.execute(new Logged("a 5", 5));
+        manager.execute(new Logged("bulk", -1));
+        manager.execute(new Logged("b 5", 5));
+        manager.undo();
+        manager.execute(new Logged("c 5", 5));
+        manager.redo();
+        manager.execute(new Logged("d 5", 5));
+        go.countDown();
+        manager.awaitIdle();
+        assertEquals(List.of("a 5", "bulk", "b 5", "undo b 5", "c 5", "d 5"), log); // redo після c — стек порожній
+        assertEquals(0, manager.coalescedCount());
+    }
+
+    @Test
+    void historyIsBounded() throws Exception {
+        manager.close();
+        manager = new CommandManager(3);
+        for (int i = 1; i <= 5; i++) manager.execute(new Logged("c" + i, i));
+        for (int i = 0; i < 5; i++) manager.undo();
+        manager.awaitIdle();
+        assertEquals(List.of("c1", "c2", "c3", "c4", "c5", "undo c5", "undo c4", "undo c3"), log);
+        assertFalse(manager.canUndo());
+        assertTrue(manager.canRedo());
+    }
+
+    @Test
+    void failedCommandStaysOutOfHistory() throws Exception {
+        CompletableFuture<Void> f = manager.execute(new Command() {
+            @Override public void execute() { throw new IllegalStateException("nothing to pause"); }
+            @Override public void undo() { log.add("undo failed"); }
+            @Override public String getDescription() { return "failing"; }
+        });
+        manager.awaitIdle();
+        assertTrue(f.isCompletedExceptionally());
+        assertFalse(manager.canUndo());
+    }
+}
@@ -0,0 +1,82 @@
+package dm.commands;
+
+import dm.core.DownloadTask;
+import dm.core.TaskRepository;
+import dm.core.TaskTable;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskSelectorTest {
+    @TempDir Path dir;
+    private TaskRepository repo;
+    private TaskTable tasks;
+
+    /** 12 задач: хости a, b, c по черзі; кожна третя (3, 6, 9, 12) — PAUSED. */
+    @BeforeEach
+    void setUp() throws Exception {
+        repo = new TaskRepository(dir.resolve("tasks.db"));
+        tasks = repo.openTable();
+        List<TaskRepository.NewTask> rows = new ArrayList<>();
+        for (int i = 1; i <= 12; i++) {
+            rows.add(new TaskRepository.NewTask("http://" + "abc".charAt((i - 1) % 3) + ".example/" + i,
+                    dir.resolve("sub").resolve("f" + i).toString(), -1, null, 0));
+        }
+        repo.createBatch(rows, DownloadTask.Status.QUEUED);
+        for (int id = 3; id <= 12; id += 3) repo.updateStatus(id, DownloadTask.Status.PAUSED, 0);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        repo.close();
+    }
+
+    private int[] select(String text) {
+        return TaskSelector.parse(text.split(" "), 0).resolve(tasks);
+    }
+
+    @Test
+    void idsAndRanges() {
+        assertArrayEquals(new int[]{5}, select("5"));
+        assertArrayEquals(new int[]{2, 3, 4, 7}, select("2-4 7"));
+        assertArrayEquals(new int[]{1, 2, 3, 4, 5}, select("3-5 1-3 4")); // перетин — без повторів
+        assertArrayEquals(new int[]{11, 12}, select("11-500"));
+        assertArrayEquals(new int[0], select("40-50"));
+    }
+
+    @Test
+    void filtersApplyToEverything() {
+        assertArrayEquals(new int[]{3, 6, 9, 12}, select("paused"));
+        assertArrayEquals(new int[]{2, 5, 8, 11}, select("host=B.example"));
+        assertArrayEquals(new int[]{3, 6}, select("1-7 PAUSED"));
+        assertArrayEquals(new int[]{3, 6}, select("1-7 paused host=c.example"));
+        assertArrayEquals(new int[0], select("1-7 paused host=a.example"));
+        assertArrayEquals(new int[]{1}, select("url=http://a.example/1 1-9"));
+        assertEquals(12, select("all").length);
+        assertEquals(12, select("dir=" + dir.resolve("sub")).length);
+        assertEquals(0, select("dir=" + dir.resolve("su")).length); // тека, а не префікс рядка
+    }
+
+    @Test
+    void parseSkipsTheCommandWord() {
+        TaskSelector s = TaskSelector.parse(new String[]{"pause", "1-3", "queued"}, 1);
+        assertArrayEquals(new int[]{1, 2}, s.resolve(tasks));
+        assertEquals("1-3 queued", s.toString());
+    }
+
+    @Test
+    void badSelectorsAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> TaskSelector.parse(new String[]{"pause"}, 1));
+        assertThrows(IllegalArgumentException.class, () -> select("5-2"));
+        assertThrows(IllegalArgumentException.class, () -> select("size=5"));
+        assertThrows(IllegalArgumentException.class, () -> select("sleeping"));
+        assertThrows(IllegalArgumentException.class, () -> select("1-x"));
+    }
+}
@@ -0,0 +1,113 @@
+package dm.control;
+
+import dm.commands.CommandManager;
+import dm.core.DownloadService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Доступ до API керування: токен, Host, Origin, тип тіла; запити — голим сокетом, щоб задати будь-який Host. */
+class ControlServerTest {
+    private static final String ADD = "{\"op\":\"add\",\"paused\":true,\"url\":\"http://127.0.0.1:1/x\",\"target\":\"x\"}";
+
+    @TempDir Path dir;
+    private DownloadService svc;
+    private CommandManager commands;
+    private ControlServer api;
+    private Path tokenFile;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        svc.start();
+        commands = new CommandManager();
+        tokenFile = dir.resolve("tasks.db.token");
+        api = new ControlServer(svc, commands, 0, tokenFile);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        api.close();
+        commands.close();
+        svc.close();
+    }
+
+    /** Відповідь одним рядком статусу: "HTTP/1.1 200 OK". */
+    private String status(String method, String path, String headers, String body) throws Exception {
+        try (Socket s = new Socket(InetAddress.getLoopbackAddress(), api.port())) {
+            byte[] b = body.getBytes(StandardCharsets.UTF_8);
+            String req = method + " " + path + " HTTP/1.1\r\n" + headers
+                    + "Content-Length: " + b.length + "\r\nConnection: close\r\n\r\n";
+            OutputStream out = s.getOutputStream();
+            out.write(req.getBytes(StandardCharsets.US_ASCII));
+            out.write(b);
+            out.flush();
+            InputStream in = s.getInputStream();
+            StringBuilder line = new StringBuilder();
+            for (int c; (c = in.read()) != -1 && c != '\r'; ) line.append((char) c);
+            return line.toString();
+        }
+    }
+
+    private String host() { return "Host: 127.0.0.1:" + api.port() + "\r\n"; }
+    private String auth() { return "Authorization: Bearer " + api.token() + "\r\n"; }
+    private static final String JSON = "Content-Type: application/json\r\n";
+
+    @Test
+    void tokenIsWrittenForTheOwnerOnly() throws Exception {
+        assertEquals(api.token(), Files.readString(tokenFile).trim());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(tokenFile)));
+        }
+    }
+
+    @Test
+    void authorizedJsonCommandIsAccepted() throws Exception {
+        assertTrue(status("POST", "/commands", host() + auth() + JSON, ADD).contains(" 200 "));
+        assertEquals(1, svc.getTasks().size());
+    }
+
+    @Test
+    void everyRouteNeedsTheToken() throws Exception {
+        assertTrue(status("POST", "/commands", host() + JSON, ADD).contains(" 401 "));
+        assertTrue(status("POST", "/commands", host() + "Authorization: Bearer nope\r\n" + JSON, ADD).contains(" 401 "));
+        assertTrue(status("GET", "/events", host(), "").contains(" 401 "));
+        assertEquals(0, svc.getTasks().size());
+    }
+
+    /** "Простий" крос-доменний запит браузера: text/plain, Origin, чужий Host після DNS rebinding. */
+    @Test
+    void browserShapedRequestsAreRejected() throws Exception {
+        assertTrue(status("POST", "/commands", host() + auth() + "Content-Type: text/plain\r\n", ADD).contains(" 415 "));
+        assertTrue(status("POST", "/commands", host() + auth() + JSON + "Origin: http://evil.example\r\n", ADD).contains(" 403 "));
+        assertTrue(status("POST", "/commands", "Host: evil.example:" + api.port() + "\r\n" + auth() + JSON, ADD).contains(" 403 "));
+        assertTrue(status("GET", "/events", "Host: evil.example\r\n" + auth(), "").contains(" 403 "));
+        assertEquals(0, svc.getTasks().size());
+    }
+
+    @Test
+    void badEventIdsAreA400() throws Exception {
+        assertTrue(status("GET", "/events?ids=1,x", host() + auth(), "").contains(" 400 "));
+        assertTrue(status("GET", "/events?ids=-3", host() + auth(), "").contains(" 400 "));
+    }
+
+    /** Фільтр тримає лише передані id: найбільший int не тягне за собою 256 МіБ. */
+    @Test
+    void hugeEventIdIsJustAnotherId() throws Exception {
+        assertTrue(status("GET", "/events?ids=2147483647,1,2147483647", host() + auth(), "").contains(" 200 "));
+        assertTrue(status("GET", "/events?ids=2147483648", host() + auth(), "").contains(" 400 "));
+    }
+}
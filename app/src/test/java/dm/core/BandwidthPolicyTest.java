@@ -0,0 +1,137 @@
+package dm.core;
+
+import dm.net.RangeHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Сумарна швидкість кількох одночасних потоків через спільну BandwidthPolicy. */
+class BandwidthPolicyTest {
+    private static final long RUN_MS = 1500;
+
+    /** Потік "качає" порціями quantum() до дедлайну і повертає, скільки байтів пропустив шейпер. */
+    private static Callable<Long> pump(BandwidthPolicy policy, int taskId, String host, long deadline) {
+        return () -> {
+            long bytes = 0;
+            try (BandwidthPolicy.Transfer tr = policy.open(taskId, host)) {
+                while (System.nanoTime() < deadline) {
+                    int q = tr.quantum(64 * 1024);
+                    tr.acquire(q);
+                    bytes += q;
+                }
+            }
+            return bytes;
+        };
+    }
+
+    /** Ліміт за час роботи плюс один burst відра — з точністю до кількох відсотків в обидва боки. */
+    private static void assertWithin(long limit, long bytes, long elapsedNs, String what) {
+        double expected = limit * (elapsedNs + TokenBucket.BURST_NS) / 1e9;
+        assertTrue(bytes <= expected * 1.03, what + ": " + bytes + " B, expected " + (long) expected);
+        assertTrue(bytes >= expected * 0.97, what + " starved: " + bytes + " B, expected " + (long) expected);
+    }
+
+    @Test
+    void concurrentTransfersShareTheGlobalLimit() throws Exception {
+        long limit = 1 << 20;
+        BandwidthPolicy policy = new BandwidthPolicy();
+        policy.setLimit(limit);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(RUN_MS);
+            List<Future<Long>> running = new ArrayList<>();
+            for (int i = 0; i < 4; i++) running.add(pool.submit(pump(policy, i, "h" + i, deadline)));
+            long total = 0;
+            for (Future<Long> f : running) total += f.get();
+            assertWithin(limit, total, System.nanoTime() - start, "global");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void hostLimitHoldsUnderTheGlobalOne() throws Exception {
+        long global = 2 << 20, hostLimit = 256 * 1024;
+        BandwidthPolicy policy = new BandwidthPolicy();
+        policy.setLimit(global);
+        policy.setHostLimit("slow", hostLimit);
+        ExecutorService pool = Executors.newFixedThreadPool(5);
+        try {
+            long start = System.nanoTime();
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(RUN_MS);
+            List<Future<Long>> slow = new ArrayList<>(), fast = new ArrayList<>();
+            for (int i = 0; i < 3; i++) slow.add(pool.submit(pump(policy, i, "slow", deadline)));
+            for (int i = 3; i < 5; i++) fast.add(pool.submit(pump(policy, i, "fast", deadline)));
+            long slowBytes = 0, fastBytes = 0;
+            for (Future<Long> f : slow) slowBytes += f.get();
+            for (Future<Long> f : fast) fastBytes += f.get();
+            long elapsed = System.nanoTime() - start;
+            assertWithin(hostLimit, slowBytes, elapsed, "host");
+            double expected = global * (elapsed + TokenBucket.BURST_NS) / 1e9;
+            assertTrue(slowBytes + fastBytes <= expected * 1.03,
+                    "global: " + (slowBytes + fastBytes) + " B, at most " + (long) expected);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Пауза не чекає, поки відро відпрацює весь борг: acquire() виходить, щойно встановлено прапорець. */
+    @Test
+    void acquireReturnsSoonAfterStop() throws Exception {
+        BandwidthPolicy policy = new BandwidthPolicy();
+        policy.setLimit(1024); // 64 КіБ — це хвилина сну
+        RangeHttpClient.InterruptFlag flag = new RangeHttpClient.InterruptFlag();
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try (BandwidthPolicy.Transfer tr = policy.open(1, "h", flag)) {
+            Future<?> f = pool.submit(() -> { tr.acquire(64 * 1024); return null; });
+            Thread.sleep(100);
+            assertFalse(f.isDone());
+            long stopped = System.nanoTime();
+            flag.stop();
+            f.get(2, TimeUnit.SECONDS);
+            assertTrue(System.nanoTime() - stopped < TimeUnit.MILLISECONDS.toNanos(500));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Запас MIN_QUANTUM не може перевищити порцію, яку просить Sink: інакше запис
+     * з дрібного буфера падав з IllegalArgumentException.
+     */
+    @Test
+    void quantumNeverExceedsTheRequest() {
+        BandwidthPolicy policy = new BandwidthPolicy();
+        policy.setLimit(1024);
+        try (BandwidthPolicy.Transfer tr = policy.open(1, "h")) {
+            assertEquals(100, tr.quantum(100));
+            assertEquals(1024, tr.quantum(64 * 1024));
+        }
+    }
+
+    /** Ліміт задачі задав користувач: пауза, повтор чи закриті сегменти його не знімають. */
+    @Test
+    void taskLimitOutlivesItsTransfers() {
+        BandwidthPolicy policy = new BandwidthPolicy();
+        policy.setTaskLimit(7, 4096);
+        BandwidthPolicy.Transfer a = policy.open(7, "h");
+        BandwidthPolicy.Transfer b = policy.open(7, "h");
+        a.close();
+        b.close();
+        assertEquals(4096, policy.getTaskLimit(7));
+        try (BandwidthPolicy.Transfer c = policy.open(7, "h")) {
+            assertEquals(1024, c.quantum(64 * 1024)); // 4096 Б/с × 50 мс, але не менше MIN_QUANTUM
+        }
+        policy.setTaskLimit(7, 0);
+        assertEquals(0, policy.getTaskLimit(7));
+    }
+}
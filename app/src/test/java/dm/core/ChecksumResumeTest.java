@@ -0,0 +1,107 @@
+package dm.core;
+
+import dm.TestServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Пауза посеред завантаження з контрольною сумою: після продовження сума збігається з усім файлом. */
+class ChecksumResumeTest {
+    private static final int SIZE = 4 << 20;
+
+    @TempDir Path dir;
+    private TestServer server;
+    private DownloadService svc;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestServer(SIZE);
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        svc.start();
+        svc.setLimit(2 << 20);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        svc.close();
+        server.close();
+    }
+
+    private int add(String checksum) throws Exception {
+        Path target = dir.resolve("f.bin");
+        return svc.addAll(List.of(new TaskRepository.NewTask(server.url("f"), target.toString(), -1, checksum, 0)),
+                false).get(0).id;
+    }
+
+    /** Пауза за живим прогресом: збережений журнал може наздогнати лише під кінець. */
+    private void pauseMidway(int id) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        ProgressMeter m;
+        while ((m = svc.progress(id)) == null || m.position() < SIZE / 4) {
+            assertTrue(System.currentTimeMillis() < deadline, "no progress");
+            Thread.sleep(5);
+        }
+        svc.pause(id);
+        svc.setLimit(0);
+    }
+
+    /** Спроби однієї задачі не перекриваються: наступна починається, коли попередня вже записала підсумок. */
+    private void assertAttemptsInTurn(int id) throws Exception {
+        long deadline = System.currentTimeMillis() + 5_000;
+        List<TaskRepository.Attempt> attempts;
+        while ((attempts = svc.attempts(id)).size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertEquals(2, attempts.size()); // підсумок пишеться слідом за статусом
+        TaskRepository.Attempt first = attempts.get(0), second = attempts.get(1);
+        if (first.startedAt > second.startedAt) { TaskRepository.Attempt x = first; first = second; second = x; }
+        assertEquals(TaskRepository.Attempt.Outcome.PAUSED, first.outcome);
+        assertTrue(second.startedAt >= first.endedAt, first.endedAt + " > " + second.startedAt);
+    }
+
+    @Test
+    void resumedDownloadVerifies() throws Exception {
+        String sha = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(server.data));
+        int id = add("sha256:" + sha);
+        pauseMidway(id);
+        svc.resume(id);
+        DownloadTask t = SegmentedDownloadTest.await(svc, id);
+        assertEquals(DownloadTask.Status.COMPLETED, t.status);
+        assertEquals(Boolean.TRUE, t.verified);
+        assertArrayEquals(server.data, Files.readAllBytes(t.target));
+        assertAttemptsInTurn(id);
+    }
+
+    @Test
+    void resumedDownloadStillCatchesAMismatch() throws Exception {
+        int id = add("sha256:" + "0".repeat(64));
+        pauseMidway(id);
+        svc.resume(id);
+        DownloadTask t = SegmentedDownloadTest.await(svc, id);
+        assertEquals(DownloadTask.Status.ERROR, t.status);
+        assertEquals(Boolean.FALSE, t.verified);
+    }
+
+    /** resume одразу за pause, поки призупинена спроба ще дописує: друга стартує лише після неї, і лише одна. */
+    @Test
+    void resumeRightAfterPauseWaitsForTheOldAttempt() throws Exception {
+        String sha = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(server.data));
+        int id = add("sha256:" + sha);
+        pauseMidway(id);
+        assertTrue(svc.resume(id));
+        assertTrue(svc.resume(id)); // вдруге — той самий відкладений resume, не друга спроба
+        DownloadTask t = SegmentedDownloadTest.await(svc, id);
+        assertEquals(DownloadTask.Status.COMPLETED, t.status);
+        assertEquals(Boolean.TRUE, t.verified);
+        assertArrayEquals(server.data, Files.readAllBytes(t.target));
+        assertAttemptsInTurn(id);
+        assertFalse(svc.resume(id)); // завершену не перезапускаємо
+    }
+}
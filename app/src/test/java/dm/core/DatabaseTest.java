@@ -0,0 +1,119 @@
+package dm.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseTest {
+    @TempDir Path dir;
+    private Database db;
+    private ExecutorService pool;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        db = new Database(dir.resolve("t.db"), 3);
+        db.write(h -> h.con.createStatement().execute("CREATE TABLE t(id INTEGER PRIMARY KEY, a INTEGER, b INTEGER)"));
+        db.openReaders();
+        pool = Executors.newFixedThreadPool(5);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        pool.shutdownNow();
+        db.close();
+    }
+
+    private static long[] sums(Database.Handle h) throws SQLException {
+        try (ResultSet rs = h.prepare("SELECT COUNT(*), COALESCE(SUM(a), 0), COALESCE(SUM(b), 0) FROM t").executeQuery()) {
+            rs.next();
+            return new long[] {rs.getLong(1), rs.getLong(2), rs.getLong(3)};
+        }
+    }
+
+    /**
+     * Письменник пише пари рядків транзакціями, читачі паралельно читають: кожен бачить лише цілі
+     * транзакції (a і b завжди рівні) і ніколи не бачить менше, ніж уже бачив.
+     */
+    @Test
+    void readersSeeWholeTransactionsWhileWriting() throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        Future<?> writer = pool.submit(() -> {
+            for (int i = 0; i < 500; i++) {
+                int v = i;
+                db.transaction(h -> {
+                    PreparedStatement ps = h.prepare("INSERT INTO t(a, b) VALUES(?, ?)");
+                    ps.setInt(1, v);
+                    ps.setInt(2, 0);
+                    ps.executeUpdate();
+                    ps.setInt(1, 0);
+                    ps.setInt(2, v);
+                    ps.executeUpdate();
+                });
+            }
+            done.set(true);
+            return null;
+        });
+        List<Future<Integer>> readers = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            readers.add(pool.submit(() -> {
+                long seen = 0;
+                int reads = 0;
+                while (!done.get()) {
+                    long[] s = db.read(DatabaseTest::sums);
+                    assertEquals(0, s[0] % 2, "half a transaction visible");
+                    assertEquals(s[1], s[2]);
+                    assertTrue(s[0] >= seen);
+                    seen = s[0];
+                    reads++;
+                }
+                return reads;
+            }));
+        }
+        writer.get(60, TimeUnit.SECONDS);
+        for (Future<Integer> f : readers) assertTrue(f.get(10, TimeUnit.SECONDS) > 0);
+        assertEquals(1000, db.read(DatabaseTest::sums)[0]);
+    }
+
+    /** close() чекає на читача, виданого в read(), і закриває його разом з рештою. */
+    @Test
+    void closeClosesReadersInUse() throws Exception {
+        CountDownLatch inside = new CountDownLatch(1), release = new CountDownLatch(1);
+        Connection[] con = new Connection[1];
+        Future<?> reading = pool.submit(() -> db.read(h -> {
+            con[0] = h.con;
+            inside.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new SQLException(e);
+            }
+            return sums(h);
+        }));
+        assertTrue(inside.await(5, TimeUnit.SECONDS));
+        Future<?> closing = pool.submit(() -> { db.close(); return null; });
+        Thread.sleep(100);
+        assertFalse(closing.isDone());
+        release.countDown();
+        reading.get(5, TimeUnit.SECONDS);
+        closing.get(5, TimeUnit.SECONDS);
+        assertTrue(con[0].isClosed());
+        assertThrows(SQLException.class, () -> db.read(DatabaseTest::sums));
+    }
+}
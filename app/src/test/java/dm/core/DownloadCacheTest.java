@@ -0,0 +1,78 @@
+package dm.core;
+
+import dm.TestServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadCacheTest {
+    private static final int SIZE = 256 * 1024;
+
+    @TempDir Path dir;
+    private TestServer server;
+    private DownloadService svc;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestServer(SIZE);
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        svc.start();
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        svc.close();
+        server.close();
+    }
+
+    private DownloadTask fetch(String name) throws Exception {
+        DownloadTask t = SegmentedDownloadTest.await(svc, svc.add(server.url("f"), dir.resolve(name)));
+        assertEquals(DownloadTask.Status.COMPLETED, t.status);
+        assertArrayEquals(server.data, Files.readAllBytes(dir.resolve(name)));
+        return t;
+    }
+
+    @Test
+    void offUntilEnabled() throws Exception {
+        fetch("a");
+        fetch("b");
+        assertEquals(2, server.bodies.get());
+        assertEquals(0, svc.getCache().stats().entries);
+
+        svc.getCache().setCapacity(1L << 20);
+        fetch("c");
+        fetch("d");
+        assertEquals(3, server.bodies.get()); // d — з кешу
+        assertEquals(1, svc.getCache().stats().urlHits);
+    }
+
+    /** Запис витіснили між lookup і копіюванням: промах, а не ERROR задачі. */
+    @Test
+    void entryGoneDuringPlacementIsAMiss() throws Exception {
+        DownloadCache cache = svc.getCache();
+        cache.setCapacity(1L << 20);
+        DownloadTask done = fetch("a");
+        TaskRepository.CacheEntry e = cache.lookup(done);
+        assertNotNull(e);
+        Files.delete(Path.of(e.file));
+        long misses = cache.stats().misses;
+        Path dest = dir.resolve("x.part");
+        assertFalse(cache.place(e, dest));
+        assertFalse(Files.exists(dest));
+        assertEquals(0, cache.stats().entries);
+        assertEquals(misses + 1, cache.stats().misses);
+    }
+
+    @Test
+    void algorithmSpellingsShareAKey() {
+        assertEquals("sha256:ab", DownloadCache.digestKey("SHA-256:AB"));
+        assertEquals(DownloadCache.digestKey("sha-1:ab"), DownloadCache.digestKey("sha1:ab"));
+        assertNull(DownloadCache.digestKey(null));
+    }
+}
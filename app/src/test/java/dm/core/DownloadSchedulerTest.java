@@ -0,0 +1,97 @@
+package dm.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadSchedulerTest {
+    /** Executor, що лише збирає запущені задачі; тест сам вирішує, коли кожна закінчиться. */
+    private static final class Manual extends AbstractExecutorService {
+        final ArrayDeque<Runnable> started = new ArrayDeque<>();
+        @Override public void execute(Runnable r) { started.add(r); }
+        /** Завершує найдавніше запущену; вона може одразу запустити наступну. */
+        void finishOldest() { started.poll().run(); }
+        @Override public void shutdown() {}
+        @Override public List<Runnable> shutdownNow() { return List.of(); }
+        @Override public boolean isShutdown() { return false; }
+        @Override public boolean isTerminated() { return false; }
+        @Override public boolean awaitTermination(long t, TimeUnit u) { return true; }
+    }
+
+    private final Manual executor = new Manual();
+    private final List<Integer> order = new ArrayList<>();
+
+    private void submit(DownloadScheduler s, int id, String host, int priority) {
+        s.submit(id, host, priority, () -> order.add(id));
+    }
+
+    private void drain() {
+        while (!executor.started.isEmpty()) executor.finishOldest();
+    }
+
+    @Test
+    void limitsActiveTotalAndPerHost() {
+        DownloadScheduler s = new DownloadScheduler(executor, 3, 2);
+        for (int i = 1; i <= 5; i++) submit(s, i, "a", 0);
+        assertEquals(2, s.activeCount()); // один хост — не більше maxPerHost
+        for (int i = 6; i <= 10; i++) submit(s, i, "b", 0);
+        assertEquals(3, s.activeCount());
+        assertEquals(7, s.queuedCount());
+        assertArrayEquals(new int[]{2, 3}, s.snapshot().get("a"));
+        assertArrayEquals(new int[]{1, 4}, s.snapshot().get("b"));
+        drain();
+        assertEquals(10, order.size());
+        assertEquals(0, s.activeCount());
+        assertTrue(s.snapshot().isEmpty());
+    }
+
+    @Test
+    void higherPriorityStartsFirstAndEqualOnesTakeTurnsByHost() {
+        DownloadScheduler s = new DownloadScheduler(executor, 1, 1);
+        submit(s, 1, "a", 0); // стартує одразу
+        submit(s, 2, "a", 0);
+        submit(s, 3, "a", 0);
+        submit(s, 4, "b", 0);
+        submit(s, 5, "b", 0);
+        submit(s, 6, "c", 5);
+        drain();
+        assertEquals(List.of(1, 6, 2, 4, 3, 5), order);
+    }
+
+    @Test
+    void resubmitReplacesAndCancelRemoves() {
+        DownloadScheduler s = new DownloadScheduler(executor, 1, 1);
+        submit(s, 1, "a", 0);
+        submit(s, 2, "a", 0);
+        s.submit(2, "a", 0, () -> order.add(-2));
+        submit(s, 3, "a", 0);
+        assertTrue(s.isQueued(3));
+        assertTrue(s.cancel(3));
+        assertFalse(s.cancel(3));
+        assertFalse(s.cancel(1)); // уже запущена
+        drain();
+        assertEquals(List.of(1, -2), order);
+    }
+
+    @Test
+    void raisingTheLimitStartsQueuedTasks() {
+        DownloadScheduler s = new DownloadScheduler(executor, 1, 1);
+        for (int i = 1; i <= 4; i++) submit(s, i, "h" + i, 0);
+        assertEquals(1, s.activeCount());
+        s.setLimits(3, 1);
+        assertEquals(3, s.activeCount());
+        assertEquals(1, s.queuedCount());
+    }
+
+    @Test
+    void hostIsLowercasedAndBadUrlsShareOneQueue() {
+        assertEquals("example.com", DownloadScheduler.hostOf("http://Example.COM:8080/x"));
+        assertEquals("", DownloadScheduler.hostOf("not a url"));
+    }
+}
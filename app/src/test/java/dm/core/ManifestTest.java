@@ -0,0 +1,120 @@
+package dm.core;
+
+import dm.TestServer;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ManifestTest {
+    @TempDir Path dir;
+
+    @Test
+    void optionalColumns() {
+        TaskRepository.NewTask t = Manifest.parse("http://h/a, /tmp/a");
+        assertEquals("http://h/a", t.url);
+        assertEquals("/tmp/a", t.target);
+        assertEquals(-1, t.size);
+        assertNull(t.checksum);
+        assertEquals(0, t.priority);
+
+        t = Manifest.parse("https://h/b\t/tmp/b\t100\tSHA256:" + "AB".repeat(32) + "\t7");
+        assertEquals(100, t.size);
+        assertEquals("sha256:" + "ab".repeat(32), t.checksum);
+        assertEquals(7, t.priority);
+
+        t = Manifest.parse("http://h/c,/tmp/c,,,3"); // порожні поля пропускаються
+        assertEquals(-1, t.size);
+        assertNull(t.checksum);
+        assertEquals(3, t.priority);
+    }
+
+    @Test
+    void bareHexGetsItsAlgorithmFromTheLength() {
+        assertEquals("md5:" + "0".repeat(32), Manifest.parse("http://h/a,a,," + "0".repeat(32)).checksum);
+        assertEquals("sha1:" + "0".repeat(40), Manifest.parse("http://h/a,a,," + "0".repeat(40)).checksum);
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("http://h/a,a,,abc"));
+    }
+
+    @Test
+    void blankLinesAndCommentsAreSkipped() {
+        assertNull(Manifest.parse(""));
+        assertNull(Manifest.parse("   \t "));
+        assertNull(Manifest.parse("# url,target"));
+        assertNull(Manifest.parse("  # indented"));
+    }
+
+    @Test
+    void malformedRowsThrow() {
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("http://h/a"));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("http://h/a,  "));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("ftp://h/a,a"));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("http://h/a,a,big"));
+        assertThrows(IllegalArgumentException.class, () -> Manifest.parse("http://h/a,a,1,,high"));
+    }
+
+    /** id беруться з sqlite_sequence, а не перечитуються: перевіряємо їх проти самої бази. */
+    @Test
+    void batchIdsFollowTheSequence() throws Exception {
+        try (TaskRepository repo = new TaskRepository(dir.resolve("tasks.db"))) {
+            List<DownloadTask> all = new ArrayList<>();
+            all.addAll(repo.createBatch(rows("a", 1), DownloadTask.Status.QUEUED)); // порожня таблиця
+            int single = repo.create("http://h/single", "single");
+            all.addAll(repo.createBatch(rows("b", 2500), DownloadTask.Status.PAUSED));
+            all.addAll(repo.createBatch(rows("c", 3), DownloadTask.Status.QUEUED));
+            assertEquals(List.of(), repo.createBatch(List.of(), DownloadTask.Status.QUEUED));
+
+            assertEquals(1, all.get(0).id);
+            assertEquals(2, single);
+            for (int i = 1; i < all.size(); i++) {
+                assertEquals(all.get(i - 1).id + (i == 1 ? 2 : 1), all.get(i).id);
+            }
+            for (DownloadTask t : all) {
+                DownloadTask stored = repo.findById(t.id);
+                assertEquals(t.url, stored.url);
+                assertEquals(t.target, stored.target);
+                assertEquals(t.status, stored.status);
+            }
+        }
+    }
+
+    private static List<TaskRepository.NewTask> rows(String prefix, int n) {
+        List<TaskRepository.NewTask> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) out.add(new TaskRepository.NewTask("http://h/" + prefix + i, prefix + i, -1, null, 0));
+        return out;
+    }
+
+    @Test
+    void importSkipsBadRowsAndReportsTheFirst() throws Exception {
+        try (TestServer server = new TestServer(1024)) {
+            Path manifest = dir.resolve("list.csv");
+            Files.writeString(manifest, String.join("\n",
+                    "# url,target,size,checksum,priority",
+                    server.url("a") + "," + dir.resolve("a"),
+                    "",
+                    "not-a-url," + dir.resolve("x"),
+                    server.url("b") + "\t" + dir.resolve("b") + "\t1024",
+                    server.url("c") + "," + dir.resolve("c") + ",,,oops",
+                    server.url("d") + "," + dir.resolve("d") + ",,,2"));
+            DownloadService svc = new DownloadService(dir.resolve("tasks.db"));
+            try {
+                svc.start();
+                DownloadService.ImportResult r = svc.importManifest(manifest);
+                assertEquals(3, r.imported);
+                assertEquals(2, r.skipped);
+                assertTrue(r.firstError.startsWith("line 4: "), r.firstError);
+                for (int id = 1; id <= 3; id++) {
+                    assertEquals(DownloadTask.Status.COMPLETED, SegmentedDownloadTest.await(svc, id).status);
+                }
+                assertEquals(2, svc.getRepository().findById(3).priority);
+            } finally {
+                svc.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package dm.core;
+
+import dm.TestServer;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Процес завантаження вбивається (SIGKILL) посеред передачі; після кожного вбивства база і .part
+ * відкриваються знову. Записаний у журнал прогрес не може випереджати байти, що справді лежать у файлі.
+ */
+class ProgressJournalCrashTest {
+    private static final int SIZE = 8 << 20;
+
+    /**
+     * Дочірній процес: качає url у target з обмеженням швидкості, поки його не вб'ють.
+     * Друкує "moved", коли збережений у базі прогрес перевищив args[4] на чверть мегабайта.
+     */
+    public static final class Child {
+        public static void main(String[] args) throws Exception {
+            DownloadService svc = new DownloadService(Paths.get(args[0]));
+            svc.setDurability(ProgressJournal.Durability.PERIODIC, 50);
+            svc.setProgressSampling(10, 16 * 1024);
+            svc.setSegments(Integer.parseInt(args[3]));
+            svc.setLimit(2 << 20);
+            svc.start(); // перервану в минулому раунді задачу звірка поставить у чергу
+            if (svc.getTasks().get(1) == null) svc.add(args[2], Paths.get(args[1]));
+            long before = Long.parseLong(args[4]);
+            while (persisted(svc.getRepository()) < before + 256 * 1024) Thread.sleep(20);
+            System.out.println("moved");
+            Thread.sleep(Long.MAX_VALUE);
+        }
+    }
+
+    @TempDir Path dir;
+
+    /** Прогрес задачі #1 у базі: сума сегментів або lastByte, якщо сегментів немає. */
+    static long persisted(TaskRepository repo) throws Exception {
+        List<Segment> segs = repo.listSegments(1);
+        if (segs.isEmpty()) {
+            DownloadTask t = repo.findById(1);
+            return t == null ? 0 : t.lastByte;
+        }
+        long done = 0;
+        for (Segment s : segs) done += s.done;
+        return done;
+    }
+
+    /** Потоком задачу веде lastByte (префікс файлу), сегментами — doneBytes кожного сегмента. */
+    @ParameterizedTest
+    @ValueSource(ints = {1, 2})
+    void recordedProgressNeverRunsAheadOfTheFile(int segments) throws Exception {
+        Path db = dir.resolve("tasks.db");
+        Path target = dir.resolve("f.bin");
+        Path part = dir.resolve("f.bin.part");
+        try (TestServer server = new TestServer(SIZE)) {
+            long before = 0;
+            for (int i = 0; i < 3; i++) {
+                int round = i;
+                Process p = new ProcessBuilder(
+                        Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                        "--enable-native-access=ALL-UNNAMED",
+                        "-cp", System.getProperty("java.class.path"),
+                        Child.class.getName(), db.toString(), target.toString(), server.url("f"),
+                        String.valueOf(segments), String.valueOf(before))
+                        .redirectErrorStream(true)
+                        .redirectOutput(dir.resolve("child" + round + ".log").toFile())
+                        .start();
+                try {
+                    long deadline = System.currentTimeMillis() + 30_000;
+                    while (!log(round).contains("moved")) {
+                        assertTrue(p.isAlive(), () -> log(round));
+                        assertTrue(System.currentTimeMillis() < deadline, () -> log(round));
+                        Thread.sleep(20);
+                    }
+                    Thread.sleep(200); // ще кілька скидань журналу, щоб убити посеред запису
+                } finally {
+                    p.destroyForcibly();
+                    p.waitFor(10, TimeUnit.SECONDS);
+                }
+
+                try (TaskRepository repo = new TaskRepository(db)) {
+                    DownloadTask t = repo.findById(1);
+                    assertNotNull(t, () -> log(round));
+                    assertNotEquals(DownloadTask.Status.COMPLETED, t.status);
+                    byte[] got = Files.readAllBytes(part);
+                    List<Segment> segs = repo.listSegments(1);
+                    assertEquals(segments > 1, !segs.isEmpty());
+                    for (Segment s : segs) {
+                        assertTrue(s.position() <= got.length);
+                        assertArrayEquals(Arrays.copyOfRange(server.data, (int) s.start, (int) s.position()),
+                                Arrays.copyOfRange(got, (int) s.start, (int) s.position()),
+                                "segment " + s.index + " claims " + s.done + " bytes");
+                    }
+                    if (segs.isEmpty()) {
+                        assertTrue(t.lastByte <= got.length);
+                        assertArrayEquals(Arrays.copyOf(server.data, (int) t.lastByte),
+                                Arrays.copyOf(got, (int) t.lastByte), "lastByte " + t.lastByte);
+                    }
+                    long progress = persisted(repo);
+                    assertTrue(progress > before, "no progress in round " + round);
+                    before = progress;
+                }
+            }
+        }
+    }
+
+    private String log(int round) {
+        try {
+            return Files.readString(dir.resolve("child" + round + ".log"));
+        } catch (Exception e) {
+            return e.toString();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package dm.core;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ProgressJournalTest {
+    @TempDir Path dir;
+    private TaskRepository repo;
+    private ProgressJournal journal;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        repo = new TaskRepository(dir.resolve("tasks.db"));
+        journal = new ProgressJournal(repo, 60_000, Long.MAX_VALUE); // лише явні sync
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        journal.close();
+        repo.close();
+    }
+
+    /** Вікна відображення скидаються до того, як прогрес по файлу потрапить у базу. */
+    @Test
+    void mappedWindowsAreForcedBeforeProgressIsStored() throws Exception {
+        Path part = Files.write(dir.resolve("f.part"), new byte[1000]);
+        int id = repo.create("http://example/f", dir.resolve("f").toString());
+        List<String> forced = new ArrayList<>();
+        journal.setWriters(file -> {
+            try {
+                forced.add(file.getFileName() + " at " + repo.findById(id).lastByte);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        });
+        journal.setDurability(ProgressJournal.Durability.ON_PAUSE, 0);
+        journal.attach(id, part);
+
+        journal.record(id, 600, 1000, null);
+        journal.sync(id);
+
+        assertEquals(List.of("f.part at 0"), forced);
+        assertEquals(600, repo.findById(id).lastByte);
+    }
+
+    /** Без Durability файли не скидаються зовсім — і вікна теж. */
+    @Test
+    void noDurabilityNoForce() throws Exception {
+        int id = repo.create("http://example/g", dir.resolve("g").toString());
+        List<Path> forced = new ArrayList<>();
+        journal.setWriters(forced::add);
+        journal.setDurability(ProgressJournal.Durability.NONE, 0);
+        journal.attach(id, dir.resolve("g.part"));
+        journal.record(id, 10, 100, null);
+        journal.sync(id);
+        assertTrue(forced.isEmpty());
+        assertEquals(10, repo.findById(id).lastByte);
+    }
+}
@@ -0,0 +1,84 @@
+package dm.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Звірка після збою: межа — записаний журналом прогрес, а не розмір виділеного наперед .part. */
+class RecoveryTest {
+    @TempDir Path dir;
+
+    private static void allocate(Path file, long size) throws Exception {
+        try (RandomAccessFile f = new RandomAccessFile(file.toFile(), "rw")) { f.setLength(size); }
+    }
+
+    private int task(TaskRepository repo, String name) throws Exception {
+        return repo.createBatch(List.of(new TaskRepository.NewTask("http://127.0.0.1:1/" + name,
+                dir.resolve(name).toString(), -1, null, 0)), DownloadTask.Status.QUEUED).get(0).id;
+    }
+
+    @Test
+    void progressComesFromTheJournalNotFromTheFileSize() throws Exception {
+        try (TaskRepository repo = new TaskRepository(dir.resolve("tasks.db"))) {
+            int running = task(repo, "a"), paused = task(repo, "b"), segmented = task(repo, "c"), gone = task(repo, "d");
+            repo.updateProgress(running, 600, 1000);
+            allocate(DownloadService.partFile(dir.resolve("a")), 1000); // виділено на всю довжину
+            repo.updateProgress(paused, 600, 1000);
+            repo.updateStatus(paused, DownloadTask.Status.PAUSED, 600);
+            allocate(DownloadService.partFile(dir.resolve("b")), 400); // .part обрізали
+            repo.updateProgress(segmented, 0, 1000);
+            repo.saveSegments(segmented, List.of(new Segment(0, 0, 499, 700), new Segment(1, 500, 999, 100)));
+            allocate(DownloadService.partFile(dir.resolve("c")), 1000);
+            repo.updateProgress(gone, 300, 1000);
+
+            TaskTable tasks = repo.openTable();
+            List<Integer> requeued = new ArrayList<>();
+            Recovery.Result r = new Recovery(repo, tasks, 2).run(t -> requeued.add(t.id));
+
+            assertEquals(4, r.checked);
+            assertEquals(3, r.interrupted);
+            assertEquals(1, r.reset);
+            assertEquals(List.of(running, segmented, gone), requeued);
+
+            DownloadTask a = tasks.get(running);
+            assertEquals(DownloadTask.Status.QUEUED, a.status);
+            assertEquals(600, a.lastByte);
+            DownloadTask b = tasks.get(paused);
+            assertEquals(DownloadTask.Status.PAUSED, b.status);
+            assertEquals(400, b.lastByte);
+            List<Segment> segs = repo.listSegments(segmented);
+            assertEquals(500, segs.get(0).done);
+            assertEquals(100, segs.get(1).done);
+            assertEquals(600, tasks.get(segmented).lastByte);
+            assertEquals(0, tasks.get(gone).lastByte);
+        }
+    }
+
+    @Test
+    void startRunsRecoveryOnceAndBeforeNewTasks() throws Exception {
+        DownloadService svc = new DownloadService(dir.resolve("tasks.db"));
+        try {
+            assertNull(svc.getRecovery());
+            Recovery.Result r = svc.start();
+            assertSame(r, svc.start());
+            assertSame(r, svc.getRecovery());
+        } finally {
+            svc.close();
+        }
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        try {
+            svc.add("http://127.0.0.1:1/x", dir.resolve("x"));
+            assertThrows(IllegalStateException.class, svc::start);
+        } finally {
+            svc.close();
+        }
+        assertFalse(Files.exists(dir.resolve("x")));
+    }
+}
@@ -0,0 +1,106 @@
+package dm.core;
+
+import dm.net.RangeHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.http.HttpHeaders;
+import java.nio.file.AccessDeniedException;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+    private static RangeHttpClient.HttpStatusException http(int status, String retryAfter) {
+        Map<String, List<String>> h = retryAfter == null ? Map.of() : Map.of("Retry-After", List.of(retryAfter));
+        return new RangeHttpClient.HttpStatusException("HTTP " + status, status, HttpHeaders.of(h, (k, v) -> true));
+    }
+
+    @Test
+    void onlyTransientFailuresAreRetried() {
+        assertTrue(RetryPolicy.isRetryable(new IOException("reset")));
+        assertTrue(RetryPolicy.isRetryable(new ConnectException("refused")));
+        assertTrue(RetryPolicy.isRetryable(http(500, null)));
+        assertTrue(RetryPolicy.isRetryable(http(503, null)));
+        assertTrue(RetryPolicy.isRetryable(http(408, null)));
+        assertTrue(RetryPolicy.isRetryable(http(429, null)));
+        assertFalse(RetryPolicy.isRetryable(http(404, null)));
+        assertFalse(RetryPolicy.isRetryable(http(403, null)));
+        assertFalse(RetryPolicy.isRetryable(http(416, null)));
+        assertFalse(RetryPolicy.isRetryable(new AccessDeniedException("/x")));
+        assertFalse(RetryPolicy.isRetryable(new IllegalStateException()));
+        assertEquals(-1, new RetryPolicy().nextDelayMs(http(404, null), 1, "h"));
+    }
+
+    @Test
+    void backoffGrowsWithinItsCap() {
+        RetryPolicy p = new RetryPolicy();
+        p.setMaxAttempts(100);
+        p.setBudgetPerMinute(1_000_000);
+        for (int attempt = 1; attempt <= 12; attempt++) {
+            long cap = Math.min(5 * 60_000L, 1000L << (attempt - 1));
+            long max = 0;
+            for (int i = 0; i < 200; i++) {
+                long d = p.nextDelayMs(new IOException(), attempt, "h");
+                assertTrue(d >= 0 && d <= cap, attempt + ": " + d);
+                max = Math.max(max, d);
+            }
+            assertTrue(max > cap / 2, "jitter covers the range at " + attempt);
+        }
+    }
+
+    @Test
+    void attemptsRunOutUnlessTheTaskMadeProgress() {
+        RetryPolicy p = new RetryPolicy();
+        p.setMaxAttempts(3);
+        assertTrue(p.nextDelayMs(new IOException(), 2, "h") >= 0);
+        assertEquals(-1, p.nextDelayMs(new IOException(), 3, "h"));
+        assertEquals(3, RetryPolicy.countedAttempt(3, 100, 100));
+        int counted = RetryPolicy.countedAttempt(3, 100, 150);
+        assertEquals(1, counted);
+        assertTrue(p.nextDelayMs(new IOException(), counted, "h") >= 0);
+        p.setMaxAttempts(1);
+        assertEquals(-1, p.nextDelayMs(new IOException(), 1, "h"));
+    }
+
+    @Test
+    void retryAfterIsAFloorAndAnHourIsTooLong() {
+        RetryPolicy p = new RetryPolicy();
+        long d = p.nextDelayMs(http(503, "120"), 1, "h");
+        assertEquals(120_000, d); // jitter на першій спробі — до секунди
+        assertTrue(p.nextDelayMs(http(429, "0"), 1, "h") <= 1000);
+        assertEquals(-1, p.nextDelayMs(http(503, "7200"), 1, "h"));
+    }
+
+    /** Вичерпаний бюджет хоста відкладає повтор до поповнення відра, а не вбиває задачу. */
+    @Test
+    void spentBudgetDefersInsteadOfFailing() {
+        RetryPolicy p = new RetryPolicy();
+        p.setBudgetPerMinute(2);
+        assertTrue(p.nextDelayMs(new IOException(), 1, "a") <= 1000);
+        assertTrue(p.nextDelayMs(new IOException(), 1, "a") <= 1000);
+        long third = p.nextDelayMs(new IOException(), 1, "a");
+        long fourth = p.nextDelayMs(new IOException(), 1, "a");
+        assertTrue(third > 29_000 && third <= 30_000, "third " + third);
+        assertTrue(fourth > 59_000 && fourth <= 60_000, "fourth " + fourth);
+        assertTrue(p.nextDelayMs(new IOException(), 1, "b") <= 1000); // інший хост — свій бюджет
+
+        p.setBudgetPerMinute(0);
+        assertEquals(-1, p.nextDelayMs(new IOException(), 1, "c"));
+    }
+
+    @Test
+    void queueLongerThanAnHourGivesUpWithoutSpendingTheBudget() {
+        RetryPolicy p = new RetryPolicy();
+        p.setBudgetPerMinute(1);
+        p.setMaxAttempts(1000);
+        long last = 0;
+        for (int i = 0; i < 60; i++) last = p.nextDelayMs(new IOException(), 1, "h");
+        assertTrue(last > 58 * 60_000L && last <= 59 * 60_000L, "last " + last);
+        assertTrue(p.nextDelayMs(new IOException(), 1, "h") > 59 * 60_000L);
+        assertEquals(-1, p.nextDelayMs(new IOException(), 1, "h"));
+        assertEquals(-1, p.nextDelayMs(new IOException(), 1, "h"));
+    }
+}
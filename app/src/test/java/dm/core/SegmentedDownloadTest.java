@@ -0,0 +1,89 @@
+package dm.core;
+
+import dm.TestServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentedDownloadTest {
+    private static final int SIZE = 4 << 20;
+
+    @TempDir Path dir;
+    private TestServer server;
+    private DownloadService svc;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestServer(SIZE);
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        svc.start();
+        svc.setSegments(4);
+    }
+
+    @AfterEach
+    void tearDown() throws Exception {
+        svc.close();
+        server.close();
+    }
+
+    static DownloadTask await(DownloadService svc, int id) throws Exception {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            DownloadTask t = svc.getRepository().findById(id);
+            if (t.status == DownloadTask.Status.COMPLETED || t.status == DownloadTask.Status.ERROR) return t;
+            Thread.sleep(20);
+        }
+        return fail("task #" + id + " did not finish");
+    }
+
+    @Test
+    void segmentsAssembleTheFile() throws Exception {
+        Path target = dir.resolve("a.bin");
+        DownloadTask t = await(svc, svc.add(server.url("a"), target));
+        assertEquals(DownloadTask.Status.COMPLETED, t.status);
+        assertArrayEquals(server.data, Files.readAllBytes(target));
+    }
+
+    /**
+     * Вибірка задачі — раз на 2 МіБ сумарно, тож до кінця їх буде одна. Кожен із чотирьох сегментів однаково
+     * має потрапити в журнал ще на ходу, зі своїм кроком, а не лише той, що спричинив вибірку.
+     */
+    @Test
+    void everySegmentIsJournaledWhileRunning() throws Exception {
+        svc.setDurability(ProgressJournal.Durability.NONE, 0);
+        svc.setProgressSampling(60_000, 2 << 20);
+        svc.setLimit(1 << 20);
+        int id = svc.add(server.url("c"), dir.resolve("c.bin"));
+        long deadline = System.currentTimeMillis() + 30_000;
+        List<Segment> segs;
+        while (true) {
+            segs = svc.getRepository().listSegments(id);
+            if (segs.size() == 4 && segs.stream().allMatch(s -> s.done > 0)) break;
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(20);
+        }
+        // не кінцевий запис після всіх сегментів: жоден ще не докачаний
+        for (Segment seg : segs) assertFalse(seg.isComplete(), "done: " + segs.stream().map(x -> x.done).toList());
+        svc.setLimit(0);
+        assertEquals(DownloadTask.Status.COMPLETED, await(svc, id).status);
+        assertArrayEquals(server.data, Files.readAllBytes(dir.resolve("c.bin")));
+    }
+
+    /** Сервер віддає менше, ніж просили: задача не може стати COMPLETED з нулями замість даних. */
+    @Test
+    void cappedRangesAreNeverPublished() throws Exception {
+        server.maxRange = 256 * 1024;
+        svc.getRetryPolicy().setMaxAttempts(1);
+        Path target = dir.resolve("b.bin");
+        DownloadTask t = await(svc, svc.add(server.url("b"), target));
+        assertEquals(DownloadTask.Status.ERROR, t.status);
+        assertFalse(Files.exists(target));
+    }
+}
@@ -0,0 +1,206 @@
+package dm.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskTableTest {
+    private static final DownloadTask.Status QUEUED = DownloadTask.Status.QUEUED;
+    private static final DownloadTask.Status RUNNING = DownloadTask.Status.RUNNING;
+    private static final DownloadTask.Status PAUSED = DownloadTask.Status.PAUSED;
+    /** Більше за одну сторінку масиву рядків. */
+    private static final int PAGE_AND_A_BIT = 1024 + 5;
+
+    @TempDir Path dir;
+
+    private static List<TaskRepository.NewTask> rows(int n) {
+        List<TaskRepository.NewTask> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            out.add(new TaskRepository.NewTask("http://h" + (i % 3) + "/f" + i, "/tmp/f" + i, i % 2 == 0 ? -1 : 1000 + i,
+                    i % 5 == 0 ? "md5:" + "0".repeat(32) : null, i % 4));
+        }
+        return out;
+    }
+
+    /** Таблиця в пам'яті і SQLite — поле в поле. */
+    private static void assertMatchesDatabase(TaskRepository repo, TaskTable table) throws Exception {
+        List<DownloadTask> db = repo.listAll();
+        List<DownloadTask> mem = table.listAfter(0, new TaskQuery(), Integer.MAX_VALUE);
+        assertEquals(db.size(), mem.size());
+        assertEquals(db.size(), table.size());
+        for (int i = 0; i < db.size(); i++) {
+            DownloadTask a = db.get(i), b = mem.get(i);
+            String at = "task " + a.id;
+            assertEquals(a.id, b.id, at);
+            assertEquals(a.url, b.url, at);
+            assertEquals(a.target, b.target, at);
+            assertEquals(a.status, b.status, at);
+            assertEquals(a.lastByte, b.lastByte, at);
+            assertEquals(a.totalBytes, b.totalBytes, at);
+            assertEquals(a.priority, b.priority, at);
+            assertEquals(a.createdAt, b.createdAt, at);
+            assertEquals(a.updatedAt, b.updatedAt, at);
+            assertEquals(a.checksum, b.checksum, at);
+            assertEquals(a.digest, b.digest, at);
+            assertEquals(a.verified, b.verified, at);
+            assertEquals(a.etag, b.etag, at);
+            assertEquals(a.lastModified, b.lastModified, at);
+        }
+    }
+
+    @Test
+    void batchesKeepTheTableInStepWithSqlite() throws Exception {
+        try (TaskRepository repo = new TaskRepository(dir.resolve("tasks.db"))) {
+            TaskTable table = repo.openTable();
+            List<DownloadTask> created = repo.createBatch(rows(40), QUEUED);
+            assertMatchesDatabase(repo, table);
+
+            int[] ids = new int[10];
+            for (int i = 0; i < ids.length; i++) ids[i] = created.get(i).id;
+            repo.updateStatusBatch(ids, ids.length, RUNNING);
+            List<TaskRepository.ProgressUpdate> progress = new ArrayList<>();
+            for (int i = 0; i < ids.length; i++) {
+                progress.add(new TaskRepository.ProgressUpdate(ids[i], -1, 100L * i, 5000));
+                progress.add(new TaskRepository.ProgressUpdate(ids[i], 0, 50L * i, 5000)); // сегмент: таблиці не стосується
+            }
+            repo.updateProgressBatch(progress);
+            assertMatchesDatabase(repo, table);
+            assertEquals(100L * 3, table.bytes(ids[3]));
+
+            repo.repairBatch(List.of(
+                    new TaskRepository.Repair(ids[0], QUEUED, 0, true, null, true),
+                    new TaskRepository.Repair(ids[1], PAUSED, 42, false, null, false),
+                    new TaskRepository.Repair(ids[2], QUEUED, 7, false, null, false)));
+            assertMatchesDatabase(repo, table);
+            assertEquals(-1, table.get(ids[0]).totalBytes);
+            assertEquals(42, table.bytes(ids[1]));
+        }
+    }
+
+    @Test
+    void openTableWarmsUpFromTheDatabase() throws Exception {
+        Path db = dir.resolve("tasks.db");
+        try (TaskRepository repo = new TaskRepository(db)) {
+            List<DownloadTask> created = repo.createBatch(rows(PAGE_AND_A_BIT), QUEUED);
+            repo.updateStatus(created.get(5).id, PAUSED, 11);
+        }
+        try (TaskRepository repo = new TaskRepository(db)) {
+            TaskTable table = repo.openTable();
+            assertSame(table, repo.openTable());
+            assertMatchesDatabase(repo, table);
+            assertEquals(1, table.count(PAUSED));
+            assertEquals(PAGE_AND_A_BIT - 1, table.count(QUEUED));
+            assertEquals(PAUSED, table.status(6));
+            assertEquals(11, table.bytes(6));
+            assertNull(table.get(PAGE_AND_A_BIT + 1));
+            assertArrayEquals(new int[]{1, 4, 7}, table.ids(1, 9, new TaskQuery().host("h0")));
+            // і далі таблиця йде за базою
+            repo.createBatch(rows(3), QUEUED);
+            assertMatchesDatabase(repo, table);
+        }
+    }
+
+    private static DownloadTask task(int id, DownloadTask.Status status) {
+        return new DownloadTask(id, "http://h/" + id, Path.of("/tmp/" + id), status, 0, 1000);
+    }
+
+    private static final class Recorder implements TaskTable.Listener {
+        final List<TaskTable.Event> events = new CopyOnWriteArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch go;
+
+        Recorder(boolean blocked) { go = new CountDownLatch(blocked ? 1 : 0); }
+
+        @Override public void onEvent(TaskTable.Event e) {
+            entered.countDown();
+            try {
+                go.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(e);
+        }
+
+        void await(int n) throws InterruptedException {
+            for (int i = 0; i < 500 && events.size() < n; i++) Thread.sleep(10);
+            assertTrue(events.size() >= n, "events: " + events.size());
+        }
+    }
+
+    @Test
+    void statusTransitionsArriveInOrder() throws Exception {
+        TaskTable table = new TaskTable();
+        Recorder rec = new Recorder(false);
+        table.subscribe(rec);
+        table.put(task(1, QUEUED), true);
+        DownloadTask.Status[] path = {RUNNING, PAUSED, QUEUED, RUNNING, DownloadTask.Status.COMPLETED};
+        for (DownloadTask.Status st : path) table.update(1, r -> r.status = st);
+        table.update(1, r -> r.priority = 9);
+        rec.await(path.length + 2);
+
+        assertEquals(TaskTable.Event.Kind.ADDED, rec.events.get(0).kind);
+        DownloadTask.Status prev = QUEUED;
+        for (int i = 0; i < path.length; i++) {
+            TaskTable.Event e = rec.events.get(i + 1);
+            assertEquals(TaskTable.Event.Kind.STATUS, e.kind);
+            assertEquals(path[i], e.status);
+            assertEquals(prev, e.previous);
+            prev = path[i];
+        }
+        assertEquals(TaskTable.Event.Kind.CHANGED, rec.events.get(path.length + 1).kind);
+        table.close();
+    }
+
+    @Test
+    void progressTicksCoalescePerTask() throws Exception {
+        TaskTable table = new TaskTable();
+        table.put(task(1, RUNNING), false);
+        table.put(task(2, RUNNING), false);
+        Recorder rec = new Recorder(true);
+        table.subscribe(rec);
+        table.put(task(3, QUEUED), true);
+        assertTrue(rec.entered.await(5, TimeUnit.SECONDS)); // диспетчер застряг на ADDED
+        for (int i = 1; i <= 1000; i++) {
+            table.tick(1, i, 1000, i);
+            table.tick(2, 2L * i, 2000, i);
+        }
+        table.tick(3, 5, 1000, 1); // не RUNNING — тик ігнорується
+        assertEquals(1000, table.bytes(1));
+        rec.go.countDown();
+        rec.await(3);
+        Thread.sleep(50);
+
+        List<TaskTable.Event> ticks = rec.events.stream().filter(e -> e.kind == TaskTable.Event.Kind.PROGRESS).toList();
+        assertEquals(2, ticks.size());
+        assertEquals(1, ticks.get(0).taskId);
+        assertEquals(1000, ticks.get(0).bytes);
+        assertEquals(2, ticks.get(1).taskId);
+        assertEquals(2000, ticks.get(1).bytes);
+        assertEquals(0, table.droppedEvents());
+        table.close();
+    }
+
+    @Test
+    void overflowIsCountedNotBlocking() throws Exception {
+        TaskTable table = new TaskTable();
+        Recorder rec = new Recorder(true);
+        table.subscribe(rec);
+        table.put(task(1, QUEUED), true);
+        assertTrue(rec.entered.await(5, TimeUnit.SECONDS));
+        int queueLimit = 65_536;
+        for (int id = 2; id <= queueLimit + 101; id++) table.put(task(id, QUEUED), true);
+        assertEquals(100, table.droppedEvents());
+        rec.go.countDown();
+        rec.await(queueLimit + 1);
+        assertEquals(queueLimit + 101, table.size());
+        table.close();
+    }
+}
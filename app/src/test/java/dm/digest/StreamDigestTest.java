@@ -0,0 +1,157 @@
+package dm.digest;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamDigestTest {
+    private static final String[] ALGORITHMS = {"md5", "sha1", "sha256", "crc32c"};
+    /** Довжини навколо межі блоку: 55 — ще влазить довжина, 56 — паддінг іде в другий блок. */
+    private static final int[] LENGTHS = {0, 1, 55, 56, 57, 63, 64, 65, 119, 120, 127, 128, 129, 1000, 4096 + 3};
+
+    @TempDir Path dir;
+
+    private static byte[] data(int n) {
+        byte[] b = new byte[n];
+        new Random(n).nextBytes(b);
+        return b;
+    }
+
+    /** Еталон: MessageDigest з JDK або java.util.zip.CRC32C. */
+    private static String expected(String algorithm, byte[] b) throws Exception {
+        if (algorithm.equals("crc32c")) {
+            CRC32C c = new CRC32C();
+            c.update(b);
+            return "crc32c:" + String.format("%08x", c.getValue());
+        }
+        String jdk = algorithm.equals("md5") ? "MD5" : algorithm.equals("sha1") ? "SHA-1" : "SHA-256";
+        return algorithm + ":" + HexFormat.of().formatHex(MessageDigest.getInstance(jdk).digest(b));
+    }
+
+    private static String digest(String algorithm, byte[] b) {
+        StreamDigest d = StreamDigest.create(algorithm);
+        d.update(ByteBuffer.wrap(b));
+        return d.result();
+    }
+
+    @Test
+    void referenceValues() {
+        byte[] abc = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("md5:d41d8cd98f00b204e9800998ecf8427e", digest("md5", new byte[0]));
+        assertEquals("md5:900150983cd24fb0d6963f7d28e17f72", digest("md5", abc));
+        assertEquals("sha1:da39a3ee5e6b4b0d3255bfef95601890afd80709", digest("sha1", new byte[0]));
+        assertEquals("sha1:a9993e364706816aba3e25717850c26c9cd0d89d", digest("sha1", abc));
+        assertEquals("sha256:e3b0c44298fc1c149afbf4c8996fb92427ae41e4649b934ca495991b7852b855", digest("sha256", new byte[0]));
+        assertEquals("sha256:ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad", digest("sha256", abc));
+        assertEquals("sha256:248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1",
+                digest("sha256", "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals("crc32c:00000000", digest("crc32c", new byte[0]));
+        assertEquals("crc32c:e3069283", digest("crc32c", "123456789".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    void matchesTheJdkAtBlockBoundaries() throws Exception {
+        for (String a : ALGORITHMS) {
+            for (int n : LENGTHS) {
+                byte[] b = data(n);
+                assertEquals(expected(a, b), digest(a, b), a + " " + n);
+                StreamDigest direct = StreamDigest.create(a);
+                direct.update(ByteBuffer.allocateDirect(n).put(b).flip());
+                assertEquals(expected(a, b), direct.result(), a + " direct " + n);
+                assertEquals(n, direct.position());
+            }
+        }
+    }
+
+    /** Шматки, що не збігаються з блоками, і буфер-зріз зі зсувом у масиві. */
+    @Test
+    void unevenPiecesGiveTheSameResult() throws Exception {
+        byte[] b = data(1000);
+        int[] pieces = {1, 7, 55, 56, 63, 64, 65, 200};
+        for (String a : ALGORITHMS) {
+            for (int piece : pieces) {
+                StreamDigest d = StreamDigest.create(a);
+                for (int off = 0; off < b.length; off += piece) {
+                    int n = Math.min(piece, b.length - off);
+                    ByteBuffer padded = ByteBuffer.allocate(n + 10);
+                    d.update(padded.slice(5, n).put(0, b, off, n));
+                }
+                assertEquals(expected(a, b), d.result(), a + " by " + piece);
+            }
+        }
+    }
+
+    /** Пауза посеред неповного блоку: стан переживає серіалізацію, і рахунок іде далі. */
+    @Test
+    void stateRoundTripMidBlock() throws Exception {
+        byte[] b = data(700);
+        int[] cuts = {0, 1, 30, 55, 56, 63, 64, 65, 64 + 17, 640};
+        for (String a : ALGORITHMS) {
+            for (int cut : cuts) {
+                StreamDigest first = StreamDigest.create(a);
+                first.update(ByteBuffer.wrap(b, 0, cut));
+                byte[] state = first.state();
+                StreamDigest resumed = StreamDigest.restore(state);
+                assertEquals(cut, resumed.position());
+                assertArrayEquals(state, resumed.state(), a + " state at " + cut);
+                // результат посередині не зупиняє обчислення
+                assertEquals(first.result(), resumed.result());
+                StreamDigest again = StreamDigest.restore(resumed.state());
+                again.update(ByteBuffer.wrap(b, cut, b.length - cut));
+                assertEquals(expected(a, b), again.result(), a + " cut at " + cut);
+                first.update(ByteBuffer.wrap(b, cut, b.length - cut));
+                assertEquals(expected(a, b), first.result(), a + " after result() at " + cut);
+            }
+        }
+    }
+
+    @Test
+    void crc32cCombineOverManyRestores() {
+        byte[] b = data(5000);
+        StreamDigest d = StreamDigest.create("crc32c");
+        for (int off = 0; off < b.length; off += 333) {
+            d = StreamDigest.restore(d.state());
+            d.update(ByteBuffer.wrap(b, off, Math.min(333, b.length - off)));
+        }
+        CRC32C c = new CRC32C();
+        c.update(b);
+        assertEquals(String.format("crc32c:%08x", c.getValue()), d.result());
+    }
+
+    @Test
+    void updateFromFileRange() throws Exception {
+        byte[] b = data(3 * 1024 * 1024 + 5);
+        Path f = dir.resolve("f");
+        Files.write(f, b);
+        for (String a : ALGORITHMS) {
+            StreamDigest d = StreamDigest.create(a);
+            try (FileChannel fc = FileChannel.open(f)) {
+                d.update(fc, 0, 100);
+                d = StreamDigest.restore(d.state());
+                d.update(fc, 100, b.length);
+            }
+            assertEquals(expected(a, b), d.result(), a);
+        }
+    }
+
+    @Test
+    void namesAndBadInput() {
+        assertEquals("sha256", StreamDigest.create("SHA-256").algorithm());
+        assertEquals("sha1", StreamDigest.create("sha-1").algorithm());
+        assertEquals("md5", StreamDigest.algorithmOf("md5:00"));
+        assertThrows(IllegalArgumentException.class, () -> StreamDigest.create("sha512"));
+        assertThrows(IllegalArgumentException.class, () -> StreamDigest.algorithmOf("abc"));
+        assertThrows(IllegalArgumentException.class, () -> StreamDigest.restore(new byte[]{9}));
+    }
+}
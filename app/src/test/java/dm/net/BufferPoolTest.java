@@ -0,0 +1,130 @@
+package dm.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BufferPoolTest {
+    private static final int K = 1024;
+
+    @Test
+    void sizeClassesArePowersOfTwoWithinBounds() {
+        assertEquals(16 * K, BufferPool.sizeClass(0));
+        assertEquals(16 * K, BufferPool.sizeClass(16 * K));
+        assertEquals(32 * K, BufferPool.sizeClass(16 * K + 1));
+        assertEquals(128 * K, BufferPool.sizeClass(100 * K));
+        assertEquals(256 * K, BufferPool.sizeClass(256 * K));
+        assertEquals(1024 * K, BufferPool.sizeClass(5L << 30));
+    }
+
+    @Test
+    void releasedBufferIsReusedCleared() {
+        BufferPool pool = new BufferPool(1024 * K);
+        ByteBuffer a = pool.acquire(20 * K);
+        assertEquals(32 * K, a.capacity());
+        assertTrue(a.isDirect());
+        a.put((byte) 1);
+        pool.release(a);
+        ByteBuffer b = pool.acquire(30 * K);
+        assertSame(a, b);
+        assertEquals(0, b.position());
+        assertEquals(b.capacity(), b.limit());
+        BufferPool.Stats st = pool.stats();
+        assertEquals(1, st.hits);
+        assertEquals(1, st.misses);
+        assertEquals(32 * K, st.inUse);
+        assertEquals(32 * K, st.allocated);
+        assertEquals(0.5, st.hitRate());
+    }
+
+    @Test
+    void capCountsLeasedAndFreeBuffers() {
+        BufferPool pool = new BufferPool(64 * K);
+        ByteBuffer[] held = new ByteBuffer[4];
+        for (int i = 0; i < 4; i++) assertNotNull(held[i] = pool.acquire(16 * K));
+        assertNull(pool.acquire(16 * K));
+        assertEquals(1, pool.stats().exhausted);
+        pool.release(held[0]);
+        assertNull(pool.acquire(32 * K)); // видані 48K: 32K не влізе, і вільний 16K лишається
+        assertSame(held[0], pool.acquire(16 * K));
+        assertEquals(64 * K, pool.stats().allocated);
+    }
+
+    @Test
+    void zeroCapacityDisablesThePool() {
+        BufferPool pool = new BufferPool(0);
+        assertNull(pool.acquire(16 * K));
+        assertEquals(0.0, pool.stats().hitRate());
+    }
+
+    /** Вільні буфери інших класів відпускаються, щоб звільнити місце під потрібний. */
+    @Test
+    void trimDropsIdleBuffersOfOtherClasses() {
+        BufferPool pool = new BufferPool(128 * K);
+        ByteBuffer big = pool.acquire(64 * K);
+        ByteBuffer mid = pool.acquire(32 * K);
+        ByteBuffer small = pool.acquire(16 * K);
+        pool.release(big);
+        pool.release(mid);
+        assertEquals(112 * K, pool.stats().allocated);
+
+        ByteBuffer wanted = pool.acquire(64 * K);
+        assertSame(big, wanted); // свій клас вільний — обходиться без витіснення
+        pool.release(wanted);
+
+        ByteBuffer[] more = {pool.acquire(32 * K), pool.acquire(32 * K), pool.acquire(32 * K)};
+        for (ByteBuffer b : more) assertNotNull(b);
+        // 64K-буфер відпущено, щоб вмістити нові 32K; 16K ще виданий
+        assertEquals(112 * K, pool.stats().allocated);
+        assertEquals(112 * K, pool.stats().inUse);
+        pool.release(small);
+    }
+
+    @Test
+    void loweringCapacityDropsIdleBuffersAtOnce() {
+        BufferPool pool = new BufferPool(256 * K);
+        ByteBuffer a = pool.acquire(128 * K);
+        ByteBuffer b = pool.acquire(128 * K);
+        pool.release(a);
+        pool.release(b);
+        pool.setCapacity(128 * K);
+        assertEquals(128 * K, pool.stats().allocated);
+        pool.setCapacity(0);
+        assertEquals(0, pool.stats().allocated);
+    }
+
+    /** Видані до зменшення буфери не повертаються у пул, доки allocated вище нової межі. */
+    @Test
+    void releaseAfterCapacityWasLowered() {
+        BufferPool pool = new BufferPool(128 * K);
+        ByteBuffer a = pool.acquire(64 * K);
+        ByteBuffer b = pool.acquire(64 * K);
+        pool.setCapacity(64 * K);
+        assertEquals(128 * K, pool.stats().allocated);
+        pool.release(a);
+        assertEquals(64 * K, pool.stats().allocated);
+        pool.release(b);
+        assertEquals(64 * K, pool.stats().allocated);
+        assertEquals(0, pool.stats().inUse);
+        assertSame(b, pool.acquire(64 * K));
+        assertNull(pool.acquire(16 * K));
+    }
+
+    @Test
+    void shareSplitsCapacityAcrossLeases() {
+        BufferPool pool = new BufferPool(1024 * K);
+        assertEquals(1024 * K, pool.share());
+        ByteBuffer a = pool.acquire(16 * K);
+        ByteBuffer b = pool.acquire(16 * K);
+        ByteBuffer c = pool.acquire(16 * K);
+        assertEquals(256 * K, pool.share()); // 1M / 3 вниз до степеня двійки
+        pool.release(a);
+        assertEquals(512 * K, pool.share());
+        pool.setCapacity(16 * K);
+        assertEquals(16 * K, pool.share());
+        pool.release(b);
+        pool.release(c);
+    }
+}
@@ -0,0 +1,47 @@
+package dm.net;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChannelBodySubscriberTest {
+    /** Підписка, що лише рахує виклики cancel(). */
+    private static final class Counting implements Flow.Subscription {
+        final AtomicInteger cancels = new AtomicInteger();
+        @Override public void request(long n) {}
+        @Override public void cancel() { cancels.incrementAndGet(); }
+    }
+
+    @Test
+    void stopCancelsAnUnfinishedBody() throws Exception {
+        Counting s = new Counting();
+        ChannelBodySubscriber body = new ChannelBodySubscriber();
+        body.onSubscribe(s);
+        RangeHttpClient.InterruptFlag flag = new RangeHttpClient.InterruptFlag();
+        flag.stop();
+        assertNull(body.next(flag));
+        assertEquals(1, s.cancels.get());
+    }
+
+    /** Дочитане тіло не скасовується: з'єднання вже в пулі й може належати іншому запиту. */
+    @Test
+    void completedBodyIsNotCancelled() throws Exception {
+        Counting s = new Counting();
+        ChannelBodySubscriber body = new ChannelBodySubscriber();
+        body.onSubscribe(s);
+        body.onNext(List.of(ByteBuffer.allocate(8)));
+        body.onComplete();
+        RangeHttpClient.InterruptFlag flag = new RangeHttpClient.InterruptFlag();
+        assertEquals(8, body.next(flag).get(0).remaining());
+        assertNull(body.next(flag));
+        body.cancel();
+        flag.stop();
+        assertNull(body.next(flag));
+        assertEquals(0, s.cancels.get());
+    }
+}
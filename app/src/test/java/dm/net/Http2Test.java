@@ -0,0 +1,84 @@
+package dm.net;
+
+import dm.LocalH2Server;
+import org.eclipse.jetty.http.HttpVersion;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Protocol.HTTP_2 проти LocalH2Server: домовляється про h2 і веде паралельні передачі потоками одного з'єднання. */
+class Http2Test {
+    private static final int SIZE = 64 * 1024;
+
+    private static LocalH2Server server;
+    private static SSLContext saved;
+
+    @TempDir Path dir;
+
+    @BeforeAll
+    static void start() throws Exception {
+        server = new LocalH2Server(SIZE);
+        saved = SSLContext.getDefault();
+        SSLContext.setDefault(server.clientContext());
+    }
+
+    @AfterAll
+    static void stop() throws Exception {
+        SSLContext.setDefault(saved);
+        server.close();
+    }
+
+    @Test
+    void alpnNegotiatesHttp2() throws Exception {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+        HttpResponse<byte[]> resp = client.send(HttpRequest.newBuilder(URI.create(server.url("v"))).build(),
+                HttpResponse.BodyHandlers.ofByteArray());
+        assertEquals(HttpClient.Version.HTTP_2, resp.version());
+        assertArrayEquals(server.body, resp.body());
+    }
+
+    @Test
+    void concurrentTransfersShareOneConnection() throws Exception {
+        RangeHttpClient http = new RangeHttpClient(RangeHttpClient.Protocol.HTTP_2);
+        // перше з'єднання встановлюється окремо: одночасні перші запити можуть відкрити кожен своє
+        http.download(server.url("warm"), dir.resolve("warm"), 0, (b, t) -> {},
+                new RangeHttpClient.InterruptFlag(), RangeHttpClient.Throttle.NONE);
+        server.reset();
+        server.delayMs = 300;
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<RangeHttpClient.Result>> running = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                Path target = dir.resolve("f" + i);
+                String url = server.url("f" + i);
+                running.add(pool.submit(() -> http.download(url, target, 0, (b, t) -> {},
+                        new RangeHttpClient.InterruptFlag(), RangeHttpClient.Throttle.NONE)));
+            }
+            for (Future<RangeHttpClient.Result> f : running) assertEquals(SIZE, f.get().contentLength);
+        } finally {
+            server.delayMs = 0;
+            pool.shutdownNow();
+        }
+        for (int i = 0; i < 8; i++) assertArrayEquals(server.body, Files.readAllBytes(dir.resolve("f" + i)));
+        assertEquals(Set.of(HttpVersion.HTTP_2), server.versions);
+        assertEquals(1, server.connections.size(), "connections: " + server.connections);
+        assertTrue(server.maxActive.get() > 1, "streams never overlapped");
+    }
+}
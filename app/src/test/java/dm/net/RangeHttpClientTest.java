@@ -0,0 +1,90 @@
+package dm.net;
+
+import dm.TestServer;
+import dm.digest.StreamDigest;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.net.http.HttpTimeoutException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RangeHttpClientTest {
+    private static final int SIZE = 256 * 1024;
+
+    @TempDir Path dir;
+    private TestServer server;
+    private RangeHttpClient http;
+    private Path file;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        server = new TestServer(SIZE);
+        http = new RangeHttpClient();
+        file = dir.resolve("f.part");
+        RangeHttpClient.preallocate(file, SIZE);
+    }
+
+    @AfterEach
+    void tearDown() {
+        server.close();
+    }
+
+    private void range(long from, long to) throws Exception {
+        http.downloadRange(server.url("f"), file, from, to, (bytes, len) -> {},
+                new RangeHttpClient.InterruptFlag(), RangeHttpClient.Throttle.NONE);
+    }
+
+    @Test
+    void rangeLandsInPlace() throws Exception {
+        range(1000, SIZE - 1);
+        byte[] got = Files.readAllBytes(file);
+        assertArrayEquals(Arrays.copyOfRange(server.data, 1000, SIZE), Arrays.copyOfRange(got, 1000, SIZE));
+    }
+
+    @Test
+    void cappedRangeIsAnError() {
+        server.maxRange = 10_000;
+        IOException e = assertThrows(IOException.class, () -> range(0, SIZE - 1));
+        assertTrue(e.getMessage().contains("ended at 10000"), e.getMessage());
+    }
+
+    /** Продовження з контрольною сумою: префікс, якого сума ще не бачила, досчитується з самого файлу. */
+    @Test
+    void resumeRehashesThePrefixFromTheFile() throws Exception {
+        int half = SIZE / 2;
+        Files.write(file, Arrays.copyOf(server.data, half));
+        StreamDigest digest = StreamDigest.create("sha-256");
+        http.download(server.url("f"), file, half, (bytes, len) -> {}, new RangeHttpClient.InterruptFlag(),
+                RangeHttpClient.Throttle.NONE, digest);
+        assertArrayEquals(server.data, Files.readAllBytes(file));
+        String expected = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(server.data));
+        assertEquals("sha256:" + expected, digest.result());
+    }
+
+    /** Сервер замовк посеред тіла: передача падає за idle-таймаутом, а не висить вічно. */
+    @Test
+    void stalledBodyTimesOut() {
+        server.stallAfter = 4096;
+        http.setIdleTimeout(Duration.ofMillis(300));
+        long start = System.nanoTime();
+        assertThrows(HttpTimeoutException.class, () -> range(0, SIZE - 1));
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(10).toNanos());
+    }
+
+    @Test
+    void rangeFromAnotherOffsetIsRejected() throws Exception {
+        server.shiftRange = 1;
+        assertThrows(IOException.class, () -> range(100, 200));
+        assertEquals(0, Files.readAllBytes(file)[100]); // нічого не записано
+    }
+}
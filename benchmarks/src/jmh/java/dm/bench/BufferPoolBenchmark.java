@@ -0,0 +1,83 @@
+package dm.bench;
+
+import dm.net.BufferPool;
+import dm.net.RangeHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 500 одночасних завантажень по 1 МіБ, кожне у своєму потоці. Потоки платформні: локальний
+ * jdk.httpserver на віртуальних потоках блокується в synchronized-записі і займає carrier-и,
+ * тож віртуальні клієнти в тому самому процесі можуть його не дочекатись.
+ * poolMiB = 0 — пул вимкнено, порції HttpClient пишуться у файл напряму, як до пулу;
+ * 64 — запис через direct-буфери пулу з адаптивним розміром.
+ * Запускати з -prof gc; після прогону друкується стан пулу і direct-пам'ять JDK
+ * (туди потрапляють і тимчасові direct-копії heap-буферів, які JDK кешує в кожному потоці,
+ * що писав у канал).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BufferPoolBenchmark {
+    private static final int BODY = 1024 * 1024;
+    private static final int DOWNLOADS = 500;
+
+    @Param({"0", "64"})
+    public int poolMiB;
+
+    private LocalHttpServer server;
+    private RangeHttpClient http;
+    private ExecutorService executor;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(BODY);
+        http = new RangeHttpClient();
+        http.getBufferPool().setCapacity(poolMiB * 1024L * 1024);
+        executor = Executors.newFixedThreadPool(DOWNLOADS);
+        dir = Files.createTempDirectory("dm-bench-pool");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        BufferPool.Stats st = http.getBufferPool().stats();
+        System.out.printf("%npool: allocated %d KiB, hits %d, misses %d, exhausted %d, hit rate %.3f%n",
+                st.allocated / 1024, st.hits, st.misses, st.exhausted, st.hitRate());
+        for (BufferPoolMXBean b : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (b.getName().equals("direct")) {
+                System.out.printf("jdk direct: %d buffers, %d KiB%n", b.getCount(), b.getMemoryUsed() / 1024);
+            }
+        }
+        executor.shutdownNow();
+        server.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long concurrent() throws Exception {
+        List<Future<Long>> all = new ArrayList<>(DOWNLOADS);
+        for (int i = 0; i < DOWNLOADS; i++) {
+            String name = "f" + i;
+            all.add(executor.submit(() -> http.download(server.url(name), dir.resolve(name), 0,
+                    (bytes, total) -> {}, new RangeHttpClient.InterruptFlag(),
+                    RangeHttpClient.Throttle.NONE).contentLength));
+        }
+        long n = 0;
+        for (Future<Long> f : all) n += f.get();
+        return n;
+    }
+}
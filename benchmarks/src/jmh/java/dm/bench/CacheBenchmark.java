@@ -0,0 +1,77 @@
+package dm.bench;
+
+import dm.core.DownloadCache;
+import dm.core.DownloadService;
+import dm.core.DownloadTask;
+import dm.core.TaskTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Повторне завантаження того самого URL через DownloadService, від add до COMPLETED:
+ * NETWORK — кеш вимкнено, кожен раз з локального HTTP-сервера; COPY і LINK — файл з кешу.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheBenchmark {
+    @Param({"NETWORK", "COPY", "LINK"})
+    public String source;
+
+    @Param({"65536", "67108864"})
+    public int size;
+
+    private LocalHttpServer server;
+    private DownloadService svc;
+    private Path dir;
+    private Path out;
+    private String url;
+    private int n;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(size);
+        dir = Files.createTempDirectory("dm-bench-cache");
+        svc = new DownloadService(dir.resolve("tasks.db"));
+        svc.start();
+        if (!source.equals("NETWORK")) { // кеш вмикається явно
+            svc.getCache().setCapacity(1L << 30);
+            svc.getCache().setMode(DownloadCache.Mode.valueOf(source));
+        }
+        url = server.url("f");
+        out = Files.createDirectories(dir.resolve("out"));
+        fetch(); // перше — з мережі, далі для COPY і LINK влучання
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropFiles() throws Exception {
+        Fixtures.deleteTree(out);
+        Files.createDirectories(out);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        svc.close();
+        server.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public int fetch() throws Exception {
+        int id = svc.add(url, out.resolve("f" + n++));
+        TaskTable tasks = svc.getTasks();
+        DownloadTask.Status st;
+        while ((st = tasks.status(id)) != DownloadTask.Status.COMPLETED) {
+            if (st == DownloadTask.Status.ERROR) throw new IllegalStateException("task #" + id + " failed");
+            LockSupport.parkNanos(20_000);
+        }
+        return id;
+    }
+}
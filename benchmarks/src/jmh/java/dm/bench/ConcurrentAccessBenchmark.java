@@ -0,0 +1,77 @@
+package dm.bench;
+
+import dm.core.DownloadTask;
+import dm.core.TaskRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Читання сторінки задач (як list) під час того, як завантаження безперервно пишуть прогрес.
+ * Дивитись на перцентилі readPage: у WAL вони мають лишатися близькими до readOnly.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 3)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class ConcurrentAccessBenchmark {
+
+    private static final int ROWS = 100_000;
+
+    /** Скільки задач записує журнал прогресу за один flush. */
+    @Param({"1", "200"})
+    public int batch;
+
+    private Path dir;
+    private TaskRepository repo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dm-bench-conc");
+        repo = Fixtures.repository(dir, ROWS);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public List<DownloadTask> readPage() throws Exception {
+        return repo.listAfter(ThreadLocalRandom.current().nextInt(ROWS), 50);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(7)
+    public void writeProgress() throws Exception {
+        ThreadLocalRandom r = ThreadLocalRandom.current();
+        if (batch == 1) {
+            repo.updateProgress(1 + r.nextInt(ROWS), r.nextLong(1 << 30), 1L << 30);
+            return;
+        }
+        List<TaskRepository.ProgressUpdate> updates = new ArrayList<>(batch);
+        for (int i = 0; i < batch; i++) {
+            updates.add(new TaskRepository.ProgressUpdate(1 + r.nextInt(ROWS), -1, r.nextLong(1 << 30), 1L << 30));
+        }
+        repo.updateProgressBatch(updates);
+    }
+
+    /** Те саме читання без записувачів — точка відліку. */
+    @Benchmark
+    @Group("readOnly")
+    @GroupThreads(1)
+    public List<DownloadTask> readPageAlone() throws Exception {
+        return repo.listAfter(ThreadLocalRandom.current().nextInt(ROWS), 50);
+    }
+}
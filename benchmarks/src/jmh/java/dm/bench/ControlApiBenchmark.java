@@ -0,0 +1,179 @@
+package dm.bench;
+
+import dm.commands.CommandManager;
+import dm.control.ControlServer;
+import dm.core.DownloadService;
+import dm.core.TaskRepository;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Навантаження на API керування демона (ControlServer) через справжній HTTP на loopback.
+ * Команди: скільки команд за секунду проходить по одній на запит і пакетами по BATCH.
+ * Розсилка: час від зміни задачі до того, як її отримали всі subscribers підписників /events.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ControlApiBenchmark {
+    static final int TASKS = 10_000;
+    static final int BATCH = 100;
+
+    /** Демон з TASKS задачами на паузі (нічого не качається) і клієнт до нього. */
+    @State(Scope.Benchmark)
+    public static class Daemon {
+        Path dir;
+        DownloadService svc;
+        CommandManager commands;
+        ControlServer api;
+        HttpClient client;
+        URI uri;
+        String getBatch;
+        String addBatch;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            dir = Files.createTempDirectory("dm-control-bench");
+            svc = new DownloadService(dir.resolve("tasks.db"));
+            svc.start();
+            List<TaskRepository.NewTask> rows = new ArrayList<>(TASKS);
+            for (int i = 0; i < TASKS; i++) {
+                rows.add(new TaskRepository.NewTask("http://127.0.0.1:1/" + i + ".bin",
+                        dir.resolve(i + ".bin").toString(), -1, null, 0));
+            }
+            svc.addAll(rows, true);
+            commands = new CommandManager();
+            api = new ControlServer(svc, commands, 0, dir.resolve("tasks.db.token"));
+            client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            uri = URI.create("http://127.0.0.1:" + api.port() + "/commands");
+            StringBuilder b = new StringBuilder("[");
+            for (int i = 0; i < BATCH; i++) b.append(i > 0 ? "," : "").append("{\"op\":\"get\",\"id\":").append(1 + i * 97).append('}');
+            getBatch = b.append(']').toString();
+            b = new StringBuilder("[");
+            for (int i = 0; i < BATCH; i++) {
+                b.append(i > 0 ? "," : "").append("{\"op\":\"add\",\"paused\":true,\"url\":\"http://127.0.0.1:1/n")
+                 .append(i).append("\",\"target\":\"").append(dir.resolve("n" + i)).append("\"}");
+            }
+            addBatch = b.append(']').toString();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            api.close();
+            commands.close();
+            svc.close();
+            Fixtures.deleteTree(dir);
+        }
+
+        String post(String body) throws Exception {
+            HttpResponse<String> r = client.send(HttpRequest.newBuilder(uri).timeout(Duration.ofSeconds(10))
+                    .header("Content-Type", "application/json").header("Authorization", "Bearer " + api.token())
+                    .POST(HttpRequest.BodyPublishers.ofString(body)).build(), HttpResponse.BodyHandlers.ofString());
+            if (r.statusCode() != 200) throw new IllegalStateException(r.statusCode() + " " + r.body());
+            return r.body();
+        }
+    }
+
+    /** Одна команда на запит: межа — сам HTTP-обмін. */
+    @Benchmark
+    public String getSingle(Daemon d) throws Exception {
+        return d.post("{\"op\":\"get\",\"id\":" + ThreadLocalRandom.current().nextInt(1, TASKS + 1) + "}");
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public String getBatch(Daemon d) throws Exception {
+        return d.post(d.getBatch);
+    }
+
+    /** BATCH нових задач (на паузі) одним запитом — одна транзакція SQLite. */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public String addBatch(Daemon d) throws Exception {
+        return d.post(d.addBatch);
+    }
+
+    /**
+     * subscribers потоків /events на одну задачу; кожен рахує отримані CHANGED. Клієнти — голі сокети
+     * з потоком читання на кожен: HttpClient на тисячу потоків у тій самій JVM сам з'їдав більшу частину часу.
+     */
+    @State(Scope.Benchmark)
+    public static class FanOut {
+        @Param({"1", "1000"})
+        int subscribers;
+
+        Daemon daemon = new Daemon();
+        final LongAdder received = new LongAdder();
+        final List<Socket> sockets = new ArrayList<>();
+        long expected;
+        int priority;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            daemon.setUp();
+            byte[] request = ("GET /events?ids=1&progress=0 HTTP/1.1\r\nHost: 127.0.0.1:" + daemon.api.port()
+                    + "\r\nAuthorization: Bearer " + daemon.api.token() + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            for (int i = 0; i < subscribers; i++) {
+                Socket s = new Socket(InetAddress.getLoopbackAddress(), daemon.api.port());
+                s.getOutputStream().write(request);
+                sockets.add(s);
+                Thread.ofVirtual().start(() -> consume(s));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+            while (daemon.api.subscriberCount() < subscribers) {
+                if (System.nanoTime() > deadline) throw new IllegalStateException("only " + daemon.api.subscriberCount() + " subscribed");
+                Thread.sleep(10);
+            }
+        }
+
+        /** Рядки chunked-відповіді: розміри чанків і порожні рядки просто не збігаються з префіксом. */
+        private void consume(Socket s) {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("{\"kind\":\"CHANGED\"")) received.increment();
+                }
+            } catch (IOException ignored) {
+                // сокет закрито в tearDown
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            for (Socket s : sockets) s.close();
+            daemon.tearDown();
+        }
+    }
+
+    /** Зміна пріоритету задачі → подія CHANGED → рядок у кожному з subscribers потоків. */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public long fanOut(FanOut f) throws Exception {
+        f.expected += f.subscribers;
+        f.daemon.svc.setPriority(1, ++f.priority);
+        while (f.received.sum() < f.expected) LockSupport.parkNanos(20_000);
+        return f.expected;
+    }
+}
@@ -0,0 +1,77 @@
+package dm.bench;
+
+import dm.core.BandwidthPolicy;
+import dm.net.RangeHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * RangeHttpClient.download проти локального сервера: одна задача проти кількох
+ * паралельних, без ліміту і з глобальним лімітом швидкості.
+ * Одна операція — повне завантаження tasks файлів по 32 МіБ.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DownloadBenchmark {
+    private static final int BODY = 32 * 1024 * 1024;
+
+    @Param({"1", "8"})
+    public int tasks;
+
+    /** Загальний ліміт, МіБ/с; 0 — без ліміту. */
+    @Param({"0", "256"})
+    public int limitMiB;
+
+    private LocalHttpServer server;
+    private RangeHttpClient http;
+    private BandwidthPolicy policy;
+    private ExecutorService pool;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(BODY);
+        http = new RangeHttpClient();
+        policy = new BandwidthPolicy();
+        policy.setLimit(limitMiB * 1024L * 1024L);
+        pool = Executors.newFixedThreadPool(tasks);
+        dir = Files.createTempDirectory("dm-bench-dl");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        server.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        List<Future<Long>> running = new ArrayList<>();
+        for (int i = 0; i < tasks; i++) {
+            Path target = dir.resolve("f" + i);
+            int id = i;
+            running.add(pool.submit(() -> {
+                try (BandwidthPolicy.Transfer throttle = policy.open(id, "127.0.0.1")) {
+                    return http.download(server.url("f" + id), target, 0,
+                            (bytes, total) -> {}, new RangeHttpClient.InterruptFlag(), throttle).contentLength;
+                }
+            }));
+        }
+        long total = 0;
+        for (Future<Long> f : running) total += f.get();
+        return total;
+    }
+}
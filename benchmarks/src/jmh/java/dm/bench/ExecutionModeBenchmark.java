@@ -0,0 +1,87 @@
+package dm.bench;
+
+import dm.core.DownloadScheduler;
+import dm.net.RangeHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Дзеркалювання 10 000 дрібних файлів (4 КіБ) з одного локального хоста через
+ * DownloadScheduler + RangeHttpClient — так само, як DownloadService запускає задачі,
+ * але без SQLite, щоб порівнювалось саме виконання: пул платформних потоків
+ * проти віртуального потоку на задачу.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExecutionModeBenchmark {
+    private static final int FILES = 10_000;
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String mode;
+
+    @Param({"3", "64", "1024"})
+    public int maxActive;
+
+    private LocalHttpServer server;
+    private RangeHttpClient http;
+    private ExecutorService pool;
+    private DownloadScheduler scheduler;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(4 * 1024);
+        http = new RangeHttpClient();
+        pool = mode.equals("VIRTUAL") ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+        scheduler = new DownloadScheduler(pool, maxActive, maxActive);
+    }
+
+    @Setup(Level.Iteration)
+    public void newDir() throws Exception {
+        dir = Files.createTempDirectory("dm-bench-mode");
+    }
+
+    @TearDown(Level.Iteration)
+    public void dropDir() throws Exception {
+        Fixtures.deleteTree(dir);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        pool.shutdownNow();
+        server.close();
+    }
+
+    @Benchmark
+    public int mirror() throws Exception {
+        CountDownLatch done = new CountDownLatch(FILES);
+        AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < FILES; i++) {
+            int id = i;
+            scheduler.submit(id, "127.0.0.1", 0, () -> {
+                try {
+                    http.download(server.url("f" + id), dir.resolve("f" + id), 0,
+                            (bytes, total) -> {}, new RangeHttpClient.InterruptFlag(),
+                            RangeHttpClient.Throttle.NONE);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        done.await();
+        return failed.get();
+    }
+}
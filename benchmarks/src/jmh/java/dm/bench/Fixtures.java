@@ -0,0 +1,54 @@
+package dm.bench;
+
+import dm.core.TaskRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/** Спільні заготовки для бенчмарків: тимчасові каталоги і наповнені бази задач. */
+final class Fixtures {
+    static final String[] STATUSES = { "COMPLETED", "PAUSED", "RUNNING", "ERROR", "NEW" };
+
+    private Fixtures() {}
+
+    /** Створює базу через TaskRepository (схема) і заливає rows задач одним пакетом напряму через JDBC. */
+    static TaskRepository repository(Path dir, int rows) throws Exception {
+        Path db = dir.resolve("tasks.db");
+        TaskRepository repo = new TaskRepository(db);
+        try (Connection con = DriverManager.getConnection("jdbc:sqlite:" + db.toAbsolutePath())) {
+            con.setAutoCommit(false);
+            try (PreparedStatement ps = con.prepareStatement(
+                    "INSERT INTO tasks(url,target,status,lastByte,totalBytes,host,createdAt,updatedAt) VALUES(?,?,?,?,?,?,?,?)")) {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < rows; i++) {
+                    ps.setString(1, "http://host" + (i % 50) + ".example/files/" + i + ".bin");
+                    ps.setString(2, "downloads/" + i + ".bin");
+                    ps.setString(3, STATUSES[i % STATUSES.length]);
+                    ps.setLong(4, i * 1024L);
+                    ps.setLong(5, i * 2048L);
+                    ps.setString(6, "host" + (i % 50) + ".example");
+                    ps.setLong(7, now - (rows - i) * 1000L);
+                    ps.setLong(8, now - (rows - i) * 1000L);
+                    ps.addBatch();
+                    if (i % 10_000 == 9_999) ps.executeBatch();
+                }
+                ps.executeBatch();
+            }
+            con.commit();
+        }
+        return repo;
+    }
+
+    static void deleteTree(Path dir) throws IOException {
+        if (dir == null || !Files.exists(dir)) return;
+        try (Stream<Path> s = Files.walk(dir)) {
+            s.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+}
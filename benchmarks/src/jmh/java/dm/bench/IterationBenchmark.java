@@ -0,0 +1,76 @@
+package dm.bench;
+
+import dm.core.DownloadTask;
+import dm.core.FilteredTaskIterable;
+import dm.core.TaskIterable;
+import dm.core.TaskQuery;
+import dm.core.TaskRepository;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/** Повний прохід по таблиці задач так, як це робить команда list. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IterationBenchmark {
+
+    @Param({"10000", "100000"})
+    public int rows;
+
+    @Param({"50", "1000"})
+    public int batch;
+
+    private Path dir;
+    private TaskRepository repo;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dm-bench-iter");
+        repo = Fixtures.repository(dir, rows);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void fullScan(Blackhole bh) {
+        for (DownloadTask t : new TaskIterable(repo, batch)) bh.consume(t);
+    }
+
+    /** Фільтр по статусу, що відсіює 4/5 рядків (як list error). */
+    @Benchmark
+    public void filteredScan(Blackhole bh) {
+        var it = new FilteredTaskIterable(new TaskIterable(repo, batch),
+                t -> t.status == DownloadTask.Status.ERROR);
+        for (DownloadTask t : it) bh.consume(t);
+    }
+
+    /** Той самий відбір, але по індексу статусу в базі. */
+    @Benchmark
+    public void statusScan(Blackhole bh) {
+        for (DownloadTask t : new TaskIterable(repo, batch, DownloadTask.Status.ERROR)) bh.consume(t);
+    }
+
+    /** Один хост із 50 — як list host=...: у Java-фільтрі й через індекс. */
+    @Benchmark
+    public void hostFiltered(Blackhole bh) {
+        var it = new FilteredTaskIterable(new TaskIterable(repo, batch),
+                t -> t.url.startsWith("http://host7.example/"));
+        for (DownloadTask t : it) bh.consume(t);
+    }
+
+    @Benchmark
+    public void hostQuery(Blackhole bh) {
+        for (DownloadTask t : new TaskIterable(repo, batch, new TaskQuery().host("host7.example"))) bh.consume(t);
+    }
+}
@@ -0,0 +1,68 @@
+package dm.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Локальна заміна HTTP-сервера: віддає один і той самий вміст за будь-яким шляхом, з підтримкою Range. */
+final class LocalHttpServer implements AutoCloseable {
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final byte[] body;
+
+    LocalHttpServer(int bodySize) throws IOException {
+        this.body = new byte[bodySize];
+        new Random(42).nextBytes(body);
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 1024);
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String url(String name) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/" + name;
+    }
+
+    int size() { return body.length; }
+
+    private void handle(HttpExchange ex) throws IOException {
+        ex.getResponseHeaders().add("Accept-Ranges", "bytes");
+        // jdk.httpserver під навалою коротких запитів інколи губить відповідь на
+        // повторно використаному keep-alive з'єднанні; клієнт тоді чекає до таймауту
+        // і заміри стають шумом. Тому кожна відповідь закриває з'єднання.
+        ex.getResponseHeaders().add("Connection", "close");
+        int from = 0, to = body.length - 1, code = 200;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] p = range.substring(6).split("-", -1);
+            from = Integer.parseInt(p[0]);
+            if (!p[1].isEmpty()) to = Math.min(to, Integer.parseInt(p[1]));
+            code = 206;
+            ex.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + body.length);
+        }
+        if (ex.getRequestMethod().equals("HEAD")) {
+            ex.getResponseHeaders().add("Content-Length", Integer.toString(body.length));
+            ex.sendResponseHeaders(code, -1);
+            ex.close();
+            return;
+        }
+        int len = to - from + 1;
+        ex.sendResponseHeaders(code, len);
+        try (OutputStream os = ex.getResponseBody()) {
+            os.write(body, from, len);
+        } catch (IOException ignored) {
+            // клієнт скасував — для бенчмарку не важливо
+        }
+    }
+
+    @Override public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
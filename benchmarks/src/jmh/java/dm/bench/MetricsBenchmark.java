@@ -0,0 +1,35 @@
+package dm.bench;
+
+import dm.metrics.Counter;
+import dm.metrics.Histogram;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Скільки коштує запис метрики на гарячому шляху, коли пишуть кілька потоків одночасно:
+ * Counter (LongAdder) проти одного AtomicLong і запис тривалості в Histogram.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class MetricsBenchmark {
+    private final Counter counter = new Counter();
+    private final AtomicLong atomic = new AtomicLong();
+    private final Histogram histogram = new Histogram();
+
+    @Benchmark
+    public void counter() { counter.add(16384); }
+
+    @Benchmark
+    public long atomicLong() { return atomic.addAndGet(16384); }
+
+    @Benchmark
+    public void histogram() { histogram.record(ThreadLocalRandom.current().nextLong(1_000, 50_000_000)); }
+}
@@ -0,0 +1,73 @@
+package dm.bench;
+
+import dm.LocalH2Server;
+import dm.net.RangeHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLContext;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 100 дрібних файлів з одного хоста одночасно: HTTP/1.1 (з'єднання на передачу)
+ * проти HTTP/2 (потоки одного з'єднання). Сервер — LocalH2Server (HTTPS, ALPN).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ProtocolBenchmark {
+
+    @Param({"HTTP_1_1", "HTTP_2"})
+    public RangeHttpClient.Protocol protocol;
+
+    @Param({"16384"})
+    public int fileSize;
+
+    @Param({"100"})
+    public int files;
+
+    private LocalH2Server server;
+    private RangeHttpClient http;
+    private ExecutorService pool;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalH2Server(fileSize);
+        SSLContext.setDefault(server.clientContext());
+        http = new RangeHttpClient(protocol);
+        pool = Executors.newVirtualThreadPerTaskExecutor();
+        dir = Files.createTempDirectory("dm-bench-proto");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        server.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long parallelSmallFiles() throws Exception {
+        List<Future<RangeHttpClient.Result>> out = new ArrayList<>(files);
+        for (int i = 0; i < files; i++) {
+            String url = server.url("f" + i);
+            Path target = dir.resolve("f" + i);
+            out.add(pool.submit(() -> http.download(url, target, 0, (b, t) -> {},
+                    new RangeHttpClient.InterruptFlag(), RangeHttpClient.Throttle.NONE)));
+        }
+        long total = 0;
+        for (Future<RangeHttpClient.Result> f : out) total += f.get().contentLength;
+        return total;
+    }
+}
@@ -0,0 +1,79 @@
+package dm.bench;
+
+import dm.net.RangeHttpClient;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Шлях прийому тіла: BodySubscriber, що пише буфери HttpClient прямо у FileChannel,
+ * проти попереднього ofInputStream() + Channels.newChannel + 64 КіБ heap-буфера.
+ * Запускати з -prof gc, щоб побачити різницю в алокаціях на операцію.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class ReceivePathBenchmark {
+    private static final int BODY = 64 * 1024 * 1024;
+
+    private LocalHttpServer server;
+    private RangeHttpClient http;
+    private HttpClient plain;
+    private Path dir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new LocalHttpServer(BODY);
+        http = new RangeHttpClient();
+        plain = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        dir = Files.createTempDirectory("dm-bench-recv");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        server.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long bodySubscriber() throws Exception {
+        return http.download(server.url("a"), dir.resolve("a"), 0,
+                (bytes, total) -> {}, new RangeHttpClient.InterruptFlag(),
+                RangeHttpClient.Throttle.NONE).contentLength;
+    }
+
+    /** Так RangeHttpClient.download читав тіло раніше. */
+    @Benchmark
+    public long inputStream() throws Exception {
+        HttpRequest req = HttpRequest.newBuilder(URI.create(server.url("b"))).GET().build();
+        HttpResponse<java.io.InputStream> resp = plain.send(req, HttpResponse.BodyHandlers.ofInputStream());
+        long n = 0;
+        try (FileChannel fc = FileChannel.open(dir.resolve("b"), StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             var in = resp.body();
+             ReadableByteChannel ch = Channels.newChannel(in)) {
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                while (buf.hasRemaining()) n += fc.write(buf);
+                buf.clear();
+                fc.size(); // як і старий цикл — fstat на кожен буфер
+            }
+        }
+        return n;
+    }
+}
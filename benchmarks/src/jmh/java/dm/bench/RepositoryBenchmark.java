@@ -0,0 +1,89 @@
+package dm.bench;
+
+import dm.core.DownloadTask;
+import dm.core.TaskQuery;
+import dm.core.TaskRepository;
+import dm.core.TaskTable;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Вартість окремих операцій TaskRepository на таблицях різного розміру. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RepositoryBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    private Path dir;
+    private TaskRepository repo;
+    private TaskTable table;
+    private final TaskQuery all = new TaskQuery();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dm-bench-repo");
+        repo = Fixtures.repository(dir, rows);
+        table = repo.openTable(); // після заливки: рядки, вставлені повз репозиторій, бачить лише openTable
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        repo.close();
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public void updateProgress() throws Exception {
+        int id = 1 + ThreadLocalRandom.current().nextInt(rows);
+        repo.updateProgress(id, ThreadLocalRandom.current().nextLong(1 << 30), 1L << 30);
+    }
+
+    @Benchmark
+    public int create() throws Exception {
+        return repo.create("http://bench.example/new.bin", "downloads/new.bin");
+    }
+
+    /** Сторінка з 50 задач із середини таблиці через OFFSET. */
+    @Benchmark
+    public List<DownloadTask> listRangeMiddle() throws Exception {
+        return repo.listRange(rows / 2, 50);
+    }
+
+    /** Та сама сторінка за ключем — типовий крок TaskIterator. */
+    @Benchmark
+    public List<DownloadTask> listAfterMiddle() throws Exception {
+        return repo.listAfter(rows / 2, 50);
+    }
+
+    @Benchmark
+    public DownloadTask findById() throws Exception {
+        return repo.findById(1 + ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    /** Те саме з таблиці в пам'яті — так тепер читають pause, resume і команди. */
+    @Benchmark
+    public DownloadTask tableGet() {
+        return table.get(1 + ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    /** Лише статус, без копії задачі — перевірка команди. */
+    @Benchmark
+    public DownloadTask.Status tableStatus() {
+        return table.status(1 + ThreadLocalRandom.current().nextInt(rows));
+    }
+
+    @Benchmark
+    public List<DownloadTask> tableListAfterMiddle() {
+        return table.listAfter(rows / 2, all, 50);
+    }
+}
@@ -0,0 +1,93 @@
+package dm.bench;
+
+import dm.net.TargetWriter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Запис тіла у файл: CHANNEL (write на кожну порцію) проти MAPPED (копіювання у вікна відображення).
+ * Порції — heap-буфери по 16 КіБ, як їх віддає HttpClient. segments = 1 — один потік підряд;
+ * 16 — сегменти зі своїми каналами, порції приходять по черзі в кожен, як при сегментному завантаженні.
+ * Файл щоразу новий і розріджений (як після preallocate), тож враховано й виділення блоків
+ * (для MAPPED — перші page fault); MAPPED до того ж робить force кожного відпущеного вікна.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(1)
+public class WriterBenchmark {
+    private static final int CHUNK = 16 * 1024;
+
+    @Param({"CHANNEL", "MAPPED"})
+    public TargetWriter.Mode mode;
+
+    @Param({"1", "16"})
+    public int segments;
+
+    @Param({"256"})
+    public int sizeMiB;
+
+    private Path dir;
+    private Path file;
+    private ByteBuffer chunk;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("dm-bench-writer");
+        file = dir.resolve("target.part");
+        byte[] data = new byte[CHUNK];
+        new Random(7).nextBytes(data);
+        chunk = ByteBuffer.wrap(data);
+    }
+
+    @Setup(Level.Invocation)
+    public void freshFile() throws Exception {
+        Files.deleteIfExists(file);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.setLength((long) sizeMiB * 1024 * 1024);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Fixtures.deleteTree(dir);
+    }
+
+    @Benchmark
+    public long write() throws Exception {
+        long size = (long) sizeMiB * 1024 * 1024;
+        long per = size / segments;
+        FileChannel[] channels = new FileChannel[segments];
+        TargetWriter[] writers = new TargetWriter[segments];
+        try {
+            for (int i = 0; i < segments; i++) {
+                channels[i] = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                long from = i * per;
+                writers[i] = TargetWriter.open(channels[i], from, i == segments - 1 ? size : from + per, mode);
+            }
+            long written = 0;
+            for (long off = 0; off < per; off += CHUNK) {
+                for (TargetWriter w : writers) {
+                    w.write(chunk.clear());
+                    written += CHUNK;
+                }
+            }
+            return written;
+        } finally {
+            for (int i = 0; i < segments; i++) {
+                if (writers[i] != null) writers[i].close();
+                if (channels[i] != null) channels[i].close();
+            }
+        }
+    }
+}